@@ -19,11 +19,13 @@ import org.lwjgl.opengl.GL11;
 import org.lwjgl.opengl.GL13;
 import org.lwjgl.opengl.GL15;
 import org.lwjgl.opengl.GL20;
-import org.lwjgl.opengl.GL30;
 import org.lwjgl.opengl.PixelFormat;
 import org.lwjgl.util.glu.GLU;
 import org.lwjgl.util.vector.Matrix4f;
 import org.lwjgl.util.vector.Vector3f;
+import org.skycastle.flowgine.engine.EngineClock;
+import org.skycastle.flowgine.render.RenderBackend;
+import org.skycastle.flowgine.utils.OpenGLUtils;
 
 
 import de.matthiasmann.twl.utils.PNGDecoder;
@@ -62,8 +64,18 @@ public class ExampleApp{
     private Vector3f modelPos = null;
     private Vector3f modelAngle = null;
     private Vector3f modelScale = null;
+    private final Vector3f previousModelPos = new Vector3f();
+    private final Vector3f previousModelAngle = new Vector3f();
+    private final Vector3f previousModelScale = new Vector3f();
+    private final Vector3f renderedModelPos = new Vector3f();
+    private final Vector3f renderedModelAngle = new Vector3f();
+    private final Vector3f renderedModelScale = new Vector3f();
     private Vector3f cameraPos = null;
     private FloatBuffer matrix44Buffer = null;
+    // Rendering backend
+    private final RenderBackend gl = FlowGine.renderBackend;
+    // Simulation runs at a fixed 30 steps per second, rendering at the monitor refresh rate
+    private final EngineClock clock = new EngineClock(30);
 
     public ExampleApp() {
         // Initialize OpenGL (Display)
@@ -78,8 +90,9 @@ public class ExampleApp{
             // Do a single loop (logic/render)
             this.loopCycle();
 
-            // Force a maximum FPS of about 60
-            Display.sync(60);
+            // Check for OpenGL errors once per frame, if so configured
+            OpenGLUtils.checkFrameGLErrors();
+
             // Let the CPU synchronize with the GPU if GPU is tagging behind
             Display.update();
         }
@@ -135,18 +148,19 @@ public class ExampleApp{
             Display.setDisplayMode(new DisplayMode(WIDTH, HEIGHT));
             Display.setTitle(WINDOW_TITLE);
             Display.create(pixelFormat, contextAtrributes);
+            Display.setVSyncEnabled(true);
 
-            GL11.glViewport(0, 0, WIDTH, HEIGHT);
+            gl.viewport(0, 0, WIDTH, HEIGHT);
         } catch (LWJGLException e) {
             e.printStackTrace();
             System.exit(-1);
         }
 
         // Setup an XNA like background color
-        GL11.glClearColor(0.4f, 0.6f, 0.9f, 0f);
+        gl.clearColor(0.4f, 0.6f, 0.9f, 0f);
 
         // Map the internal OpenGL coordinate system to the entire screen
-        GL11.glViewport(0, 0, WIDTH, HEIGHT);
+        gl.viewport(0, 0, WIDTH, HEIGHT);
 
         this.exitOnGLError("setupOpenGL");
     }
@@ -186,40 +200,43 @@ public class ExampleApp{
         indicesBuffer.flip();
 
         // Create a new Vertex Array Object in memory and select it (bind)
-        vaoId = GL30.glGenVertexArrays();
-        GL30.glBindVertexArray(vaoId);
+        vaoId = gl.genVertexArray();
+        gl.bindVertexArray(vaoId);
 
         // Create a new Vertex Buffer Object in memory and select it (bind)
-        vboId = GL15.glGenBuffers();
-        GL15.glBindBuffer(GL15.GL_ARRAY_BUFFER, vboId);
-        GL15.glBufferData(GL15.GL_ARRAY_BUFFER, verticesFloatBuffer, GL15.GL_STREAM_DRAW);
+        vboId = gl.genBuffer();
+        gl.bindBuffer(GL15.GL_ARRAY_BUFFER, vboId);
+        gl.bufferData(GL15.GL_ARRAY_BUFFER, verticesFloatBuffer, GL15.GL_STREAM_DRAW);
 
         // Put the position coordinates in attribute list 0
-        GL20.glVertexAttribPointer(0, VertexData.positionElementCount, GL11.GL_FLOAT,
+        gl.vertexAttribPointer(0, VertexData.positionElementCount, GL11.GL_FLOAT,
                                    false, VertexData.stride, VertexData.positionByteOffset);
         // Put the color components in attribute list 1
-        GL20.glVertexAttribPointer(1, VertexData.colorElementCount, GL11.GL_FLOAT,
+        gl.vertexAttribPointer(1, VertexData.colorElementCount, GL11.GL_FLOAT,
                                    false, VertexData.stride, VertexData.colorByteOffset);
         // Put the texture coordinates in attribute list 2
-        GL20.glVertexAttribPointer(2, VertexData.textureElementCount, GL11.GL_FLOAT,
+        gl.vertexAttribPointer(2, VertexData.textureElementCount, GL11.GL_FLOAT,
                                    false, VertexData.stride, VertexData.textureByteOffset);
 
-        GL15.glBindBuffer(GL15.GL_ARRAY_BUFFER, 0);
+        gl.bindBuffer(GL15.GL_ARRAY_BUFFER, 0);
 
         // Deselect (bind to 0) the VAO
-        GL30.glBindVertexArray(0);
+        gl.bindVertexArray(0);
 
         // Create a new VBO for the indices and select it (bind) - INDICES
-        vboiId = GL15.glGenBuffers();
-        GL15.glBindBuffer(GL15.GL_ELEMENT_ARRAY_BUFFER, vboiId);
-        GL15.glBufferData(GL15.GL_ELEMENT_ARRAY_BUFFER, indicesBuffer,
+        vboiId = gl.genBuffer();
+        gl.bindBuffer(GL15.GL_ELEMENT_ARRAY_BUFFER, vboiId);
+        gl.bufferData(GL15.GL_ELEMENT_ARRAY_BUFFER, indicesBuffer,
                           GL15.GL_STATIC_DRAW);
-        GL15.glBindBuffer(GL15.GL_ELEMENT_ARRAY_BUFFER, 0);
+        gl.bindBuffer(GL15.GL_ELEMENT_ARRAY_BUFFER, 0);
 
         // Set the default quad rotation, scale and position values
         modelPos = new Vector3f(0, 0, 0);
         modelAngle = new Vector3f(0, 0, 0);
         modelScale = new Vector3f(1, 1, 1);
+        previousModelPos.set(modelPos);
+        previousModelAngle.set(modelAngle);
+        previousModelScale.set(modelScale);
         cameraPos = new Vector3f(0, 0, 0);
 
         this.exitOnGLError("setupQuad");
@@ -234,29 +251,29 @@ public class ExampleApp{
                                    GL20.GL_FRAGMENT_SHADER);
 
         // Create a new shader program that links both shaders
-        pId = GL20.glCreateProgram();
-        GL20.glAttachShader(pId, vsId);
-        GL20.glAttachShader(pId, fsId);
+        pId = gl.createProgram();
+        gl.attachShader(pId, vsId);
+        gl.attachShader(pId, fsId);
 
-        GL20.glLinkProgram(pId);
-        GL20.glValidateProgram(pId);
+        gl.linkProgram(pId);
+        gl.validateProgram(pId);
 
-        GL20.glDetachShader(pId, vsId);
-        GL20.glDetachShader(pId, fsId);
-        GL20.glDeleteShader(vsId);
-        GL20.glDeleteShader(fsId);
+        gl.detachShader(pId, vsId);
+        gl.detachShader(pId, fsId);
+        gl.deleteShader(vsId);
+        gl.deleteShader(fsId);
 
         // Get matrices uniform locations
-        projectionMatrixLocation = GL20.glGetUniformLocation(pId, "projectionMatrix");
-        viewMatrixLocation = GL20.glGetUniformLocation(pId, "viewMatrix");
-        modelMatrixLocation = GL20.glGetUniformLocation(pId, "modelMatrix");
+        projectionMatrixLocation = gl.getUniformLocation(pId, "projectionMatrix");
+        viewMatrixLocation = gl.getUniformLocation(pId, "viewMatrix");
+        modelMatrixLocation = gl.getUniformLocation(pId, "modelMatrix");
 
         // Position information will be attribute 0
-        GL20.glBindAttribLocation(pId, 0, "in_Position");
+        gl.bindAttribLocation(pId, 0, "in_Position");
         // Color information will be attribute 1
-        GL20.glBindAttribLocation(pId, 1, "in_Color");
+        gl.bindAttribLocation(pId, 1, "in_Color");
         // Textute information will be attribute 2
-        GL20.glBindAttribLocation(pId, 2, "in_TextureCoord");
+        gl.bindAttribLocation(pId, 2, "in_TextureCoord");
 
         this.exitOnGLError("setupShaders");
     }
@@ -310,6 +327,15 @@ public class ExampleApp{
             }
         }
 
+        this.exitOnGLError("logicCycle");
+    }
+
+    private void updateMatrices(float alpha) {
+        // Interpolate between the two latest simulation steps
+        interpolate(previousModelPos, modelPos, alpha, renderedModelPos);
+        interpolate(previousModelAngle, modelAngle, alpha, renderedModelAngle);
+        interpolate(previousModelScale, modelScale, alpha, renderedModelScale);
+
         //-- Update matrices
         // Reset view and model matrices
         viewMatrix = new Matrix4f();
@@ -319,66 +345,83 @@ public class ExampleApp{
         Matrix4f.translate(cameraPos, viewMatrix, viewMatrix);
 
         // Scale, translate and rotate model
-        Matrix4f.scale(modelScale, modelMatrix, modelMatrix);
-        Matrix4f.translate(modelPos, modelMatrix, modelMatrix);
-        Matrix4f.rotate(this.degreesToRadians(modelAngle.z), new Vector3f(0, 0, 1),
+        Matrix4f.scale(renderedModelScale, modelMatrix, modelMatrix);
+        Matrix4f.translate(renderedModelPos, modelMatrix, modelMatrix);
+        Matrix4f.rotate(this.degreesToRadians(renderedModelAngle.z), new Vector3f(0, 0, 1),
                         modelMatrix, modelMatrix);
-        Matrix4f.rotate(this.degreesToRadians(modelAngle.y), new Vector3f(0, 1, 0),
+        Matrix4f.rotate(this.degreesToRadians(renderedModelAngle.y), new Vector3f(0, 1, 0),
                         modelMatrix, modelMatrix);
-        Matrix4f.rotate(this.degreesToRadians(modelAngle.x), new Vector3f(1, 0, 0),
+        Matrix4f.rotate(this.degreesToRadians(renderedModelAngle.x), new Vector3f(1, 0, 0),
                         modelMatrix, modelMatrix);
 
         // Upload matrices to the uniform variables
-        GL20.glUseProgram(pId);
+        gl.useProgram(pId);
 
         projectionMatrix.store(matrix44Buffer); matrix44Buffer.flip();
-        GL20.glUniformMatrix4(projectionMatrixLocation, false, matrix44Buffer);
+        gl.uniformMatrix4(projectionMatrixLocation, false, matrix44Buffer);
         viewMatrix.store(matrix44Buffer); matrix44Buffer.flip();
-        GL20.glUniformMatrix4(viewMatrixLocation, false, matrix44Buffer);
+        gl.uniformMatrix4(viewMatrixLocation, false, matrix44Buffer);
         modelMatrix.store(matrix44Buffer); matrix44Buffer.flip();
-        GL20.glUniformMatrix4(modelMatrixLocation, false, matrix44Buffer);
+        gl.uniformMatrix4(modelMatrixLocation, false, matrix44Buffer);
 
-        GL20.glUseProgram(0);
+        gl.useProgram(0);
 
-        this.exitOnGLError("logicCycle");
+        this.exitOnGLError("updateMatrices");
+    }
+
+    private void interpolate(Vector3f previous, Vector3f latest, float alpha, Vector3f out) {
+        out.set(EngineClock.interpolate(previous.x, latest.x, alpha),
+                EngineClock.interpolate(previous.y, latest.y, alpha),
+                EngineClock.interpolate(previous.z, latest.z, alpha));
     }
 
     private void renderCycle() {
-        GL11.glClear(GL11.GL_COLOR_BUFFER_BIT);
+        gl.clear(GL11.GL_COLOR_BUFFER_BIT);
 
-        GL20.glUseProgram(pId);
+        gl.useProgram(pId);
 
         // Bind the texture
-        GL13.glActiveTexture(GL13.GL_TEXTURE0);
-        GL11.glBindTexture(GL11.GL_TEXTURE_2D, texIds[textureSelector]);
+        gl.activeTexture(GL13.GL_TEXTURE0);
+        gl.bindTexture(GL11.GL_TEXTURE_2D, texIds[textureSelector]);
 
         // Bind to the VAO that has all the information about the vertices
-        GL30.glBindVertexArray(vaoId);
-        GL20.glEnableVertexAttribArray(0);
-        GL20.glEnableVertexAttribArray(1);
-        GL20.glEnableVertexAttribArray(2);
+        gl.bindVertexArray(vaoId);
+        gl.enableVertexAttribArray(0);
+        gl.enableVertexAttribArray(1);
+        gl.enableVertexAttribArray(2);
 
         // Bind to the index VBO that has all the information about the order of the vertices
-        GL15.glBindBuffer(GL15.GL_ELEMENT_ARRAY_BUFFER, vboiId);
+        gl.bindBuffer(GL15.GL_ELEMENT_ARRAY_BUFFER, vboiId);
 
         // Draw the vertices
-        GL11.glDrawElements(GL11.GL_TRIANGLES, indicesCount, GL11.GL_UNSIGNED_BYTE, 0);
+        gl.drawElements(GL11.GL_TRIANGLES, indicesCount, GL11.GL_UNSIGNED_BYTE, 0);
 
         // Put everything back to default (deselect)
-        GL15.glBindBuffer(GL15.GL_ELEMENT_ARRAY_BUFFER, 0);
-        GL20.glDisableVertexAttribArray(0);
-        GL20.glDisableVertexAttribArray(1);
-        GL20.glDisableVertexAttribArray(2);
-        GL30.glBindVertexArray(0);
+        gl.bindBuffer(GL15.GL_ELEMENT_ARRAY_BUFFER, 0);
+        gl.disableVertexAttribArray(0);
+        gl.disableVertexAttribArray(1);
+        gl.disableVertexAttribArray(2);
+        gl.bindVertexArray(0);
 
-        GL20.glUseProgram(0);
+        gl.useProgram(0);
 
         this.exitOnGLError("renderCycle");
     }
 
     private void loopCycle() {
-        // Update logic
-        this.logicCycle();
+        // Update logic in fixed steps, keeping the previous state for interpolation
+        clock.advance();
+        while (clock.step()) {
+            previousModelPos.set(modelPos);
+            previousModelAngle.set(modelAngle);
+            previousModelScale.set(modelScale);
+
+            this.logicCycle();
+        }
+
+        // Update matrices for the time between the two latest steps
+        this.updateMatrices(clock.getAlpha());
+
         // Update rendered frame
         this.renderCycle();
 
@@ -387,31 +430,31 @@ public class ExampleApp{
 
     private void destroyOpenGL() {
         // Delete the texture
-        GL11.glDeleteTextures(texIds[0]);
-        GL11.glDeleteTextures(texIds[1]);
+        gl.deleteTexture(texIds[0]);
+        gl.deleteTexture(texIds[1]);
 
         // Delete the shaders
-        GL20.glUseProgram(0);
-        GL20.glDeleteProgram(pId);
+        gl.useProgram(0);
+        gl.deleteProgram(pId);
 
         // Select the VAO
-        GL30.glBindVertexArray(vaoId);
+        gl.bindVertexArray(vaoId);
 
         // Disable the VBO index from the VAO attributes list
-        GL20.glDisableVertexAttribArray(0);
-        GL20.glDisableVertexAttribArray(1);
+        gl.disableVertexAttribArray(0);
+        gl.disableVertexAttribArray(1);
 
         // Delete the vertex VBO
-        GL15.glBindBuffer(GL15.GL_ARRAY_BUFFER, 0);
-        GL15.glDeleteBuffers(vboId);
+        gl.bindBuffer(GL15.GL_ARRAY_BUFFER, 0);
+        gl.deleteBuffer(vboId);
 
         // Delete the index VBO
-        GL15.glBindBuffer(GL15.GL_ELEMENT_ARRAY_BUFFER, 0);
-        GL15.glDeleteBuffers(vboiId);
+        gl.bindBuffer(GL15.GL_ELEMENT_ARRAY_BUFFER, 0);
+        gl.deleteBuffer(vboiId);
 
         // Delete the VAO
-        GL30.glBindVertexArray(0);
-        GL30.glDeleteVertexArrays(vaoId);
+        gl.bindVertexArray(0);
+        gl.deleteVertexArray(vaoId);
 
         this.exitOnGLError("destroyOpenGL");
 
@@ -435,11 +478,11 @@ public class ExampleApp{
             System.exit(-1);
         }
 
-        shaderID = GL20.glCreateShader(type);
-        GL20.glShaderSource(shaderID, shaderSource);
-        GL20.glCompileShader(shaderID);
+        shaderID = gl.createShader(type);
+        gl.shaderSource(shaderID, shaderSource);
+        gl.compileShader(shaderID);
 
-        if (GL20.glGetShader(shaderID, GL20.GL_COMPILE_STATUS) == GL11.GL_FALSE) {
+        if (gl.getShaderi(shaderID, GL20.GL_COMPILE_STATUS) == GL11.GL_FALSE) {
             System.err.println("Could not compile shader.");
             System.exit(-1);
         }
@@ -478,26 +521,26 @@ public class ExampleApp{
         }
 
         // Create a new texture object in memory and bind it
-        int texId = GL11.glGenTextures();
-        GL13.glActiveTexture(textureUnit);
-        GL11.glBindTexture(GL11.GL_TEXTURE_2D, texId);
+        int texId = gl.genTexture();
+        gl.activeTexture(textureUnit);
+        gl.bindTexture(GL11.GL_TEXTURE_2D, texId);
 
         // All RGB bytes are aligned to each other and each component is 1 byte
-        GL11.glPixelStorei(GL11.GL_UNPACK_ALIGNMENT, 1);
+        gl.pixelStorei(GL11.GL_UNPACK_ALIGNMENT, 1);
 
         // Upload the texture data and generate mip maps (for scaling)
-        GL11.glTexImage2D(GL11.GL_TEXTURE_2D, 0, GL11.GL_RGB, tWidth, tHeight, 0,
+        gl.texImage2D(GL11.GL_TEXTURE_2D, 0, GL11.GL_RGB, tWidth, tHeight, 0,
                           GL11.GL_RGBA, GL11.GL_UNSIGNED_BYTE, buf);
-        GL30.glGenerateMipmap(GL11.GL_TEXTURE_2D);
+        gl.generateMipmap(GL11.GL_TEXTURE_2D);
 
         // Setup the ST coordinate system
-        GL11.glTexParameteri(GL11.GL_TEXTURE_2D, GL11.GL_TEXTURE_WRAP_S, GL11.GL_REPEAT);
-        GL11.glTexParameteri(GL11.GL_TEXTURE_2D, GL11.GL_TEXTURE_WRAP_T, GL11.GL_REPEAT);
+        gl.texParameteri(GL11.GL_TEXTURE_2D, GL11.GL_TEXTURE_WRAP_S, GL11.GL_REPEAT);
+        gl.texParameteri(GL11.GL_TEXTURE_2D, GL11.GL_TEXTURE_WRAP_T, GL11.GL_REPEAT);
 
         // Setup what to do when the texture has to be scaled
-        GL11.glTexParameteri(GL11.GL_TEXTURE_2D, GL11.GL_TEXTURE_MAG_FILTER,
+        gl.texParameteri(GL11.GL_TEXTURE_2D, GL11.GL_TEXTURE_MAG_FILTER,
                              GL11.GL_LINEAR);
-        GL11.glTexParameteri(GL11.GL_TEXTURE_2D, GL11.GL_TEXTURE_MIN_FILTER,
+        gl.texParameteri(GL11.GL_TEXTURE_2D, GL11.GL_TEXTURE_MIN_FILTER,
                              GL11.GL_LINEAR_MIPMAP_LINEAR);
 
         this.exitOnGLError("loadPNGTexture");
@@ -514,7 +557,7 @@ public class ExampleApp{
     }
 
     private void exitOnGLError(String errorMessage) {
-        int errorValue = GL11.glGetError();
+        int errorValue = gl.getError();
 
         if (errorValue != GL11.GL_NO_ERROR) {
             String errorString = GLU.gluErrorString(errorValue);
@@ -1,8 +1,12 @@
 package org.skycastle.flowgine;
 
+import org.skycastle.flowgine.render.LwjglRenderBackend;
+import org.skycastle.flowgine.render.RenderBackend;
+import org.skycastle.flowgine.render.StateCachingRenderBackend;
 import org.skycastle.flowgine.resourceloader.FileResourceLoader;
 import org.skycastle.flowgine.resourceloader.ResourceLoader;
 import org.skycastle.flowgine.shader.ShaderManager;
+import org.skycastle.flowgine.shape.ShapeManager;
 import org.skycastle.flowgine.texture.TextureManager;
 
 /**
@@ -11,8 +15,10 @@ import org.skycastle.flowgine.texture.TextureManager;
  */
 public class FlowGine {
 
+    public static RenderBackend  renderBackend  = new StateCachingRenderBackend(new LwjglRenderBackend());
     public static ResourceLoader resourceLoader = new FileResourceLoader("");
     public static ShaderManager  shaderManager  = new ShaderManager();
+    public static ShapeManager   shapeManager   = new ShapeManager();
     public static TextureManager textureManager = new TextureManager();
 
 }
@@ -0,0 +1,30 @@
+package org.skycastle.flowgine.buildlang;
+
+/**
+ * Thrown when a generator program exceeds its ExecutionBudget.
+ */
+public final class BudgetExceededException extends IllegalStateException {
+
+    private static final long serialVersionUID = 1L;
+
+    private final int line;
+    private final int column;
+
+    /**
+     * @param line source line of the loop or call where the budget ran out, or 0 if not known.
+     * @param column source column of the loop or call where the budget ran out, or 0 if not known.
+     */
+    public BudgetExceededException(String message, int line, int column) {
+        super(message + (line > 0 ? " at line " + line + ", column " + column : ""));
+        this.line = line;
+        this.column = column;
+    }
+
+    public int getLine() {
+        return line;
+    }
+
+    public int getColumn() {
+        return column;
+    }
+}
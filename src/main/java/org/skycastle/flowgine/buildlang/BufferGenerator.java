@@ -0,0 +1,95 @@
+package org.skycastle.flowgine.buildlang;
+
+import org.lwjgl.BufferUtils;
+
+import java.nio.FloatBuffer;
+import java.nio.IntBuffer;
+
+/**
+ * Generator that writes the generated geometry into direct buffers, in the interleaved vertex layout that Shape
+ * uploads to the graphics card: position, normal, texture position and color of each vertex.
+ * The data is kept outside the java heap, and can be passed to the graphics card as is.
+ * <p/>
+ * The buffers grow as needed, so they should be fetched after generation.
+ */
+public final class BufferGenerator implements Generator {
+
+    /**
+     * Number of floats for each vertex in the vertex buffer.
+     */
+    public static final int VERTEX_SIZE = 3 + 3 + 2 + 4;
+
+    private static final int INITIAL_VERTEX_CAPACITY = 1024;
+
+    private FloatBuffer vertexData = BufferUtils.createFloatBuffer(INITIAL_VERTEX_CAPACITY * VERTEX_SIZE);
+    private IntBuffer indexData = BufferUtils.createIntBuffer(INITIAL_VERTEX_CAPACITY * 3);
+
+    /**
+     * @return the vertex data of the generated geometry, from position zero up to the limit.
+     */
+    public FloatBuffer getVertexData() {
+        return vertexData;
+    }
+
+    /**
+     * @return the indexes of the generated triangles, from position zero up to the limit.
+     */
+    public IntBuffer getIndexData() {
+        return indexData;
+    }
+
+    /**
+     * @return number of generated vertexes.
+     */
+    public int getVertexCount() {
+        return vertexData.limit() / VERTEX_SIZE;
+    }
+
+    /**
+     * @return number of generated triangles.
+     */
+    public int getTriangleCount() {
+        return indexData.limit() / 3;
+    }
+
+    public void begin() {
+        vertexData.clear();
+        indexData.clear();
+    }
+
+    public void addVertexes(float[] positions, float[] normals, float[] texturePositions, float[] colors, int count) {
+        if (vertexData.remaining() < count * VERTEX_SIZE) {
+            final FloatBuffer oldData = vertexData;
+            vertexData = BufferUtils.createFloatBuffer(grownCapacity(oldData.capacity(), oldData.position() + count * VERTEX_SIZE));
+            oldData.flip();
+            vertexData.put(oldData);
+        }
+
+        for (int i = 0; i < count; i++) {
+            vertexData.put(positions, i * 3, 3);
+            vertexData.put(normals, i * 3, 3);
+            vertexData.put(texturePositions, i * 2, 2);
+            vertexData.put(colors, i * 4, 4);
+        }
+    }
+
+    public void addIndexes(int[] indexes, int count) {
+        if (indexData.remaining() < count) {
+            final IntBuffer oldData = indexData;
+            indexData = BufferUtils.createIntBuffer(grownCapacity(oldData.capacity(), oldData.position() + count));
+            oldData.flip();
+            indexData.put(oldData);
+        }
+
+        indexData.put(indexes, 0, count);
+    }
+
+    public void end() {
+        vertexData.flip();
+        indexData.flip();
+    }
+
+    private static int grownCapacity(int capacity, int needed) {
+        return Math.max(needed, capacity + capacity / 2);
+    }
+}
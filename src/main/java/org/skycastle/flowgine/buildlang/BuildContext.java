@@ -0,0 +1,296 @@
+package org.skycastle.flowgine.buildlang;
+
+import org.skycastle.flowgine.geometry.Col4;
+import org.skycastle.flowgine.geometry.Vec2;
+import org.skycastle.flowgine.geometry.Vec3;
+import org.skycastle.flowgine.shape.Shape;
+
+/**
+ * State used by the builtin functions of a running generator program, such as the Generator geometry is emitted to,
+ * the current vertex color and normal, and the origin that vertex positions are relative to.
+ * <p/>
+ * Emitted vertexes and triangles are collected into fixed size blocks, which are passed to the generator when full,
+ * so generating does not need memory in proportion to the size of the mesh.
+ * The geometry emitted during memoized calls is also recorded, see MemoCache.
+ */
+public final class BuildContext {
+
+    /**
+     * Number of vertexes, and of triangles, passed to the generator at a time.
+     */
+    public static final int BLOCK_SIZE = 4096;
+
+    private Generator generator;
+    private final Col4 color = new Col4(1, 1, 1, 1);
+    private final Vec3 normal = new Vec3(0, 1, 0);
+    private final Vec3 origin = new Vec3();
+
+    private final float[] positions = new float[BLOCK_SIZE * 3];
+    private final float[] normals = new float[BLOCK_SIZE * 3];
+    private final float[] texturePositions = new float[BLOCK_SIZE * 2];
+    private final float[] colors = new float[BLOCK_SIZE * 4];
+    private final int[] indexes = new int[BLOCK_SIZE * 3];
+    private int blockVertexCount;
+    private int blockIndexCount;
+    private int vertexCount;
+    private int indexCount;
+
+    private int recordingDepth;
+    private int recordingId;
+    private boolean recordingDropped;
+    private Shape recording;
+    private int recordingFirstVertex;
+    private int recordingFirstIndex;
+    private int maxRecordedVertexes;
+
+    /**
+     * Starts generating a shape into the specified generator, with the default color and normal,
+     * and the origin at zero.
+     */
+    public void begin(Generator generator) {
+        begin(generator, 0);
+    }
+
+    /**
+     * Starts generating into the specified generator, with the vertexes numbered from firstVertex,
+     * e.g. for the iterations of a parallel loop.
+     */
+    void begin(Generator generator, int firstVertex) {
+        if (generator == null) throw new IllegalArgumentException("generator should not be null");
+        this.generator = generator;
+        color.set(1, 1, 1, 1);
+        normal.set(0, 1, 0);
+        origin.set(0, 0, 0);
+        blockVertexCount = 0;
+        blockIndexCount = 0;
+        vertexCount = firstVertex;
+        indexCount = 0;
+        recordingDepth = 0;
+        recording = null;
+
+        generator.begin();
+    }
+
+    /**
+     * Passes the remaining geometry to the generator, and stops generating into it.
+     */
+    public void end() {
+        final Generator endedGenerator = getGenerator();
+        generator = null;
+        recording = null;
+        try {
+            flushIndexes(endedGenerator);
+        }
+        finally {
+            endedGenerator.end();
+        }
+    }
+
+    /**
+     * @return the generator geometry is currently emitted to.
+     */
+    public Generator getGenerator() {
+        if (generator == null) throw new IllegalStateException("No shape is being generated");
+        return generator;
+    }
+
+    /**
+     * @return the color used for new vertexes.  May be modified.
+     */
+    public Col4 getColor() {
+        return color;
+    }
+
+    /**
+     * @return the normal used for new vertexes.  May be modified.
+     */
+    public Vec3 getNormal() {
+        return normal;
+    }
+
+    /**
+     * @return the position that vertex positions are relative to.  May be modified.
+     */
+    public Vec3 getOrigin() {
+        return origin;
+    }
+
+    /**
+     * @return number of vertexes emitted so far.  Also the number of the next vertex.
+     */
+    public int getVertexCount() {
+        return vertexCount;
+    }
+
+    /**
+     * @return number of indexes emitted so far.
+     */
+    public int getIndexCount() {
+        return indexCount;
+    }
+
+    /**
+     * Emits a vertex with the current color and normal.
+     *
+     * @param x position relative to the origin.
+     * @param u texture position.
+     * @return number of the vertex.
+     */
+    public int addVertex(float x, float y, float z, float u, float v) {
+        return addVertex(origin.x + x, origin.y + y, origin.z + z,
+                         normal.x, normal.y, normal.z,
+                         u, v,
+                         color.r, color.g, color.b, color.a);
+    }
+
+    /**
+     * Emits a triangle.  The vertexes should already have been emitted.
+     */
+    public void addTriangle(int vertex1, int vertex2, int vertex3) {
+        if (blockIndexCount == indexes.length) flushIndexes(getGenerator());
+
+        indexes[blockIndexCount++] = vertex1;
+        indexes[blockIndexCount++] = vertex2;
+        indexes[blockIndexCount++] = vertex3;
+        indexCount += 3;
+
+        if (recordingDepth > 0 && !recordingDropped) {
+            recording().addTriangle(vertex1 - recordingFirstVertex, vertex2 - recordingFirstVertex, vertex3 - recordingFirstVertex);
+        }
+    }
+
+    /**
+     * Emits the vertexes and triangles of a shape, ignoring the origin, color and normal of the context.
+     *
+     * @param offset added to the positions of the vertexes.
+     * @return number of the first emitted vertex.
+     */
+    public int addShape(Shape shape, Vec3 offset) {
+        final int first = vertexCount;
+        final int shapeVertexCount = shape.getVertexCount();
+        for (int i = 0; i < shapeVertexCount; i++) {
+            final Vec3 pos = shape.pos(i);
+            final Vec3 vertexNormal = shape.normal(i);
+            final Vec2 texturePos = shape.texturePos(i);
+            final Col4 vertexColor = shape.color(i);
+            addVertex(pos.x + offset.x, pos.y + offset.y, pos.z + offset.z,
+                      vertexNormal.x, vertexNormal.y, vertexNormal.z,
+                      texturePos.x, texturePos.y,
+                      vertexColor.r, vertexColor.g, vertexColor.b, vertexColor.a);
+        }
+
+        final int shapeIndexCount = shape.getIndexListSize();
+        for (int i = 0; i + 2 < shapeIndexCount; i += 3) {
+            addTriangle(first + shape.index(i), first + shape.index(i + 1), first + shape.index(i + 2));
+        }
+        return first;
+    }
+
+    /**
+     * Starts recording the emitted geometry, or continues the current recording if one is in progress.
+     * Each call should be followed by a call to stopRecording.
+     *
+     * @param maxVertexes the recording is dropped if it grows over this many vertexes.
+     * @return id of the recording, to get it with getRecording.
+     */
+    int startRecording(int maxVertexes) {
+        if (recordingDepth++ == 0) {
+            recordingId++;
+            recordingDropped = false;
+            recording = null;
+            recordingFirstVertex = vertexCount;
+            recordingFirstIndex = indexCount;
+            maxRecordedVertexes = maxVertexes;
+        }
+        return recordingId;
+    }
+
+    void stopRecording() {
+        if (recordingDepth <= 0) throw new IllegalStateException("No recording in progress");
+        if (--recordingDepth == 0) recording = null;
+    }
+
+    /**
+     * @return the recorded geometry, with the vertexes numbered from the first recorded vertex,
+     *         or null if the recording with the id has stopped or was dropped.
+     */
+    Shape getRecording(int id) {
+        if (id != recordingId || recordingDepth <= 0 || recordingDropped) return null;
+        return recording();
+    }
+
+    /**
+     * @return number of the first vertex of the current recording.
+     */
+    int getRecordingFirstVertex() {
+        return recordingFirstVertex;
+    }
+
+    /**
+     * @return number of the first index of the current recording.
+     */
+    int getRecordingFirstIndex() {
+        return recordingFirstIndex;
+    }
+
+    /**
+     * Emits a vertex with all its attributes, ignoring the origin, color and normal of the context.
+     *
+     * @return number of the vertex.
+     */
+    int addVertex(float x, float y, float z,
+                  float normalX, float normalY, float normalZ,
+                  float u, float v,
+                  float r, float g, float b, float a) {
+        if (blockVertexCount == BLOCK_SIZE) flushVertexes(getGenerator());
+
+        final int i = blockVertexCount++;
+        positions[i * 3] = x;
+        positions[i * 3 + 1] = y;
+        positions[i * 3 + 2] = z;
+        normals[i * 3] = normalX;
+        normals[i * 3 + 1] = normalY;
+        normals[i * 3 + 2] = normalZ;
+        texturePositions[i * 2] = u;
+        texturePositions[i * 2 + 1] = v;
+        colors[i * 4] = r;
+        colors[i * 4 + 1] = g;
+        colors[i * 4 + 2] = b;
+        colors[i * 4 + 3] = a;
+
+        if (recordingDepth > 0 && !recordingDropped) {
+            if (vertexCount - recordingFirstVertex >= maxRecordedVertexes) {
+                recordingDropped = true;
+                recording = null;
+            }
+            else {
+                recording().addVertex(new Vec3(x, y, z), new Vec2(u, v), new Col4(r, g, b, a), new Vec3(normalX, normalY, normalZ));
+            }
+        }
+
+        return vertexCount++;
+    }
+
+    private Shape recording() {
+        if (recording == null) recording = new Shape();
+        return recording;
+    }
+
+    private void flushVertexes(Generator out) {
+        if (blockVertexCount > 0) {
+            out.addVertexes(positions, normals, texturePositions, colors, blockVertexCount);
+            blockVertexCount = 0;
+        }
+    }
+
+    /**
+     * Passes the indexes to the generator, after the vertexes they may refer to.
+     */
+    private void flushIndexes(Generator out) {
+        flushVertexes(out);
+        if (blockIndexCount > 0) {
+            out.addIndexes(indexes, blockIndexCount);
+            blockIndexCount = 0;
+        }
+    }
+}
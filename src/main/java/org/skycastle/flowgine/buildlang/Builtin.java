@@ -0,0 +1,78 @@
+package org.skycastle.flowgine.buildlang;
+
+/**
+ * Function provided to generator programs by the engine.
+ */
+public abstract class Builtin {
+
+    private final String name;
+    private final int minArguments;
+    private final int maxArguments;
+    private final Purity purity;
+
+    protected Builtin(String name, int arguments) {
+        this(name, arguments, arguments, Purity.IMPURE);
+    }
+
+    protected Builtin(String name, int arguments, Purity purity) {
+        this(name, arguments, arguments, purity);
+    }
+
+    protected Builtin(String name, int minArguments, int maxArguments) {
+        this(name, minArguments, maxArguments, Purity.IMPURE);
+    }
+
+    /**
+     * @param purity what the function depends on and affects, used to decide whether calls to program functions
+     *               that call it can be memoized.
+     */
+    protected Builtin(String name, int minArguments, int maxArguments, Purity purity) {
+        if (purity == null) throw new IllegalArgumentException("purity should not be null");
+        this.name = name;
+        this.minArguments = minArguments;
+        this.maxArguments = maxArguments;
+        this.purity = purity;
+    }
+
+    public final String getName() {
+        return name;
+    }
+
+    public final int getMinArguments() {
+        return minArguments;
+    }
+
+    public final int getMaxArguments() {
+        return maxArguments;
+    }
+
+    public final Purity getPurity() {
+        return purity;
+    }
+
+    /**
+     * @param context state of the running program, provides access to the generated shape.
+     * @param arguments argument values, between getMinArguments and getMaxArguments of them.
+     * @return the result of the function, or null if it has none.
+     */
+    public abstract Object call(BuildContext context, Object[] arguments);
+
+    /**
+     * @return the argument at the specified index as a number.
+     */
+    protected final double number(Object[] arguments, int index) {
+        final Object value = arguments[index];
+        if (!(value instanceof Double)) {
+            throw new IllegalStateException("Argument " + (index + 1) + " of " + name + " should be a number, but was " + value);
+        }
+        return (Double) value;
+    }
+
+    /**
+     * @return the argument at the specified index as a number, or the default value if there are not that many arguments.
+     */
+    protected final double number(Object[] arguments, int index, double defaultValue) {
+        if (index >= arguments.length) return defaultValue;
+        return number(arguments, index);
+    }
+}
@@ -0,0 +1,258 @@
+package org.skycastle.flowgine.buildlang;
+
+import org.skycastle.flowgine.geometry.Col4;
+import org.skycastle.flowgine.geometry.Vec3;
+import org.skycastle.flowgine.shape.Shape;
+import org.skycastle.flowgine.utils.GeomUtils;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The builtin functions available to generator programs, indexed so that calls can be resolved to them before running.
+ */
+public final class Builtins {
+
+    private final List<Builtin> builtins = new ArrayList<Builtin>();
+    private final Map<String, Integer> indexes = new HashMap<String, Integer>();
+
+    /**
+     * @return builtins with math, list and map functions, and functions for emitting geometry.
+     */
+    public static Builtins createDefault() {
+        final Builtins builtins = new Builtins();
+        addMathFunctions(builtins);
+        addCollectionFunctions(builtins);
+        addGeometryFunctions(builtins);
+        return builtins;
+    }
+
+    /**
+     * Adds a builtin function.  Later added functions with the same name replace earlier ones.
+     */
+    public void add(Builtin builtin) {
+        final Integer existing = indexes.get(builtin.getName());
+        if (existing != null) {
+            builtins.set(existing, builtin);
+        }
+        else {
+            indexes.put(builtin.getName(), builtins.size());
+            builtins.add(builtin);
+        }
+    }
+
+    /**
+     * @return index of the builtin with the specified name, or -1 if there is none.
+     */
+    public int getIndex(String name) {
+        final Integer index = indexes.get(name);
+        return index == null ? -1 : index;
+    }
+
+    public Builtin get(int index) {
+        return builtins.get(index);
+    }
+
+    public int size() {
+        return builtins.size();
+    }
+
+    private static void addMathFunctions(Builtins builtins) {
+        final String[] unaryFunctions = {"sin", "cos", "tan", "asin", "acos", "atan", "sqrt", "abs",
+                                         "floor", "ceil", "round", "exp", "log", "sign"};
+        for (int i = 0; i < unaryFunctions.length; i++) {
+            builtins.add(new MathFunction(unaryFunctions[i], i));
+        }
+
+        builtins.add(new Builtin("atan2", 2, Purity.PURE) {
+            @Override public Object call(BuildContext context, Object[] arguments) {
+                return Math.atan2(number(arguments, 0), number(arguments, 1));
+            }
+        });
+        builtins.add(new Builtin("pow", 2, Purity.PURE) {
+            @Override public Object call(BuildContext context, Object[] arguments) {
+                return Math.pow(number(arguments, 0), number(arguments, 1));
+            }
+        });
+        builtins.add(new Builtin("min", 2, Purity.PURE) {
+            @Override public Object call(BuildContext context, Object[] arguments) {
+                return Math.min(number(arguments, 0), number(arguments, 1));
+            }
+        });
+        builtins.add(new Builtin("max", 2, Purity.PURE) {
+            @Override public Object call(BuildContext context, Object[] arguments) {
+                return Math.max(number(arguments, 0), number(arguments, 1));
+            }
+        });
+        builtins.add(new Builtin("clamp", 3, Purity.PURE) {
+            @Override public Object call(BuildContext context, Object[] arguments) {
+                return Math.max(number(arguments, 1), Math.min(number(arguments, 2), number(arguments, 0)));
+            }
+        });
+        builtins.add(new Builtin("lerp", 3, Purity.PURE) {
+            @Override public Object call(BuildContext context, Object[] arguments) {
+                final double a = number(arguments, 0);
+                return a + (number(arguments, 1) - a) * number(arguments, 2);
+            }
+        });
+    }
+
+    /**
+     * The collection functions only modify their arguments, so they are pure for memoization, which only applies to
+     * calls with number and boolean arguments.
+     */
+    @SuppressWarnings("unchecked")
+    private static void addCollectionFunctions(Builtins builtins) {
+        builtins.add(new Builtin("size", 1, Purity.PURE) {
+            @Override public Object call(BuildContext context, Object[] arguments) {
+                final Object collection = arguments[0];
+                if (collection instanceof List) return (double) ((List) collection).size();
+                if (collection instanceof Map) return (double) ((Map) collection).size();
+                if (collection instanceof Range) return (double) ((Range) collection).size();
+                throw new IllegalStateException("Can not get the size of " + collection);
+            }
+        });
+        builtins.add(new Builtin("get", 2, Purity.PURE) {
+            @Override public Object call(BuildContext context, Object[] arguments) {
+                final Object collection = arguments[0];
+                if (collection instanceof List) return ((List) collection).get(listIndex(arguments));
+                if (collection instanceof Map) return ((Map) collection).get(arguments[1]);
+                if (collection instanceof Range) return ((Range) collection).get((int) number(arguments, 1));
+                throw new IllegalStateException("Can not get elements from " + collection);
+            }
+        });
+        builtins.add(new Builtin("put", 3, Purity.PURE) {
+            @Override public Object call(BuildContext context, Object[] arguments) {
+                final Object collection = arguments[0];
+                if (collection instanceof List) ((List) collection).set(listIndex(arguments), arguments[2]);
+                else if (collection instanceof Map) ((Map) collection).put(arguments[1], arguments[2]);
+                else throw new IllegalStateException("Can not put elements into " + collection);
+                return arguments[2];
+            }
+        });
+        builtins.add(new Builtin("add", 2, Purity.PURE) {
+            @Override public Object call(BuildContext context, Object[] arguments) {
+                final Object collection = arguments[0];
+                if (!(collection instanceof List)) throw new IllegalStateException("Can not add elements to " + collection);
+                ((List) collection).add(arguments[1]);
+                return collection;
+            }
+        });
+    }
+
+    private static void addGeometryFunctions(Builtins builtins) {
+        builtins.add(new Builtin("vertex", 3, 5, Purity.GEOMETRY) {
+            @Override public Object call(BuildContext context, Object[] arguments) {
+                final int vertex = context.addVertex((float) number(arguments, 0),
+                                                     (float) number(arguments, 1),
+                                                     (float) number(arguments, 2),
+                                                     (float) number(arguments, 3, 0),
+                                                     (float) number(arguments, 4, 0));
+                return (double) vertex;
+            }
+        });
+        builtins.add(new Builtin("color", 3, 4, Purity.GEOMETRY) {
+            @Override public Object call(BuildContext context, Object[] arguments) {
+                context.getColor().set((float) number(arguments, 0),
+                                           (float) number(arguments, 1),
+                                           (float) number(arguments, 2),
+                                           (float) number(arguments, 3, 1));
+                return null;
+            }
+        });
+        builtins.add(new Builtin("normal", 3, Purity.GEOMETRY) {
+            @Override public Object call(BuildContext context, Object[] arguments) {
+                context.getNormal().set((float) number(arguments, 0),
+                                            (float) number(arguments, 1),
+                                            (float) number(arguments, 2));
+                return null;
+            }
+        });
+        builtins.add(new Builtin("translate", 3, Purity.GEOMETRY) {
+            @Override public Object call(BuildContext context, Object[] arguments) {
+                context.getOrigin().add((float) number(arguments, 0),
+                                        (float) number(arguments, 1),
+                                        (float) number(arguments, 2));
+                return null;
+            }
+        });
+        builtins.add(new Builtin("triangle", 3, Purity.GEOMETRY) {
+            @Override public Object call(BuildContext context, Object[] arguments) {
+                context.addTriangle(vertex(context, arguments, 0),
+                                    vertex(context, arguments, 1),
+                                    vertex(context, arguments, 2));
+                return null;
+            }
+        });
+        builtins.add(new Builtin("quad", 4, Purity.GEOMETRY) {
+            @Override public Object call(BuildContext context, Object[] arguments) {
+                final int vertex1 = vertex(context, arguments, 0);
+                final int vertex3 = vertex(context, arguments, 2);
+                context.addTriangle(vertex1, vertex(context, arguments, 1), vertex3);
+                context.addTriangle(vertex3, vertex(context, arguments, 3), vertex1);
+                return null;
+            }
+        });
+        builtins.add(new Builtin("box", 6, Purity.GEOMETRY) {
+            @Override public Object call(BuildContext context, Object[] arguments) {
+                final Col4 color = context.getColor();
+                final Shape cube = GeomUtils.makeCube(new Vec3((float) number(arguments, 0), (float) number(arguments, 1), (float) number(arguments, 2)),
+                                                      new Vec3((float) number(arguments, 3), (float) number(arguments, 4), (float) number(arguments, 5)),
+                                                      new Col4(color.r, color.g, color.b, color.a),
+                                                      null);
+                context.addShape(cube, context.getOrigin());
+                return null;
+            }
+        });
+    }
+
+    private static int listIndex(Object[] arguments) {
+        if (!(arguments[1] instanceof Double)) throw new IllegalStateException("List index should be a number, but was " + arguments[1]);
+        return (int) (double) (Double) arguments[1];
+    }
+
+    private static int vertex(BuildContext context, Object[] arguments, int index) {
+        final Object value = arguments[index];
+        if (!(value instanceof Double)) throw new IllegalStateException("Vertex index should be a number, but was " + value);
+        final int vertex = (int) (double) (Double) value;
+        if (vertex < 0 || vertex >= context.getVertexCount()) {
+            throw new IllegalStateException("No vertex " + vertex + ", there are " + context.getVertexCount() + " vertexes");
+        }
+        return vertex;
+    }
+
+    /**
+     * Math function with one argument.
+     */
+    private static final class MathFunction extends Builtin {
+        private final int function;
+
+        private MathFunction(String name, int function) {
+            super(name, 1, Purity.PURE);
+            this.function = function;
+        }
+
+        @Override public Object call(BuildContext context, Object[] arguments) {
+            final double x = number(arguments, 0);
+            switch (function) {
+                case 0: return Math.sin(x);
+                case 1: return Math.cos(x);
+                case 2: return Math.tan(x);
+                case 3: return Math.asin(x);
+                case 4: return Math.acos(x);
+                case 5: return Math.atan(x);
+                case 6: return Math.sqrt(x);
+                case 7: return Math.abs(x);
+                case 8: return Math.floor(x);
+                case 9: return Math.ceil(x);
+                case 10: return (double) Math.round(x);
+                case 11: return Math.exp(x);
+                case 12: return Math.log(x);
+                case 13: return Math.signum(x);
+                default: throw new IllegalStateException("Unknown math function " + getName());
+            }
+        }
+    }
+}
@@ -0,0 +1,336 @@
+package org.skycastle.flowgine.buildlang;
+
+import org.skycastle.flowgine.shape.Shape;
+
+import java.lang.reflect.Constructor;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+
+/**
+ * Base class of generator programs compiled to bytecode by the GenLangCompiler.
+ * <p/>
+ * The compiled class has the global variables of the program as fields and its functions as methods.
+ * The protected static methods are helpers called by the generated code.
+ * <p/>
+ * Unless compiled without budget checks, every loop iteration and function call counts against an ExecutionBudget,
+ * so that a program stuck in a loop is stopped, and the depth of nested calls is limited.  If a MemoCache is set, calls to pure functions are memoized in it.
+ * A compiled program is not thread safe.
+ * <p/>
+ * The iterations of parallel loops are run by worker instances of the compiled class, which get a copy of the
+ * global variables and share the budget, in the threads of an executor if the loop body can safely be run there.
+ * Otherwise they are run in order by one worker, whose globals are copied back after the loop.
+ * Calls are not memoized inside parallel loops.
+ */
+public abstract class CompiledProgram {
+
+    private final Builtins builtins;
+    private final BuildContext context = new BuildContext();
+    private ExecutionLimiter limiter = new ExecutionLimiter();
+    private ExecutorService executor = ParallelLoop.getDefaultExecutor();
+    private Constructor<? extends CompiledProgram> workerConstructor;
+    private ExecutionBudget budget = ExecutionBudget.DEFAULT;
+    private PurityAnalysis purityAnalysis;
+    private MemoCache memoCache;
+    private Memoizer memoizer;
+
+    /**
+     * Steps until the next checkpoint, decremented by the generated code.
+     */
+    protected long countdown;
+
+    /**
+     * Number of nested calls of functions defined in the program, incremented and decremented by the generated code.
+     */
+    protected int callDepth;
+
+    /**
+     * Maximum call depth of the budget, read by the generated code.
+     */
+    protected int maxCallDepth = ExecutionBudget.DEFAULT_MAX_CALL_DEPTH;
+
+    protected CompiledProgram(Builtins builtins) {
+        this.builtins = builtins;
+    }
+
+    /**
+     * Initializes the global variables of the program and calls its generate function, if it has one.
+     *
+     * @param parameters values for global variables, used instead of the initializers of the variables with the same names.
+     * @param out shape to add the generated geometry to, or null to create a new shape.
+     * @return the shape with the generated geometry.
+     * @throws BudgetExceededException if the program exceeds its budget.
+     * @throws IllegalStateException if the program fails.
+     */
+    public final Shape generate(Map<String, Object> parameters, Shape out) {
+        final ShapeGenerator generator = new ShapeGenerator(out);
+        generateTo(parameters, generator);
+        return generator.getShape();
+    }
+
+    /**
+     * Initializes the global variables of the program and calls its generate function, if it has one,
+     * passing the generated geometry to a generator as it is emitted.
+     *
+     * @param parameters values for global variables, used instead of the initializers of the variables with the same names.
+     * @param generator generator to pass the generated geometry to.
+     * @throws BudgetExceededException if the program exceeds its budget.
+     * @throws IllegalStateException if the program fails.
+     */
+    public final void generateTo(Map<String, Object> parameters, Generator generator) {
+        countdown = limiter.start(budget);
+        callDepth = 0;
+        context.begin(generator);
+        try {
+            initialize(parameters);
+            runGenerate();
+        }
+        finally {
+            context.end();
+        }
+    }
+
+    /**
+     * @return limits on how long the program may run while generating a shape.
+     */
+    public final ExecutionBudget getBudget() {
+        return budget;
+    }
+
+    public final void setBudget(ExecutionBudget budget) {
+        if (budget == null) throw new IllegalArgumentException("budget should not be null");
+        this.budget = budget;
+        maxCallDepth = budget.getMaxCallDepth();
+    }
+
+    /**
+     * @return cache that calls to pure functions are memoized in, or null if they are not memoized.
+     */
+    public final MemoCache getMemoCache() {
+        return memoCache;
+    }
+
+    /**
+     * @param memoCache cache to memoize calls to pure functions in, or null to not memoize them.
+     *                  May be shared with other programs.
+     */
+    public final void setMemoCache(MemoCache memoCache) {
+        this.memoCache = memoCache;
+        memoizer = memoCache != null ? new Memoizer(memoCache, purityAnalysis) : null;
+    }
+
+    /**
+     * @return executor that the iterations of parallel loops are run in, or null if they are run in the calling thread.
+     */
+    public final ExecutorService getExecutor() {
+        return executor;
+    }
+
+    public final void setExecutor(ExecutorService executor) {
+        this.executor = executor;
+    }
+
+    /**
+     * Called by the compiler with the analysis the memo indexes in the compiled code refer to.
+     */
+    final void setPurityAnalysis(PurityAnalysis purityAnalysis) {
+        this.purityAnalysis = purityAnalysis;
+    }
+
+    /**
+     * Initializes the global variables.
+     */
+    protected abstract void initialize(Map<String, Object> parameters);
+
+    /**
+     * Calls the generate function of the program, if it has one.
+     */
+    protected abstract void runGenerate();
+
+    /**
+     * Copies the values of the global variables from another instance of the same class.
+     */
+    protected abstract void copyGlobals(CompiledProgram from);
+
+    /**
+     * Runs one iteration of the body of a parallel loop.
+     *
+     * @param loop number of the loop in the program.
+     * @param value iterator value.
+     * @param captured values of the local variables declared outside of the loop that the body reads.
+     */
+    protected void runParallelBody(int loop, Object value, Object[] captured) {
+        throw new IllegalStateException("No parallel loop number " + loop);
+    }
+
+    /**
+     * Called by the generated code to run a parallel loop.
+     *
+     * @param loop number of the loop in the program.
+     * @param iterable the range, list or map to iterate over.
+     * @param captured values of the local variables declared outside of the loop that the body reads.
+     * @param globals values of the global variables that the body reads, if they may be lists or maps.
+     * @param threadSafe true if the body only calls pure or geometry functions.
+     */
+    protected final void runParallel(final int loop, Object iterable, final Object[] captured, Object[] globals, boolean threadSafe) {
+        final Object[] values = ParallelLoop.iterationValues(iterable);
+        final boolean parallel = threadSafe &&
+                                 ParallelLoop.isShareable(values) &&
+                                 ParallelLoop.isShareable(captured) &&
+                                 ParallelLoop.isShareable(globals);
+        if (parallel) {
+            ParallelLoop.run(executor, context, values, new ParallelLoop.WorkerFactory() {
+                public ParallelLoop.Worker createWorker() {
+                    return createLoopWorker(createParallelWorker(), loop, captured);
+                }
+            });
+        }
+        else {
+            // All iterations run in this thread on the same worker, and the globals it assigned are copied back,
+            // so that the body and the functions it calls see and keep each other's changes to the globals
+            final CompiledProgram worker = createParallelWorker();
+            try {
+                ParallelLoop.run(null, context, values, new ParallelLoop.WorkerFactory() {
+                    public ParallelLoop.Worker createWorker() {
+                        return createLoopWorker(worker, loop, captured);
+                    }
+                });
+            }
+            finally {
+                copyGlobals(worker);
+            }
+        }
+    }
+
+    private static ParallelLoop.Worker createLoopWorker(final CompiledProgram worker, final int loop, final Object[] captured) {
+        return new ParallelLoop.Worker() {
+            public BuildContext getContext() {
+                return worker.context;
+            }
+
+            public void run(Object value) {
+                worker.runParallelBody(loop, value, captured);
+            }
+        };
+    }
+
+    /**
+     * @return an instance of the same class with the globals of this instance, that shares the budget,
+     *         and does not memoize calls or run loops in other threads.
+     */
+    private CompiledProgram createParallelWorker() {
+        final CompiledProgram worker;
+        try {
+            synchronized (this) {
+                if (workerConstructor == null) workerConstructor = getClass().getConstructor(Builtins.class);
+            }
+            worker = workerConstructor.newInstance(builtins);
+        } catch (Exception e) {
+            throw new IllegalStateException("Could not create a worker for a parallel loop: " + e.getMessage(), e);
+        }
+        worker.limiter = limiter;
+        worker.maxCallDepth = maxCallDepth;
+        worker.callDepth = callDepth;
+        worker.purityAnalysis = purityAnalysis;
+        worker.executor = null;
+        worker.copyGlobals(this);
+        return worker;
+    }
+
+    /**
+     * Called by the generated code when the countdown goes negative.
+     */
+    protected final void checkpoint(int line, int column) {
+        countdown = limiter.checkpoint(line, column);
+    }
+
+    /**
+     * Called by the generated code when a call would go deeper than the maximum call depth.
+     */
+    protected final void callDepthExceeded(int line, int column) {
+        throw ExecutionLimiter.callDepthExceeded(maxCallDepth, line, column);
+    }
+
+    protected final Object callBuiltin(int index, Object[] arguments) {
+        return builtins.get(index).call(context, arguments);
+    }
+
+    protected final boolean isMemoizing() {
+        return memoizer != null;
+    }
+
+    /**
+     * @return a call to pass to memoReplay and memoFinish, or null if the call should not be memoized.
+     */
+    protected final Object memoStart(int function, Object[] arguments) {
+        return memoizer.start(function, arguments, context);
+    }
+
+    /**
+     * @return true if the call was found in the cache, and its result is available from memoResult.
+     */
+    protected final boolean memoReplay(int function, Object call) {
+        return memoizer.replay(function, (MemoCache.Call) call, context);
+    }
+
+    protected final Object memoResult(Object call) {
+        return ((MemoCache.Call) call).getResult();
+    }
+
+    /**
+     * @return the result.
+     */
+    protected final Object memoFinish(Object call, Object result) {
+        return memoizer.finish((MemoCache.Call) call, context, result);
+    }
+
+    /**
+     * @return the value of a parameter converted to a program value, or null if there is no such parameter.
+     */
+    protected static Object parameter(Map<String, Object> parameters, String name) {
+        final Object value = parameters.get(name);
+        if (value instanceof Number && !(value instanceof Double)) return ((Number) value).doubleValue();
+        return value;
+    }
+
+    protected static double toNumber(Object value) {
+        if (!(value instanceof Double)) throw new IllegalStateException("Expected a number, but got " + value);
+        return (Double) value;
+    }
+
+    protected static boolean toBoolean(Object value) {
+        if (!(value instanceof Boolean)) throw new IllegalStateException("Expected a boolean, but got " + value);
+        return (Boolean) value;
+    }
+
+    protected static boolean equal(Object a, Object b) {
+        return a == null ? b == null : a.equals(b);
+    }
+
+    /**
+     * @return number of numbers in a range, without creating the range.
+     */
+    protected static int rangeSize(double start, double end, double step, boolean inclusive) {
+        return new Range(start, end, step, inclusive).size();
+    }
+
+    /**
+     * @return a range, a list, or the keys of a map, to iterate over with iterationSize and iterationElement.
+     */
+    protected static Object iterationSource(Object iterable) {
+        if (iterable instanceof Range || iterable instanceof List) return iterable;
+        if (iterable instanceof Map) return new ArrayList<Object>(((Map<?, ?>) iterable).keySet());
+        throw new IllegalStateException("Can not iterate over " + iterable);
+    }
+
+    protected static int iterationSize(Object source) {
+        if (source instanceof Range) return ((Range) source).size();
+        return ((List) source).size();
+    }
+
+    protected static Object iterationElement(Object source, int index) {
+        if (source instanceof Range) return ((Range) source).get(index);
+        return ((List) source).get(index);
+    }
+}
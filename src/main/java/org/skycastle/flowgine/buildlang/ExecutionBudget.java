@@ -0,0 +1,95 @@
+package org.skycastle.flowgine.buildlang;
+
+/**
+ * Limits on how long a generator program may run, so that programs stuck in a loop are stopped.
+ * <p/>
+ * Steps are counted cooperatively by the running program: each loop iteration and each call of a function
+ * defined in the program is one step.  The wall-clock deadline is checked every few thousand steps.
+ * Calls of functions defined in the program may only nest to a maximum depth, so that runaway recursion is stopped
+ * before it overflows the stack of the thread.
+ */
+public final class ExecutionBudget {
+
+    /**
+     * Maximum call depth of budgets created without one.  Fits in the default thread stack size in both backends.
+     */
+    public static final int DEFAULT_MAX_CALL_DEPTH = 200;
+
+    /**
+     * Budget used when nothing else is configured.
+     */
+    public static final ExecutionBudget DEFAULT = new ExecutionBudget(100000000L, 5000);
+
+    /**
+     * No limits.  Programs compiled for an unlimited budget do not count steps at all, so only use this for
+     * trusted programs.
+     */
+    public static final ExecutionBudget UNLIMITED = new ExecutionBudget(Long.MAX_VALUE, Long.MAX_VALUE, Integer.MAX_VALUE);
+
+    private final long maxSteps;
+    private final long maxMilliseconds;
+    private final int maxCallDepth;
+
+    /**
+     * Creates a budget with the default maximum call depth.
+     *
+     * @param maxSteps maximum number of loop iterations and function calls, or Long.MAX_VALUE for no limit.
+     * @param maxMilliseconds maximum wall-clock time to run, or Long.MAX_VALUE for no limit.
+     */
+    public ExecutionBudget(long maxSteps, long maxMilliseconds) {
+        this(maxSteps, maxMilliseconds, DEFAULT_MAX_CALL_DEPTH);
+    }
+
+    /**
+     * @param maxSteps maximum number of loop iterations and function calls, or Long.MAX_VALUE for no limit.
+     * @param maxMilliseconds maximum wall-clock time to run, or Long.MAX_VALUE for no limit.
+     * @param maxCallDepth maximum number of nested function calls, or Integer.MAX_VALUE for no limit.
+     *                     Deep recursion needs a larger thread stack size than the default.
+     */
+    public ExecutionBudget(long maxSteps, long maxMilliseconds, int maxCallDepth) {
+        if (maxSteps < 0) throw new IllegalArgumentException("maxSteps should not be negative, but was " + maxSteps);
+        if (maxMilliseconds < 0) throw new IllegalArgumentException("maxMilliseconds should not be negative, but was " + maxMilliseconds);
+        if (maxCallDepth < 1) throw new IllegalArgumentException("maxCallDepth should be positive, but was " + maxCallDepth);
+
+        this.maxSteps = maxSteps;
+        this.maxMilliseconds = maxMilliseconds;
+        this.maxCallDepth = maxCallDepth;
+    }
+
+    public long getMaxSteps() {
+        return maxSteps;
+    }
+
+    public long getMaxMilliseconds() {
+        return maxMilliseconds;
+    }
+
+    public int getMaxCallDepth() {
+        return maxCallDepth;
+    }
+
+    public boolean isStepLimited() {
+        return maxSteps != Long.MAX_VALUE;
+    }
+
+    public boolean isTimeLimited() {
+        return maxMilliseconds != Long.MAX_VALUE;
+    }
+
+    public boolean isCallDepthLimited() {
+        return maxCallDepth != Integer.MAX_VALUE;
+    }
+
+    public boolean isUnlimited() {
+        return !isStepLimited() && !isTimeLimited() && !isCallDepthLimited();
+    }
+
+    @Override
+    public String toString() {
+        return "ExecutionBudget{" +
+               "maxSteps=" + maxSteps +
+               ", maxMilliseconds=" + maxMilliseconds +
+               ", maxCallDepth=" + maxCallDepth +
+               '}';
+    }
+}
@@ -0,0 +1,68 @@
+package org.skycastle.flowgine.buildlang;
+
+/**
+ * Enforces an ExecutionBudget on a running program.
+ * <p/>
+ * The program keeps a countdown of steps, decrements it for each step, and calls checkpoint when it goes negative.
+ * This way the common path is a decrement and a compare, and the step total and clock are only checked
+ * every CHECK_INTERVAL steps.
+ * <p/>
+ * The workers of a parallel loop share the limiter of the program, each with its own countdown.
+ * The call depth is tracked by the programs themselves, as it is per thread.
+ */
+final class ExecutionLimiter {
+
+    /**
+     * Steps between checks of the clock.
+     */
+    static final long CHECK_INTERVAL = 4096;
+
+    private ExecutionBudget budget = ExecutionBudget.DEFAULT;
+    private long remainingSteps;
+    private long deadline;
+
+    /**
+     * Starts a run of the program.
+     * @return the initial countdown.
+     */
+    synchronized long start(ExecutionBudget budget) {
+        this.budget = budget;
+        remainingSteps = budget.getMaxSteps();
+        if (budget.isTimeLimited()) deadline = System.nanoTime() + Math.min(budget.getMaxMilliseconds(), Long.MAX_VALUE / 2000000) * 1000000;
+        return nextInterval();
+    }
+
+    /**
+     * Called when the countdown has gone negative.  Counts the step that made it negative.
+     *
+     * @param line source line of the loop or call, for the error message.
+     * @param column source column of the loop or call, for the error message.
+     * @return the new countdown.
+     * @throws BudgetExceededException if the program has run out of steps or time.
+     */
+    synchronized long checkpoint(int line, int column) {
+        if (remainingSteps <= 0) {
+            throw new BudgetExceededException("The program exceeded its budget of " + budget.getMaxSteps() + " loop iterations and function calls", line, column);
+        }
+        if (budget.isTimeLimited() && System.nanoTime() - deadline > 0) {
+            throw new BudgetExceededException("The program exceeded its time limit of " + budget.getMaxMilliseconds() + " ms", line, column);
+        }
+        return nextInterval() - 1;
+    }
+
+    /**
+     * @param maxCallDepth the call depth that was exceeded.
+     * @param line source line of the call that went too deep, for the error message.
+     * @param column source column of the call that went too deep, for the error message.
+     * @return exception to throw when a call would exceed the maximum call depth.
+     */
+    static BudgetExceededException callDepthExceeded(int maxCallDepth, int line, int column) {
+        return new BudgetExceededException("The program exceeded its maximum call depth of " + maxCallDepth, line, column);
+    }
+
+    private long nextInterval() {
+        final long interval = Math.min(CHECK_INTERVAL, remainingSteps);
+        remainingSteps -= interval;
+        return interval;
+    }
+}
@@ -0,0 +1,16 @@
+package org.skycastle.flowgine.buildlang;
+
+/**
+ * Loads the classes generated by the GenLangCompiler.
+ * The classes can be garbage collected together with the loader once no compiled program uses them.
+ */
+final class GenLangClassLoader extends ClassLoader {
+
+    GenLangClassLoader(ClassLoader parent) {
+        super(parent);
+    }
+
+    Class<?> define(String className, byte[] bytecode) {
+        return defineClass(className, bytecode, 0, bytecode.length);
+    }
+}
@@ -0,0 +1,1218 @@
+package org.skycastle.flowgine.buildlang;
+
+import org.objectweb.asm.ClassWriter;
+import org.objectweb.asm.Label;
+import org.objectweb.asm.MethodVisitor;
+import org.objectweb.asm.Opcodes;
+import org.skycastle.flowgine.buildlang.ast.*;
+
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Compiles resolved generator programs to JVM bytecode.
+ * <p/>
+ * Each program becomes a subclass of CompiledProgram, with a field for each global variable and a method for each
+ * function.  Variables, parameters and functions declared with the type num are compiled to primitive doubles,
+ * and those declared as bool to primitive booleans, so numeric expressions run without boxing.  Other values are
+ * objects, converted with runtime checks where a number or boolean is needed.  Unless budget checks are turned off,
+ * loop back-edges and calls of program functions count against the ExecutionBudget of the program.
+ * <p/>
+ * Function values (anonymous functions, and calls to functions stored in variables) are not supported,
+ * compile throws an IllegalArgumentException for such programs, and they can be run with the Interpreter instead.
+ */
+public final class GenLangCompiler implements Opcodes {
+
+    private static final String BASE = "org/skycastle/flowgine/buildlang/CompiledProgram";
+    private static final String CLASS_PREFIX = "org.skycastle.flowgine.buildlang.generated.GenLangProgram";
+    private static final String OBJECT = "java/lang/Object";
+    private static final String OBJECT_DESC = "Ljava/lang/Object;";
+
+    private static final AtomicInteger classCounter = new AtomicInteger();
+
+    private final Builtins builtins;
+    private boolean budgetChecks = true;
+
+    /**
+     * @param builtins builtin functions available to the programs.  Programs should be resolved using the same builtins.
+     */
+    public GenLangCompiler(Builtins builtins) {
+        this.builtins = builtins;
+    }
+
+    /**
+     * @return true if compiled programs count steps against their ExecutionBudget.
+     */
+    public boolean isBudgetChecks() {
+        return budgetChecks;
+    }
+
+    /**
+     * @param budgetChecks true to count steps against the ExecutionBudget of the compiled programs.
+     *                     Without budget checks programs can not be stopped, so only turn them off for trusted programs.
+     */
+    public void setBudgetChecks(boolean budgetChecks) {
+        this.budgetChecks = budgetChecks;
+    }
+
+    /**
+     * Compiles a program into a class loaded with its own class loader, and creates an instance of it.
+     *
+     * @param prog program, already resolved by a Resolver.
+     * @return the compiled program.
+     * @throws IllegalArgumentException if the program uses features not supported by the compiler.
+     */
+    public CompiledProgram compile(Prog prog) {
+        if (prog.getInitializerFrameSize() < 0) throw new IllegalArgumentException("The program has not been resolved");
+
+        final String className = CLASS_PREFIX + classCounter.incrementAndGet();
+        final PurityAnalysis purityAnalysis = new PurityAnalysis(prog, builtins);
+        final byte[] bytecode = new ClassCompiler(prog, className.replace('.', '/'), budgetChecks, purityAnalysis).compile();
+
+        final GenLangClassLoader classLoader = new GenLangClassLoader(CompiledProgram.class.getClassLoader());
+        final CompiledProgram program;
+        try {
+            final Class<?> programClass = classLoader.define(className, bytecode);
+            program = (CompiledProgram) programClass.getConstructor(Builtins.class).newInstance(builtins);
+        } catch (Exception e) {
+            throw new IllegalStateException("Could not load compiled program: " + e.getMessage(), e);
+        }
+        program.setPurityAnalysis(purityAnalysis);
+        return program;
+    }
+
+    /**
+     * Representation of a value in the compiled code.
+     */
+    private enum ValueType {
+        NUMBER("D", 2),
+        BOOLEAN("Z", 1),
+        OBJECT(OBJECT_DESC, 1);
+
+        final String descriptor;
+        final int size;
+
+        ValueType(String descriptor, int size) {
+            this.descriptor = descriptor;
+            this.size = size;
+        }
+
+        static ValueType of(TypeRef typeRef) {
+            final String typeName = typeRef.getTypeName();
+            if (typeName.equals("num")) return NUMBER;
+            if (typeName.equals("bool")) return BOOLEAN;
+            return OBJECT;
+        }
+    }
+
+    /**
+     * JVM local variable of the method being compiled.
+     */
+    private static final class Local {
+        final int index;
+        final ValueType type;
+
+        Local(int index, ValueType type) {
+            this.index = index;
+            this.type = type;
+        }
+    }
+
+    /**
+     * A parallel loop whose body is compiled into a method of its own.
+     */
+    private static final class ParallelBody {
+        final For loop;
+        final int number;
+        final int frameSize;
+        final int[] capturedSlots;
+        final ValueType[] capturedTypes;
+
+        ParallelBody(For loop, int number, int frameSize, int[] capturedSlots) {
+            this.loop = loop;
+            this.number = number;
+            this.frameSize = frameSize;
+            this.capturedSlots = capturedSlots;
+            capturedTypes = new ValueType[capturedSlots.length];
+        }
+    }
+
+    /**
+     * Compiles one program into a class.
+     */
+    private static final class ClassCompiler {
+        private final Prog prog;
+        private final String className;
+        private final ClassWriter classWriter = new ClassWriter(ClassWriter.COMPUTE_MAXS);
+        private final ValueType[] globalTypes;
+        private final boolean budgetChecks;
+        private final PurityAnalysis purityAnalysis;
+
+        private final Map<Fun, String> methodNames = new IdentityHashMap<Fun, String>();
+        private final List<Fun> pendingFunctions = new ArrayList<Fun>();
+        private final Map<Fun, Boolean> compiledFunctions = new IdentityHashMap<Fun, Boolean>();
+        private final List<ParallelBody> pendingParallelBodies = new ArrayList<ParallelBody>();
+        private int parallelLoopCount;
+
+        // State of the method being compiled
+        private MethodVisitor mv;
+        private Local[] locals;
+        private int nextLocal;
+        private ValueType returnType;
+
+        ClassCompiler(Prog prog, String className, boolean budgetChecks, PurityAnalysis purityAnalysis) {
+            this.prog = prog;
+            this.className = className;
+            this.budgetChecks = budgetChecks;
+            this.purityAnalysis = purityAnalysis;
+
+            final List<VarDef> variables = prog.getVariables();
+            globalTypes = new ValueType[variables.size()];
+            for (int i = 0; i < globalTypes.length; i++) {
+                globalTypes[i] = ValueType.of(variables.get(i).getType());
+            }
+        }
+
+        byte[] compile() {
+            classWriter.visit(V1_5, ACC_PUBLIC | ACC_FINAL | ACC_SUPER, className, null, BASE, null);
+
+            for (int i = 0; i < globalTypes.length; i++) {
+                classWriter.visitField(ACC_PRIVATE, globalName(i), globalTypes[i].descriptor, null, null).visitEnd();
+            }
+
+            compileConstructor();
+            compileInitialize();
+            compileRunGenerate();
+
+            pendingFunctions.addAll(prog.getFunctions());
+            while (!pendingFunctions.isEmpty() || !pendingParallelBodies.isEmpty()) {
+                if (!pendingParallelBodies.isEmpty()) {
+                    compileParallelBody(pendingParallelBodies.remove(0));
+                    continue;
+                }
+
+                final Fun fun = pendingFunctions.remove(0);
+                if (compiledFunctions.put(fun, Boolean.TRUE) == null) {
+                    final int memoIndex = purityAnalysis.getMemoIndex(fun.getFunction());
+                    if (memoIndex >= 0) {
+                        compileFunction(fun, methodName(fun) + "_body");
+                        compileMemoizedCall(fun, memoIndex);
+                    }
+                    else {
+                        compileFunction(fun, methodName(fun));
+                    }
+                }
+            }
+
+            compileCopyGlobals();
+            if (parallelLoopCount > 0) compileRunParallelBody();
+
+            classWriter.visitEnd();
+            return classWriter.toByteArray();
+        }
+
+        private void compileConstructor() {
+            mv = classWriter.visitMethod(ACC_PUBLIC, "<init>", "(Lorg/skycastle/flowgine/buildlang/Builtins;)V", null, null);
+            mv.visitCode();
+            mv.visitVarInsn(ALOAD, 0);
+            mv.visitVarInsn(ALOAD, 1);
+            mv.visitMethodInsn(INVOKESPECIAL, BASE, "<init>", "(Lorg/skycastle/flowgine/buildlang/Builtins;)V");
+            mv.visitInsn(RETURN);
+            mv.visitMaxs(0, 0);
+            mv.visitEnd();
+        }
+
+        private void compileInitialize() {
+            mv = classWriter.visitMethod(ACC_PROTECTED, "initialize", "(Ljava/util/Map;)V", null, null);
+            mv.visitCode();
+            locals = new Local[prog.getInitializerFrameSize()];
+            nextLocal = 2;
+
+            final int parameterLocal = nextLocal++;
+            for (VarDef var : prog.getVariables()) {
+                final int slot = var.getSlot();
+                final ValueType type = globalTypes[slot];
+                final Label useInitializer = new Label();
+                final Label done = new Label();
+
+                // Use the parameter with the same name if there is one
+                mv.visitVarInsn(ALOAD, 1);
+                mv.visitLdcInsn(var.getName());
+                mv.visitMethodInsn(INVOKESTATIC, BASE, "parameter", "(Ljava/util/Map;Ljava/lang/String;)Ljava/lang/Object;");
+                mv.visitVarInsn(ASTORE, parameterLocal);
+                mv.visitVarInsn(ALOAD, parameterLocal);
+                mv.visitJumpInsn(IFNULL, useInitializer);
+                mv.visitVarInsn(ALOAD, 0);
+                mv.visitVarInsn(ALOAD, parameterLocal);
+                convert(ValueType.OBJECT, type);
+                mv.visitFieldInsn(PUTFIELD, className, globalName(slot), type.descriptor);
+                mv.visitJumpInsn(GOTO, done);
+
+                mv.visitLabel(useInitializer);
+                mv.visitVarInsn(ALOAD, 0);
+                compileExpr(var.getExpr(), type);
+                mv.visitFieldInsn(PUTFIELD, className, globalName(slot), type.descriptor);
+                mv.visitLabel(done);
+            }
+
+            mv.visitInsn(RETURN);
+            mv.visitMaxs(0, 0);
+            mv.visitEnd();
+        }
+
+        private void compileRunGenerate() {
+            mv = classWriter.visitMethod(ACC_PROTECTED, "runGenerate", "()V", null, null);
+            mv.visitCode();
+
+            final Fun generate = prog.getFunction(Interpreter.GENERATE_FUNCTION);
+            if (generate != null) {
+                if (!generate.getParameters().isEmpty()) throw new IllegalArgumentException("The generate function should not take any parameters");
+                mv.visitVarInsn(ALOAD, 0);
+                mv.visitMethodInsn(INVOKESPECIAL, className, methodName(generate), methodDescriptor(generate));
+                pop(ValueType.of(generate.getTypeRef()));
+            }
+
+            mv.visitInsn(RETURN);
+            mv.visitMaxs(0, 0);
+            mv.visitEnd();
+        }
+
+        /**
+         * Compiles the method that copies the global variables from another instance, for parallel loop workers.
+         */
+        private void compileCopyGlobals() {
+            mv = classWriter.visitMethod(ACC_PROTECTED, "copyGlobals", "(L" + BASE + ";)V", null, null);
+            mv.visitCode();
+            for (int slot = 0; slot < globalTypes.length; slot++) {
+                mv.visitVarInsn(ALOAD, 0);
+                mv.visitVarInsn(ALOAD, 1);
+                mv.visitTypeInsn(CHECKCAST, className);
+                mv.visitFieldInsn(GETFIELD, className, globalName(slot), globalTypes[slot].descriptor);
+                mv.visitFieldInsn(PUTFIELD, className, globalName(slot), globalTypes[slot].descriptor);
+            }
+            mv.visitInsn(RETURN);
+            mv.visitMaxs(0, 0);
+            mv.visitEnd();
+        }
+
+        /**
+         * Compiles the method that calls the body method of a parallel loop by its number.
+         */
+        private void compileRunParallelBody() {
+            final String descriptor = "(I" + OBJECT_DESC + "[" + OBJECT_DESC + ")V";
+            mv = classWriter.visitMethod(ACC_PROTECTED, "runParallelBody", descriptor, null, null);
+            mv.visitCode();
+            for (int loop = 0; loop < parallelLoopCount; loop++) {
+                final Label next = new Label();
+                mv.visitVarInsn(ILOAD, 1);
+                pushInt(loop);
+                mv.visitJumpInsn(IF_ICMPNE, next);
+                mv.visitVarInsn(ALOAD, 0);
+                mv.visitVarInsn(ALOAD, 2);
+                mv.visitVarInsn(ALOAD, 3);
+                mv.visitMethodInsn(INVOKESPECIAL, className, parallelBodyName(loop), "(" + OBJECT_DESC + "[" + OBJECT_DESC + ")V");
+                mv.visitInsn(RETURN);
+                mv.visitLabel(next);
+            }
+            mv.visitVarInsn(ALOAD, 0);
+            mv.visitVarInsn(ILOAD, 1);
+            mv.visitVarInsn(ALOAD, 2);
+            mv.visitVarInsn(ALOAD, 3);
+            mv.visitMethodInsn(INVOKESPECIAL, BASE, "runParallelBody", descriptor);
+            mv.visitInsn(RETURN);
+            mv.visitMaxs(0, 0);
+            mv.visitEnd();
+        }
+
+        /**
+         * Compiles the body of a parallel loop into a method that runs one iteration, with the captured local
+         * variables as an array.
+         */
+        private void compileParallelBody(ParallelBody body) {
+            final For loop = body.loop;
+            returnType = null;
+
+            mv = classWriter.visitMethod(ACC_PRIVATE, parallelBodyName(body.number), "(" + OBJECT_DESC + "[" + OBJECT_DESC + ")V", null, null);
+            mv.visitCode();
+
+            locals = new Local[body.frameSize];
+            nextLocal = 3;
+            for (int i = 0; i < body.capturedSlots.length; i++) {
+                mv.visitVarInsn(ALOAD, 2);
+                pushInt(i);
+                mv.visitInsn(AALOAD);
+                convert(ValueType.OBJECT, body.capturedTypes[i]);
+                store(declare(body.capturedSlots[i], body.capturedTypes[i]));
+            }
+            final ValueType iteratorType = ValueType.of(loop.getTypeRef());
+            mv.visitVarInsn(ALOAD, 1);
+            convert(ValueType.OBJECT, iteratorType);
+            store(declare(loop.getSlot(), iteratorType));
+
+            compileBlock(loop.getBlock());
+            countBudget(loop);
+
+            mv.visitInsn(RETURN);
+            mv.visitMaxs(0, 0);
+            mv.visitEnd();
+        }
+
+        private void compileFunction(Fun fun, String name) {
+            final FunExpr function = fun.getFunction();
+            returnType = ValueType.of(fun.getTypeRef());
+
+            mv = classWriter.visitMethod(ACC_PRIVATE, name, methodDescriptor(fun), null, null);
+            mv.visitCode();
+
+            locals = new Local[function.getFrameSize()];
+            nextLocal = 1;
+            final List<Param> parameters = function.getParameters();
+            for (int i = 0; i < parameters.size(); i++) {
+                final ValueType type = ValueType.of(parameters.get(i).getTypeRef());
+                locals[i] = new Local(nextLocal, type);
+                nextLocal += type.size;
+            }
+
+            compileBlock(function.getCode());
+
+            // Functions that end without a return statement return the default value of their type, as in the interpreter
+            pushDefault(returnType);
+            mv.visitInsn(returnOpcode(returnType));
+            mv.visitMaxs(0, 0);
+            mv.visitEnd();
+        }
+
+        /**
+         * Compiles the method of a memoized function, that looks up the call in the memo cache before calling
+         * the method with the code of the function.
+         */
+        private void compileMemoizedCall(Fun fun, int memoIndex) {
+            final String bodyName = methodName(fun) + "_body";
+            final String descriptor = methodDescriptor(fun);
+            final ValueType resultType = ValueType.of(fun.getTypeRef());
+
+            mv = classWriter.visitMethod(ACC_PRIVATE, methodName(fun), descriptor, null, null);
+            mv.visitCode();
+
+            final List<Param> parameters = fun.getParameters();
+            final Local[] parameterLocals = new Local[parameters.size()];
+            nextLocal = 1;
+            for (int i = 0; i < parameterLocals.length; i++) {
+                parameterLocals[i] = newLocal(ValueType.of(parameters.get(i).getTypeRef()));
+            }
+            final Label notMemoized = new Label();
+            final Label notFound = new Label();
+
+            mv.visitVarInsn(ALOAD, 0);
+            mv.visitMethodInsn(INVOKEVIRTUAL, className, "isMemoizing", "()Z");
+            mv.visitJumpInsn(IFEQ, notMemoized);
+
+            mv.visitVarInsn(ALOAD, 0);
+            pushInt(memoIndex);
+            pushInt(parameterLocals.length);
+            mv.visitTypeInsn(ANEWARRAY, OBJECT);
+            for (int i = 0; i < parameterLocals.length; i++) {
+                mv.visitInsn(DUP);
+                pushInt(i);
+                load(parameterLocals[i]);
+                convert(parameterLocals[i].type, ValueType.OBJECT);
+                mv.visitInsn(AASTORE);
+            }
+            mv.visitMethodInsn(INVOKEVIRTUAL, className, "memoStart", "(I[Ljava/lang/Object;)Ljava/lang/Object;");
+            final Local call = newLocal(ValueType.OBJECT);
+            store(call);
+            load(call);
+            mv.visitJumpInsn(IFNULL, notMemoized);
+
+            // Return the memoized result if the call is in the cache
+            mv.visitVarInsn(ALOAD, 0);
+            pushInt(memoIndex);
+            load(call);
+            mv.visitMethodInsn(INVOKEVIRTUAL, className, "memoReplay", "(ILjava/lang/Object;)Z");
+            mv.visitJumpInsn(IFEQ, notFound);
+            mv.visitVarInsn(ALOAD, 0);
+            load(call);
+            mv.visitMethodInsn(INVOKEVIRTUAL, className, "memoResult", "(Ljava/lang/Object;)Ljava/lang/Object;");
+            convert(ValueType.OBJECT, resultType);
+            mv.visitInsn(returnOpcode(resultType));
+
+            // Otherwise run the function and store the result
+            mv.visitLabel(notFound);
+            mv.visitVarInsn(ALOAD, 0);
+            load(call);
+            mv.visitVarInsn(ALOAD, 0);
+            for (Local parameter : parameterLocals) {
+                load(parameter);
+            }
+            mv.visitMethodInsn(INVOKESPECIAL, className, bodyName, descriptor);
+            convert(resultType, ValueType.OBJECT);
+            mv.visitMethodInsn(INVOKEVIRTUAL, className, "memoFinish", "(Ljava/lang/Object;Ljava/lang/Object;)Ljava/lang/Object;");
+            convert(ValueType.OBJECT, resultType);
+            mv.visitInsn(returnOpcode(resultType));
+
+            mv.visitLabel(notMemoized);
+            mv.visitVarInsn(ALOAD, 0);
+            for (Local parameter : parameterLocals) {
+                load(parameter);
+            }
+            mv.visitMethodInsn(INVOKESPECIAL, className, bodyName, descriptor);
+            mv.visitInsn(returnOpcode(resultType));
+
+            mv.visitMaxs(0, 0);
+            mv.visitEnd();
+        }
+
+        private void compileBlock(Block block) {
+            for (Statement statement : block.getStatements()) {
+                compileStatement(statement);
+            }
+        }
+
+        private void compileStatement(Statement statement) {
+            if (statement instanceof ExprStatement) {
+                final Expr expr = ((ExprStatement) statement).getExpr();
+                if (expr instanceof If) {
+                    compileIf((If) expr, null);
+                }
+                else {
+                    pop(compileExpr(expr));
+                }
+            }
+            else if (statement instanceof Assign) {
+                final Assign assign = (Assign) statement;
+                if (assign.isGlobal()) {
+                    final ValueType type = globalTypes[assign.getSlot()];
+                    mv.visitVarInsn(ALOAD, 0);
+                    compileExpr(assign.getExpression(), type);
+                    mv.visitFieldInsn(PUTFIELD, className, globalName(assign.getSlot()), type.descriptor);
+                }
+                else {
+                    final Local local = locals[assign.getSlot()];
+                    compileExpr(assign.getExpression(), local.type);
+                    store(local);
+                }
+            }
+            else if (statement instanceof VarDef) {
+                final VarDef var = (VarDef) statement;
+                final ValueType type = ValueType.of(var.getType());
+                compileExpr(var.getExpr(), type);
+                final Local local = declare(var.getSlot(), type);
+                store(local);
+            }
+            else if (statement instanceof For) {
+                compileFor((For) statement);
+            }
+            else if (statement instanceof While) {
+                final While whileStatement = (While) statement;
+                final Label condition = new Label();
+                final Label end = new Label();
+                mv.visitLabel(condition);
+                compileExpr(whileStatement.getCondition(), ValueType.BOOLEAN);
+                mv.visitJumpInsn(IFEQ, end);
+                compileBlock(whileStatement.getBlock());
+                countBudget(whileStatement);
+                mv.visitJumpInsn(GOTO, condition);
+                mv.visitLabel(end);
+            }
+            else if (statement instanceof Return) {
+                compileExpr(((Return) statement).getExpr(), returnType);
+                mv.visitInsn(returnOpcode(returnType));
+            }
+            else if (statement instanceof Fun) {
+                pendingFunctions.add((Fun) statement);
+            }
+            else {
+                throw new IllegalArgumentException("Unsupported statement " + statement);
+            }
+        }
+
+        private void compileFor(For forStatement) {
+            if (forStatement.isParallel()) {
+                compileParallelFor(forStatement);
+                return;
+            }
+
+            final Expr rangeExpr = forStatement.getRange();
+            final ValueType iteratorType = ValueType.of(forStatement.getTypeRef());
+            final Label condition = new Label();
+            final Label done = new Label();
+
+            if (rangeExpr instanceof RangeExpr) {
+                // Iterate numeric ranges without creating a range object
+                final RangeExpr range = (RangeExpr) rangeExpr;
+                final Local start = newLocal(ValueType.NUMBER);
+                final Local end = newLocal(ValueType.NUMBER);
+                final Local step = newLocal(ValueType.NUMBER);
+                final int count = nextLocal++;
+                final int index = nextLocal++;
+
+                compileExpr(range.getStart(), ValueType.NUMBER);
+                store(start);
+                compileExpr(range.getEnd(), ValueType.NUMBER);
+                store(end);
+                if (range.getStep() != null) compileExpr(range.getStep(), ValueType.NUMBER);
+                else mv.visitInsn(DCONST_1);
+                store(step);
+                load(start);
+                load(end);
+                load(step);
+                mv.visitInsn(range.isInclusive() ? ICONST_1 : ICONST_0);
+                mv.visitMethodInsn(INVOKESTATIC, BASE, "rangeSize", "(DDDZ)I");
+                mv.visitVarInsn(ISTORE, count);
+                mv.visitInsn(ICONST_0);
+                mv.visitVarInsn(ISTORE, index);
+
+                final Local iterator = declare(forStatement.getSlot(), iteratorType);
+                mv.visitLabel(condition);
+                mv.visitVarInsn(ILOAD, index);
+                mv.visitVarInsn(ILOAD, count);
+                mv.visitJumpInsn(IF_ICMPGE, done);
+                load(start);
+                mv.visitVarInsn(ILOAD, index);
+                mv.visitInsn(I2D);
+                load(step);
+                mv.visitInsn(DMUL);
+                mv.visitInsn(DADD);
+                convert(ValueType.NUMBER, iteratorType);
+                store(iterator);
+
+                compileBlock(forStatement.getBlock());
+                countBudget(forStatement);
+                mv.visitIincInsn(index, 1);
+                mv.visitJumpInsn(GOTO, condition);
+                mv.visitLabel(done);
+            }
+            else if (rangeExpr instanceof ListExpr) {
+                // Iterate list literals as an array of the iterator type, without creating the list
+                final List<Expr> elements = ((ListExpr) rangeExpr).getElements();
+                final int array = nextLocal++;
+                final int index = nextLocal++;
+
+                pushInt(elements.size());
+                if (iteratorType == ValueType.NUMBER) mv.visitIntInsn(NEWARRAY, T_DOUBLE);
+                else if (iteratorType == ValueType.BOOLEAN) mv.visitIntInsn(NEWARRAY, T_BOOLEAN);
+                else mv.visitTypeInsn(ANEWARRAY, OBJECT);
+                for (int i = 0; i < elements.size(); i++) {
+                    mv.visitInsn(DUP);
+                    pushInt(i);
+                    compileExpr(elements.get(i), iteratorType);
+                    mv.visitInsn(arrayOpcode(iteratorType, true));
+                }
+                mv.visitVarInsn(ASTORE, array);
+                mv.visitInsn(ICONST_0);
+                mv.visitVarInsn(ISTORE, index);
+
+                final Local iterator = declare(forStatement.getSlot(), iteratorType);
+                mv.visitLabel(condition);
+                mv.visitVarInsn(ILOAD, index);
+                mv.visitVarInsn(ALOAD, array);
+                mv.visitInsn(ARRAYLENGTH);
+                mv.visitJumpInsn(IF_ICMPGE, done);
+                mv.visitVarInsn(ALOAD, array);
+                mv.visitVarInsn(ILOAD, index);
+                mv.visitInsn(arrayOpcode(iteratorType, false));
+                store(iterator);
+
+                compileBlock(forStatement.getBlock());
+                countBudget(forStatement);
+                mv.visitIincInsn(index, 1);
+                mv.visitJumpInsn(GOTO, condition);
+                mv.visitLabel(done);
+            }
+            else {
+                final int source = nextLocal++;
+                final int index = nextLocal++;
+                compileExpr(rangeExpr, ValueType.OBJECT);
+                mv.visitMethodInsn(INVOKESTATIC, BASE, "iterationSource", "(Ljava/lang/Object;)Ljava/lang/Object;");
+                mv.visitVarInsn(ASTORE, source);
+                mv.visitInsn(ICONST_0);
+                mv.visitVarInsn(ISTORE, index);
+
+                // The size is checked on each iteration, as the body may add elements to an iterated list
+                final Local iterator = declare(forStatement.getSlot(), iteratorType);
+                mv.visitLabel(condition);
+                mv.visitVarInsn(ILOAD, index);
+                mv.visitVarInsn(ALOAD, source);
+                mv.visitMethodInsn(INVOKESTATIC, BASE, "iterationSize", "(Ljava/lang/Object;)I");
+                mv.visitJumpInsn(IF_ICMPGE, done);
+                mv.visitVarInsn(ALOAD, source);
+                mv.visitVarInsn(ILOAD, index);
+                mv.visitMethodInsn(INVOKESTATIC, BASE, "iterationElement", "(Ljava/lang/Object;I)Ljava/lang/Object;");
+                convert(ValueType.OBJECT, iteratorType);
+                store(iterator);
+
+                compileBlock(forStatement.getBlock());
+                countBudget(forStatement);
+                mv.visitIincInsn(index, 1);
+                mv.visitJumpInsn(GOTO, condition);
+                mv.visitLabel(done);
+            }
+        }
+
+        /**
+         * Compiles a parallel loop into a call to runParallel, and queues its body to be compiled into a method.
+         */
+        private void compileParallelFor(For forStatement) {
+            final int[] capturedSlots = purityAnalysis.getCapturedSlots(forStatement);
+            final ParallelBody body = new ParallelBody(forStatement, parallelLoopCount++, locals.length, capturedSlots);
+
+            mv.visitVarInsn(ALOAD, 0);
+            pushInt(body.number);
+            compileExpr(forStatement.getRange(), ValueType.OBJECT);
+
+            pushInt(capturedSlots.length);
+            mv.visitTypeInsn(ANEWARRAY, OBJECT);
+            for (int i = 0; i < capturedSlots.length; i++) {
+                final Local local = locals[capturedSlots[i]];
+                body.capturedTypes[i] = local.type;
+                mv.visitInsn(DUP);
+                pushInt(i);
+                load(local);
+                convert(local.type, ValueType.OBJECT);
+                mv.visitInsn(AASTORE);
+            }
+
+            // Numbers and booleans can always be shared, so only the other globals need to be checked
+            final List<Integer> objectGlobals = new ArrayList<Integer>();
+            for (int slot : purityAnalysis.getGlobalSlots(forStatement)) {
+                if (globalTypes[slot] == ValueType.OBJECT) objectGlobals.add(slot);
+            }
+            pushInt(objectGlobals.size());
+            mv.visitTypeInsn(ANEWARRAY, OBJECT);
+            for (int i = 0; i < objectGlobals.size(); i++) {
+                mv.visitInsn(DUP);
+                pushInt(i);
+                mv.visitVarInsn(ALOAD, 0);
+                mv.visitFieldInsn(GETFIELD, className, globalName(objectGlobals.get(i)), OBJECT_DESC);
+                mv.visitInsn(AASTORE);
+            }
+
+            mv.visitInsn(purityAnalysis.isThreadSafe(forStatement) ? ICONST_1 : ICONST_0);
+            mv.visitMethodInsn(INVOKEVIRTUAL, className, "runParallel", "(I" + OBJECT_DESC + "[" + OBJECT_DESC + "[" + OBJECT_DESC + "Z)V");
+
+            pendingParallelBodies.add(body);
+        }
+
+        /**
+         * Compiles an if expression.  Its value is the value of the last statement of the chosen block,
+         * if that is an expression statement, and otherwise null.
+         *
+         * @param wanted type of the value to leave on the stack, or null to not leave any value.
+         */
+        private void compileIf(If ifExpr, ValueType wanted) {
+            final Label elseLabel = new Label();
+            final Label end = new Label();
+
+            compileExpr(ifExpr.getCondition(), ValueType.BOOLEAN);
+            mv.visitJumpInsn(IFEQ, elseLabel);
+            compileBlockValue(ifExpr.getThenBlock(), wanted);
+            mv.visitJumpInsn(GOTO, end);
+            mv.visitLabel(elseLabel);
+            if (ifExpr.getElseBlock() != null) {
+                compileBlockValue(ifExpr.getElseBlock(), wanted);
+            }
+            else if (wanted != null) {
+                mv.visitInsn(ACONST_NULL);
+                convert(ValueType.OBJECT, wanted);
+            }
+            mv.visitLabel(end);
+        }
+
+        private void compileBlockValue(Block block, ValueType wanted) {
+            if (wanted == null) {
+                compileBlock(block);
+                return;
+            }
+
+            final List<Statement> statements = block.getStatements();
+            for (int i = 0; i < statements.size() - 1; i++) {
+                compileStatement(statements.get(i));
+            }
+
+            final Statement last = statements.isEmpty() ? null : statements.get(statements.size() - 1);
+            if (last instanceof ExprStatement) {
+                compileExpr(((ExprStatement) last).getExpr(), wanted);
+            }
+            else {
+                if (last != null) compileStatement(last);
+                mv.visitInsn(ACONST_NULL);
+                convert(ValueType.OBJECT, wanted);
+            }
+        }
+
+        /**
+         * Compiles an expression, converting its value to the wanted type.
+         */
+        private void compileExpr(Expr expr, ValueType wanted) {
+            if (expr instanceof If) {
+                // Convert the values of the branches directly
+                compileIf((If) expr, wanted);
+            }
+            else {
+                convert(compileExpr(expr), wanted);
+            }
+        }
+
+        /**
+         * Compiles an expression.
+         * @return the type of the value left on the stack.
+         */
+        private ValueType compileExpr(Expr expr) {
+            if (expr instanceof Num) {
+                final double value = ((Num) expr).getValue();
+                if (value == 0 && 1 / value > 0) mv.visitInsn(DCONST_0);
+                else if (value == 1) mv.visitInsn(DCONST_1);
+                else mv.visitLdcInsn(value);
+                return ValueType.NUMBER;
+            }
+            else if (expr instanceof VarRef) {
+                final VarRef varRef = (VarRef) expr;
+                if (varRef.getFunction() != null) throw new IllegalArgumentException("The compiler does not support function values ('" + varRef.getName() + "')");
+                if (varRef.isGlobal()) {
+                    final ValueType type = globalTypes[varRef.getSlot()];
+                    mv.visitVarInsn(ALOAD, 0);
+                    mv.visitFieldInsn(GETFIELD, className, globalName(varRef.getSlot()), type.descriptor);
+                    return type;
+                }
+                else {
+                    final Local local = locals[varRef.getSlot()];
+                    load(local);
+                    return local.type;
+                }
+            }
+            else if (expr instanceof OperationNode) {
+                return compileOperation((OperationNode) expr);
+            }
+            else if (expr instanceof Call) {
+                return compileCall((Call) expr);
+            }
+            else if (expr instanceof UnaryOp) {
+                final UnaryOp unaryOp = (UnaryOp) expr;
+                if (unaryOp.getOperator().equals("-")) {
+                    compileExpr(unaryOp.getOperand(), ValueType.NUMBER);
+                    mv.visitInsn(DNEG);
+                    return ValueType.NUMBER;
+                }
+                else {
+                    compileExpr(unaryOp.getOperand(), ValueType.BOOLEAN);
+                    mv.visitInsn(ICONST_1);
+                    mv.visitInsn(IXOR);
+                    return ValueType.BOOLEAN;
+                }
+            }
+            else if (expr instanceof BoolExpr) {
+                mv.visitInsn(((BoolExpr) expr).getValue() ? ICONST_1 : ICONST_0);
+                return ValueType.BOOLEAN;
+            }
+            else if (expr instanceof If) {
+                compileIf((If) expr, ValueType.OBJECT);
+                return ValueType.OBJECT;
+            }
+            else if (expr instanceof RangeExpr) {
+                final RangeExpr range = (RangeExpr) expr;
+                mv.visitTypeInsn(NEW, "org/skycastle/flowgine/buildlang/Range");
+                mv.visitInsn(DUP);
+                compileExpr(range.getStart(), ValueType.NUMBER);
+                compileExpr(range.getEnd(), ValueType.NUMBER);
+                if (range.getStep() != null) compileExpr(range.getStep(), ValueType.NUMBER);
+                else mv.visitInsn(DCONST_1);
+                mv.visitInsn(range.isInclusive() ? ICONST_1 : ICONST_0);
+                mv.visitMethodInsn(INVOKESPECIAL, "org/skycastle/flowgine/buildlang/Range", "<init>", "(DDDZ)V");
+                return ValueType.OBJECT;
+            }
+            else if (expr instanceof ListExpr) {
+                final List<Expr> elements = ((ListExpr) expr).getElements();
+                mv.visitTypeInsn(NEW, "java/util/ArrayList");
+                mv.visitInsn(DUP);
+                pushInt(elements.size());
+                mv.visitMethodInsn(INVOKESPECIAL, "java/util/ArrayList", "<init>", "(I)V");
+                for (Expr element : elements) {
+                    mv.visitInsn(DUP);
+                    compileExpr(element, ValueType.OBJECT);
+                    mv.visitMethodInsn(INVOKEVIRTUAL, "java/util/ArrayList", "add", "(Ljava/lang/Object;)Z");
+                    mv.visitInsn(POP);
+                }
+                return ValueType.OBJECT;
+            }
+            else if (expr instanceof MapExpr) {
+                mv.visitTypeInsn(NEW, "java/util/LinkedHashMap");
+                mv.visitInsn(DUP);
+                mv.visitMethodInsn(INVOKESPECIAL, "java/util/LinkedHashMap", "<init>", "()V");
+                for (MapExpr.MapExprEntry entry : ((MapExpr) expr).getEntries()) {
+                    mv.visitInsn(DUP);
+                    compileExpr(entry.getKey(), ValueType.OBJECT);
+                    compileExpr(entry.getValue(), ValueType.OBJECT);
+                    mv.visitMethodInsn(INVOKEVIRTUAL, "java/util/LinkedHashMap", "put", "(Ljava/lang/Object;Ljava/lang/Object;)Ljava/lang/Object;");
+                    mv.visitInsn(POP);
+                }
+                return ValueType.OBJECT;
+            }
+            else if (expr instanceof FunExpr) {
+                throw new IllegalArgumentException("The compiler does not support anonymous functions");
+            }
+            else {
+                throw new IllegalArgumentException("Unsupported expression " + expr);
+            }
+        }
+
+        private ValueType compileOperation(OperationNode operation) {
+            final String operator = operation.getOperator();
+            final Expr left = operation.getLeft();
+            final Expr right = operation.getRight();
+
+            if (operator.equals("and") || operator.equals("or")) {
+                // Short circuit
+                final boolean and = operator.equals("and");
+                final Label shortCircuit = new Label();
+                final Label end = new Label();
+                compileExpr(left, ValueType.BOOLEAN);
+                mv.visitJumpInsn(and ? IFEQ : IFNE, shortCircuit);
+                compileExpr(right, ValueType.BOOLEAN);
+                mv.visitJumpInsn(GOTO, end);
+                mv.visitLabel(shortCircuit);
+                mv.visitInsn(and ? ICONST_0 : ICONST_1);
+                mv.visitLabel(end);
+                return ValueType.BOOLEAN;
+            }
+
+            if (operator.equals("xor")) {
+                compileExpr(left, ValueType.BOOLEAN);
+                compileExpr(right, ValueType.BOOLEAN);
+                mv.visitInsn(IXOR);
+                return ValueType.BOOLEAN;
+            }
+
+            if (operator.equals("==") || operator.equals("!=")) {
+                final boolean equals = operator.equals("==");
+                final ValueType leftType = typeOf(left);
+                final ValueType rightType = typeOf(right);
+                if (leftType == ValueType.NUMBER && rightType == ValueType.NUMBER) {
+                    compileExpr(left, ValueType.NUMBER);
+                    compileExpr(right, ValueType.NUMBER);
+                    mv.visitInsn(DCMPL);
+                    pushComparison(equals ? IFNE : IFEQ);
+                }
+                else if (leftType == ValueType.BOOLEAN && rightType == ValueType.BOOLEAN) {
+                    compileExpr(left, ValueType.BOOLEAN);
+                    compileExpr(right, ValueType.BOOLEAN);
+                    mv.visitInsn(IXOR);
+                    if (equals) {
+                        mv.visitInsn(ICONST_1);
+                        mv.visitInsn(IXOR);
+                    }
+                }
+                else {
+                    compileExpr(left, ValueType.OBJECT);
+                    compileExpr(right, ValueType.OBJECT);
+                    mv.visitMethodInsn(INVOKESTATIC, BASE, "equal", "(Ljava/lang/Object;Ljava/lang/Object;)Z");
+                    if (!equals) {
+                        mv.visitInsn(ICONST_1);
+                        mv.visitInsn(IXOR);
+                    }
+                }
+                return ValueType.BOOLEAN;
+            }
+
+            compileExpr(left, ValueType.NUMBER);
+            compileExpr(right, ValueType.NUMBER);
+            if (operator.equals("+")) mv.visitInsn(DADD);
+            else if (operator.equals("-")) mv.visitInsn(DSUB);
+            else if (operator.equals("*")) mv.visitInsn(DMUL);
+            else if (operator.equals("/")) mv.visitInsn(DDIV);
+            else if (operator.equals("%")) mv.visitInsn(DREM);
+            else if (operator.equals("^")) mv.visitMethodInsn(INVOKESTATIC, "java/lang/Math", "pow", "(DD)D");
+            else {
+                // Comparisons are false if either side is NaN
+                if (operator.equals("<")) {
+                    mv.visitInsn(DCMPG);
+                    pushComparison(IFGE);
+                }
+                else if (operator.equals("<=")) {
+                    mv.visitInsn(DCMPG);
+                    pushComparison(IFGT);
+                }
+                else if (operator.equals(">")) {
+                    mv.visitInsn(DCMPL);
+                    pushComparison(IFLE);
+                }
+                else if (operator.equals(">=")) {
+                    mv.visitInsn(DCMPL);
+                    pushComparison(IFLT);
+                }
+                else {
+                    throw new IllegalArgumentException("Unsupported operator " + operator);
+                }
+                return ValueType.BOOLEAN;
+            }
+            return ValueType.NUMBER;
+        }
+
+        private ValueType compileCall(Call call) {
+            final List<Expr> arguments = call.getArguments();
+
+            if (call.getFunction() != null) {
+                final Fun function = call.getFunction();
+                final List<Param> parameters = function.getParameters();
+                final ValueType[] parameterTypes = new ValueType[parameters.size()];
+                for (int i = 0; i < parameterTypes.length; i++) {
+                    parameterTypes[i] = ValueType.of(parameters.get(i).getTypeRef());
+                }
+
+                if (arguments.size() == parameters.size()) {
+                    mv.visitVarInsn(ALOAD, 0);
+                    for (int i = 0; i < parameterTypes.length; i++) {
+                        compileExpr(arguments.get(i), parameterTypes[i]);
+                    }
+                }
+                else {
+                    // Default values may refer to earlier parameters, so evaluate the arguments into locals first,
+                    // and compile the default values with those locals as the parameters
+                    final Local[] parameterLocals = new Local[function.getFunction().getFrameSize()];
+                    for (int i = 0; i < arguments.size(); i++) {
+                        compileExpr(arguments.get(i), parameterTypes[i]);
+                        parameterLocals[i] = newLocal(parameterTypes[i]);
+                        store(parameterLocals[i]);
+                    }
+                    final Local[] callerLocals = locals;
+                    locals = parameterLocals;
+                    for (int i = arguments.size(); i < parameterTypes.length; i++) {
+                        compileExpr(parameters.get(i).getDefaultValue(), parameterTypes[i]);
+                        parameterLocals[i] = newLocal(parameterTypes[i]);
+                        store(parameterLocals[i]);
+                    }
+                    locals = callerLocals;
+
+                    mv.visitVarInsn(ALOAD, 0);
+                    for (int i = 0; i < parameterTypes.length; i++) {
+                        load(parameterLocals[i]);
+                    }
+                }
+
+                countBudget(call);
+                enterCall(call);
+                mv.visitMethodInsn(INVOKESPECIAL, className, methodName(function), methodDescriptor(function));
+                exitCall();
+                return ValueType.of(function.getTypeRef());
+            }
+            else if (call.getBuiltin() >= 0) {
+                mv.visitVarInsn(ALOAD, 0);
+                pushInt(call.getBuiltin());
+                pushInt(arguments.size());
+                mv.visitTypeInsn(ANEWARRAY, OBJECT);
+                for (int i = 0; i < arguments.size(); i++) {
+                    mv.visitInsn(DUP);
+                    pushInt(i);
+                    compileExpr(arguments.get(i), ValueType.OBJECT);
+                    mv.visitInsn(AASTORE);
+                }
+                mv.visitMethodInsn(INVOKEVIRTUAL, className, "callBuiltin", "(I[Ljava/lang/Object;)Ljava/lang/Object;");
+                return ValueType.OBJECT;
+            }
+            else {
+                throw new IllegalArgumentException("The compiler does not support calling function values ('" + call.getName() + "')");
+            }
+        }
+
+        /**
+         * @return the type of the value an expression leaves on the stack when compiled, without compiling it.
+         */
+        private ValueType typeOf(Expr expr) {
+            if (expr instanceof Num || expr instanceof UnaryOp && ((UnaryOp) expr).getOperator().equals("-")) {
+                return ValueType.NUMBER;
+            }
+            else if (expr instanceof BoolExpr || expr instanceof UnaryOp) {
+                return ValueType.BOOLEAN;
+            }
+            else if (expr instanceof VarRef) {
+                final VarRef varRef = (VarRef) expr;
+                if (varRef.getFunction() != null) return ValueType.OBJECT;
+                return varRef.isGlobal() ? globalTypes[varRef.getSlot()] : locals[varRef.getSlot()].type;
+            }
+            else if (expr instanceof OperationNode) {
+                final String operator = ((OperationNode) expr).getOperator();
+                final char first = operator.charAt(0);
+                if (first == '+' || first == '-' || first == '*' || first == '/' || first == '%' || first == '^') return ValueType.NUMBER;
+                else return ValueType.BOOLEAN;
+            }
+            else if (expr instanceof Call && ((Call) expr).getFunction() != null) {
+                return ValueType.of(((Call) expr).getFunction().getTypeRef());
+            }
+            else {
+                return ValueType.OBJECT;
+            }
+        }
+
+        /**
+         * Pushes true, unless the jump opcode jumps based on the value on the stack, in which case pushes false.
+         */
+        private void pushComparison(int falseJumpOpcode) {
+            final Label isFalse = new Label();
+            final Label end = new Label();
+            mv.visitJumpInsn(falseJumpOpcode, isFalse);
+            mv.visitInsn(ICONST_1);
+            mv.visitJumpInsn(GOTO, end);
+            mv.visitLabel(isFalse);
+            mv.visitInsn(ICONST_0);
+            mv.visitLabel(end);
+        }
+
+        /**
+         * Converts the value on top of the stack.
+         */
+        private void convert(ValueType from, ValueType to) {
+            if (from == to) return;
+
+            // Box
+            if (from == ValueType.NUMBER) mv.visitMethodInsn(INVOKESTATIC, "java/lang/Double", "valueOf", "(D)Ljava/lang/Double;");
+            else if (from == ValueType.BOOLEAN) mv.visitMethodInsn(INVOKESTATIC, "java/lang/Boolean", "valueOf", "(Z)Ljava/lang/Boolean;");
+
+            // Unbox with a type check
+            if (to == ValueType.NUMBER) mv.visitMethodInsn(INVOKESTATIC, BASE, "toNumber", "(Ljava/lang/Object;)D");
+            else if (to == ValueType.BOOLEAN) mv.visitMethodInsn(INVOKESTATIC, BASE, "toBoolean", "(Ljava/lang/Object;)Z");
+        }
+
+        /**
+         * Decrements the countdown to the next checkpoint, and calls checkpoint with the location of the node
+         * if it goes negative.
+         */
+        private void countBudget(Node node) {
+            if (!budgetChecks) return;
+
+            final Label withinBudget = new Label();
+            mv.visitVarInsn(ALOAD, 0);
+            mv.visitInsn(DUP);
+            mv.visitFieldInsn(GETFIELD, BASE, "countdown", "J");
+            mv.visitInsn(LCONST_1);
+            mv.visitInsn(LSUB);
+            mv.visitInsn(DUP2_X1);
+            mv.visitFieldInsn(PUTFIELD, BASE, "countdown", "J");
+            mv.visitInsn(LCONST_0);
+            mv.visitInsn(LCMP);
+            mv.visitJumpInsn(IFGE, withinBudget);
+            mv.visitVarInsn(ALOAD, 0);
+            pushInt(node.getLine());
+            pushInt(node.getColumn());
+            mv.visitMethodInsn(INVOKEVIRTUAL, className, "checkpoint", "(II)V");
+            mv.visitLabel(withinBudget);
+        }
+
+        /**
+         * Increments the call depth, and calls callDepthExceeded with the location of the call if it goes over
+         * the maximum.  Leaves the stack as it was.
+         */
+        private void enterCall(Call call) {
+            if (!budgetChecks) return;
+
+            final Label withinDepth = new Label();
+            mv.visitVarInsn(ALOAD, 0);
+            mv.visitInsn(DUP);
+            mv.visitFieldInsn(GETFIELD, BASE, "callDepth", "I");
+            mv.visitInsn(ICONST_1);
+            mv.visitInsn(IADD);
+            mv.visitInsn(DUP_X1);
+            mv.visitFieldInsn(PUTFIELD, BASE, "callDepth", "I");
+            mv.visitVarInsn(ALOAD, 0);
+            mv.visitFieldInsn(GETFIELD, BASE, "maxCallDepth", "I");
+            mv.visitJumpInsn(IF_ICMPLE, withinDepth);
+            mv.visitVarInsn(ALOAD, 0);
+            pushInt(call.getLine());
+            pushInt(call.getColumn());
+            mv.visitMethodInsn(INVOKEVIRTUAL, className, "callDepthExceeded", "(II)V");
+            mv.visitLabel(withinDepth);
+        }
+
+        /**
+         * Decrements the call depth after a call has returned.  Leaves the stack as it was.
+         * Calls that throw leave the depth as it was, it is reset when the program is run again.
+         */
+        private void exitCall() {
+            if (!budgetChecks) return;
+
+            mv.visitVarInsn(ALOAD, 0);
+            mv.visitInsn(DUP);
+            mv.visitFieldInsn(GETFIELD, BASE, "callDepth", "I");
+            mv.visitInsn(ICONST_1);
+            mv.visitInsn(ISUB);
+            mv.visitFieldInsn(PUTFIELD, BASE, "callDepth", "I");
+        }
+
+        private Local declare(int slot, ValueType type) {
+            final Local local = newLocal(type);
+            locals[slot] = local;
+            return local;
+        }
+
+        private Local newLocal(ValueType type) {
+            final Local local = new Local(nextLocal, type);
+            nextLocal += type.size;
+            return local;
+        }
+
+        private void load(Local local) {
+            mv.visitVarInsn(local.type == ValueType.NUMBER ? DLOAD : local.type == ValueType.BOOLEAN ? ILOAD : ALOAD, local.index);
+        }
+
+        private void store(Local local) {
+            mv.visitVarInsn(local.type == ValueType.NUMBER ? DSTORE : local.type == ValueType.BOOLEAN ? ISTORE : ASTORE, local.index);
+        }
+
+        private void pop(ValueType type) {
+            mv.visitInsn(type.size == 2 ? POP2 : POP);
+        }
+
+        private void pushDefault(ValueType type) {
+            if (type == ValueType.NUMBER) mv.visitInsn(DCONST_0);
+            else if (type == ValueType.BOOLEAN) mv.visitInsn(ICONST_0);
+            else mv.visitInsn(ACONST_NULL);
+        }
+
+        private void pushInt(int value) {
+            if (value >= -1 && value <= 5) mv.visitInsn(ICONST_0 + value);
+            else if (value >= Byte.MIN_VALUE && value <= Byte.MAX_VALUE) mv.visitIntInsn(BIPUSH, value);
+            else if (value >= Short.MIN_VALUE && value <= Short.MAX_VALUE) mv.visitIntInsn(SIPUSH, value);
+            else mv.visitLdcInsn(value);
+        }
+
+        /**
+         * @return opcode that stores a value of the type into an array, or loads one from it.
+         */
+        private static int arrayOpcode(ValueType type, boolean store) {
+            if (type == ValueType.NUMBER) return store ? DASTORE : DALOAD;
+            if (type == ValueType.BOOLEAN) return store ? BASTORE : BALOAD;
+            return store ? AASTORE : AALOAD;
+        }
+
+        private static int returnOpcode(ValueType type) {
+            return type == ValueType.NUMBER ? DRETURN : type == ValueType.BOOLEAN ? IRETURN : ARETURN;
+        }
+
+        private static String parallelBodyName(int loop) {
+            return "parallel" + loop;
+        }
+
+        private static String globalName(int slot) {
+            return "global" + slot;
+        }
+
+        private String methodName(Fun fun) {
+            String name = methodNames.get(fun);
+            if (name == null) {
+                name = "function" + methodNames.size() + "_" + fun.getName();
+                methodNames.put(fun, name);
+            }
+            return name;
+        }
+
+        private static String methodDescriptor(Fun fun) {
+            final StringBuilder descriptor = new StringBuilder("(");
+            for (Param param : fun.getParameters()) {
+                descriptor.append(ValueType.of(param.getTypeRef()).descriptor);
+            }
+            descriptor.append(')').append(ValueType.of(fun.getTypeRef()).descriptor);
+            return descriptor.toString();
+        }
+    }
+}
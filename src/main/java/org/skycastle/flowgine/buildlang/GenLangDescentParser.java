@@ -0,0 +1,471 @@
+package org.skycastle.flowgine.buildlang;
+
+import org.skycastle.flowgine.buildlang.GenLangScanner.Token;
+import org.skycastle.flowgine.buildlang.ast.*;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Hand written parser for the geometry definition language, an alternative to the parboiled based GenLangParser.
+ * <p/>
+ * Accepts the same language and produces the same syntax trees with the same source positions, without generating
+ * parser classes at runtime or going through a value stack.  Statements are parsed with recursive descent, using
+ * a few tokens of lookahead where the grammar tries alternatives in order, and operators with precedence climbing.
+ * <p/>
+ * A parser can be reused, but is not thread safe.
+ */
+public final class GenLangDescentParser {
+
+    // Precedence levels of operators, from loosest to tightest.  Unary minus and ^ are handled by unary and factor.
+    private static final int OR_LEVEL = 1;
+    private static final int AND_LEVEL = 2;
+    private static final int NOT_LEVEL = 3;
+    private static final int COMPARISON_LEVEL = 4;
+    private static final int SUM_LEVEL = 5;
+    private static final int PRODUCT_LEVEL = 6;
+
+    private GenLangScanner scanner;
+    private int position;
+
+    /**
+     * Parses a program.
+     *
+     * @param source source of the program.
+     * @return the parsed program, not yet resolved.
+     * @throws IllegalStateException if the source could not be parsed.  The message tells where.
+     */
+    public Prog parse(String source) {
+        scanner = new GenLangScanner(source);
+        position = 0;
+        try {
+            final Prog prog = new Prog();
+            while (token() != Token.END) {
+                final int start = position;
+                if (token() == Token.FUN) {
+                    final Fun function = functionDef();
+                    setPosition(function, start);
+                    prog.addFun(function);
+                }
+                else if (token() == Token.CONST || token() == Token.IDENTIFIER) {
+                    final VarDef var = varDef();
+                    setPosition(var, start);
+                    prog.addVar(var);
+                }
+                else {
+                    throw error("Expected a variable or function definition");
+                }
+                accept(Token.SEMI);
+            }
+            return prog;
+        }
+        finally {
+            scanner = null;
+        }
+    }
+
+    /**
+     * Parses:
+     * [const] type variableName = expression
+     */
+    private VarDef varDef() {
+        final VarDef var = new VarDef();
+        if (accept(Token.CONST)) var.setConstant(true);
+        var.setType(typeRef());
+        var.setName(identifier());
+        expect(Token.ASSIGN);
+        var.setExpr(expression());
+        return var;
+    }
+
+    /**
+     * Parses:
+     * fun ResultType functionName ( (paramType paramName [= defaultExpr], )* )  functionBody
+     */
+    private Fun functionDef() {
+        expect(Token.FUN);
+        final TypeRef type = typeRef();
+        final String name = identifier();
+        final List<Param> parameters = parameters();
+        return new Fun(name, type, parameters, functionBody());
+    }
+
+    private List<Param> parameters() {
+        expect(Token.LPAR);
+        final List<Param> parameters = new ArrayList<Param>();
+        if (token() != Token.RPAR) {
+            do {
+                final TypeRef type = typeRef();
+                final int nameStart = position;
+                final Param parameter = new Param(type, identifier());
+                setPosition(parameter, nameStart);
+                if (accept(Token.ASSIGN)) parameter.setDefaultValue(expression());
+                parameters.add(parameter);
+            } while (accept(Token.COMMA));
+        }
+        expect(Token.RPAR);
+        return parameters;
+    }
+
+    /**
+     * Parses:
+     * = expression | { (statement [;])* }
+     */
+    private Block functionBody() {
+        if (accept(Token.ASSIGN)) return new Block(new Return(expression()));
+        else return statementBlock();
+    }
+
+    /**
+     * Parses:
+     * statement[;] | { (statement[;])* }
+     */
+    private Block statements() {
+        if (token() == Token.LCURLY) return statementBlock();
+        else return new Block(statement());
+    }
+
+    private Block statementBlock() {
+        final int start = position;
+        expect(Token.LCURLY);
+        final Block block = new Block();
+        setPosition(block, start);
+        while (token() != Token.RCURLY && token() != Token.END) {
+            block.addStatement(statement());
+        }
+        expect(Token.RCURLY);
+        return block;
+    }
+
+    private Statement statement() {
+        final int start = position;
+        final Statement statement;
+        switch (token()) {
+            case CONST:
+                statement = varDef();
+                break;
+            case FUN:
+                // A function expression has no name
+                if (token(1) == Token.IDENTIFIER && token(2) == Token.IDENTIFIER) statement = functionDef();
+                else statement = new ExprStatement(expression());
+                break;
+            case IDENTIFIER:
+                if (token(1) == Token.IDENTIFIER && token(2) == Token.ASSIGN) {
+                    statement = varDef();
+                }
+                else if (token(1) == Token.ASSIGN) {
+                    final String name = identifier();
+                    expect(Token.ASSIGN);
+                    statement = new Assign(name, expression());
+                }
+                else {
+                    statement = new ExprStatement(expression());
+                }
+                break;
+            case PARALLEL:
+            case FOR: {
+                final boolean parallel = accept(Token.PARALLEL);
+                expect(Token.FOR);
+                final TypeRef type = typeRef();
+                final String name = identifier();
+                expect(Token.IN);
+                final Expr range = expression();
+                expect(Token.DO);
+                statement = new For(type, name, range, statements(), parallel);
+                break;
+            }
+            case WHILE: {
+                expect(Token.WHILE);
+                final Expr condition = expression();
+                expect(Token.DO);
+                statement = new While(condition, statements());
+                break;
+            }
+            case RETURN:
+                expect(Token.RETURN);
+                statement = new Return(expression());
+                break;
+            default:
+                statement = new ExprStatement(expression());
+        }
+        setPosition(statement, start);
+        accept(Token.SEMI);
+        return statement;
+    }
+
+    /**
+     * Parses any expression returning a value.
+     */
+    private Expr expression() {
+        if (token() == Token.IF) return ifExpression();
+        else if (token() == Token.FUN) return functionExpr();
+        else return operation(OR_LEVEL);
+    }
+
+    /**
+     * Parses:
+     * if booleanExpression then statements [else statements ]
+     */
+    private If ifExpression() {
+        final int start = position;
+        expect(Token.IF);
+        final Expr condition = expression();
+        expect(Token.THEN);
+        final If ifExpr = new If(condition, statements());
+        setPosition(ifExpr, start);
+        if (accept(Token.ELSE)) ifExpr.setElseBlock(statements());
+        return ifExpr;
+    }
+
+    /**
+     * Parses:
+     * fun resultType ( paramList ) [= expression | statementBlock ]
+     */
+    private FunExpr functionExpr() {
+        final int start = position;
+        expect(Token.FUN);
+        final TypeRef type = typeRef();
+        final List<Param> parameters = parameters();
+        final FunExpr function = new FunExpr(type, parameters, functionBody());
+        setPosition(function, start);
+        return function;
+    }
+
+    /**
+     * Parses left associative binary operators with at least the specified precedence level,
+     * and not if the level allows it.
+     */
+    private Expr operation(int minLevel) {
+        Expr left;
+        if (token() == Token.NOT && minLevel <= NOT_LEVEL) {
+            final int start = position;
+            position++;
+            left = new UnaryOp("not", operation(NOT_LEVEL));
+            setPosition(left, start);
+        }
+        else {
+            left = unary();
+        }
+
+        while (true) {
+            final int level = binaryLevel(token());
+            if (level < minLevel) return left;
+
+            final int start = position;
+            final String operator = token().getText();
+            position++;
+            left = new OperationNode(left, operator, operation(level + 1));
+            setPosition(left, start);
+        }
+    }
+
+    /**
+     * @return precedence level of a binary operator token, or 0 if it is not a binary operator.
+     */
+    private static int binaryLevel(Token token) {
+        switch (token) {
+            case OR:
+            case XOR:
+                return OR_LEVEL;
+            case AND:
+                return AND_LEVEL;
+            case EQUAL:
+            case NOT_EQUAL:
+            case GE:
+            case GT:
+            case LE:
+            case LT:
+                return COMPARISON_LEVEL;
+            case PLUS:
+            case MINUS:
+                return SUM_LEVEL;
+            case MUL:
+            case DIV:
+            case PERCENT:
+                return PRODUCT_LEVEL;
+            default:
+                return 0;
+        }
+    }
+
+    private Expr unary() {
+        if (token() == Token.MINUS) {
+            final int start = position;
+            position++;
+            final Expr negation = new UnaryOp("-", unary());
+            setPosition(negation, start);
+            return negation;
+        }
+        else {
+            return factor();
+        }
+    }
+
+    /**
+     * Parses:
+     * atom [^ unary]
+     * The power operator is right associative, and binds tighter than a unary minus to its left.
+     */
+    private Expr factor() {
+        final Expr atom = atom();
+        if (token() != Token.POWER) return atom;
+
+        final int start = position;
+        position++;
+        final Expr power = new OperationNode(atom, Token.POWER.getText(), unary());
+        setPosition(power, start);
+        return power;
+    }
+
+    private Expr atom() {
+        final int start = position;
+        final Expr atom;
+        switch (token()) {
+            case NUMBER:
+                atom = new Num(scanner.number(position++));
+                break;
+            case TRUE:
+                position++;
+                atom = new BoolExpr(true);
+                break;
+            case FALSE:
+                position++;
+                atom = new BoolExpr(false);
+                break;
+            case LSQUARE:
+                return bracketed();
+            case IDENTIFIER:
+                if (token(1) == Token.LPAR) return functionCall();
+                atom = new VarRef(identifier());
+                break;
+            case LPAR:
+                position++;
+                final Expr expr = expression();
+                expect(Token.RPAR);
+                return expr;
+            default:
+                throw error("Expected an expression");
+        }
+        setPosition(atom, start);
+        return atom;
+    }
+
+    /**
+     * Parses a range, map or list:
+     * [ expr ..|... expr [step expr] ]
+     * [ expr : expr, * ]
+     * [ expr, * ]
+     * Empty brackets and [:] are empty maps.
+     */
+    private Expr bracketed() {
+        final int start = position;
+        expect(Token.LSQUARE);
+
+        if (accept(Token.RSQUARE)) {
+            return setPosition(new MapExpr(), start);
+        }
+        if (accept(Token.COLON)) {
+            expect(Token.RSQUARE);
+            return setPosition(new MapExpr(), start);
+        }
+
+        final Expr first = expression();
+        if (token() == Token.DOTDOT || token() == Token.DOTDOTDOT) {
+            final boolean inclusive = token() == Token.DOTDOTDOT;
+            position++;
+            final RangeExpr range = new RangeExpr(first, expression(), inclusive);
+            setPosition(range, start);
+            if (accept(Token.STEP)) range.setStep(expression());
+            expect(Token.RSQUARE);
+            return range;
+        }
+        else if (accept(Token.COLON)) {
+            final MapExpr map = new MapExpr();
+            setPosition(map, start);
+            map.add(first, expression());
+            while (accept(Token.COMMA)) {
+                final Expr key = expression();
+                expect(Token.COLON);
+                map.add(key, expression());
+            }
+            expect(Token.RSQUARE);
+            return map;
+        }
+        else {
+            final ListExpr list = new ListExpr();
+            setPosition(list, start);
+            list.add(first);
+            while (accept(Token.COMMA)) {
+                list.add(expression());
+            }
+            expect(Token.RSQUARE);
+            return list;
+        }
+    }
+
+    /**
+     * Parses:
+     * functionName ( [expression, *] )
+     */
+    private Call functionCall() {
+        final int start = position;
+        final Call call = new Call(identifier());
+        setPosition(call, start);
+        expect(Token.LPAR);
+        if (token() != Token.RPAR) {
+            do {
+                call.addArgument(expression());
+            } while (accept(Token.COMMA));
+        }
+        expect(Token.RPAR);
+        return call;
+    }
+
+    private TypeRef typeRef() {
+        final int start = position;
+        final TypeRef type = new TypeRef(identifier());
+        setPosition(type, start);
+        return type;
+    }
+
+    private String identifier() {
+        if (token() != Token.IDENTIFIER) throw error("Expected an identifier");
+        return scanner.text(position++);
+    }
+
+    private Token token() {
+        return scanner.token(position);
+    }
+
+    /**
+     * @return the token the specified number of tokens ahead, or END if past the end.
+     */
+    private Token token(int lookahead) {
+        final int i = position + lookahead;
+        return i < scanner.size() ? scanner.token(i) : Token.END;
+    }
+
+    /**
+     * Skips the current token if it is of the specified type.
+     * @return true if it was.
+     */
+    private boolean accept(Token token) {
+        if (token() != token) return false;
+        position++;
+        return true;
+    }
+
+    private void expect(Token token) {
+        if (!accept(token)) throw error("Expected '" + token.getText() + "'");
+    }
+
+    private <T extends Node> T setPosition(T node, int token) {
+        node.setPosition(scanner.line(token), scanner.column(token));
+        return node;
+    }
+
+    private IllegalStateException error(String expected) {
+        return new IllegalStateException(expected + ", but found " + scanner.describe(position) +
+                                         " at line " + scanner.line(position) + ", column " + scanner.column(position));
+    }
+}
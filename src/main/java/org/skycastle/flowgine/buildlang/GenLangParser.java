@@ -6,11 +6,16 @@ import org.parboiled.annotations.DontLabel;
 import org.parboiled.annotations.MemoMismatches;
 import org.parboiled.annotations.SuppressNode;
 import org.parboiled.annotations.SuppressSubnodes;
+import org.parboiled.support.Position;
 import org.parboiled.support.Var;
 import org.skycastle.flowgine.buildlang.ast.*;
 
 /**
  * Parses geometry definition language.
+ * <p/>
+ * GenLangDescentParser parses the same language into the same syntax trees without parboiled, and is the one used
+ * for loading shapes.  This grammar is the reference for it.  Nodes get the position of their first token, except
+ * binary operations, which get the position of their operator.
  */
 // The language is more or less procedural functional based language, with support for passing functions as arguments
 // It also support numerical expressions and boolean expressions (using and, or, not keywords)
@@ -34,18 +39,26 @@ public class GenLangParser extends BaseParser<Node> {
     public Rule program() {
         return Sequence(
                 // TODO: Imports
+                whiteSpace(),
                 push(new Prog()),
                 ZeroOrMore(
-                        varDef(),
-                        Optional(SEMI),
-                        ((Prog)peek(1)).addVar((Var) pop())
+                        FirstOf(
+                                Sequence(
+                                        varDef(),
+                                        setPosition(peek()),
+                                        Optional(SEMI),
+                                        ((Prog)peek(1)).addVar((VarDef) pop())
+                                ),
+                                Sequence(
+                                        functionDef(),
+                                        setPosition(peek()),
+                                        Optional(SEMI),
+                                        ((Prog)peek(1)).addFun((Fun) pop())
+                                )
+                        )
                 ),
-                ZeroOrMore(
-                        functionDef(),
-                        Optional(SEMI),
-                        ((Prog)peek(1)).addFun((Fun) pop())
-                )
-                // TODO: Should we have a main body?
+                // The generate function is the main body
+                EOI
         );
     }
 
@@ -73,6 +86,7 @@ public class GenLangParser extends BaseParser<Node> {
                 // Name
                 identifier(),
                 ((VarDef)peek()).setName(match()),
+                whiteSpace(),
 
                 // Value
                 ASSIGN, expression(),
@@ -88,7 +102,7 @@ public class GenLangParser extends BaseParser<Node> {
         Var<String> name = new Var<String>();
         return Sequence(
                 FUN, typeRef(),
-                identifier(), name.set(match()),
+                identifier(), name.set(match()), whiteSpace(),
                 paramSequence(),
                 functionBody(),
                 push(new Fun(name.get(), (TypeRef) pop(2), ((Params) pop(1)).getParams(), (Block) pop()))
@@ -129,11 +143,13 @@ public class GenLangParser extends BaseParser<Node> {
         return Sequence(
                 typeRef(),
                 identifier(),
-                ((Params)peek()).add(new Param((TypeRef) pop(), match())),
+                ((Params)peek(1)).add(new Param((TypeRef) pop(), match())),
+                setPosition(((Params) peek()).getLast()),
+                whiteSpace(),
                 Optional(
                         ASSIGN,
                         expression(),
-                        ((Params) peek()).getLast().setDefaultValue((Expr) pop())
+                        ((Params) peek(1)).getLast().setDefaultValue((Expr) pop())
                 )
         );
     }
@@ -154,8 +170,9 @@ public class GenLangParser extends BaseParser<Node> {
 
     Rule statementBlock() {
         return Sequence(
-                push(new Block()), // Push block, each statement peeks it and adds itself
                 LCURLY,
+                push(new Block()), // Push block, each statement peeks it and adds itself
+                setPosition(peek()),
                 ZeroOrMore(
                         statement(),
                         ((Block) peek(1)).addStatement((Statement) pop())
@@ -176,6 +193,7 @@ public class GenLangParser extends BaseParser<Node> {
                         returnStatement()
                         // TODO Add others
                 ),
+                setPosition(peek()),
                 Optional(SEMI)
         );
     }
@@ -199,7 +217,7 @@ public class GenLangParser extends BaseParser<Node> {
     Rule assignmentStatement() {
         Var<String> name = new Var<String>();
         return Sequence(
-                identifier(), name.set(match()),
+                identifier(), name.set(match()), whiteSpace(),
                 ASSIGN,
                 expression(),
                 push(new Assign(name.get(), (Expr) pop()))
@@ -220,20 +238,22 @@ public class GenLangParser extends BaseParser<Node> {
 
     /**
      * Parses:
-     * for type variableName in expr do statements
+     * [parallel] for type variableName in expr do statements
      * where expr results in a collection or range or other iterable.
      */
     Rule forStatement() {
         Var<String> name = new Var<String>();
+        Var<Boolean> parallel = new Var<Boolean>(false);
         return Sequence(
+                Optional(PARALLEL, parallel.set(true)),
                 FOR,
                 typeRef(),
-                identifier(), name.set(match()),
+                identifier(), name.set(match()), whiteSpace(),
                 IN,
                 expression(),
                 DO,
                 statements(),
-                push(new For((TypeRef) pop(2), name.get(), (Expr) pop(1), (Block) pop()))
+                push(new For((TypeRef) pop(2), name.get(), (Expr) pop(1), (Block) pop(), parallel.get()))
         );
     }
 
@@ -244,29 +264,22 @@ public class GenLangParser extends BaseParser<Node> {
     Rule whileStatement() {
         return Sequence(
                 WHILE,
-                booleanExpr(),
+                expression(),
                 DO,
                 statements(),
-                push(new While((BoolExpr) pop(1), (Block) pop()))
+                push(new While((Expr) pop(1), (Block) pop()))
         );
     }
 
     /**
      * Parses any expression returning a value.
+     * Operators in order of increasing precedence: or xor, and, not, comparisons, + -, * / %, unary -, ^
      */
     Rule expression() {
         return FirstOf(
-                booleanExpr(),
-                range(),
-                map(),
-                list(),
-                mathExpression(),
                 ifExpression(),
-                functionCall(),
-                update(),
-                apply(),
-                create(),
-                functionExpr()
+                functionExpr(),
+                orExpr()
                 // TODO: Add others
         );
     }
@@ -276,55 +289,96 @@ public class GenLangParser extends BaseParser<Node> {
      * if booleanExpression then statements [else statements ]
      */
     Rule ifExpression() {
+        Var<Integer> start = new Var<Integer>();
         return Sequence(
-                IF,
-                booleanExpr(),
+                IF, start.set(matchStart()),
+                expression(),
                 THEN,
                 statements(),
-                push(new If((BoolExpr) pop(1), (Block) pop())),
+                push(new If((Expr) pop(1), (Block) pop())),
+                setPosition(peek(), start.get()),
                 Optional(
                         ELSE,
                         statements(),
-                        ((If) peek()).setElseBlock((Block) pop())
+                        ((If) peek(1)).setElseBlock((Block) pop())
                 )
         );
     }
 
 
-    Rule booleanExpr() {
-        return orExpr();
-    }
-
     Rule orExpr() {
-        return operatorRule(andExpr(), OR);
+        return operatorRule(andExpr(), FirstOf(OR_OP, XOR_OP));
     }
 
     Rule andExpr() {
-        return operatorRule(boolAtom(), AND);
+        return operatorRule(notExpr(), AND_OP);
     }
 
-    Rule boolAtom() {
-        return null; // TODO: Support NOT, support true false constants, support comparsion ops
+    Rule notExpr() {
+        Var<Integer> start = new Var<Integer>();
+        return FirstOf(
+                Sequence(
+                        NOT, start.set(matchStart()),
+                        notExpr(),
+                        push(new UnaryOp("not", (Expr) pop())),
+                        setPosition(peek(), start.get())
+                ),
+                comparison()
+        );
+    }
+
+    Rule comparison() {
+        return operatorRule(mathExpression(), FirstOf(EQUAL_OP, NOT_EQUAL_OP, GE_OP, GT_OP, LE_OP, LT_OP));
     }
 
     Rule typeRef() {
         // TODO: Add support for list and map types?
         return Sequence(
                 identifier(),
-                push(new TypeRef(match()))
+                push(new TypeRef(match())),
+                setPosition(peek()),
+                whiteSpace()
         );
     }
 
     Rule mathExpression() {
-        return operatorRule(term(), FirstOf(PLUS, MINUS));
+        return operatorRule(term(), FirstOf(PLUS_OP, MINUS_OP));
     }
 
     Rule term() {
-        return operatorRule(factor(), FirstOf(MUL, DIV));
+        return operatorRule(unary(), FirstOf(MUL_OP, DIV_OP, PERCENT_OP));
+    }
+
+    Rule unary() {
+        Var<Integer> start = new Var<Integer>();
+        return FirstOf(
+                Sequence(
+                        MINUS, start.set(matchStart()),
+                        unary(),
+                        push(new UnaryOp("-", (Expr) pop())),
+                        setPosition(peek(), start.get())
+                ),
+                factor()
+        );
     }
 
+    /**
+     * Parses:
+     * atom [^ unary]
+     * The power operator is right associative, and binds tighter than a unary minus to its left.
+     */
     Rule factor() {
-        return operatorRule(atom(), POWER);
+        Var<String> op = new Var<String>();
+        Var<Integer> start = new Var<Integer>();
+        return Sequence(
+                atom(),
+                Optional(
+                        POWER_OP, op.set(match()), start.set(matchStart()), whiteSpace(),
+                        unary(),
+                        push(new OperationNode((Expr) pop(1), op.get(), (Expr) pop())),
+                        setPosition(peek(), start.get())
+                )
+        );
     }
 
 
@@ -336,6 +390,7 @@ public class GenLangParser extends BaseParser<Node> {
         return Sequence(
                 LSQUARE,
                 push(new ListExpr()),
+                setPosition(peek()),
                 Optional(
                   expression(),
                   ((ListExpr)peek(1)).add((Expr) pop()),
@@ -358,13 +413,15 @@ public class GenLangParser extends BaseParser<Node> {
         return FirstOf(
                 Sequence(
                         LSQUARE,
+                        push(new MapExpr()),
+                        setPosition(peek()),
                         COLON,
-                        RSQUARE,
-                        push(new MapExpr())
+                        RSQUARE
                 ),
                 Sequence(
                         LSQUARE,
                         push(new MapExpr()),
+                        setPosition(peek()),
                         Optional(
                                 mapEntry(),
                                 ZeroOrMore(
@@ -394,8 +451,9 @@ public class GenLangParser extends BaseParser<Node> {
      */
     public Rule range() {
         Var<Boolean> inclusive = new Var<Boolean>();
+        Var<Integer> start = new Var<Integer>();
         return Sequence(
-                LSQUARE,
+                LSQUARE, start.set(matchStart()),
                 expression(),
                 FirstOf(
                         Sequence(
@@ -409,6 +467,7 @@ public class GenLangParser extends BaseParser<Node> {
                 ),
                 expression(),
                 push(new RangeExpr((Expr) pop(1), (Expr) pop(), inclusive.get())),
+                setPosition(peek(), start.get()),
                 Optional(
                   STEP,
                   expression(),
@@ -420,39 +479,27 @@ public class GenLangParser extends BaseParser<Node> {
 
     /**
      * Parses:
-     * [objectExpression . ] functionName ( [expression, *] [argumentName = expression, *] ) [lambdaExpr]
+     * functionName ( [expression, *] )
      */
+    // TODO: Method calls on objects, named arguments, apply, update and create.
     Rule functionCall() {
-        return null; // TODO: also extract argument list
-    }
-
-    /**
-     * Used for calling a default getter type value for an object.
-     * Translates to a method call object.apply(param)
-     * Parses:
-     * objectExpression ( expression )
-     */
-    Rule apply() {
-        return null; // TODO
-    }
-
-    /**
-     * Used for calling a default setter type value for an object.
-     * Translates to a method call object.update(param, value)
-     * Parses:
-     * objectExpression ( expression ) = expression
-     */
-    Rule update() {
-        return null; // TODO
-    }
-
-    /**
-     * Creates a new object.  In effect a function call to a constructor.
-     * Parses:
-     * new type ( argumentList )
-     */
-    Rule create() {
-        return null; // TODO
+        return Sequence(
+                identifier(),
+                push(new Call(match())),
+                setPosition(peek()),
+                whiteSpace(),
+                LPAR,
+                Optional(
+                        expression(),
+                        ((Call) peek(1)).addArgument((Expr) pop()),
+                        ZeroOrMore(
+                                COMMA,
+                                expression(),
+                                ((Call) peek(1)).addArgument((Expr) pop())
+                        )
+                ),
+                RPAR
+        );
     }
 
     /**
@@ -461,18 +508,37 @@ public class GenLangParser extends BaseParser<Node> {
      * fun resultType ( paramList ) [= expression | statementBlock ]
      */
     Rule functionExpr() {
+        Var<Integer> start = new Var<Integer>();
         return Sequence(
-                FUN, typeRef(),
+                FUN, start.set(matchStart()),
+                typeRef(),
                 paramSequence(),
                 functionBody(),
-                push(new FunExpr((TypeRef) pop(2), ((Params) pop(1)).getParams(), (Block) pop()))
+                push(new FunExpr((TypeRef) pop(2), ((Params) pop(1)).getParams(), (Block) pop())),
+                setPosition(peek(), start.get())
         );
     }
 
 
 
     Rule atom() {
-        return FirstOf(number(), parens());
+        return FirstOf(number(), bool(), range(), map(), list(), functionCall(), varRef(), parens());
+    }
+
+    Rule bool() {
+        return FirstOf(
+                Sequence(TRUE, push(new BoolExpr(true)), setPosition(peek())),
+                Sequence(FALSE, push(new BoolExpr(false)), setPosition(peek()))
+        );
+    }
+
+    Rule varRef() {
+        return Sequence(
+                identifier(),
+                push(new VarRef(match())),
+                setPosition(peek()),
+                whiteSpace()
+        );
     }
 
     Rule parens() {
@@ -482,29 +548,52 @@ public class GenLangParser extends BaseParser<Node> {
     Rule number() {
         return Sequence(
                 Sequence(
-                        Optional(Ch('-')),
                         OneOrMore(Digit()),
                         Optional(Ch('.'), OneOrMore(Digit()))
                 ),
                 // The action uses a default string in case it is run during error recovery (resynchronization)
                 push(new Num(Double.parseDouble(matchOrDefault("0")))),
+                setPosition(peek()),
                 whiteSpace()
         );
     }
 
 
+    /**
+     * Left associative binary operators.  The operator rules should not match trailing whitespace,
+     * so that the matched text is the operator.
+     */
     Rule operatorRule(Rule part, Rule operator) {
         Var<String> op = new Var<String>();
+        Var<Integer> start = new Var<Integer>();
         return Sequence(
                 part,
                 ZeroOrMore(
-                        operator, op.set(match()),
+                        operator, op.set(match()), start.set(matchStart()), whiteSpace(),
                         part,
-                        push(new OperationNode((Expr) pop(1), op.get(), (Expr) pop()))
+                        push(new OperationNode((Expr) pop(1), op.get(), (Expr) pop())),
+                        setPosition(peek(), start.get())
                 )
         );
     }
 
+    /**
+     * Sets the position of a node to the start of the input matched by the rule before the action.
+     * @return we need to return something for usage in rules, so return true.
+     */
+    boolean setPosition(Node node) {
+        return setPosition(node, matchStart());
+    }
+
+    /**
+     * Sets the position of a node to an index in the input.
+     * @return we need to return something for usage in rules, so return true.
+     */
+    boolean setPosition(Node node, int index) {
+        final Position position = getContext().getInputBuffer().getPosition(index);
+        return node.setPosition(position.line, position.column);
+    }
+
     Rule Digit() {
         return CharRange('0', '9');
     }
@@ -516,7 +605,7 @@ public class GenLangParser extends BaseParser<Node> {
     @SuppressSubnodes
     @MemoMismatches
     Rule identifier() {
-        return Sequence(TestNot(keyword()), letter(), ZeroOrMore(letterOrDigit()), whiteSpace());
+        return Sequence(TestNot(keyword()), letter(), ZeroOrMore(letterOrDigit()));
     }
 
     Rule letter() {
@@ -535,8 +624,8 @@ public class GenLangParser extends BaseParser<Node> {
                         "const", "fun",
                         "new", "return", "this",
                         "if", "then", "else",
-                        "for", "in", "while", "do",
-                        "step",
+                        "for", "parallel", "in", "while", "do",
+                        "step", "true", "false",
                         "or", "and", "not", "xor", "nor", "nand"),
                 TestNot(letterOrDigit())
         );
@@ -552,6 +641,7 @@ public class GenLangParser extends BaseParser<Node> {
     final Rule IF = keyword("if");
     final Rule ELSE = keyword("else");
     final Rule FOR = keyword("for");
+    final Rule PARALLEL = keyword("parallel");
     final Rule IN = keyword("in");
     final Rule WHILE = keyword("while");
     final Rule DO = keyword("do");
@@ -562,6 +652,8 @@ public class GenLangParser extends BaseParser<Node> {
     final Rule XOR = keyword("xor");
     final Rule NOR = keyword("nor");
     final Rule NAND = keyword("nand");
+    final Rule TRUE = keyword("true");
+    final Rule FALSE = keyword("false");
 
     @SuppressNode
     @DontLabel
@@ -596,6 +688,22 @@ public class GenLangParser extends BaseParser<Node> {
     final Rule LSQUARE = Terminal("[");
     final Rule RSQUARE = Terminal("]");
 
+    final Rule OR_OP = Operator("or", letterOrDigit());
+    final Rule XOR_OP = Operator("xor", letterOrDigit());
+    final Rule AND_OP = Operator("and", letterOrDigit());
+    final Rule EQUAL_OP = Operator("==", Ch('='));
+    final Rule NOT_EQUAL_OP = Operator("!=", Ch('='));
+    final Rule GT_OP = Operator(">", Ch('='));
+    final Rule GE_OP = Operator(">=", Ch('='));
+    final Rule LT_OP = Operator("<", Ch('='));
+    final Rule LE_OP = Operator("<=", Ch('='));
+    final Rule PLUS_OP = Operator("+", AnyOf("=+"));
+    final Rule MINUS_OP = Operator("-", AnyOf("=-"));
+    final Rule MUL_OP = Operator("*", AnyOf("=*"));
+    final Rule DIV_OP = Operator("/", AnyOf("=/*"));
+    final Rule PERCENT_OP = Operator("%", Ch('='));
+    final Rule POWER_OP = Operator("^", Ch('='));
+
     @SuppressNode
     Rule whiteSpace() {
         return ZeroOrMore(FirstOf(
@@ -644,6 +752,15 @@ public class GenLangParser extends BaseParser<Node> {
         return Sequence(string, TestNot(mustNotFollow), whiteSpace()).label('\'' + string + '\'');
     }
 
+    /**
+     * Like a terminal, but without the trailing whitespace, so that match() returns the operator.
+     */
+    @SuppressNode
+    @DontLabel
+    Rule Operator(String string, Rule mustNotFollow) {
+        return Sequence(string, TestNot(mustNotFollow)).label('\'' + string + '\'');
+    }
+
 
 
 }
@@ -0,0 +1,331 @@
+package org.skycastle.flowgine.buildlang;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Splits geometry definition language source into tokens, skipping whitespace and comments.
+ * <p/>
+ * The whole source is scanned when the scanner is created, into parallel arrays of token types and positions,
+ * so that the parser can look ahead any number of tokens.  Operators are rejected if they are directly followed
+ * by a character that the parboiled grammar does not allow after them, e.g. += or ===.
+ */
+final class GenLangScanner {
+
+    /**
+     * Token types.
+     */
+    enum Token {
+        IDENTIFIER("identifier"),
+        NUMBER("number"),
+
+        IMPORT("import"),
+        CONST("const"),
+        FUN("fun"),
+        NEW("new"),
+        RETURN("return"),
+        THIS("this"),
+        IF("if"),
+        THEN("then"),
+        ELSE("else"),
+        FOR("for"),
+        PARALLEL("parallel"),
+        IN("in"),
+        WHILE("while"),
+        DO("do"),
+        STEP("step"),
+        TRUE("true"),
+        FALSE("false"),
+        OR("or"),
+        AND("and"),
+        NOT("not"),
+        XOR("xor"),
+        NOR("nor"),
+        NAND("nand"),
+
+        DOT("."),
+        DOTDOT(".."),
+        DOTDOTDOT("..."),
+        COMMA(","),
+        COLON(":"),
+        SEMI(";"),
+        ASSIGN("="),
+        EQUAL("=="),
+        NOT_EQUAL("!="),
+        GT(">"),
+        GE(">="),
+        LT("<"),
+        LE("<="),
+        PLUS("+"),
+        MINUS("-"),
+        MUL("*"),
+        DIV("/"),
+        PERCENT("%"),
+        POWER("^"),
+        LPAR("("),
+        RPAR(")"),
+        LCURLY("{"),
+        RCURLY("}"),
+        LSQUARE("["),
+        RSQUARE("]"),
+
+        END("end of input");
+
+        private final String text;
+
+        Token(String text) {
+            this.text = text;
+        }
+
+        /**
+         * @return the text of the token, or a description for identifiers, numbers and the end of input.
+         */
+        String getText() {
+            return text;
+        }
+    }
+
+    private static final Map<String, Token> KEYWORDS = new HashMap<String, Token>();
+    static {
+        for (Token token : Token.values()) {
+            if (token.compareTo(Token.IMPORT) >= 0 && token.compareTo(Token.NAND) <= 0) KEYWORDS.put(token.getText(), token);
+        }
+    }
+
+    private final String source;
+
+    private Token[] tokens = new Token[64];
+    private int[] lines = new int[64];
+    private int[] columns = new int[64];
+    private String[] texts = new String[64];
+    private double[] numbers = new double[64];
+    private int count;
+
+    private int index;
+    private int line = 1;
+    private int lineStart;
+
+    /**
+     * Scans the source.
+     * @throws IllegalStateException if the source contains characters or operators that are not part of the language.
+     */
+    GenLangScanner(String source) {
+        this.source = source;
+
+        final int length = source.length();
+        while (true) {
+            skipWhiteSpace();
+            if (index >= length) break;
+
+            final int start = index;
+            final char c = source.charAt(index);
+            if (isLetter(c)) {
+                index++;
+                while (index < length && isLetterOrDigit(source.charAt(index))) index++;
+                final String word = source.substring(start, index);
+                final Token keyword = KEYWORDS.get(word);
+                if (keyword != null) add(keyword, start, null, 0);
+                else add(Token.IDENTIFIER, start, word, 0);
+            }
+            else if (isDigit(c)) {
+                index++;
+                while (index < length && isDigit(source.charAt(index))) index++;
+                if (index + 1 < length && source.charAt(index) == '.' && isDigit(source.charAt(index + 1))) {
+                    index += 2;
+                    while (index < length && isDigit(source.charAt(index))) index++;
+                }
+                add(Token.NUMBER, start, null, Double.parseDouble(source.substring(start, index)));
+            }
+            else {
+                scanOperator(c, start);
+            }
+        }
+
+        add(Token.END, index, null, 0);
+    }
+
+    /**
+     * @return number of tokens, including the END token at the end.
+     */
+    int size() {
+        return count;
+    }
+
+    Token token(int i) {
+        return tokens[i];
+    }
+
+    /**
+     * @return source line of the start of the token, starting from 1.
+     */
+    int line(int i) {
+        return lines[i];
+    }
+
+    /**
+     * @return source column of the start of the token, starting from 1.
+     */
+    int column(int i) {
+        return columns[i];
+    }
+
+    /**
+     * @return name of an identifier token.
+     */
+    String text(int i) {
+        return texts[i];
+    }
+
+    /**
+     * @return value of a number token.
+     */
+    double number(int i) {
+        return numbers[i];
+    }
+
+    /**
+     * @return the token for error messages.
+     */
+    String describe(int i) {
+        switch (tokens[i]) {
+            case IDENTIFIER: return "'" + texts[i] + "'";
+            case NUMBER: return "number " + numbers[i];
+            case END: return tokens[i].getText();
+            default: return "'" + tokens[i].getText() + "'";
+        }
+    }
+
+    private void scanOperator(char c, int start) {
+        switch (c) {
+            case '.':
+                if (next(1) != '.') operator(Token.DOT, start, 1, ".");
+                else if (next(2) != '.') operator(Token.DOTDOT, start, 2, ".");
+                else operator(Token.DOTDOTDOT, start, 3, ".");
+                break;
+            case ',': operator(Token.COMMA, start, 1, ""); break;
+            case ':': operator(Token.COLON, start, 1, ""); break;
+            case ';': operator(Token.SEMI, start, 1, ""); break;
+            case '=':
+                if (next(1) == '=') operator(Token.EQUAL, start, 2, "=");
+                else operator(Token.ASSIGN, start, 1, "=");
+                break;
+            case '!':
+                if (next(1) == '=') operator(Token.NOT_EQUAL, start, 2, "=");
+                else throw error("Unexpected '!'", start);
+                break;
+            case '>':
+                if (next(1) == '=') operator(Token.GE, start, 2, "=");
+                else operator(Token.GT, start, 1, "=");
+                break;
+            case '<':
+                if (next(1) == '=') operator(Token.LE, start, 2, "=");
+                else operator(Token.LT, start, 1, "=");
+                break;
+            case '+': operator(Token.PLUS, start, 1, "=+"); break;
+            case '-': operator(Token.MINUS, start, 1, "=-"); break;
+            case '*': operator(Token.MUL, start, 1, "=*"); break;
+            case '/': operator(Token.DIV, start, 1, "=/*"); break;
+            case '%': operator(Token.PERCENT, start, 1, "="); break;
+            case '^': operator(Token.POWER, start, 1, "="); break;
+            case '(': operator(Token.LPAR, start, 1, ""); break;
+            case ')': operator(Token.RPAR, start, 1, ""); break;
+            case '{': operator(Token.LCURLY, start, 1, ""); break;
+            case '}': operator(Token.RCURLY, start, 1, ""); break;
+            case '[': operator(Token.LSQUARE, start, 1, ""); break;
+            case ']': operator(Token.RSQUARE, start, 1, ""); break;
+            default:
+                throw error("Unexpected character '" + c + "'", start);
+        }
+    }
+
+    /**
+     * Adds an operator token of the specified length, if it is not followed by any of the characters in mustNotFollow.
+     */
+    private void operator(Token token, int start, int length, String mustNotFollow) {
+        index = start + length;
+        if (index < source.length() && mustNotFollow.indexOf(source.charAt(index)) >= 0) {
+            throw error("Unexpected '" + source.substring(start, index + 1) + "'", start);
+        }
+        add(token, start, null, 0);
+    }
+
+    private char next(int offset) {
+        final int i = index + offset;
+        return i < source.length() ? source.charAt(i) : 0;
+    }
+
+    private void skipWhiteSpace() {
+        final int length = source.length();
+        while (index < length) {
+            final char c = source.charAt(index);
+            if (c == '\n') {
+                index++;
+                newLine();
+            }
+            else if (c == ' ' || c == '\t' || c == '\r' || c == '\f') {
+                index++;
+            }
+            else if (c == '/' && next(1) == '/') {
+                while (index < length && source.charAt(index) != '\n') index++;
+            }
+            else if (c == '/' && next(1) == '*') {
+                final int end = source.indexOf("*/", index + 2);
+                if (end < 0) throw error("Unterminated comment", index);
+                for (int i = index + 2; i < end; i++) {
+                    if (source.charAt(i) == '\n') {
+                        index = i + 1;
+                        newLine();
+                    }
+                }
+                index = end + 2;
+            }
+            else {
+                return;
+            }
+        }
+    }
+
+    private void newLine() {
+        line++;
+        lineStart = index;
+    }
+
+    private void add(Token token, int start, String text, double number) {
+        if (count == tokens.length) {
+            final int capacity = count * 2;
+            tokens = copyOf(tokens, new Token[capacity]);
+            lines = copyOf(lines, new int[capacity]);
+            columns = copyOf(columns, new int[capacity]);
+            texts = copyOf(texts, new String[capacity]);
+            numbers = copyOf(numbers, new double[capacity]);
+        }
+
+        tokens[count] = token;
+        lines[count] = line;
+        columns[count] = start - lineStart + 1;
+        texts[count] = text;
+        numbers[count] = number;
+        count++;
+    }
+
+    private <T> T copyOf(Object array, T copy) {
+        System.arraycopy(array, 0, copy, 0, count);
+        return copy;
+    }
+
+    private IllegalStateException error(String message, int position) {
+        return new IllegalStateException(message + " at line " + line + ", column " + (position - lineStart + 1));
+    }
+
+    private static boolean isLetter(char c) {
+        return (c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z') || c == '_';
+    }
+
+    private static boolean isDigit(char c) {
+        return c >= '0' && c <= '9';
+    }
+
+    private static boolean isLetterOrDigit(char c) {
+        return isLetter(c) || isDigit(c);
+    }
+}
@@ -1,10 +1,45 @@
 package org.skycastle.flowgine.buildlang;
 
 /**
- *
+ * Receives the geometry emitted by a running generator program.
+ * <p/>
+ * The geometry arrives in blocks of vertexes and indexes, so that large meshes can be written straight to where they
+ * are needed, e.g. a Shape, buffers or a file, without keeping all of it in memory first.
+ * Vertexes are numbered in the order they are emitted, starting from zero for each generated shape,
+ * and the indexes refer to these numbers, three for each triangle.  The vertexes an index refers to are always
+ * passed before the index.
+ * <p/>
+ * The arrays are reused for the following blocks, so a generator should copy the data it wants to keep.
  */
 public interface Generator {
 
+    /**
+     * Called before any geometry of a shape is emitted.
+     */
+    void begin();
 
+    /**
+     * Receives a block of vertexes.
+     *
+     * @param positions x, y and z of each vertex.
+     * @param normals x, y and z of the normal of each vertex.
+     * @param texturePositions u and v of each vertex.
+     * @param colors red, green, blue and alpha of each vertex.
+     * @param count number of vertexes in the block.
+     */
+    void addVertexes(float[] positions, float[] normals, float[] texturePositions, float[] colors, int count);
 
+    /**
+     * Receives a block of indexes.
+     *
+     * @param indexes vertex numbers, three for each triangle.
+     * @param count number of indexes in the block, a multiple of three.
+     */
+    void addIndexes(int[] indexes, int count);
+
+    /**
+     * Called after the last block of a shape.  Also called if the program fails, with the geometry emitted
+     * before the failure.
+     */
+    void end();
 }
@@ -0,0 +1,734 @@
+package org.skycastle.flowgine.buildlang;
+
+import org.skycastle.flowgine.buildlang.ast.*;
+import org.skycastle.flowgine.shape.Shape;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+
+/**
+ * Runs a resolved generator program by walking its syntax tree.
+ * <p/>
+ * Variables are read and written through the slots assigned by the Resolver, global variables in an array of globals
+ * and local variables in a frame allocated for each function call.  Local number variables are kept unboxed in the
+ * frame, and arithmetic is evaluated without boxing intermediate results, so numbers are only boxed as Doubles where
+ * they are used as values, e.g. in lists and maps, as builtin arguments, or as return values.  Lists and maps are
+ * mutable java lists and maps.
+ * <p/>
+ * Geometry is emitted with the builtin geometry functions, into a Shape or streamed to a Generator.  Loop iterations and function calls count
+ * against an ExecutionBudget, so that a program stuck in a loop is stopped, and the depth of nested calls is limited.
+ * If a MemoCache is set, calls to pure functions are memoized in it.  An interpreter is not thread safe.
+ * <p/>
+ * The iterations of parallel loops are run with workers that share the program and the global variables, each with
+ * its own frames and BuildContext, in the threads of an executor if the loop body can safely be run there.
+ * Calls are not memoized inside parallel loops.
+ */
+public final class Interpreter {
+
+    /**
+     * Name of the function called to generate the shape, after the global variables have been initialized.
+     */
+    public static final String GENERATE_FUNCTION = "generate";
+
+    private static final Object[] NO_ARGUMENTS = new Object[0];
+    private static final Double ZERO = 0.0;
+
+    private final Prog prog;
+    private final Builtins builtins;
+    private final Object[] globals;
+
+    private final BuildContext context = new BuildContext();
+    private final ExecutionLimiter limiter;
+    private ExecutorService executor = ParallelLoop.getDefaultExecutor();
+    private ExecutionBudget budget = ExecutionBudget.DEFAULT;
+    private long countdown;
+    private int maxCallDepth = ExecutionBudget.DEFAULT_MAX_CALL_DEPTH;
+    private int callDepth;
+    private MemoCache memoCache;
+    private PurityAnalysis purityAnalysis;
+    private Memoizer memoizer;
+
+    private boolean returning;
+    private Object returnValue;
+    private Object lastValue;
+
+    /**
+     * @param prog program, already resolved by a Resolver using the same builtins.
+     * @param builtins builtin functions available to the program.
+     */
+    public Interpreter(Prog prog, Builtins builtins) {
+        if (prog.getInitializerFrameSize() < 0) throw new IllegalArgumentException("The program has not been resolved");
+
+        this.prog = prog;
+        this.builtins = builtins;
+        globals = new Object[prog.getVariables().size()];
+        limiter = new ExecutionLimiter();
+    }
+
+    /**
+     * Creates a worker for the iterations of a parallel loop, which shares the globals and budget of the parent.
+     */
+    private Interpreter(Interpreter parent) {
+        prog = parent.prog;
+        builtins = parent.builtins;
+        globals = parent.globals;
+        limiter = parent.limiter;
+        maxCallDepth = parent.maxCallDepth;
+        callDepth = parent.callDepth;
+        purityAnalysis = parent.purityAnalysis;
+        executor = null;
+    }
+
+    /**
+     * @return limits on how long the program may run while generating a shape.
+     */
+    public ExecutionBudget getBudget() {
+        return budget;
+    }
+
+    public void setBudget(ExecutionBudget budget) {
+        if (budget == null) throw new IllegalArgumentException("budget should not be null");
+        this.budget = budget;
+        maxCallDepth = budget.getMaxCallDepth();
+    }
+
+    /**
+     * @return cache that calls to pure functions are memoized in, or null if they are not memoized.
+     */
+    public MemoCache getMemoCache() {
+        return memoCache;
+    }
+
+    /**
+     * @param memoCache cache to memoize calls to pure functions in, or null to not memoize them.
+     *                  May be shared with other programs.
+     */
+    public void setMemoCache(MemoCache memoCache) {
+        this.memoCache = memoCache;
+        if (memoCache == null) {
+            memoizer = null;
+        }
+        else {
+            if (purityAnalysis == null) purityAnalysis = new PurityAnalysis(prog, builtins);
+            memoizer = new Memoizer(memoCache, purityAnalysis);
+        }
+    }
+
+    /**
+     * @return executor that the iterations of parallel loops are run in, or null if they are run in the calling thread.
+     */
+    public ExecutorService getExecutor() {
+        return executor;
+    }
+
+    public void setExecutor(ExecutorService executor) {
+        this.executor = executor;
+    }
+
+    /**
+     * Initializes the global variables of the program and calls its generate function, if it has one.
+     *
+     * @param parameters values for global variables, used instead of the initializers of the variables with the same names.
+     * @param out shape to add the generated geometry to, or null to create a new shape.
+     * @return the shape with the generated geometry.
+     * @throws BudgetExceededException if the program exceeds its budget.
+     */
+    public Shape generate(Map<String, Object> parameters, Shape out) {
+        final ShapeGenerator generator = new ShapeGenerator(out);
+        generateTo(parameters, generator);
+        return generator.getShape();
+    }
+
+    /**
+     * Initializes the global variables of the program and calls its generate function, if it has one,
+     * passing the generated geometry to a generator as it is emitted.
+     *
+     * @param parameters values for global variables, used instead of the initializers of the variables with the same names.
+     * @param generator generator to pass the generated geometry to.
+     * @throws BudgetExceededException if the program exceeds its budget.
+     */
+    public void generateTo(Map<String, Object> parameters, Generator generator) {
+        countdown = limiter.start(budget);
+        context.begin(generator);
+        try {
+            initialize(parameters);
+            if (prog.getFunction(GENERATE_FUNCTION) != null) call(GENERATE_FUNCTION);
+        }
+        finally {
+            context.end();
+        }
+    }
+
+    /**
+     * Initializes the global variables of the program.
+     *
+     * @param parameters values for global variables, used instead of the initializers of the variables with the same names.
+     */
+    public void initialize(Map<String, Object> parameters) {
+        final Frame frame = new Frame(prog.getInitializerFrameSize());
+        for (VarDef var : prog.getVariables()) {
+            final Object parameter = parameters.get(var.getName());
+            if (parameter != null) globals[var.getSlot()] = toValue(parameter);
+            else globals[var.getSlot()] = evaluate(var.getExpr(), frame);
+        }
+    }
+
+    /**
+     * Calls a top level function of the program.  The global variables should have been initialized first.
+     * The budget is only counted from the start of the latest generate call.
+     *
+     * @return the value returned by the function, or the default value of its return type if it ended without returning.
+     */
+    public Object call(String functionName, Object... arguments) {
+        final Fun function = prog.getFunction(functionName);
+        if (function == null) throw new IllegalArgumentException("The program has no function '" + functionName + "'");
+
+        final Object[] values = new Object[arguments.length];
+        for (int i = 0; i < arguments.length; i++) {
+            values[i] = toValue(arguments[i]);
+        }
+        return invoke(function.getFunction(), functionName, values);
+    }
+
+    private Object invoke(FunExpr function, String name, Object[] arguments) {
+        final List<Param> parameters = function.getParameters();
+        if (arguments.length > parameters.size()) {
+            throw new IllegalStateException("Function '" + name + "' takes " + parameters.size() + " arguments, but was called with " + arguments.length);
+        }
+
+        final Frame frame = new Frame(function.getFrameSize());
+        for (int i = 0; i < arguments.length; i++) {
+            frame.set(i, parameters.get(i).getTypeRef().isNumber(), arguments[i]);
+        }
+        return run(function, name, frame, arguments.length);
+    }
+
+    /**
+     * Calls a named function, evaluating the arguments straight into the frame of the call.
+     */
+    private Object invoke(Call call, Frame callerFrame) {
+        final FunExpr function = call.getFunction().getFunction();
+        final List<Param> parameters = function.getParameters();
+        final List<Expr> argumentExprs = call.getArguments();
+
+        final Frame frame = new Frame(function.getFrameSize());
+        for (int i = 0; i < argumentExprs.size(); i++) {
+            setLocal(frame, i, parameters.get(i).getTypeRef().isNumber(), argumentExprs.get(i), callerFrame);
+        }
+
+        enter(call);
+        try {
+            return run(function, call.getName(), frame, argumentExprs.size());
+        }
+        finally {
+            callDepth--;
+        }
+    }
+
+    /**
+     * Evaluates the default values of the parameters without arguments, and runs the function,
+     * or replays a memoized call of it.
+     */
+    private Object run(FunExpr function, String name, Frame frame, int argumentCount) {
+        final List<Param> parameters = function.getParameters();
+        for (int i = argumentCount; i < parameters.size(); i++) {
+            final Param parameter = parameters.get(i);
+            if (parameter.getDefaultValue() == null) throw new IllegalStateException("No value given for parameter '" + parameter.getName() + "' of function '" + name + "'");
+            setLocal(frame, i, parameter.getTypeRef().isNumber(), parameter.getDefaultValue(), frame);
+        }
+
+        final int memoIndex = memoizer != null ? purityAnalysis.getMemoIndex(function) : -1;
+        if (memoIndex >= 0) {
+            final Object[] argumentValues = new Object[parameters.size()];
+            for (int i = 0; i < argumentValues.length; i++) {
+                argumentValues[i] = frame.get(i, parameters.get(i).getTypeRef().isNumber());
+            }
+            final MemoCache.Call call = memoizer.start(memoIndex, argumentValues, context);
+            if (call != null) {
+                if (memoizer.replay(memoIndex, call, context)) return call.getResult();
+                return memoizer.finish(call, context, executeFunction(function, frame));
+            }
+        }
+
+        return executeFunction(function, frame);
+    }
+
+    /**
+     * Runs the code of a function with its parameters in the frame.
+     * @return the returned value, or the default value of the return type if the function ended without returning.
+     */
+    private Object executeFunction(FunExpr function, Frame frame) {
+        executeBlock(function.getCode(), frame);
+
+        // Functions that end without a return statement return the default value of their type, as compiled ones do
+        if (!returning) return defaultValue(function.getTypeRef());
+
+        final Object result = returnValue;
+        returning = false;
+        returnValue = null;
+        return result;
+    }
+
+    /**
+     * @return 0 for numbers, false for booleans, and null for other types.
+     */
+    private static Object defaultValue(TypeRef type) {
+        if (type.isNumber()) return ZERO;
+        else if (type.isBoolean()) return Boolean.FALSE;
+        else return null;
+    }
+
+    private void executeBlock(Block block, Frame frame) {
+        final List<Statement> statements = block.getStatements();
+        for (int i = 0; i < statements.size(); i++) {
+            execute(statements.get(i), frame);
+            if (returning) return;
+        }
+    }
+
+    private void execute(Statement statement, Frame frame) {
+        if (statement instanceof ExprStatement) {
+            lastValue = evaluate(((ExprStatement) statement).getExpr(), frame);
+            return;
+        }
+
+        if (statement instanceof Assign) {
+            final Assign assign = (Assign) statement;
+            if (assign.isGlobal()) globals[assign.getSlot()] = evaluate(assign.getExpression(), frame);
+            else setLocal(frame, assign.getSlot(), assign.isNumber(), assign.getExpression(), frame);
+        }
+        else if (statement instanceof VarDef) {
+            final VarDef var = (VarDef) statement;
+            setLocal(frame, var.getSlot(), var.getType().isNumber(), var.getExpr(), frame);
+        }
+        else if (statement instanceof For) {
+            executeFor((For) statement, frame);
+        }
+        else if (statement instanceof While) {
+            final While whileStatement = (While) statement;
+            while (condition(whileStatement.getCondition(), frame)) {
+                executeBlock(whileStatement.getBlock(), frame);
+                if (returning) return;
+                count(whileStatement);
+            }
+        }
+        else if (statement instanceof Return) {
+            returnValue = evaluate(((Return) statement).getExpr(), frame);
+            returning = true;
+        }
+        else if (statement instanceof Fun) {
+            // Named functions are resolved statically
+        }
+        else {
+            throw new IllegalStateException("Unsupported statement " + statement);
+        }
+
+        // Only expression statements give a value to a block
+        lastValue = null;
+    }
+
+    /**
+     * Evaluates an expression in a frame into a local variable of the target frame, without boxing numbers
+     * assigned to number variables.
+     */
+    private void setLocal(Frame target, int slot, boolean number, Expr expr, Frame frame) {
+        if (number && isUnboxed(expr, frame)) target.setNumber(slot, evaluateNumber(expr, frame, "="));
+        else target.set(slot, number, evaluate(expr, frame));
+    }
+
+    private void executeFor(final For forStatement, final Frame frame) {
+        final Expr rangeExpr = forStatement.getRange();
+        final int slot = forStatement.getSlot();
+        final boolean number = forStatement.getTypeRef().isNumber();
+        final Block block = forStatement.getBlock();
+
+        if (forStatement.isParallel()) {
+            final Object[] values = ParallelLoop.iterationValues(evaluate(rangeExpr, frame));
+            ParallelLoop.run(canRunInParallel(forStatement, frame, values) ? executor : null, context, values, new ParallelLoop.WorkerFactory() {
+                public ParallelLoop.Worker createWorker() {
+                    final Interpreter worker = new Interpreter(Interpreter.this);
+                    final Frame workerFrame = new Frame(frame);
+                    return new ParallelLoop.Worker() {
+                        public BuildContext getContext() {
+                            return worker.context;
+                        }
+
+                        public void run(Object value) {
+                            workerFrame.set(slot, number, value);
+                            worker.executeBlock(block, workerFrame);
+                            worker.count(forStatement);
+                        }
+                    };
+                }
+            });
+            return;
+        }
+
+        // The elements of list literals are iterated without creating the list
+        if (rangeExpr instanceof ListExpr) {
+            final List<Expr> elements = ((ListExpr) rangeExpr).getElements();
+            if (number) {
+                // Elements that are not numbers are kept boxed in others
+                final double[] numbers = new double[elements.size()];
+                Object[] others = null;
+                for (int i = 0; i < numbers.length; i++) {
+                    final Expr element = elements.get(i);
+                    if (isUnboxed(element, frame)) {
+                        numbers[i] = evaluateNumber(element, frame, "=");
+                    }
+                    else {
+                        final Object value = evaluate(element, frame);
+                        if (value instanceof Double) {
+                            numbers[i] = (Double) value;
+                        }
+                        else {
+                            if (others == null) others = new Object[numbers.length];
+                            others[i] = value == null ? Frame.NULL : value;
+                        }
+                    }
+                }
+                for (int i = 0; i < numbers.length; i++) {
+                    if (others != null && others[i] != null) frame.values[slot] = others[i];
+                    else frame.setNumber(slot, numbers[i]);
+                    executeBlock(block, frame);
+                    if (returning) return;
+                    count(forStatement);
+                }
+            }
+            else {
+                final Object[] values = new Object[elements.size()];
+                for (int i = 0; i < values.length; i++) {
+                    values[i] = evaluate(elements.get(i), frame);
+                }
+                for (Object value : values) {
+                    frame.values[slot] = value;
+                    executeBlock(block, frame);
+                    if (returning) return;
+                    count(forStatement);
+                }
+            }
+            return;
+        }
+
+        final Object iterable = evaluate(rangeExpr, frame);
+        if (iterable instanceof Range) {
+            final Range range = (Range) iterable;
+            final int size = range.size();
+            for (int i = 0; i < size; i++) {
+                if (number) frame.setNumber(slot, range.get(i));
+                else frame.values[slot] = range.get(i);
+                executeBlock(block, frame);
+                if (returning) return;
+                count(forStatement);
+            }
+        }
+        else if (iterable instanceof List) {
+            // Index based, so that the body may add elements to the list
+            final List<?> list = (List<?>) iterable;
+            for (int i = 0; i < list.size(); i++) {
+                frame.set(slot, number, list.get(i));
+                executeBlock(block, frame);
+                if (returning) return;
+                count(forStatement);
+            }
+        }
+        else if (iterable instanceof Map) {
+            for (Object key : new ArrayList<Object>(((Map<?, ?>) iterable).keySet())) {
+                frame.set(slot, number, key);
+                executeBlock(block, frame);
+                if (returning) return;
+                count(forStatement);
+            }
+        }
+        else {
+            throw new IllegalStateException("Can not iterate over " + iterable);
+        }
+    }
+
+    /**
+     * @return true if the iterations of the parallel loop can be run in other threads.
+     */
+    private boolean canRunInParallel(For forStatement, Frame frame, Object[] values) {
+        if (executor == null) return false;
+        if (purityAnalysis == null) purityAnalysis = new PurityAnalysis(prog, builtins);
+        if (!purityAnalysis.isThreadSafe(forStatement) || !ParallelLoop.isShareable(values)) return false;
+
+        for (int slot : purityAnalysis.getCapturedSlots(forStatement)) {
+            if (!ParallelLoop.isShareable(frame.values[slot])) return false;
+        }
+        for (int slot : purityAnalysis.getGlobalSlots(forStatement)) {
+            if (!ParallelLoop.isShareable(globals[slot])) return false;
+        }
+        return true;
+    }
+
+    private Object evaluate(Expr expr, Frame frame) {
+        if (expr instanceof Num) {
+            return ((Num) expr).getValue();
+        }
+        else if (expr instanceof VarRef) {
+            final VarRef varRef = (VarRef) expr;
+            if (varRef.getFunction() != null) return varRef.getFunction().getFunction();
+
+            final Object value = varRef.isGlobal() ? globals[varRef.getSlot()] : frame.get(varRef.getSlot(), varRef.isNumber());
+            if (value == null) throw new IllegalStateException("Variable '" + varRef.getName() + "' has no value");
+            return value;
+        }
+        else if (expr instanceof OperationNode) {
+            return evaluateOperation((OperationNode) expr, frame);
+        }
+        else if (expr instanceof Call) {
+            return evaluateCall((Call) expr, frame);
+        }
+        else if (expr instanceof UnaryOp) {
+            final UnaryOp unaryOp = (UnaryOp) expr;
+            if (unaryOp.getOperator().equals("-")) return -evaluateNumber(unaryOp.getOperand(), frame, "-");
+            else return !condition(unaryOp.getOperand(), frame);
+        }
+        else if (expr instanceof BoolExpr) {
+            return ((BoolExpr) expr).getValue();
+        }
+        else if (expr instanceof If) {
+            final If ifExpr = (If) expr;
+            lastValue = null;
+            if (condition(ifExpr.getCondition(), frame)) executeBlock(ifExpr.getThenBlock(), frame);
+            else if (ifExpr.getElseBlock() != null) executeBlock(ifExpr.getElseBlock(), frame);
+            return lastValue;
+        }
+        else if (expr instanceof RangeExpr) {
+            final RangeExpr range = (RangeExpr) expr;
+            final double step = range.getStep() == null ? 1 : evaluateNumber(range.getStep(), frame, "step");
+            return new Range(evaluateNumber(range.getStart(), frame, "range"),
+                             evaluateNumber(range.getEnd(), frame, "range"),
+                             step,
+                             range.isInclusive());
+        }
+        else if (expr instanceof ListExpr) {
+            final List<Expr> elements = ((ListExpr) expr).getElements();
+            final List<Object> list = new ArrayList<Object>(elements.size());
+            for (int i = 0; i < elements.size(); i++) {
+                list.add(evaluate(elements.get(i), frame));
+            }
+            return list;
+        }
+        else if (expr instanceof MapExpr) {
+            final Map<Object, Object> map = new LinkedHashMap<Object, Object>();
+            for (MapExpr.MapExprEntry entry : ((MapExpr) expr).getEntries()) {
+                map.put(evaluate(entry.getKey(), frame), evaluate(entry.getValue(), frame));
+            }
+            return map;
+        }
+        else if (expr instanceof FunExpr) {
+            return expr;
+        }
+        else {
+            throw new IllegalStateException("Unsupported expression " + expr);
+        }
+    }
+
+    /**
+     * Evaluates an expression that should give a number, without boxing the intermediate results
+     * of arithmetic on numbers.
+     *
+     * @param usage what the number is used for, for the error message if it is not a number.
+     */
+    private double evaluateNumber(Expr expr, Frame frame, String usage) {
+        if (expr instanceof Num) {
+            return ((Num) expr).getValue();
+        }
+        else if (expr instanceof VarRef && isUnboxed(expr, frame)) {
+            return frame.numbers[((VarRef) expr).getSlot()];
+        }
+        else if (expr instanceof OperationNode && isArithmetic(((OperationNode) expr).getOperator())) {
+            final OperationNode operation = (OperationNode) expr;
+            final String operator = operation.getOperator();
+            return arithmetic(operator, evaluateNumber(operation.getLeft(), frame, operator), evaluateNumber(operation.getRight(), frame, operator));
+        }
+        else if (expr instanceof UnaryOp && ((UnaryOp) expr).getOperator().equals("-")) {
+            return -evaluateNumber(((UnaryOp) expr).getOperand(), frame, "-");
+        }
+        else {
+            return number(evaluate(expr, frame), usage);
+        }
+    }
+
+    /**
+     * @return true if evaluateNumber gives the value of the expression without boxing it,
+     *         or fails as evaluate would, if it does not evaluate to a number.
+     */
+    private static boolean isUnboxed(Expr expr, Frame frame) {
+        if (expr instanceof Num) return true;
+        if (expr instanceof OperationNode) return isArithmetic(((OperationNode) expr).getOperator());
+        if (expr instanceof UnaryOp) return ((UnaryOp) expr).getOperator().equals("-");
+        if (expr instanceof VarRef) {
+            final VarRef varRef = (VarRef) expr;
+            return varRef.isNumber() && !varRef.isGlobal() && frame.values[varRef.getSlot()] == null;
+        }
+        return false;
+    }
+
+    private Object evaluateCall(Call call, Frame frame) {
+        if (call.getFunction() != null) return invoke(call, frame);
+
+        final List<Expr> argumentExprs = call.getArguments();
+        final Object[] arguments = argumentExprs.isEmpty() ? NO_ARGUMENTS : new Object[argumentExprs.size()];
+        for (int i = 0; i < arguments.length; i++) {
+            arguments[i] = evaluate(argumentExprs.get(i), frame);
+        }
+
+        if (call.getBuiltin() >= 0) {
+            return builtins.get(call.getBuiltin()).call(context, arguments);
+        }
+        else {
+            final Object function = call.isGlobal() ? globals[call.getSlot()] : frame.values[call.getSlot()];
+            if (!(function instanceof FunExpr)) throw new IllegalStateException("'" + call.getName() + "' is not a function, but " + function);
+            enter(call);
+            try {
+                return invoke((FunExpr) function, call.getName(), arguments);
+            }
+            finally {
+                callDepth--;
+            }
+        }
+    }
+
+    private Object evaluateOperation(OperationNode operation, Frame frame) {
+        final String operator = operation.getOperator();
+
+        // Logical operators short circuit
+        if (operator.equals("and")) return condition(operation.getLeft(), frame) && condition(operation.getRight(), frame);
+        if (operator.equals("or")) return condition(operation.getLeft(), frame) || condition(operation.getRight(), frame);
+
+        if (operator.equals("xor") || operator.equals("==") || operator.equals("!=")) {
+            final Object left = evaluate(operation.getLeft(), frame);
+            final Object right = evaluate(operation.getRight(), frame);
+            if (operator.equals("xor")) return bool(left, operator) ^ bool(right, operator);
+            if (operator.equals("==")) return left.equals(right);
+            return !left.equals(right);
+        }
+
+        final double a = evaluateNumber(operation.getLeft(), frame, operator);
+        final double b = evaluateNumber(operation.getRight(), frame, operator);
+        switch (operator.charAt(0)) {
+            case '<': return operator.length() == 1 ? a < b : a <= b;
+            case '>': return operator.length() == 1 ? a > b : a >= b;
+            default: return arithmetic(operator, a, b);
+        }
+    }
+
+    private static boolean isArithmetic(String operator) {
+        switch (operator.charAt(0)) {
+            case '+': case '-': case '*': case '/': case '%': case '^': return true;
+            default: return false;
+        }
+    }
+
+    private static double arithmetic(String operator, double a, double b) {
+        switch (operator.charAt(0)) {
+            case '+': return a + b;
+            case '-': return a - b;
+            case '*': return a * b;
+            case '/': return a / b;
+            case '%': return a % b;
+            case '^': return Math.pow(a, b);
+            default: throw new IllegalStateException("Unsupported operator " + operator);
+        }
+    }
+
+    /**
+     * Counts one step against the budget, at the location of the node.
+     */
+    private void count(Node node) {
+        if (--countdown < 0) countdown = limiter.checkpoint(node.getLine(), node.getColumn());
+    }
+
+    /**
+     * Counts a call as a step against the budget, and enters it.  The caller should decrement the call depth when
+     * the call returns.
+     * @throws BudgetExceededException if the call would go deeper than the maximum call depth.
+     */
+    private void enter(Call call) {
+        count(call);
+        if (++callDepth > maxCallDepth) {
+            callDepth--;
+            throw ExecutionLimiter.callDepthExceeded(maxCallDepth, call.getLine(), call.getColumn());
+        }
+    }
+
+    private boolean condition(Expr expr, Frame frame) {
+        return bool(evaluate(expr, frame), "condition");
+    }
+
+    private static boolean bool(Object value, String usage) {
+        if (!(value instanceof Boolean)) throw new IllegalStateException("Expected a boolean for " + usage + ", but got " + value);
+        return (Boolean) value;
+    }
+
+    private static double number(Object value, String usage) {
+        if (!(value instanceof Double)) throw new IllegalStateException("Expected a number for " + usage + ", but got " + value);
+        return (Double) value;
+    }
+
+    /**
+     * Converts a java value given as a parameter to a program value.
+     */
+    private static Object toValue(Object value) {
+        if (value instanceof Number && !(value instanceof Double)) return ((Number) value).doubleValue();
+        return value;
+    }
+
+    /**
+     * Parameters and local variables of a function call, or of the global variable initializers,
+     * at the slots given by the Resolver.
+     * <p/>
+     * Variables declared as numbers keep numbers unboxed in numbers, with null in values.  They may also be assigned
+     * other values, which are kept in values like the values of other variables.
+     */
+    private static final class Frame {
+
+        /**
+         * Kept in values for a number variable that has been assigned null.
+         */
+        static final Object NULL = new Object();
+
+        final Object[] values;
+        final double[] numbers;
+
+        Frame(int size) {
+            values = new Object[size];
+            numbers = new double[size];
+        }
+
+        /**
+         * Copies the variables of another frame.
+         */
+        Frame(Frame original) {
+            values = original.values.clone();
+            numbers = original.numbers.clone();
+        }
+
+        /**
+         * @return the value of a variable, boxed if it is an unboxed number.
+         */
+        Object get(int slot, boolean number) {
+            final Object value = values[slot];
+            if (number && value == null) return numbers[slot];
+            if (value == NULL) return null;
+            return value;
+        }
+
+        void set(int slot, boolean number, Object value) {
+            if (!number) values[slot] = value;
+            else if (value instanceof Double) setNumber(slot, (Double) value);
+            else values[slot] = value == null ? NULL : value;
+        }
+
+        void setNumber(int slot, double value) {
+            numbers[slot] = value;
+            values[slot] = null;
+        }
+    }
+}
@@ -0,0 +1,292 @@
+package org.skycastle.flowgine.buildlang;
+
+import org.skycastle.flowgine.geometry.Col4;
+import org.skycastle.flowgine.geometry.Vec3;
+import org.skycastle.flowgine.shape.Shape;
+
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Results of calls to pure generator functions, keyed on the code of the function and the argument values,
+ * so that calls with the same arguments are not run again, also in later shape builds.
+ * <p/>
+ * Only calls with number and boolean arguments are memoized, and only number, boolean and empty results are stored.
+ * For functions that emit geometry, the emitted geometry is stored relative to the origin at the time of the call,
+ * and later calls stamp a copy of it into the shape at the then current origin.  Such calls are also keyed on the
+ * current color and normal, and restore the color, normal and origin the function left behind.
+ * As the copies are moved to the origin, their positions can differ from generating them directly by float rounding.
+ * The geometry of a call is not stored if it refers to vertexes created before the call, or if the call returns
+ * what could be one of its vertexes, as the indexes would be wrong in the copies.
+ * <p/>
+ * The cache is bounded both by the number of calls and by the total number of stored vertexes, and drops the least
+ * recently used calls first.  A cache is not thread safe.
+ */
+public final class MemoCache {
+
+    /**
+     * Default maximum number of memoized calls.
+     */
+    public static final int DEFAULT_MAX_ENTRIES = 4096;
+
+    /**
+     * Default maximum total number of vertexes in the stored geometry.
+     */
+    public static final int DEFAULT_MAX_VERTEXES = 262144;
+
+    private final int maxEntries;
+    private final int maxVertexes;
+    private final Map<Call, Entry> entries = new LinkedHashMap<Call, Entry>(16, 0.75f, true);
+    private int vertexCount;
+    private long hits;
+    private long misses;
+
+    public MemoCache() {
+        this(DEFAULT_MAX_ENTRIES, DEFAULT_MAX_VERTEXES);
+    }
+
+    /**
+     * @param maxEntries maximum number of memoized calls.
+     * @param maxVertexes maximum total number of vertexes in the stored geometry.
+     */
+    public MemoCache(int maxEntries, int maxVertexes) {
+        if (maxEntries < 1) throw new IllegalArgumentException("maxEntries should be positive, but was " + maxEntries);
+        if (maxVertexes < 0) throw new IllegalArgumentException("maxVertexes should not be negative, but was " + maxVertexes);
+        this.maxEntries = maxEntries;
+        this.maxVertexes = maxVertexes;
+    }
+
+    /**
+     * @return number of memoized calls.
+     */
+    public int size() {
+        return entries.size();
+    }
+
+    /**
+     * @return total number of vertexes in the stored geometry.
+     */
+    public int getVertexCount() {
+        return vertexCount;
+    }
+
+    /**
+     * @return number of calls found in the cache.
+     */
+    public long getHits() {
+        return hits;
+    }
+
+    /**
+     * @return number of memoizable calls not found in the cache.
+     */
+    public long getMisses() {
+        return misses;
+    }
+
+    /**
+     * Removes all memoized calls.
+     */
+    public void clear() {
+        entries.clear();
+        vertexCount = 0;
+    }
+
+    @Override public String toString() {
+        return "MemoCache{" +
+               "size=" + entries.size() +
+               ", vertexCount=" + vertexCount +
+               ", hits=" + hits +
+               ", misses=" + misses +
+               '}';
+    }
+
+    /**
+     * Starts a call to a memoized function.
+     *
+     * @param function id of the function, the same for functions with the same code.
+     * @param purity purity of the function, PURE or GEOMETRY.
+     * @param arguments argument values, including default values.  Not copied.
+     * @return the call, or null if it can not be memoized.
+     */
+    Call start(String function, Purity purity, Object[] arguments, BuildContext context) {
+        for (Object argument : arguments) {
+            if (!isStorable(argument)) return null;
+        }
+
+        if (purity == Purity.GEOMETRY) {
+            final Col4 color = context.getColor();
+            final Vec3 normal = context.getNormal();
+            final float[] state = {color.r, color.g, color.b, color.a, normal.x, normal.y, normal.z};
+            final Call call = new Call(function, arguments, state);
+            call.recording = context.startRecording(maxVertexes);
+            call.firstVertex = context.getVertexCount();
+            call.firstIndex = context.getIndexCount();
+            call.origin = new Vec3(context.getOrigin());
+            return call;
+        }
+        else {
+            return new Call(function, arguments, null);
+        }
+    }
+
+    /**
+     * Completes a call from the cache, if it is there.  For geometry functions the stored geometry is emitted,
+     * and the color, normal and origin are updated as the function did.
+     *
+     * @return true if the call was found, and its result is available from getResult.
+     */
+    boolean replay(Call call, BuildContext context) {
+        final Entry entry = entries.get(call);
+        if (entry == null) {
+            misses++;
+            return false;
+        }
+
+        hits++;
+        if (call.state != null) context.stopRecording();
+        if (entry.geometry != null) {
+            final Vec3 origin = context.getOrigin();
+            context.addShape(entry.geometry, origin);
+            context.getColor().set(entry.state[0], entry.state[1], entry.state[2], entry.state[3]);
+            context.getNormal().set(entry.state[4], entry.state[5], entry.state[6]);
+            origin.add(entry.originMove);
+        }
+        call.result = entry.result;
+        return true;
+    }
+
+    /**
+     * Stores the result of a call that was not found, if it can be memoized.
+     *
+     * @return the result.
+     */
+    Object finish(Call call, BuildContext context, Object result) {
+        Entry entry;
+        if (call.state == null) {
+            if (!isStorable(result)) return result;
+            entry = new Entry(result, null, null, null);
+        }
+        else {
+            entry = isStorable(result) ? recordGeometry(call, context, result) : null;
+            context.stopRecording();
+            if (entry == null) return result;
+        }
+
+        final int entryVertexes = entry.geometry == null ? 0 : entry.geometry.getVertexCount();
+        if (entryVertexes > maxVertexes) return result;
+
+        final Entry replaced = entries.put(call, entry);
+        if (replaced != null && replaced.geometry != null) vertexCount -= replaced.geometry.getVertexCount();
+        vertexCount += entryVertexes;
+
+        final Iterator<Entry> eldest = entries.values().iterator();
+        while (entries.size() > maxEntries || vertexCount > maxVertexes) {
+            final Entry removed = eldest.next();
+            if (removed.geometry != null) vertexCount -= removed.geometry.getVertexCount();
+            eldest.remove();
+        }
+        return result;
+    }
+
+    /**
+     * @return an entry with a copy of the geometry emitted by the call, relative to the origin at the start of the
+     *         call, or null if it can not be copied.
+     */
+    private Entry recordGeometry(Call call, BuildContext context, Object result) {
+        final Shape recording = context.getRecording(call.recording);
+        if (recording == null) return null;
+
+        // The recording numbers vertexes and indexes from the start of the outermost recorded call
+        final int firstVertex = call.firstVertex - context.getRecordingFirstVertex();
+        final int endVertex = recording.getVertexCount();
+        final int firstIndex = call.firstIndex - context.getRecordingFirstIndex();
+        final int endIndex = recording.getIndexListSize();
+
+        for (int i = firstIndex; i < endIndex; i++) {
+            final int vertex = recording.index(i);
+            if (vertex < firstVertex || vertex >= endVertex) return null;
+        }
+        if (result instanceof Double) {
+            final double value = (Double) result;
+            if (value >= call.firstVertex && value < context.getVertexCount()) return null;
+        }
+
+        final Vec3 start = call.origin;
+        final Shape geometry = new Shape();
+        geometry.addCopy(recording, firstVertex, endVertex - firstVertex, firstIndex, endIndex - firstIndex, new Vec3(-start.x, -start.y, -start.z));
+
+        final Col4 color = context.getColor();
+        final Vec3 normal = context.getNormal();
+        final float[] state = {color.r, color.g, color.b, color.a, normal.x, normal.y, normal.z};
+        final Vec3 origin = context.getOrigin();
+        return new Entry(result, geometry, state, new Vec3(origin.x - start.x, origin.y - start.y, origin.z - start.z));
+    }
+
+    private static boolean isStorable(Object value) {
+        return value == null || value instanceof Double || value instanceof Boolean;
+    }
+
+    /**
+     * A call to a memoized function, the key of the cache.  Also tracks where the geometry of the call starts.
+     */
+    static final class Call {
+        private final String function;
+        private final Object[] arguments;
+        private final float[] state;
+        private final int hashCode;
+
+        private int recording;
+        private int firstVertex;
+        private int firstIndex;
+        private Vec3 origin;
+        private Object result;
+
+        private Call(String function, Object[] arguments, float[] state) {
+            this.function = function;
+            this.arguments = arguments;
+            this.state = state;
+            hashCode = 31 * (31 * function.hashCode() + Arrays.hashCode(arguments)) + Arrays.hashCode(state);
+        }
+
+        /**
+         * @return the result of a replayed call.
+         */
+        Object getResult() {
+            return result;
+        }
+
+        @Override public boolean equals(Object o) {
+            if (this == o) return true;
+            if (!(o instanceof Call)) return false;
+            final Call call = (Call) o;
+            return hashCode == call.hashCode &&
+                   function.equals(call.function) &&
+                   Arrays.equals(arguments, call.arguments) &&
+                   Arrays.equals(state, call.state);
+        }
+
+        @Override public int hashCode() {
+            return hashCode;
+        }
+    }
+
+    /**
+     * Stored result of a call.
+     */
+    private static final class Entry {
+        final Object result;
+        final Shape geometry;
+        final float[] state;
+        final Vec3 originMove;
+
+        Entry(Object result, Shape geometry, float[] state, Vec3 originMove) {
+            this.result = result;
+            this.geometry = geometry;
+            this.state = state;
+            this.originMove = originMove;
+        }
+    }
+}
@@ -0,0 +1,74 @@
+package org.skycastle.flowgine.buildlang;
+
+import org.skycastle.flowgine.buildlang.ast.FunExpr;
+
+import java.util.List;
+
+/**
+ * Memoizes the calls to the pure functions of one program in a MemoCache.
+ * <p/>
+ * Functions whose calls seldom hit the cache, e.g. ones called with different arguments every time,
+ * stop being memoized, as the lookups would only slow them down.
+ */
+final class Memoizer {
+
+    /**
+     * Calls to a function before deciding whether memoizing it pays off.
+     */
+    private static final int TRIAL_CALLS = 64;
+
+    /**
+     * A function stops being memoized if less than one in this many calls hit the cache.
+     */
+    private static final int MIN_HIT_RATIO = 8;
+
+    private final MemoCache cache;
+    private final String[] ids;
+    private final Purity[] purities;
+    private final int[] calls;
+    private final int[] hits;
+
+    Memoizer(MemoCache cache, PurityAnalysis analysis) {
+        this.cache = cache;
+
+        final List<FunExpr> functions = analysis.getMemoizedFunctions();
+        ids = new String[functions.size()];
+        purities = new Purity[functions.size()];
+        for (int i = 0; i < ids.length; i++) {
+            ids[i] = analysis.getMemoId(functions.get(i));
+            purities[i] = analysis.getPurity(functions.get(i));
+        }
+        calls = new int[ids.length];
+        hits = new int[ids.length];
+    }
+
+    /**
+     * @param function memo index of the function.
+     * @param arguments argument values, including default values.  Not copied, should not be changed afterwards.
+     * @return the call, or null if the call should not be memoized.
+     */
+    MemoCache.Call start(int function, Object[] arguments, BuildContext context) {
+        final int callCount = calls[function];
+        if (callCount >= TRIAL_CALLS && hits[function] * MIN_HIT_RATIO < callCount) return null;
+
+        calls[function] = callCount + 1;
+        return cache.start(ids[function], purities[function], arguments, context);
+    }
+
+    /**
+     * @return true if the call was found in the cache, and its result is available from the call.
+     */
+    boolean replay(int function, MemoCache.Call call, BuildContext context) {
+        if (!cache.replay(call, context)) return false;
+        hits[function]++;
+        return true;
+    }
+
+    /**
+     * Stores the result of a call that was not found in the cache.
+     * @return the result.
+     */
+    Object finish(MemoCache.Call call, BuildContext context, Object result) {
+        return cache.finish(call, context, result);
+    }
+}
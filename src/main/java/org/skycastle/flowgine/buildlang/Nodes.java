@@ -0,0 +1,115 @@
+package org.skycastle.flowgine.buildlang;
+
+import org.skycastle.flowgine.buildlang.ast.*;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Utilities for walking syntax trees.
+ */
+final class Nodes {
+
+    private Nodes() {
+    }
+
+    /**
+     * Adds the direct child nodes of a node to a list, in source order.
+     * References to named functions from calls and variable references are not children.
+     */
+    static void addChildren(Node node, List<Node> children) {
+        if (node instanceof Prog) {
+            children.addAll(((Prog) node).getVariables());
+            children.addAll(((Prog) node).getFunctions());
+        }
+        else if (node instanceof VarDef) {
+            children.add(((VarDef) node).getType());
+            children.add(((VarDef) node).getExpr());
+        }
+        else if (node instanceof Fun) {
+            children.add(((Fun) node).getFunction());
+        }
+        else if (node instanceof FunExpr) {
+            final FunExpr function = (FunExpr) node;
+            children.add(function.getTypeRef());
+            children.addAll(function.getParameters());
+            children.add(function.getCode());
+        }
+        else if (node instanceof Param) {
+            children.add(((Param) node).getTypeRef());
+            addIfNotNull(((Param) node).getDefaultValue(), children);
+        }
+        else if (node instanceof Block) {
+            children.addAll(((Block) node).getStatements());
+        }
+        else if (node instanceof Assign) {
+            children.add(((Assign) node).getExpression());
+        }
+        else if (node instanceof ExprStatement) {
+            children.add(((ExprStatement) node).getExpr());
+        }
+        else if (node instanceof Return) {
+            children.add(((Return) node).getExpr());
+        }
+        else if (node instanceof For) {
+            final For forStatement = (For) node;
+            children.add(forStatement.getTypeRef());
+            children.add(forStatement.getRange());
+            children.add(forStatement.getBlock());
+        }
+        else if (node instanceof While) {
+            children.add(((While) node).getCondition());
+            children.add(((While) node).getBlock());
+        }
+        else if (node instanceof If) {
+            final If ifExpr = (If) node;
+            children.add(ifExpr.getCondition());
+            children.add(ifExpr.getThenBlock());
+            addIfNotNull(ifExpr.getElseBlock(), children);
+        }
+        else if (node instanceof OperationNode) {
+            children.add(((OperationNode) node).getLeft());
+            children.add(((OperationNode) node).getRight());
+        }
+        else if (node instanceof UnaryOp) {
+            children.add(((UnaryOp) node).getOperand());
+        }
+        else if (node instanceof Call) {
+            children.addAll(((Call) node).getArguments());
+        }
+        else if (node instanceof ListExpr) {
+            children.addAll(((ListExpr) node).getElements());
+        }
+        else if (node instanceof MapExpr) {
+            for (MapExpr.MapExprEntry entry : ((MapExpr) node).getEntries()) {
+                children.add(entry.getKey());
+                children.add(entry.getValue());
+            }
+        }
+        else if (node instanceof RangeExpr) {
+            final RangeExpr range = (RangeExpr) node;
+            children.add(range.getStart());
+            children.add(range.getEnd());
+            addIfNotNull(range.getStep(), children);
+        }
+    }
+
+    /**
+     * @return number of nodes in the tree with the specified root, including the root.
+     */
+    static int count(Node root) {
+        int count = 0;
+        final List<Node> pending = new ArrayList<Node>();
+        pending.add(root);
+        while (!pending.isEmpty()) {
+            final Node node = pending.remove(pending.size() - 1);
+            count++;
+            addChildren(node, pending);
+        }
+        return count;
+    }
+
+    private static void addIfNotNull(Node node, List<Node> children) {
+        if (node != null) children.add(node);
+    }
+}
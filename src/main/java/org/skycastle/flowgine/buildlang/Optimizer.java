@@ -0,0 +1,677 @@
+package org.skycastle.flowgine.buildlang;
+
+import org.skycastle.flowgine.buildlang.ast.*;
+
+import java.util.*;
+
+/**
+ * Simplifies resolved programs before they are compiled or interpreted.
+ * <p/>
+ * Operations on number and boolean literals are folded with the same semantics as the Interpreter, and variables
+ * that are never assigned after their definition, and have a literal value, are replaced with that value.
+ * Global variables overridden by the generation parameters get the parameter value.  Ifs with a constant condition
+ * are replaced with the taken branch, and for loops over small constant ranges are unrolled, except parallel loops.
+ * <p/>
+ * The given program is not changed, a new program is returned, so that cached programs can be optimized for
+ * different parameters.  The returned program needs to be resolved before it is used.
+ * An optimizer can be reused, but is not thread safe.
+ */
+public final class Optimizer {
+
+    /**
+     * Loops with more iterations than this are not unrolled.
+     */
+    public static final int MAX_UNROLLED_ITERATIONS = 8;
+
+    /**
+     * Loops are not unrolled if the unrolled body would have more nodes than this.
+     */
+    public static final int MAX_UNROLLED_NODES = 256;
+
+    private final Map<Object, Usage> usages = new IdentityHashMap<Object, Usage>();
+    private Usage globalUsage;
+    private Usage usage;
+    private Expr[] globalValues;
+    private Expr[] localValues;
+
+    private int inputNodes;
+    private int outputNodes;
+    private int foldedOperations;
+    private int inlinedVariables;
+    private int prunedBranches;
+    private int unrolledLoops;
+
+    /**
+     * @param prog a resolved program.  Not changed.
+     * @param parameters parameters that the program will be generated with, or null if none.
+     * @return an optimized copy of the program, not yet resolved.
+     */
+    public Prog optimize(Prog prog, Map<String, Object> parameters) {
+        if (prog.getInitializerFrameSize() < 0) throw new IllegalArgumentException("The program should be resolved before it is optimized");
+
+        inputNodes = Nodes.count(prog);
+        foldedOperations = 0;
+        inlinedVariables = 0;
+        prunedBranches = 0;
+        unrolledLoops = 0;
+
+        usages.clear();
+        globalUsage = new Usage();
+        findUsage(prog, usage(prog));
+
+        try {
+            final Prog optimized = new Prog();
+            copyPosition(prog, optimized);
+            for (Import anImport : prog.getImports()) {
+                optimized.addImport(anImport);
+            }
+
+            final List<VarDef> variables = prog.getVariables();
+            globalValues = new Expr[variables.size()];
+            enterFrame(prog, prog.getInitializerFrameSize());
+            for (VarDef var : variables) {
+                final int slot = var.getSlot();
+                final Expr value = optimizeExpr(var.getExpr());
+                final Expr literal;
+                if (parameters != null && parameters.containsKey(var.getName())) literal = literal(parameters.get(var.getName()), var);
+                else literal = isLiteral(value) ? value : null;
+
+                if (literal != null && !globalUsage.assigned.get(slot)) {
+                    globalValues[slot] = literal;
+                    if (!globalUsage.called.get(slot)) continue;
+                }
+                optimized.addVar(copyPosition(var, new VarDef(copy(var.getType()), var.isConstant(), var.getName(), value)));
+            }
+
+            for (Fun function : prog.getFunctions()) {
+                optimized.addFun(optimizeFun(function));
+            }
+
+            outputNodes = Nodes.count(optimized);
+            return optimized;
+        }
+        finally {
+            usages.clear();
+            usage = null;
+            globalUsage = null;
+            globalValues = null;
+            localValues = null;
+        }
+    }
+
+    /**
+     * @return number of nodes in the latest optimized program before optimization.
+     */
+    public int getInputNodes() {
+        return inputNodes;
+    }
+
+    /**
+     * @return number of nodes in the latest optimized program after optimization.
+     */
+    public int getOutputNodes() {
+        return outputNodes;
+    }
+
+    /**
+     * @return number of nodes eliminated from the latest optimized program.  Negative if unrolled loops added more
+     *         nodes than were eliminated.
+     */
+    public int getEliminatedNodes() {
+        return inputNodes - outputNodes;
+    }
+
+    /**
+     * @return number of operations replaced with their result in the latest optimized program.
+     */
+    public int getFoldedOperations() {
+        return foldedOperations;
+    }
+
+    /**
+     * @return number of variable references replaced with the value of the variable in the latest optimized program.
+     */
+    public int getInlinedVariables() {
+        return inlinedVariables;
+    }
+
+    /**
+     * @return number of if branches and loops removed because of a constant condition or range in the latest optimized program.
+     */
+    public int getPrunedBranches() {
+        return prunedBranches;
+    }
+
+    /**
+     * @return number of loops unrolled in the latest optimized program.
+     */
+    public int getUnrolledLoops() {
+        return unrolledLoops;
+    }
+
+    @Override public String toString() {
+        return "Optimizer{" +
+               "eliminatedNodes=" + getEliminatedNodes() +
+               ", foldedOperations=" + foldedOperations +
+               ", inlinedVariables=" + inlinedVariables +
+               ", prunedBranches=" + prunedBranches +
+               ", unrolledLoops=" + unrolledLoops +
+               '}';
+    }
+
+    /**
+     * Records which slots are assigned or called by name, for the program and each function in it.
+     * A variable that is called by name needs to be kept even if its value is inlined.
+     */
+    private void findUsage(Node node, Usage frameUsage) {
+        final Usage nodeUsage = node instanceof FunExpr ? usage(node) : frameUsage;
+        if (node instanceof Assign) {
+            final Assign assign = (Assign) node;
+            (assign.isGlobal() ? globalUsage : frameUsage).assigned.set(assign.getSlot());
+        }
+        else if (node instanceof Call) {
+            final Call call = (Call) node;
+            if (call.getSlot() >= 0) (call.isGlobal() ? globalUsage : frameUsage).called.set(call.getSlot());
+        }
+        else if (node instanceof For) {
+            // The iterator changes on each iteration
+            frameUsage.assigned.set(((For) node).getSlot());
+        }
+
+        final List<Node> children = new ArrayList<Node>(4);
+        Nodes.addChildren(node, children);
+        for (Node child : children) {
+            findUsage(child, nodeUsage);
+        }
+    }
+
+    private Usage usage(Object frame) {
+        Usage frameUsage = usages.get(frame);
+        if (frameUsage == null) {
+            frameUsage = new Usage();
+            usages.put(frame, frameUsage);
+        }
+        return frameUsage;
+    }
+
+    private Fun optimizeFun(Fun function) {
+        final Usage outerUsage = usage;
+        final Expr[] outerValues = localValues;
+        final FunExpr functionExpr = function.getFunction();
+        enterFrame(functionExpr, functionExpr.getFrameSize());
+        try {
+            return copyPosition(function, new Fun(function.getName(),
+                                                  copy(function.getTypeRef()),
+                                                  optimizeParameters(functionExpr),
+                                                  optimizeBlock(function.getCode(), false)));
+        }
+        finally {
+            usage = outerUsage;
+            localValues = outerValues;
+        }
+    }
+
+    private FunExpr optimizeFunExpr(FunExpr function) {
+        final Usage outerUsage = usage;
+        final Expr[] outerValues = localValues;
+        enterFrame(function, function.getFrameSize());
+        try {
+            return copyPosition(function, new FunExpr(copy(function.getTypeRef()),
+                                                      optimizeParameters(function),
+                                                      optimizeBlock(function.getCode(), false)));
+        }
+        finally {
+            usage = outerUsage;
+            localValues = outerValues;
+        }
+    }
+
+    private void enterFrame(Object frame, int frameSize) {
+        usage = usage(frame);
+        localValues = new Expr[Math.max(frameSize, 0)];
+    }
+
+    private List<Param> optimizeParameters(FunExpr function) {
+        final List<Param> parameters = new ArrayList<Param>(function.getParameters().size());
+        for (Param parameter : function.getParameters()) {
+            final Param copy = copyPosition(parameter, new Param(copy(parameter.getTypeRef()), parameter.getName()));
+            if (parameter.getDefaultValue() != null) copy.setDefaultValue(optimizeExpr(parameter.getDefaultValue()));
+            parameters.add(copy);
+        }
+        return parameters;
+    }
+
+    /**
+     * @param valueUsed true if the value of the last statement is used, as it is for the branches of an if that is
+     *                  used as a value.
+     */
+    private Block optimizeBlock(Block block, boolean valueUsed) {
+        final Block optimized = copyPosition(block, new Block());
+        optimizeStatements(block.getStatements(), optimized, valueUsed);
+        return optimized;
+    }
+
+    private void optimizeStatements(List<Statement> statements, Block target, boolean valueUsed) {
+        for (int i = 0; i < statements.size(); i++) {
+            optimizeStatement(statements.get(i), target, valueUsed && i == statements.size() - 1);
+        }
+    }
+
+    /**
+     * Adds the optimized form of the statement to the target block, as zero or more statements.
+     * Statements are only removed if their value is not used, as a removed last statement would change the value
+     * of the block.
+     */
+    private void optimizeStatement(Statement statement, Block target, boolean valueUsed) {
+        if (statement instanceof ExprStatement) {
+            final Expr expr = ((ExprStatement) statement).getExpr();
+            if (expr instanceof If) {
+                optimizeIfStatement((If) expr, target, valueUsed);
+                return;
+            }
+
+            final Expr optimized = optimizeExpr(expr, valueUsed);
+            if (!valueUsed && isLiteral(optimized)) return;
+            target.addStatement(copyPosition(statement, new ExprStatement(optimized)));
+        }
+        else if (statement instanceof VarDef) {
+            final VarDef var = (VarDef) statement;
+            final int slot = var.getSlot();
+            final Expr value = optimizeExpr(var.getExpr());
+            if (isLiteral(value) && !usage.assigned.get(slot)) {
+                localValues[slot] = value;
+                if (!usage.called.get(slot) && !valueUsed) return;
+            }
+            else {
+                localValues[slot] = null;
+            }
+            target.addStatement(copyPosition(var, new VarDef(copy(var.getType()), var.isConstant(), var.getName(), value)));
+        }
+        else if (statement instanceof Assign) {
+            final Assign assign = (Assign) statement;
+            target.addStatement(copyPosition(assign, new Assign(assign.getVariableName(), optimizeExpr(assign.getExpression()))));
+        }
+        else if (statement instanceof Return) {
+            target.addStatement(copyPosition(statement, new Return(optimizeExpr(((Return) statement).getExpr()))));
+        }
+        else if (statement instanceof While) {
+            final While whileStatement = (While) statement;
+            final Expr condition = optimizeExpr(whileStatement.getCondition());
+            if (!valueUsed && isFalse(condition)) {
+                prunedBranches++;
+                return;
+            }
+            target.addStatement(copyPosition(whileStatement, new While(condition, optimizeBlock(whileStatement.getBlock(), false))));
+        }
+        else if (statement instanceof For) {
+            optimizeFor((For) statement, target, valueUsed);
+        }
+        else if (statement instanceof Fun) {
+            target.addStatement(optimizeFun((Fun) statement));
+        }
+        else {
+            throw new IllegalStateException("Unsupported statement " + statement);
+        }
+    }
+
+    /**
+     * Adds an if statement to the target block.  If the condition is constant, only the statements of the taken
+     * branch are added.
+     */
+    private void optimizeIfStatement(If ifExpr, Block target, boolean valueUsed) {
+        final Expr condition = optimizeExpr(ifExpr.getCondition());
+        if (condition instanceof BoolExpr) {
+            final Block taken = ((BoolExpr) condition).getValue() ? ifExpr.getThenBlock() : ifExpr.getElseBlock();
+            if (taken == null || taken.getStatements().isEmpty()) {
+                // An empty if has no value, so without it the block would get the value of the previous statement
+                if (!valueUsed) {
+                    prunedBranches++;
+                    return;
+                }
+            }
+            else if (!hasDefinitions(taken.getStatements())) {
+                if (ifExpr.getElseBlock() != null) prunedBranches++;
+                optimizeStatements(taken.getStatements(), target, valueUsed);
+                return;
+            }
+        }
+
+        target.addStatement(copyPosition(ifExpr, new ExprStatement(optimizeIf(ifExpr, condition, valueUsed))));
+    }
+
+    private void optimizeFor(For forStatement, Block target, boolean valueUsed) {
+        final Expr rangeExpr = optimizeExpr(forStatement.getRange());
+        final int slot = forStatement.getSlot();
+        final Range range = constantRange(rangeExpr);
+        if (range != null && !valueUsed) {
+            final int size = range.size();
+            if (size == 0) {
+                prunedBranches++;
+                return;
+            }
+
+            final Block body = forStatement.getBlock();
+            if (!forStatement.isParallel() && size <= MAX_UNROLLED_ITERATIONS && size * Nodes.count(body) <= MAX_UNROLLED_NODES && !hasLoops(body)) {
+                // The iterator is inlined if the body does not assign it, otherwise each iteration defines it
+                final boolean inlineIterator = !assignsLocal(body, slot) && !usage.called.get(slot);
+                for (int i = 0; i < size; i++) {
+                    final Num value = copyPosition(rangeExpr, new Num(range.get(i)));
+                    final Block iteration = copyPosition(body, new Block());
+                    if (inlineIterator) {
+                        localValues[slot] = value;
+                    }
+                    else {
+                        localValues[slot] = null;
+                        iteration.addStatement(copyPosition(forStatement, new VarDef(copy(forStatement.getTypeRef()), false, forStatement.getIteratorName(), value)));
+                    }
+                    optimizeStatements(body.getStatements(), iteration, false);
+
+                    if (hasDefinitions(iteration.getStatements())) {
+                        final If scoped = copyPosition(forStatement, new If(copyPosition(forStatement, new BoolExpr(true)), iteration));
+                        target.addStatement(copyPosition(forStatement, new ExprStatement(scoped)));
+                    }
+                    else {
+                        for (Statement statement : iteration.getStatements()) {
+                            target.addStatement(statement);
+                        }
+                    }
+                }
+                localValues[slot] = null;
+                unrolledLoops++;
+                return;
+            }
+        }
+
+        localValues[slot] = null;
+        target.addStatement(copyPosition(forStatement, new For(copy(forStatement.getTypeRef()),
+                                                               forStatement.getIteratorName(),
+                                                               rangeExpr,
+                                                               optimizeBlock(forStatement.getBlock(), false),
+                                                               forStatement.isParallel())));
+    }
+
+    private Expr optimizeExpr(Expr expr) {
+        return optimizeExpr(expr, true);
+    }
+
+    private Expr optimizeExpr(Expr expr, boolean valueUsed) {
+        if (expr instanceof Num) {
+            return copyPosition(expr, new Num(((Num) expr).getValue()));
+        }
+        else if (expr instanceof BoolExpr) {
+            return copyPosition(expr, new BoolExpr(((BoolExpr) expr).getValue()));
+        }
+        else if (expr instanceof VarRef) {
+            final VarRef varRef = (VarRef) expr;
+            if (varRef.getFunction() == null && varRef.getSlot() >= 0) {
+                final Expr value = varRef.isGlobal() ? globalValues[varRef.getSlot()] : localValues[varRef.getSlot()];
+                if (value != null) {
+                    inlinedVariables++;
+                    return copyPosition(varRef, copy(value));
+                }
+            }
+            return copyPosition(varRef, new VarRef(varRef.getName()));
+        }
+        else if (expr instanceof OperationNode) {
+            return optimizeOperation((OperationNode) expr);
+        }
+        else if (expr instanceof UnaryOp) {
+            final UnaryOp unaryOp = (UnaryOp) expr;
+            final Expr operand = optimizeExpr(unaryOp.getOperand());
+            if (unaryOp.getOperator().equals("-") && operand instanceof Num) {
+                foldedOperations++;
+                return copyPosition(unaryOp, new Num(-((Num) operand).getValue()));
+            }
+            if (unaryOp.getOperator().equals("not") && operand instanceof BoolExpr) {
+                foldedOperations++;
+                return copyPosition(unaryOp, new BoolExpr(!((BoolExpr) operand).getValue()));
+            }
+            return copyPosition(unaryOp, new UnaryOp(unaryOp.getOperator(), operand));
+        }
+        else if (expr instanceof Call) {
+            final Call call = (Call) expr;
+            final Call optimized = copyPosition(call, new Call(call.getName()));
+            for (Expr argument : call.getArguments()) {
+                optimized.addArgument(optimizeExpr(argument));
+            }
+            return optimized;
+        }
+        else if (expr instanceof If) {
+            final If ifExpr = (If) expr;
+            return optimizeIf(ifExpr, optimizeExpr(ifExpr.getCondition()), valueUsed);
+        }
+        else if (expr instanceof RangeExpr) {
+            final RangeExpr range = (RangeExpr) expr;
+            final RangeExpr optimized = copyPosition(range, new RangeExpr(optimizeExpr(range.getStart()),
+                                                                          optimizeExpr(range.getEnd()),
+                                                                          range.isInclusive()));
+            if (range.getStep() != null) optimized.setStep(optimizeExpr(range.getStep()));
+            return optimized;
+        }
+        else if (expr instanceof ListExpr) {
+            final ListExpr optimized = copyPosition(expr, new ListExpr());
+            for (Expr element : ((ListExpr) expr).getElements()) {
+                optimized.add(optimizeExpr(element));
+            }
+            return optimized;
+        }
+        else if (expr instanceof MapExpr) {
+            final MapExpr optimized = copyPosition(expr, new MapExpr());
+            for (MapExpr.MapExprEntry entry : ((MapExpr) expr).getEntries()) {
+                optimized.add(optimizeExpr(entry.getKey()), optimizeExpr(entry.getValue()));
+            }
+            return optimized;
+        }
+        else if (expr instanceof FunExpr) {
+            return optimizeFunExpr((FunExpr) expr);
+        }
+        else {
+            throw new IllegalStateException("Unsupported expression " + expr);
+        }
+    }
+
+    /**
+     * Replaces an if with a constant condition with the value of the taken branch, if the branch is a single
+     * expression.  Otherwise only the branch that is not taken is removed.
+     */
+    private Expr optimizeIf(If ifExpr, Expr condition, boolean valueUsed) {
+        if (condition instanceof BoolExpr) {
+            final boolean conditionValue = ((BoolExpr) condition).getValue();
+            final Block taken = conditionValue ? ifExpr.getThenBlock() : ifExpr.getElseBlock();
+            if (taken != null && taken.getStatements().size() == 1 && taken.getStatements().get(0) instanceof ExprStatement) {
+                prunedBranches++;
+                return optimizeExpr(((ExprStatement) taken.getStatements().get(0)).getExpr(), valueUsed);
+            }
+            if (taken != null && ifExpr.getElseBlock() != null) {
+                // The taken branch keeps its own scope, as it may have definitions
+                prunedBranches++;
+                return copyPosition(ifExpr, new If(copyPosition(condition, new BoolExpr(true)), optimizeBlock(taken, valueUsed)));
+            }
+        }
+
+        final If optimized = copyPosition(ifExpr, new If(condition, optimizeBlock(ifExpr.getThenBlock(), valueUsed)));
+        if (ifExpr.getElseBlock() != null) optimized.setElseBlock(optimizeBlock(ifExpr.getElseBlock(), valueUsed));
+        return optimized;
+    }
+
+    /**
+     * Folds operations on literals.  Operations on values of the wrong type are kept, so that they fail at runtime
+     * as they would without optimization.
+     */
+    private Expr optimizeOperation(OperationNode operation) {
+        final String operator = operation.getOperator();
+        final Expr left = optimizeExpr(operation.getLeft());
+        final Expr right = optimizeExpr(operation.getRight());
+
+        // Logical operators short circuit, so a constant left side decides whether the right side is evaluated
+        if ((operator.equals("and") || operator.equals("or")) && left instanceof BoolExpr) {
+            final boolean leftValue = ((BoolExpr) left).getValue();
+            if (leftValue == operator.equals("or")) {
+                foldedOperations++;
+                return copyPosition(operation, new BoolExpr(leftValue));
+            }
+            if (isBoolean(right)) {
+                foldedOperations++;
+                return right;
+            }
+        }
+
+        final Object result = fold(operator, left, right);
+        if (result instanceof Double) {
+            foldedOperations++;
+            return copyPosition(operation, new Num((Double) result));
+        }
+        else if (result instanceof Boolean) {
+            foldedOperations++;
+            return copyPosition(operation, new BoolExpr((Boolean) result));
+        }
+        else {
+            return copyPosition(operation, new OperationNode(left, operator, right));
+        }
+    }
+
+    /**
+     * @return the result of the operation, or null if it can not be folded.
+     */
+    private static Object fold(String operator, Expr left, Expr right) {
+        if (left instanceof BoolExpr && right instanceof BoolExpr) {
+            final boolean a = ((BoolExpr) left).getValue();
+            final boolean b = ((BoolExpr) right).getValue();
+            if (operator.equals("and")) return a && b;
+            if (operator.equals("or")) return a || b;
+            if (operator.equals("xor")) return a ^ b;
+            if (operator.equals("==")) return a == b;
+            if (operator.equals("!=")) return a != b;
+            return null;
+        }
+
+        if (!(left instanceof Num) || !(right instanceof Num)) return null;
+        final double a = ((Num) left).getValue();
+        final double b = ((Num) right).getValue();
+
+        if (operator.equals("==") || operator.equals("!=")) {
+            // The interpreter compares boxed values and compiled code primitive values, which differ for NaN and -0
+            final boolean equal = Double.valueOf(a).equals(b);
+            if (equal != (a == b)) return null;
+            return equal == operator.equals("==");
+        }
+
+        switch (operator.charAt(0)) {
+            case '+': return a + b;
+            case '-': return a - b;
+            case '*': return a * b;
+            case '/': return a / b;
+            case '%': return a % b;
+            case '^': return Math.pow(a, b);
+            case '<': return operator.length() == 1 ? a < b : a <= b;
+            case '>': return operator.length() == 1 ? a > b : a >= b;
+            default: return null;
+        }
+    }
+
+    /**
+     * @return the range of a range expression with constant bounds, or null if it is not constant or not valid.
+     */
+    private static Range constantRange(Expr expr) {
+        if (!(expr instanceof RangeExpr)) return null;
+        final RangeExpr range = (RangeExpr) expr;
+        if (!(range.getStart() instanceof Num) || !(range.getEnd() instanceof Num)) return null;
+        if (range.getStep() != null && !(range.getStep() instanceof Num)) return null;
+
+        final double step = range.getStep() == null ? 1 : ((Num) range.getStep()).getValue();
+        try {
+            return new Range(((Num) range.getStart()).getValue(), ((Num) range.getEnd()).getValue(), step, range.isInclusive());
+        } catch (IllegalArgumentException e) {
+            // Fails at runtime instead
+            return null;
+        }
+    }
+
+    /**
+     * @return a literal for a parameter value, or null if the value has no literal.
+     */
+    private static Expr literal(Object value, Node position) {
+        if (value instanceof Number) return copyPosition(position, new Num(((Number) value).doubleValue()));
+        if (value instanceof Boolean) return copyPosition(position, new BoolExpr((Boolean) value));
+        return null;
+    }
+
+    private static boolean isLiteral(Expr expr) {
+        return expr instanceof Num || expr instanceof BoolExpr;
+    }
+
+    private static boolean isFalse(Expr expr) {
+        return expr instanceof BoolExpr && !((BoolExpr) expr).getValue();
+    }
+
+    /**
+     * @return true if the expression always evaluates to a boolean.
+     */
+    private static boolean isBoolean(Expr expr) {
+        if (expr instanceof BoolExpr) return true;
+        if (expr instanceof UnaryOp) return ((UnaryOp) expr).getOperator().equals("not");
+        if (expr instanceof OperationNode) {
+            final String operator = ((OperationNode) expr).getOperator();
+            return operator.equals("and") || operator.equals("or") || operator.equals("xor") ||
+                   operator.equals("==") || operator.equals("!=") ||
+                   operator.startsWith("<") || operator.startsWith(">");
+        }
+        return false;
+    }
+
+    private static boolean hasDefinitions(List<Statement> statements) {
+        for (Statement statement : statements) {
+            if (statement instanceof VarDef || statement instanceof Fun) return true;
+        }
+        return false;
+    }
+
+    private static boolean hasLoops(Node node) {
+        if (node instanceof For || node instanceof While) return true;
+        final List<Node> children = new ArrayList<Node>(4);
+        Nodes.addChildren(node, children);
+        for (Node child : children) {
+            if (hasLoops(child)) return true;
+        }
+        return false;
+    }
+
+    private static boolean assignsLocal(Node node, int slot) {
+        if (node instanceof Assign && !((Assign) node).isGlobal() && ((Assign) node).getSlot() == slot) return true;
+        if (node instanceof FunExpr) return false;
+        final List<Node> children = new ArrayList<Node>(4);
+        Nodes.addChildren(node, children);
+        for (Node child : children) {
+            if (assignsLocal(child, slot)) return true;
+        }
+        return false;
+    }
+
+    /**
+     * @return a copy of a literal or type reference.
+     */
+    private static <T extends Node> T copy(T node) {
+        final Node copy;
+        if (node instanceof Num) copy = new Num(((Num) node).getValue());
+        else if (node instanceof BoolExpr) copy = new BoolExpr(((BoolExpr) node).getValue());
+        else if (node instanceof TypeRef) copy = new TypeRef(((TypeRef) node).getTypeName());
+        else throw new IllegalArgumentException("Can not copy " + node.getClass().getSimpleName());
+
+        @SuppressWarnings("unchecked")
+        final T typedCopy = (T) copy;
+        return copyPosition(node, typedCopy);
+    }
+
+    private static <T extends Node> T copyPosition(Node from, T to) {
+        to.setPosition(from.getLine(), from.getColumn());
+        return to;
+    }
+
+    /**
+     * Slots of a frame that are assigned after their definition, or called by name.
+     */
+    private static final class Usage {
+        final BitSet assigned = new BitSet();
+        final BitSet called = new BitSet();
+    }
+}
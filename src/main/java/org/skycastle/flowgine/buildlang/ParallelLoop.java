@@ -0,0 +1,341 @@
+package org.skycastle.flowgine.buildlang;
+
+import org.skycastle.flowgine.geometry.Col4;
+import org.skycastle.flowgine.geometry.Vec3;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Runs the iterations of a parallel for loop, splitting them into chunks that are run by helper threads and the
+ * calling thread.
+ * <p/>
+ * Each iteration starts with the color, normal and origin of the context at the start of the loop, and emits its
+ * geometry into a buffer of its chunk, with the vertexes numbered from the vertex count at the start of the loop.
+ * The buffers are added to the context in the order of the iterations, renumbering the vertexes, so the result is
+ * the same however the iterations were split between threads.  After the loop the context has the color, normal and
+ * origin it had at the start of the loop.
+ */
+final class ParallelLoop {
+
+    /**
+     * Chunks to split the iterations into for each available processor, so that threads that finish early can help
+     * with the remaining chunks.
+     */
+    private static final int CHUNKS_PER_PROCESSOR = 4;
+
+    private static ExecutorService defaultExecutor;
+
+    /**
+     * Runs iterations of a loop body.  A worker is only used by one thread at a time.
+     */
+    interface Worker {
+
+        /**
+         * @return context the worker emits geometry to.
+         */
+        BuildContext getContext();
+
+        /**
+         * Runs the loop body with the specified iterator value.
+         */
+        void run(Object value);
+    }
+
+    /**
+     * Creates a worker for each chunk of iterations.  Called from the thread that runs the chunk.
+     */
+    interface WorkerFactory {
+        Worker createWorker();
+    }
+
+    private ParallelLoop() {
+    }
+
+    /**
+     * @return executor shared by programs, with daemon threads, or null if there is only one processor.
+     */
+    static synchronized ExecutorService getDefaultExecutor() {
+        if (defaultExecutor == null && Runtime.getRuntime().availableProcessors() > 1) {
+            defaultExecutor = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors(), new ThreadFactory() {
+                public Thread newThread(Runnable r) {
+                    final Thread thread = new Thread(r, "GenLangWorker");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+        }
+        return defaultExecutor;
+    }
+
+    /**
+     * @return the values to iterate over, with the elements of lists and the keys of maps as they were at the start.
+     * @throws IllegalStateException if the value can not be iterated over.
+     */
+    static Object[] iterationValues(Object iterable) {
+        if (iterable instanceof Range) {
+            final Range range = (Range) iterable;
+            final Object[] values = new Object[range.size()];
+            for (int i = 0; i < values.length; i++) {
+                values[i] = range.get(i);
+            }
+            return values;
+        }
+        else if (iterable instanceof List) {
+            return ((List<?>) iterable).toArray();
+        }
+        else if (iterable instanceof Map) {
+            return ((Map<?, ?>) iterable).keySet().toArray();
+        }
+        else {
+            throw new IllegalStateException("Can not iterate over " + iterable);
+        }
+    }
+
+    /**
+     * @return true if none of the values is a mutable list or map.
+     */
+    static boolean isShareable(Object[] values) {
+        for (Object value : values) {
+            if (!isShareable(value)) return false;
+        }
+        return true;
+    }
+
+    /**
+     * @return true if the value is not a mutable list or map.
+     */
+    static boolean isShareable(Object value) {
+        return !(value instanceof List || value instanceof Map);
+    }
+
+    /**
+     * Runs the iterations, and adds the geometry they emit to the context in iteration order.
+     *
+     * @param executor executor to run chunks of iterations in, or null to run all of them in the calling thread.
+     * @param context context the loop is run in.
+     * @param values iterator values.
+     * @param workers creates the workers that run the iterations.
+     * @throws RuntimeException the first exception thrown by an iteration, in iteration order.
+     * @throws Error the first error thrown by an iteration, in iteration order.
+     */
+    static void run(ExecutorService executor, BuildContext context, final Object[] values, final WorkerFactory workers) {
+        if (values.length == 0) return;
+
+        final int processors = executor == null ? 1 : Runtime.getRuntime().availableProcessors();
+        final int chunkCount = Math.min(values.length, processors * CHUNKS_PER_PROCESSOR);
+        final Chunk[] chunks = new Chunk[chunkCount];
+        for (int i = 0; i < chunkCount; i++) {
+            chunks[i] = new Chunk(values.length * i / chunkCount, values.length * (i + 1) / chunkCount);
+        }
+
+        final State start = new State(context);
+        final AtomicBoolean failed = new AtomicBoolean();
+        final AtomicInteger nextChunk = new AtomicInteger();
+
+        // Helpers take chunks in order, the calling thread runs the chunks it gets to before any helper does
+        final int helperCount = Math.min(processors, chunkCount) - 1;
+        for (int i = 0; i < helperCount; i++) {
+            executor.execute(new Runnable() {
+                public void run() {
+                    int index;
+                    while (!failed.get() && (index = nextChunk.getAndIncrement()) < chunks.length) {
+                        chunks[index].runIfUnclaimed(values, start, workers, failed);
+                    }
+                }
+            });
+        }
+
+        try {
+            for (Chunk chunk : chunks) {
+                chunk.runIfUnclaimed(values, start, workers, failed);
+                chunk.await();
+                if (chunk.failure instanceof RuntimeException) throw (RuntimeException) chunk.failure;
+                if (chunk.failure instanceof Error) throw (Error) chunk.failure;
+                chunk.buffer.addTo(context, start.vertexCount);
+                chunk.buffer = null;
+            }
+        }
+        catch (RuntimeException e) {
+            failed.set(true);
+            throw e;
+        }
+        catch (Error e) {
+            failed.set(true);
+            throw e;
+        }
+        finally {
+            start.restore(context);
+        }
+    }
+
+    /**
+     * Context state at the start of the loop.
+     */
+    private static final class State {
+        final int vertexCount;
+        final Col4 color;
+        final Vec3 normal;
+        final Vec3 origin;
+
+        State(BuildContext context) {
+            vertexCount = context.getVertexCount();
+            color = new Col4().set(context.getColor());
+            normal = new Vec3(context.getNormal());
+            origin = new Vec3(context.getOrigin());
+        }
+
+        void restore(BuildContext context) {
+            context.getColor().set(color);
+            context.getNormal().set(normal);
+            context.getOrigin().set(origin);
+        }
+    }
+
+    /**
+     * Consecutive iterations run by one thread.
+     */
+    private static final class Chunk {
+        final int first;
+        final int end;
+        final AtomicBoolean claimed = new AtomicBoolean();
+        final CountDownLatch done = new CountDownLatch(1);
+        GeometryBuffer buffer;
+        Throwable failure;
+
+        Chunk(int first, int end) {
+            this.first = first;
+            this.end = end;
+        }
+
+        void runIfUnclaimed(Object[] values, State start, WorkerFactory workers, AtomicBoolean failed) {
+            if (!claimed.compareAndSet(false, true)) return;
+
+            try {
+                final Worker worker = workers.createWorker();
+                final BuildContext context = worker.getContext();
+                final GeometryBuffer iterations = new GeometryBuffer();
+                for (int i = first; i < end; i++) {
+                    context.begin(iterations, start.vertexCount);
+                    start.restore(context);
+                    try {
+                        worker.run(values[i]);
+                    }
+                    finally {
+                        context.end();
+                    }
+                }
+                buffer = iterations;
+            }
+            catch (RuntimeException e) {
+                failure = e;
+                failed.set(true);
+            }
+            catch (Error e) {
+                failure = e;
+                failed.set(true);
+            }
+            finally {
+                done.countDown();
+            }
+        }
+
+        void await() {
+            try {
+                done.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IllegalStateException("Interrupted while waiting for a parallel loop", e);
+            }
+        }
+    }
+
+    /**
+     * The geometry emitted by the iterations of a chunk, each iteration started with a begin call of the generator.
+     */
+    private static final class GeometryBuffer implements Generator {
+        private float[] positions = new float[3 * BuildContext.BLOCK_SIZE];
+        private float[] normals = new float[3 * BuildContext.BLOCK_SIZE];
+        private float[] texturePositions = new float[2 * BuildContext.BLOCK_SIZE];
+        private float[] colors = new float[4 * BuildContext.BLOCK_SIZE];
+        private int vertexCount;
+        private int[] indexes = new int[3 * BuildContext.BLOCK_SIZE];
+        private int indexCount;
+        private final List<int[]> iterationEnds = new ArrayList<int[]>();
+
+        public void begin() {
+        }
+
+        public void addVertexes(float[] positions, float[] normals, float[] texturePositions, float[] colors, int count) {
+            if (vertexCount + count > this.positions.length / 3) {
+                final int capacity = Math.max(vertexCount + count, this.positions.length / 3 * 2);
+                this.positions = grow(this.positions, 3 * capacity);
+                this.normals = grow(this.normals, 3 * capacity);
+                this.texturePositions = grow(this.texturePositions, 2 * capacity);
+                this.colors = grow(this.colors, 4 * capacity);
+            }
+            System.arraycopy(positions, 0, this.positions, 3 * vertexCount, 3 * count);
+            System.arraycopy(normals, 0, this.normals, 3 * vertexCount, 3 * count);
+            System.arraycopy(texturePositions, 0, this.texturePositions, 2 * vertexCount, 2 * count);
+            System.arraycopy(colors, 0, this.colors, 4 * vertexCount, 4 * count);
+            vertexCount += count;
+        }
+
+        public void addIndexes(int[] indexes, int count) {
+            if (indexCount + count > this.indexes.length) {
+                final int[] grown = new int[Math.max(indexCount + count, this.indexes.length * 2)];
+                System.arraycopy(this.indexes, 0, grown, 0, indexCount);
+                this.indexes = grown;
+            }
+            System.arraycopy(indexes, 0, this.indexes, indexCount, count);
+            indexCount += count;
+        }
+
+        public void end() {
+            iterationEnds.add(new int[]{vertexCount, indexCount});
+        }
+
+        /**
+         * Adds the geometry to the context, renumbering the vertexes of each iteration to follow the vertexes
+         * already in the context.
+         *
+         * @param firstVertex number of the first vertex of each iteration.  Smaller numbers refer to vertexes
+         *                    emitted before the loop, and are kept.
+         */
+        void addTo(BuildContext context, int firstVertex) {
+            int vertex = 0;
+            int index = 0;
+            for (int[] iterationEnd : iterationEnds) {
+                final int offset = context.getVertexCount() - firstVertex;
+                for (; vertex < iterationEnd[0]; vertex++) {
+                    context.addVertex(positions[vertex * 3], positions[vertex * 3 + 1], positions[vertex * 3 + 2],
+                                      normals[vertex * 3], normals[vertex * 3 + 1], normals[vertex * 3 + 2],
+                                      texturePositions[vertex * 2], texturePositions[vertex * 2 + 1],
+                                      colors[vertex * 4], colors[vertex * 4 + 1], colors[vertex * 4 + 2], colors[vertex * 4 + 3]);
+                }
+                for (; index + 2 < iterationEnd[1]; index += 3) {
+                    context.addTriangle(renumber(indexes[index], firstVertex, offset),
+                                        renumber(indexes[index + 1], firstVertex, offset),
+                                        renumber(indexes[index + 2], firstVertex, offset));
+                }
+            }
+        }
+
+        private static int renumber(int vertex, int firstVertex, int offset) {
+            return vertex < firstVertex ? vertex : vertex + offset;
+        }
+
+        private static float[] grow(float[] values, int capacity) {
+            final float[] grown = new float[capacity];
+            System.arraycopy(values, 0, grown, 0, values.length);
+            return grown;
+        }
+    }
+}
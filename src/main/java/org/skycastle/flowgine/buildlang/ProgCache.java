@@ -0,0 +1,365 @@
+package org.skycastle.flowgine.buildlang;
+
+import org.skycastle.flowgine.buildlang.ast.*;
+
+import java.io.*;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.*;
+
+/**
+ * Cache of parsed and resolved programs, so that shape sources are not parsed again each time they are loaded.
+ * <p/>
+ * Programs are keyed by a hash of their source.  Recently used programs are kept in memory, and if a directory is
+ * set, parsed programs are also serialized there, so that they are not parsed again after a restart.
+ * <p/>
+ * When the source with a given name changes, e.g. when a shape is loaded again after its file was edited, only the
+ * top level definitions that changed are parsed again, and the rest are taken from the previous version.
+ * A top level definition starts at the beginning of a line, outside of brackets and comments.
+ * <p/>
+ * The returned programs are shared, and should not be modified.  A cache is not thread safe.
+ */
+public final class ProgCache {
+
+    /**
+     * Default number of programs kept in memory.
+     */
+    public static final int DEFAULT_MAX_ENTRIES = 64;
+
+    private static final String FILE_EXTENSION = ".prog";
+    // Increase when the serialized form of the syntax tree classes changes
+    private static final int FILE_VERSION = 5;
+
+    private final Builtins builtins;
+    private final Map<String, CachedProg> cachedProgs;
+    private final Map<String, String> latestHashes = new HashMap<String, String>();
+    private File directory;
+    private final GenLangDescentParser parser = new GenLangDescentParser();
+
+    /**
+     * @param builtins builtin functions to resolve the programs with.
+     */
+    public ProgCache(Builtins builtins) {
+        this(builtins, DEFAULT_MAX_ENTRIES);
+    }
+
+    /**
+     * @param builtins builtin functions to resolve the programs with.
+     * @param maxEntries number of programs to keep in memory.  The least recently used are dropped first.
+     */
+    public ProgCache(Builtins builtins, final int maxEntries) {
+        if (builtins == null) throw new IllegalArgumentException("builtins should not be null");
+        if (maxEntries < 1) throw new IllegalArgumentException("maxEntries should be positive, but was " + maxEntries);
+
+        this.builtins = builtins;
+        cachedProgs = new LinkedHashMap<String, CachedProg>(16, 0.75f, true) {
+            @Override protected boolean removeEldestEntry(Map.Entry<String, CachedProg> eldest) {
+                return size() > maxEntries;
+            }
+        };
+    }
+
+    /**
+     * @return directory that parsed programs are stored in, or null if they are only kept in memory.
+     */
+    public File getDirectory() {
+        return directory;
+    }
+
+    /**
+     * @param directory directory to store parsed programs in, or null to only keep them in memory.
+     *                  Created if it does not exist.
+     */
+    public void setDirectory(File directory) {
+        this.directory = directory;
+    }
+
+    /**
+     * @param name name of the source, e.g. its resource path.  Used to find the previous version of the source,
+     *             so that only the changed definitions need to be parsed.
+     * @param source source of the program.
+     * @return the parsed and resolved program.
+     * @throws IllegalStateException if the source could not be parsed.  The message tells where.
+     * @throws IllegalArgumentException if the program could not be resolved.
+     */
+    public Prog get(String name, String source) {
+        final String hash = hash(source);
+
+        CachedProg cached = cachedProgs.get(hash);
+        if (cached == null) {
+            List<Chunk> chunks = null;
+            Prog prog = load(hash);
+            if (prog == null) {
+                // The definitions of the previous version are reused, so it can not be returned from the cache anymore
+                final String previousHash = latestHashes.get(name);
+                final CachedProg previous = previousHash != null ? cachedProgs.remove(previousHash) : null;
+                if (previous != null) chunks = parseChanged(source, previous.chunks);
+
+                if (chunks != null) prog = createProg(chunks);
+                else prog = parser.parse(source);
+
+                save(hash, prog);
+            }
+
+            if (chunks == null) chunks = findChunks(source, prog);
+
+            new Resolver(builtins).resolve(prog);
+            cached = new CachedProg(prog, chunks);
+            cachedProgs.put(hash, cached);
+        }
+
+        latestHashes.put(name, hash);
+        return cached.prog;
+    }
+
+    /**
+     * Removes all programs from memory.  Programs stored in the directory are kept.
+     */
+    public void clear() {
+        cachedProgs.clear();
+        latestHashes.clear();
+    }
+
+    /**
+     * @return chunks of the source, with the changed ones parsed and the rest taken from the previous chunks,
+     *         or null if some changed chunk could not be parsed on its own.
+     */
+    private List<Chunk> parseChanged(String source, List<Chunk> previousChunks) {
+        final Map<String, Chunk> previousByText = new HashMap<String, Chunk>();
+        for (Chunk previous : previousChunks) {
+            previousByText.put(previous.text, previous);
+        }
+
+        final List<Chunk> chunks = splitChunks(source);
+        for (Chunk chunk : chunks) {
+            final Chunk previous = previousByText.remove(chunk.text);
+            if (previous != null) {
+                for (Statement definition : previous.definitions) {
+                    shiftLines(definition, chunk.line - previous.line);
+                    chunk.definitions.add(definition);
+                }
+            }
+            else {
+                final Prog part;
+                try {
+                    part = parser.parse(chunk.text);
+                } catch (IllegalStateException e) {
+                    return null;
+                }
+
+                for (Statement definition : definitionsInOrder(part)) {
+                    shiftLines(definition, chunk.line - 1);
+                    chunk.definitions.add(definition);
+                }
+            }
+        }
+        return chunks;
+    }
+
+    private Prog createProg(List<Chunk> chunks) {
+        final Prog prog = new Prog();
+        for (Chunk chunk : chunks) {
+            for (Statement definition : chunk.definitions) {
+                if (definition instanceof VarDef) prog.addVar((VarDef) definition);
+                else prog.addFun((Fun) definition);
+            }
+        }
+        return prog;
+    }
+
+    /**
+     * @return chunks of the source, with the definitions of the already parsed program assigned to them by line.
+     */
+    private List<Chunk> findChunks(String source, Prog prog) {
+        final List<Chunk> chunks = splitChunks(source);
+        int index = 0;
+        for (Statement definition : definitionsInOrder(prog)) {
+            while (index + 1 < chunks.size() && chunks.get(index + 1).line <= definition.getLine()) index++;
+            chunks.get(index).definitions.add(definition);
+        }
+        return chunks;
+    }
+
+    /**
+     * Splits a source into chunks, each starting with a line that starts with something else than whitespace or
+     * a comment, outside of brackets and comments.
+     */
+    private static List<Chunk> splitChunks(String source) {
+        final List<Chunk> chunks = new ArrayList<Chunk>();
+        int chunkStart = 0;
+        int chunkLine = 1;
+        int line = 1;
+        int depth = 0;
+        boolean lineStart = true;
+        int i = 0;
+        while (i < source.length()) {
+            final char c = source.charAt(i);
+            if (c == '\n') {
+                line++;
+                lineStart = true;
+                i++;
+            }
+            else if (c == '/' && i + 1 < source.length() && source.charAt(i + 1) == '/') {
+                while (i < source.length() && source.charAt(i) != '\n') i++;
+            }
+            else if (c == '/' && i + 1 < source.length() && source.charAt(i + 1) == '*') {
+                final int end = source.indexOf("*/", i + 2);
+                final int commentEnd = end < 0 ? source.length() : end + 2;
+                for (int j = i; j < commentEnd; j++) {
+                    if (source.charAt(j) == '\n') line++;
+                }
+                i = commentEnd;
+                lineStart = false;
+            }
+            else {
+                if (lineStart && depth == 0 && !Character.isWhitespace(c) && i > chunkStart) {
+                    chunks.add(new Chunk(source.substring(chunkStart, i), chunkLine));
+                    chunkStart = i;
+                    chunkLine = line;
+                }
+                if (c == '(' || c == '[' || c == '{') depth++;
+                else if (c == ')' || c == ']' || c == '}') depth--;
+                if (!Character.isWhitespace(c)) lineStart = false;
+                i++;
+            }
+        }
+        chunks.add(new Chunk(source.substring(chunkStart), chunkLine));
+        return chunks;
+    }
+
+    /**
+     * @return the global variables and functions of the program, in the order they are in the source.
+     */
+    private static List<Statement> definitionsInOrder(Prog prog) {
+        final List<Statement> definitions = new ArrayList<Statement>(prog.getVariables().size() + prog.getFunctions().size());
+        final List<VarDef> variables = prog.getVariables();
+        final List<Fun> functions = prog.getFunctions();
+        int v = 0;
+        int f = 0;
+        while (v < variables.size() || f < functions.size()) {
+            if (f >= functions.size() || (v < variables.size() && variables.get(v).getLine() <= functions.get(f).getLine())) {
+                definitions.add(variables.get(v++));
+            }
+            else {
+                definitions.add(functions.get(f++));
+            }
+        }
+        return definitions;
+    }
+
+    /**
+     * Moves the source positions of a node and the nodes in it by the specified number of lines.
+     */
+    private static void shiftLines(Node node, int lines) {
+        if (lines == 0) return;
+
+        final List<Node> pending = new ArrayList<Node>();
+        pending.add(node);
+        while (!pending.isEmpty()) {
+            final Node current = pending.remove(pending.size() - 1);
+            if (current.getLine() > 0) current.setPosition(current.getLine() + lines, current.getColumn());
+            Nodes.addChildren(current, pending);
+        }
+    }
+
+    /**
+     * @return the program stored with the hash in the directory, or null if there is none or it could not be read.
+     */
+    private Prog load(String hash) {
+        if (directory == null) return null;
+
+        final File file = new File(directory, hash + FILE_EXTENSION);
+        if (!file.isFile()) return null;
+
+        try {
+            final ObjectInputStream in = new ObjectInputStream(new BufferedInputStream(new FileInputStream(file)));
+            try {
+                if (in.readInt() != FILE_VERSION || !hash.equals(in.readUTF())) return null;
+                return (Prog) in.readObject();
+            }
+            finally {
+                in.close();
+            }
+        } catch (Exception e) {
+            // Written by an incompatible version of the syntax tree classes, parse again and overwrite it
+            return null;
+        }
+    }
+
+    /**
+     * Stores the program in the directory, if one is set.  The program is stored before it is resolved.
+     */
+    private void save(String hash, Prog prog) {
+        if (directory == null) return;
+
+        try {
+            if (!directory.isDirectory() && !directory.mkdirs()) throw new IOException("Could not create the directory");
+
+            // Write to a temporary file first, so that an interrupted write does not leave a broken file
+            final File file = new File(directory, hash + FILE_EXTENSION);
+            final File temporaryFile = new File(directory, hash + FILE_EXTENSION + ".tmp");
+            final ObjectOutputStream out = new ObjectOutputStream(new BufferedOutputStream(new FileOutputStream(temporaryFile)));
+            try {
+                out.writeInt(FILE_VERSION);
+                out.writeUTF(hash);
+                out.writeObject(prog);
+            }
+            finally {
+                out.close();
+            }
+            if (!temporaryFile.renameTo(file)) {
+                file.delete();
+                if (!temporaryFile.renameTo(file)) throw new IOException("Could not rename " + temporaryFile);
+            }
+        } catch (IOException e) {
+            // The cache is only an optimization, so carry on without it
+            System.err.println("Could not store parsed program in " + directory + ": " + e.getMessage());
+        }
+    }
+
+    /**
+     * @return SHA-1 hash of the text as a hex string.
+     */
+    static String hash(String source) {
+        try {
+            final byte[] digest = MessageDigest.getInstance("SHA-1").digest(source.getBytes("UTF-8"));
+            final StringBuilder hash = new StringBuilder(digest.length * 2);
+            for (byte b : digest) {
+                hash.append(Character.forDigit((b >> 4) & 0xF, 16));
+                hash.append(Character.forDigit(b & 0xF, 16));
+            }
+            return hash.toString();
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-1 is not available", e);
+        } catch (UnsupportedEncodingException e) {
+            throw new IllegalStateException("UTF-8 is not available", e);
+        }
+    }
+
+    /**
+     * A parsed and resolved program, with the chunks of its source.
+     */
+    private static final class CachedProg {
+        final Prog prog;
+        final List<Chunk> chunks;
+
+        CachedProg(Prog prog, List<Chunk> chunks) {
+            this.prog = prog;
+            this.chunks = chunks;
+        }
+    }
+
+    /**
+     * Part of a source with zero or more top level definitions.
+     */
+    private static final class Chunk {
+        final String text;
+        final int line;
+        final List<Statement> definitions = new ArrayList<Statement>(2);
+
+        Chunk(String text, int line) {
+            this.text = text;
+            this.line = line;
+        }
+    }
+}
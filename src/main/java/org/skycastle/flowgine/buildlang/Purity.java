@@ -0,0 +1,23 @@
+package org.skycastle.flowgine.buildlang;
+
+/**
+ * What a function depends on and affects besides its arguments and result, used to decide whether calls to it
+ * can be memoized.
+ */
+public enum Purity {
+
+    /**
+     * Depends only on its arguments, and affects nothing but its result and values created during the call.
+     */
+    PURE,
+
+    /**
+     * Like PURE, but may also emit geometry into the shape and change the current color, normal and origin.
+     */
+    GEOMETRY,
+
+    /**
+     * May depend on or affect anything.
+     */
+    IMPURE
+}
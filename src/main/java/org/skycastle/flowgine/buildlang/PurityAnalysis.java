@@ -0,0 +1,289 @@
+package org.skycastle.flowgine.buildlang;
+
+import org.skycastle.flowgine.buildlang.ast.*;
+
+import java.util.*;
+
+/**
+ * Infers the purity of the functions of a resolved program, and picks the functions whose calls are worth memoizing.
+ * <p/>
+ * A function is impure if it reads or assigns a global variable, calls a function value, or calls an impure
+ * function or builtin.  Otherwise it is GEOMETRY if it calls geometry functions, and PURE if not.
+ * Recursive functions are pure if nothing else makes them impure.
+ * <p/>
+ * Memoized functions get an id that is a hash of their syntax tree and the trees of the functions they call,
+ * so that the same function in another program, or in the same program optimized for other parameters,
+ * shares memoized calls only if it has the same code.
+ * <p/>
+ * A parallel loop can run its iterations in other threads if its body only calls pure or geometry functions and
+ * builtins.  The variables the body reads from outside of the loop should then also hold values that can be shared,
+ * which is checked when the loop is run.
+ */
+final class PurityAnalysis {
+
+    private final Builtins builtins;
+    private final Map<FunExpr, Info> infos = new IdentityHashMap<FunExpr, Info>();
+    private final List<Info> infosInOrder = new ArrayList<Info>();
+    private final List<FunExpr> memoizedFunctions = new ArrayList<FunExpr>();
+    private final Map<For, LoopInfo> loopInfos = new IdentityHashMap<For, LoopInfo>();
+
+    /**
+     * @param prog resolved program.
+     * @param builtins builtins the program was resolved with.
+     */
+    PurityAnalysis(Prog prog, Builtins builtins) {
+        this.builtins = builtins;
+
+        findFunctions(prog);
+        for (Info info : infosInOrder) {
+            scan(info.function, info, true);
+        }
+
+        // Spread impurity from callees to callers until nothing changes
+        boolean changed = true;
+        while (changed) {
+            changed = false;
+            for (Info info : infosInOrder) {
+                for (FunExpr callee : info.callees) {
+                    final Purity calleePurity = infos.get(callee).purity;
+                    if (calleePurity.compareTo(info.purity) > 0) {
+                        info.purity = calleePurity;
+                        changed = true;
+                    }
+                }
+            }
+        }
+
+        // Simple calculations are faster to repeat than to look up
+        for (Info info : infosInOrder) {
+            if (info.purity == Purity.GEOMETRY || (info.purity == Purity.PURE && (info.hasLoops || !info.callees.isEmpty()))) {
+                info.memoIndex = memoizedFunctions.size();
+                memoizedFunctions.add(info.function);
+                info.memoId = ProgCache.hash(code(info, new StringBuilder(), new IdentityHashMap<FunExpr, Boolean>()).toString());
+            }
+        }
+    }
+
+    /**
+     * @return purity of a function of the program.
+     */
+    Purity getPurity(FunExpr function) {
+        return info(function).purity;
+    }
+
+    /**
+     * @return index of the function among the memoized functions, or -1 if calls to it are not memoized.
+     */
+    int getMemoIndex(FunExpr function) {
+        final Info info = infos.get(function);
+        return info == null ? -1 : info.memoIndex;
+    }
+
+    /**
+     * @return functions whose calls are memoized, in the order of their memo indexes.
+     */
+    List<FunExpr> getMemoizedFunctions() {
+        return memoizedFunctions;
+    }
+
+    /**
+     * @return id of a memoized function, the same for functions with the same code, or null if it is not memoized.
+     */
+    String getMemoId(FunExpr function) {
+        return info(function).memoId;
+    }
+
+    /**
+     * @return true if the iterations of the parallel loop can be run in other threads, provided that the variables
+     *         read by the body from outside of the loop hold shareable values.
+     */
+    boolean isThreadSafe(For loop) {
+        return loopInfo(loop).threadSafe;
+    }
+
+    /**
+     * @return slots of the local variables declared outside of the loop that the body reads.
+     */
+    int[] getCapturedSlots(For loop) {
+        return loopInfo(loop).capturedSlots;
+    }
+
+    /**
+     * @return slots of the global variables that the body reads.
+     */
+    int[] getGlobalSlots(For loop) {
+        return loopInfo(loop).globalSlots;
+    }
+
+    private synchronized LoopInfo loopInfo(For loop) {
+        LoopInfo loopInfo = loopInfos.get(loop);
+        if (loopInfo == null) {
+            loopInfo = new LoopInfo();
+            final Set<Integer> captured = new TreeSet<Integer>();
+            final Set<Integer> globalSlots = new TreeSet<Integer>();
+            loopInfo.threadSafe = scanLoop(loop.getBlock(), loop, captured, globalSlots);
+            loopInfo.capturedSlots = toArray(captured);
+            loopInfo.globalSlots = toArray(globalSlots);
+            loopInfos.put(loop, loopInfo);
+        }
+        return loopInfo;
+    }
+
+    /**
+     * Collects the outer variables read by the node, outside of nested functions.
+     *
+     * @return false if the node calls something impure.
+     */
+    private boolean scanLoop(Node node, For loop, Set<Integer> captured, Set<Integer> globalSlots) {
+        boolean threadSafe = true;
+        if (node instanceof VarRef) {
+            final VarRef varRef = (VarRef) node;
+            if (varRef.getFunction() == null) {
+                if (varRef.isGlobal()) globalSlots.add(varRef.getSlot());
+                else if (varRef.getSlot() < loop.getSlot()) captured.add(varRef.getSlot());
+            }
+        }
+        else if (node instanceof Call) {
+            final Call call = (Call) node;
+            if (call.getFunction() != null) threadSafe = getPurity(call.getFunction().getFunction()) != Purity.IMPURE;
+            else if (call.getBuiltin() >= 0) threadSafe = builtins.get(call.getBuiltin()).getPurity() != Purity.IMPURE;
+            else threadSafe = false;
+        }
+
+        final List<Node> children = new ArrayList<Node>(4);
+        Nodes.addChildren(node, children);
+        for (Node child : children) {
+            if (!(child instanceof FunExpr)) threadSafe &= scanLoop(child, loop, captured, globalSlots);
+        }
+        return threadSafe;
+    }
+
+    private static int[] toArray(Set<Integer> values) {
+        final int[] array = new int[values.size()];
+        int i = 0;
+        for (Integer value : values) {
+            array[i++] = value;
+        }
+        return array;
+    }
+
+    private Info info(FunExpr function) {
+        final Info info = infos.get(function);
+        if (info == null) throw new IllegalArgumentException("The function is not part of the analysed program");
+        return info;
+    }
+
+    private void findFunctions(Node node) {
+        if (node instanceof FunExpr) {
+            final Info info = new Info((FunExpr) node);
+            infos.put(info.function, info);
+            infosInOrder.add(info);
+        }
+
+        final List<Node> children = new ArrayList<Node>(4);
+        Nodes.addChildren(node, children);
+        for (Node child : children) {
+            findFunctions(child);
+        }
+    }
+
+    /**
+     * Appends the code of a node to the code of the function, and records the effects of the node on the function,
+     * unless the node is in a nested function.
+     */
+    private void scan(Node node, Info info, boolean effects) {
+        final StringBuilder code = info.code;
+        code.append(node.getClass().getSimpleName());
+        appendDetails(node, code);
+
+        if (effects) {
+            if (node instanceof VarRef) {
+                final VarRef varRef = (VarRef) node;
+                if (varRef.getFunction() == null && varRef.isGlobal()) info.setPurity(Purity.IMPURE);
+            }
+            else if (node instanceof Assign) {
+                if (((Assign) node).isGlobal()) info.setPurity(Purity.IMPURE);
+            }
+            else if (node instanceof Call) {
+                final Call call = (Call) node;
+                if (call.getFunction() != null) info.callees.add(call.getFunction().getFunction());
+                else if (call.getBuiltin() >= 0) info.setPurity(builtins.get(call.getBuiltin()).getPurity());
+                else info.setPurity(Purity.IMPURE);
+            }
+            else if (node instanceof For || node instanceof While) {
+                info.hasLoops = true;
+            }
+        }
+
+        final List<Node> children = new ArrayList<Node>(4);
+        Nodes.addChildren(node, children);
+        code.append('(');
+        for (Node child : children) {
+            scan(child, info, effects && !(child instanceof FunExpr));
+            code.append(',');
+        }
+        code.append(')');
+    }
+
+    private static void appendDetails(Node node, StringBuilder code) {
+        final Object details;
+        if (node instanceof Num) details = ((Num) node).getValue();
+        else if (node instanceof BoolExpr) details = ((BoolExpr) node).getValue();
+        else if (node instanceof VarRef) details = ((VarRef) node).getName();
+        else if (node instanceof Call) details = ((Call) node).getName();
+        else if (node instanceof OperationNode) details = ((OperationNode) node).getOperator();
+        else if (node instanceof UnaryOp) details = ((UnaryOp) node).getOperator();
+        else if (node instanceof TypeRef) details = ((TypeRef) node).getTypeName();
+        else if (node instanceof VarDef) details = (((VarDef) node).isConstant() ? "const " : "") + ((VarDef) node).getName();
+        else if (node instanceof Param) details = ((Param) node).getName();
+        else if (node instanceof Assign) details = ((Assign) node).getVariableName();
+        else if (node instanceof For) details = (((For) node).isParallel() ? "parallel " : "") + ((For) node).getIteratorName();
+        else if (node instanceof Fun) details = ((Fun) node).getName();
+        else if (node instanceof RangeExpr) details = ((RangeExpr) node).isInclusive();
+        else return;
+        code.append('[').append(details).append(']');
+    }
+
+    /**
+     * Appends the code of the function and of the functions it calls, each function once.
+     */
+    private StringBuilder code(Info info, StringBuilder out, Map<FunExpr, Boolean> added) {
+        if (added.put(info.function, Boolean.TRUE) == null) {
+            out.append(info.code).append(';');
+            for (FunExpr callee : info.callees) {
+                code(infos.get(callee), out, added);
+            }
+        }
+        return out;
+    }
+
+    /**
+     * What is known about a parallel loop.
+     */
+    private static final class LoopInfo {
+        boolean threadSafe;
+        int[] capturedSlots;
+        int[] globalSlots;
+    }
+
+    /**
+     * What is known about a function.
+     */
+    private static final class Info {
+        final FunExpr function;
+        final StringBuilder code = new StringBuilder();
+        final List<FunExpr> callees = new ArrayList<FunExpr>();
+        Purity purity = Purity.PURE;
+        boolean hasLoops;
+        int memoIndex = -1;
+        String memoId;
+
+        Info(FunExpr function) {
+            this.function = function;
+        }
+
+        void setPurity(Purity atLeast) {
+            if (atLeast.compareTo(purity) > 0) purity = atLeast;
+        }
+    }
+}
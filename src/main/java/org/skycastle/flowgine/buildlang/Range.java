@@ -0,0 +1,69 @@
+package org.skycastle.flowgine.buildlang;
+
+/**
+ * Runtime value of a range expression, an arithmetic sequence of numbers.
+ */
+public final class Range {
+
+    private final double start;
+    private final double end;
+    private final double step;
+    private final boolean inclusive;
+
+    /**
+     * @param start first number of the range.
+     * @param end number where the range ends.
+     * @param step difference between consecutive numbers, may be negative but not zero.
+     * @param inclusive true if the end is included in the range if the steps land on it.
+     */
+    public Range(double start, double end, double step, boolean inclusive) {
+        if (step == 0 || Double.isNaN(step)) throw new IllegalArgumentException("The step of a range can not be " + step);
+
+        this.start = start;
+        this.end = end;
+        this.step = step;
+        this.inclusive = inclusive;
+    }
+
+    public double getStart() {
+        return start;
+    }
+
+    public double getEnd() {
+        return end;
+    }
+
+    public double getStep() {
+        return step;
+    }
+
+    public boolean isInclusive() {
+        return inclusive;
+    }
+
+    /**
+     * @return number of numbers in the range.
+     */
+    public int size() {
+        final double steps = (end - start) / step;
+        if (steps < 0) return 0;
+
+        // Tolerate rounding errors when landing on the end
+        final double rounded = Math.floor(steps + 1e-9);
+        final boolean landsOnEnd = Math.abs(steps - rounded) < 1e-9;
+        if (landsOnEnd && !inclusive) return (int) rounded;
+        else return (int) rounded + 1;
+    }
+
+    /**
+     * @return the number at the specified index of the range.
+     */
+    public double get(int index) {
+        return start + index * step;
+    }
+
+    @Override
+    public String toString() {
+        return "[" + start + (inclusive ? " ... " : " .. ") + end + " step " + step + "]";
+    }
+}
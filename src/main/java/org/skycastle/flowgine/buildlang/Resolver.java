@@ -0,0 +1,405 @@
+package org.skycastle.flowgine.buildlang;
+
+import org.skycastle.flowgine.buildlang.ast.*;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Analyzes a parsed program and resolves the names in it, so that it can be run without looking up names.
+ * <p/>
+ * Global variables get slots in an array of globals, in the order they are defined.  The parameters and local
+ * variables of a function get slots in a frame array allocated for each call, parameters first.  Slots of variables
+ * in a block are reused after the block.  Calls are resolved to named functions, builtins, or variables holding
+ * function values.
+ * <p/>
+ * Variable references and assignments are marked with whether the variable is declared as a number, so that
+ * number variables can be kept unboxed.
+ * <p/>
+ * Closures are not supported, so functions can not refer to the local variables of enclosing functions.
+ * <p/>
+ * The iterations of a parallel for loop may not depend on each other, so its body may not assign variables declared
+ * outside of it, or return from the function.
+ */
+public final class Resolver {
+
+    private final Builtins builtins;
+
+    private final Map<String, VarDef> globals = new HashMap<String, VarDef>();
+    private final Map<String, Fun> functions = new HashMap<String, Fun>();
+    private int visibleGlobalCount;
+    private FunctionScope current;
+
+    public Resolver(Builtins builtins) {
+        this.builtins = builtins;
+    }
+
+    /**
+     * Resolves the names in the program, and calculates the frame sizes of its functions.
+     * A program may be resolved again, e.g. after some of its definitions have been replaced.
+     * @throws IllegalArgumentException if the program refers to undefined names, or has other errors.
+     */
+    public void resolve(Prog prog) {
+        globals.clear();
+        functions.clear();
+
+        for (Fun fun : prog.getFunctions()) {
+            if (functions.containsKey(fun.getName())) throw new IllegalArgumentException("Function '" + fun.getName() + "' is defined more than once " + fun.getLocation());
+            functions.put(fun.getName(), fun);
+        }
+
+        // Initializers of global variables may only refer to earlier globals
+        current = new FunctionScope(null, false);
+        final List<VarDef> variables = prog.getVariables();
+        for (int i = 0; i < variables.size(); i++) {
+            final VarDef var = variables.get(i);
+            if (globals.containsKey(var.getName())) throw new IllegalArgumentException("Global variable '" + var.getName() + "' is defined more than once " + var.getLocation());
+
+            visibleGlobalCount = i;
+            resolveExpr(var.getExpr());
+            var.setSlot(i, true);
+            globals.put(var.getName(), var);
+        }
+        prog.setInitializerFrameSize(current.frameSize);
+        current = null;
+
+        // Functions may refer to all globals
+        visibleGlobalCount = variables.size();
+        for (Fun fun : prog.getFunctions()) {
+            resolveFunction(fun.getFunction());
+        }
+    }
+
+    private void resolveFunction(FunExpr function) {
+        final FunctionScope outer = current;
+        current = new FunctionScope(outer, true);
+        current.pushScope();
+
+        for (Param param : function.getParameters()) {
+            if (param.getDefaultValue() != null) resolveExpr(param.getDefaultValue());
+            current.declare(param.getName(), new Local(current.nextSlot++, false, param.getTypeRef().isNumber(), null));
+        }
+        current.updateFrameSize();
+
+        resolveBlock(function.getCode());
+
+        current.popScope();
+        function.setFrameSize(current.frameSize);
+        current = outer;
+    }
+
+    private void resolveBlock(Block block) {
+        current.pushScope();
+
+        // Declare local functions first, so that they can call each other
+        for (Statement statement : block.getStatements()) {
+            if (statement instanceof Fun) {
+                final Fun fun = (Fun) statement;
+                current.declare(fun.getName(), new Local(-1, true, false, fun));
+            }
+        }
+
+        for (Statement statement : block.getStatements()) {
+            resolveStatement(statement);
+        }
+
+        current.popScope();
+    }
+
+    private void resolveStatement(Statement statement) {
+        if (statement instanceof ExprStatement) {
+            resolveExpr(((ExprStatement) statement).getExpr());
+        }
+        else if (statement instanceof Assign) {
+            final Assign assign = (Assign) statement;
+            resolveExpr(assign.getExpression());
+
+            final String name = assign.getVariableName();
+            final Local local = current.lookup(name);
+            if (local != null) {
+                if (local.function != null) throw new IllegalArgumentException("Can not assign to function '" + name + "' " + assign.getLocation());
+                if (local.constant) throw new IllegalArgumentException("Can not assign to constant '" + name + "' " + assign.getLocation());
+                if (local.slot < current.parallelSlot) throw new IllegalArgumentException("Can not assign to '" + name + "' declared outside of the parallel loop " + assign.getLocation());
+                assign.setSlot(local.slot, false);
+                assign.setNumber(local.number);
+            }
+            else {
+                final VarDef global = lookupGlobal(name);
+                if (global == null) throw new IllegalArgumentException("Unknown variable '" + name + "' " + assign.getLocation());
+                if (global.isConstant()) throw new IllegalArgumentException("Can not assign to constant '" + name + "' " + assign.getLocation());
+                if (current.parallelSlot >= 0) throw new IllegalArgumentException("Can not assign to global variable '" + name + "' in a parallel loop " + assign.getLocation());
+                assign.setSlot(global.getSlot(), true);
+                assign.setNumber(global.getType().isNumber());
+            }
+        }
+        else if (statement instanceof VarDef) {
+            final VarDef var = (VarDef) statement;
+            resolveExpr(var.getExpr());
+
+            final int slot = current.nextSlot++;
+            current.updateFrameSize();
+            current.declare(var.getName(), new Local(slot, var.isConstant(), var.getType().isNumber(), null));
+            var.setSlot(slot, false);
+        }
+        else if (statement instanceof For) {
+            final For forStatement = (For) statement;
+            resolveExpr(forStatement.getRange());
+
+            current.pushScope();
+            final int slot = current.nextSlot++;
+            current.updateFrameSize();
+            current.declare(forStatement.getIteratorName(), new Local(slot, false, forStatement.getTypeRef().isNumber(), null));
+            forStatement.setSlot(slot);
+
+            final int outerParallelSlot = current.parallelSlot;
+            if (forStatement.isParallel()) current.parallelSlot = slot;
+            resolveBlock(forStatement.getBlock());
+            current.parallelSlot = outerParallelSlot;
+            current.popScope();
+        }
+        else if (statement instanceof While) {
+            final While whileStatement = (While) statement;
+            resolveExpr(whileStatement.getCondition());
+            resolveBlock(whileStatement.getBlock());
+        }
+        else if (statement instanceof Return) {
+            if (!current.function) throw new IllegalArgumentException("Return outside of a function " + statement.getLocation());
+            if (current.parallelSlot >= 0) throw new IllegalArgumentException("Return in a parallel loop " + statement.getLocation());
+            resolveExpr(((Return) statement).getExpr());
+        }
+        else if (statement instanceof Fun) {
+            resolveFunction(((Fun) statement).getFunction());
+        }
+        else {
+            throw new IllegalArgumentException("Unsupported statement " + statement);
+        }
+    }
+
+    private void resolveExpr(Expr expr) {
+        if (expr instanceof Num || expr instanceof BoolExpr) {
+            // Nothing to resolve
+        }
+        else if (expr instanceof VarRef) {
+            final VarRef varRef = (VarRef) expr;
+            final String name = varRef.getName();
+            varRef.setFunction(null);
+            varRef.setSlot(-1, false);
+            varRef.setNumber(false);
+            final Local local = current.lookup(name);
+            if (local != null) {
+                if (local.function != null) {
+                    varRef.setFunction(local.function);
+                }
+                else {
+                    varRef.setSlot(local.slot, false);
+                    varRef.setNumber(local.number);
+                }
+            }
+            else {
+                final VarDef global = lookupGlobal(name);
+                final Fun function = functions.get(name);
+                if (global != null) {
+                    varRef.setSlot(global.getSlot(), true);
+                    varRef.setNumber(global.getType().isNumber());
+                }
+                else if (function != null) varRef.setFunction(function);
+                else throw new IllegalArgumentException("Unknown variable '" + name + "' " + varRef.getLocation());
+            }
+        }
+        else if (expr instanceof OperationNode) {
+            final OperationNode operation = (OperationNode) expr;
+            resolveExpr(operation.getLeft());
+            resolveExpr(operation.getRight());
+        }
+        else if (expr instanceof UnaryOp) {
+            resolveExpr(((UnaryOp) expr).getOperand());
+        }
+        else if (expr instanceof Call) {
+            resolveCall((Call) expr);
+        }
+        else if (expr instanceof If) {
+            final If ifExpr = (If) expr;
+            resolveExpr(ifExpr.getCondition());
+            resolveBlock(ifExpr.getThenBlock());
+            if (ifExpr.getElseBlock() != null) resolveBlock(ifExpr.getElseBlock());
+        }
+        else if (expr instanceof RangeExpr) {
+            final RangeExpr range = (RangeExpr) expr;
+            resolveExpr(range.getStart());
+            resolveExpr(range.getEnd());
+            if (range.getStep() != null) resolveExpr(range.getStep());
+        }
+        else if (expr instanceof ListExpr) {
+            for (Expr element : ((ListExpr) expr).getElements()) {
+                resolveExpr(element);
+            }
+        }
+        else if (expr instanceof MapExpr) {
+            for (MapExpr.MapExprEntry entry : ((MapExpr) expr).getEntries()) {
+                resolveExpr(entry.getKey());
+                resolveExpr(entry.getValue());
+            }
+        }
+        else if (expr instanceof FunExpr) {
+            resolveFunction((FunExpr) expr);
+        }
+        else {
+            throw new IllegalArgumentException("Unsupported expression " + expr);
+        }
+    }
+
+    private void resolveCall(Call call) {
+        for (Expr argument : call.getArguments()) {
+            resolveExpr(argument);
+        }
+
+        final String name = call.getName();
+        final int argumentCount = call.getArguments().size();
+        call.setFunction(null);
+        call.setBuiltin(-1);
+        call.setSlot(-1, false);
+        final Local local = current.lookup(name);
+        if (local != null) {
+            if (local.function != null) {
+                checkArguments(local.function, call);
+                call.setFunction(local.function);
+            }
+            else {
+                call.setSlot(local.slot, false);
+            }
+            return;
+        }
+
+        final VarDef global = lookupGlobal(name);
+        if (global != null) {
+            call.setSlot(global.getSlot(), true);
+            return;
+        }
+
+        final Fun function = functions.get(name);
+        if (function != null) {
+            checkArguments(function, call);
+            call.setFunction(function);
+            return;
+        }
+
+        final int builtinIndex = builtins.getIndex(name);
+        if (builtinIndex >= 0) {
+            final Builtin builtin = builtins.get(builtinIndex);
+            if (argumentCount < builtin.getMinArguments() || argumentCount > builtin.getMaxArguments()) {
+                throw new IllegalArgumentException("Function '" + name + "' takes " + builtin.getMinArguments() +
+                                                   (builtin.getMaxArguments() != builtin.getMinArguments() ? " to " + builtin.getMaxArguments() : "") +
+                                                   " arguments, but was called with " + argumentCount + " " + call.getLocation());
+            }
+            call.setBuiltin(builtinIndex);
+            return;
+        }
+
+        throw new IllegalArgumentException("Unknown function '" + name + "' " + call.getLocation());
+    }
+
+    private void checkArguments(Fun function, Call call) {
+        final int argumentCount = call.getArguments().size();
+        final List<Param> parameters = function.getParameters();
+        int required = 0;
+        for (Param parameter : parameters) {
+            if (parameter.getDefaultValue() == null) required++;
+        }
+        if (argumentCount < required || argumentCount > parameters.size()) {
+            throw new IllegalArgumentException("Function '" + function.getName() + "' takes " +
+                                               (required != parameters.size() ? required + " to " : "") + parameters.size() +
+                                               " arguments, but was called with " + argumentCount + " " + call.getLocation());
+        }
+    }
+
+    private VarDef lookupGlobal(String name) {
+        final VarDef global = globals.get(name);
+        if (global != null && global.getSlot() < visibleGlobalCount) return global;
+        else return null;
+    }
+
+    /**
+     * Local variable or function.
+     */
+    private static final class Local {
+        final int slot;
+        final boolean constant;
+        final boolean number;
+        final Fun function;
+
+        Local(int slot, boolean constant, boolean number, Fun function) {
+            this.slot = slot;
+            this.constant = constant;
+            this.number = number;
+            this.function = function;
+        }
+    }
+
+    /**
+     * Block scopes and frame slots of a function being resolved.
+     */
+    private static final class FunctionScope {
+        final FunctionScope outer;
+        final boolean function;
+        final List<Map<String, Local>> scopes = new ArrayList<Map<String, Local>>();
+        final List<Integer> scopeStartSlots = new ArrayList<Integer>();
+        int nextSlot;
+        int frameSize;
+
+        /**
+         * First slot of the innermost parallel loop being resolved, or -1 if not in a parallel loop.
+         */
+        int parallelSlot = -1;
+
+        FunctionScope(FunctionScope outer, boolean function) {
+            this.outer = outer;
+            this.function = function;
+        }
+
+        void pushScope() {
+            scopes.add(new HashMap<String, Local>());
+            scopeStartSlots.add(nextSlot);
+        }
+
+        void popScope() {
+            scopes.remove(scopes.size() - 1);
+            nextSlot = scopeStartSlots.remove(scopeStartSlots.size() - 1);
+        }
+
+        void updateFrameSize() {
+            frameSize = Math.max(frameSize, nextSlot);
+        }
+
+        void declare(String name, Local local) {
+            final Map<String, Local> scope = scopes.get(scopes.size() - 1);
+            if (scope.containsKey(name)) throw new IllegalArgumentException("'" + name + "' is defined more than once");
+            scope.put(name, local);
+        }
+
+        /**
+         * @return the local with the name, or null if not found in this function.
+         * @throws IllegalArgumentException if the name refers to a local of an enclosing function.
+         */
+        Local lookup(String name) {
+            for (int i = scopes.size() - 1; i >= 0; i--) {
+                final Local local = scopes.get(i).get(name);
+                if (local != null) return local;
+            }
+
+            // Local functions of enclosing functions do not need a closure
+            for (FunctionScope scope = outer; scope != null; scope = scope.outer) {
+                for (int i = scope.scopes.size() - 1; i >= 0; i--) {
+                    final Local local = scope.scopes.get(i).get(name);
+                    if (local != null) {
+                        if (local.function != null) return local;
+                        throw new IllegalArgumentException("Closures are not supported, can not refer to '" + name + "' of an enclosing function");
+                    }
+                }
+            }
+
+            return null;
+        }
+    }
+}
@@ -0,0 +1,56 @@
+package org.skycastle.flowgine.buildlang;
+
+import org.skycastle.flowgine.geometry.Col4;
+import org.skycastle.flowgine.geometry.Vec2;
+import org.skycastle.flowgine.geometry.Vec3;
+import org.skycastle.flowgine.shape.Shape;
+
+/**
+ * Generator that adds the generated geometry to a Shape.  If the shape already has vertexes, the generated vertexes
+ * are added after them, and the indexes adjusted accordingly.
+ */
+public final class ShapeGenerator implements Generator {
+
+    private final Shape shape;
+    private int firstVertex;
+
+    public ShapeGenerator() {
+        this(null);
+    }
+
+    /**
+     * @param shape shape to add the geometry to, or null to create a new shape.
+     */
+    public ShapeGenerator(Shape shape) {
+        this.shape = shape != null ? shape : new Shape();
+    }
+
+    /**
+     * @return the shape the geometry is added to.
+     */
+    public Shape getShape() {
+        return shape;
+    }
+
+    public void begin() {
+        firstVertex = shape.getVertexCount();
+    }
+
+    public void addVertexes(float[] positions, float[] normals, float[] texturePositions, float[] colors, int count) {
+        for (int i = 0; i < count; i++) {
+            shape.addVertex(new Vec3(positions[i * 3], positions[i * 3 + 1], positions[i * 3 + 2]),
+                            new Vec2(texturePositions[i * 2], texturePositions[i * 2 + 1]),
+                            new Col4(colors[i * 4], colors[i * 4 + 1], colors[i * 4 + 2], colors[i * 4 + 3]),
+                            new Vec3(normals[i * 3], normals[i * 3 + 1], normals[i * 3 + 2]));
+        }
+    }
+
+    public void addIndexes(int[] indexes, int count) {
+        for (int i = 0; i < count; i++) {
+            shape.addIndex(firstVertex + indexes[i]);
+        }
+    }
+
+    public void end() {
+    }
+}
@@ -0,0 +1,143 @@
+package org.skycastle.flowgine.buildlang;
+
+import java.io.*;
+
+/**
+ * Generator that writes the generated geometry to a stream in a simple binary format, e.g. to store a large mesh
+ * in a file without keeping it in memory.  The mesh can be read back into any generator with read.
+ * <p/>
+ * The format is a header with the magic number and version, followed by the blocks as they were generated,
+ * each a tag byte and a count, followed by the vertexes (position, normal, texture position and color floats for
+ * each vertex) or the indexes.  A zero tag ends the mesh.  Numbers are big endian, as written by a DataOutputStream.
+ */
+public final class StreamGenerator implements Generator {
+
+    private static final int MAGIC = 0x464D5348;
+    private static final int VERSION = 1;
+
+    private static final int END_TAG = 0;
+    private static final int VERTEXES_TAG = 1;
+    private static final int INDEXES_TAG = 2;
+
+    private final DataOutputStream out;
+
+    /**
+     * @param out stream to write to.  It is flushed after each mesh, but not closed.
+     */
+    public StreamGenerator(OutputStream out) {
+        if (out == null) throw new IllegalArgumentException("out should not be null");
+        this.out = new DataOutputStream(new BufferedOutputStream(out));
+    }
+
+    public void begin() {
+        try {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+        } catch (IOException e) {
+            throw writeFailed(e);
+        }
+    }
+
+    public void addVertexes(float[] positions, float[] normals, float[] texturePositions, float[] colors, int count) {
+        try {
+            out.writeByte(VERTEXES_TAG);
+            out.writeInt(count);
+            for (int i = 0; i < count; i++) {
+                writeFloats(positions, i * 3, 3);
+                writeFloats(normals, i * 3, 3);
+                writeFloats(texturePositions, i * 2, 2);
+                writeFloats(colors, i * 4, 4);
+            }
+        } catch (IOException e) {
+            throw writeFailed(e);
+        }
+    }
+
+    public void addIndexes(int[] indexes, int count) {
+        try {
+            out.writeByte(INDEXES_TAG);
+            out.writeInt(count);
+            for (int i = 0; i < count; i++) {
+                out.writeInt(indexes[i]);
+            }
+        } catch (IOException e) {
+            throw writeFailed(e);
+        }
+    }
+
+    public void end() {
+        try {
+            out.writeByte(END_TAG);
+            out.flush();
+        } catch (IOException e) {
+            throw writeFailed(e);
+        }
+    }
+
+    /**
+     * Reads a mesh written by a StreamGenerator, and passes it to a generator in blocks.
+     *
+     * @param in stream to read from.  Not closed.
+     * @param generator generator to pass the mesh to.
+     * @throws IOException if the stream could not be read, or does not contain a mesh.
+     */
+    public static void read(InputStream in, Generator generator) throws IOException {
+        final DataInputStream data = new DataInputStream(new BufferedInputStream(in));
+        if (data.readInt() != MAGIC) throw new IOException("Not a mesh stream");
+        final int version = data.readInt();
+        if (version != VERSION) throw new IOException("Unsupported mesh stream version " + version);
+
+        final float[] positions = new float[BuildContext.BLOCK_SIZE * 3];
+        final float[] normals = new float[BuildContext.BLOCK_SIZE * 3];
+        final float[] texturePositions = new float[BuildContext.BLOCK_SIZE * 2];
+        final float[] colors = new float[BuildContext.BLOCK_SIZE * 4];
+        final int[] indexes = new int[BuildContext.BLOCK_SIZE * 3];
+
+        generator.begin();
+        try {
+            int tag;
+            while ((tag = data.readByte()) != END_TAG) {
+                final int count = data.readInt();
+                if (tag == VERTEXES_TAG) {
+                    if (count < 0 || count > BuildContext.BLOCK_SIZE) throw new IOException("Invalid vertex count " + count);
+                    for (int i = 0; i < count; i++) {
+                        readFloats(data, positions, i * 3, 3);
+                        readFloats(data, normals, i * 3, 3);
+                        readFloats(data, texturePositions, i * 2, 2);
+                        readFloats(data, colors, i * 4, 4);
+                    }
+                    generator.addVertexes(positions, normals, texturePositions, colors, count);
+                }
+                else if (tag == INDEXES_TAG) {
+                    if (count < 0 || count > indexes.length || count % 3 != 0) throw new IOException("Invalid index count " + count);
+                    for (int i = 0; i < count; i++) {
+                        indexes[i] = data.readInt();
+                    }
+                    generator.addIndexes(indexes, count);
+                }
+                else {
+                    throw new IOException("Unknown block type " + tag);
+                }
+            }
+        }
+        finally {
+            generator.end();
+        }
+    }
+
+    private void writeFloats(float[] values, int start, int count) throws IOException {
+        for (int i = start; i < start + count; i++) {
+            out.writeFloat(values[i]);
+        }
+    }
+
+    private static void readFloats(DataInputStream data, float[] values, int start, int count) throws IOException {
+        for (int i = start; i < start + count; i++) {
+            values[i] = data.readFloat();
+        }
+    }
+
+    private static IllegalStateException writeFailed(IOException e) {
+        return new IllegalStateException("Could not write the mesh: " + e.getMessage(), e);
+    }
+}
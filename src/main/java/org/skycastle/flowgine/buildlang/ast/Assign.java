@@ -4,11 +4,57 @@ package org.skycastle.flowgine.buildlang.ast;
  *
  */
 public class Assign extends Statement {
+
+    private static final long serialVersionUID = 1L;
+
     private final String variableName;
     private final Expr expression;
 
+    private int slot = -1;
+    private boolean global;
+    private boolean number;
+
     public Assign(String variableName, Expr expression) {
         this.variableName = variableName;
         this.expression = expression;
     }
+
+    public String getVariableName() {
+        return variableName;
+    }
+
+    public Expr getExpression() {
+        return expression;
+    }
+
+    /**
+     * @return index of the assigned variable in the global variables or the frame of the enclosing function,
+     *         or -1 if not yet resolved.
+     */
+    public int getSlot() {
+        return slot;
+    }
+
+    /**
+     * @return true if the assigned variable is a global variable of the program.
+     */
+    public boolean isGlobal() {
+        return global;
+    }
+
+    public void setSlot(int slot, boolean global) {
+        this.slot = slot;
+        this.global = global;
+    }
+
+    /**
+     * @return true if the variable is declared as a number.
+     */
+    public boolean isNumber() {
+        return number;
+    }
+
+    public void setNumber(boolean number) {
+        this.number = number;
+    }
 }
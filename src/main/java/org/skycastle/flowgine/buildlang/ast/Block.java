@@ -6,7 +6,9 @@ import java.util.List;
 /**
  * Block of statements
  */
-public class Block implements Node {
+public class Block extends NodeBase {
+
+    private static final long serialVersionUID = 1L;
 
     private final List<Statement> statements = new ArrayList<Statement>();
 
@@ -25,4 +27,7 @@ public class Block implements Node {
         return true;
     }
 
+    public List<Statement> getStatements() {
+        return statements;
+    }
 }
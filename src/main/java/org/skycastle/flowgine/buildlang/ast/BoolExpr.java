@@ -1,7 +1,19 @@
 package org.skycastle.flowgine.buildlang.ast;
 
 /**
- *
+ * Boolean constant, true or false.
  */
-public class BoolExpr {
+public class BoolExpr extends NodeBase implements Expr {
+
+    private static final long serialVersionUID = 1L;
+
+    private final boolean value;
+
+    public BoolExpr(boolean value) {
+        this.value = value;
+    }
+
+    public boolean getValue() {
+        return value;
+    }
 }
@@ -0,0 +1,79 @@
+package org.skycastle.flowgine.buildlang.ast;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Calls a function with positional arguments.
+ * The function is either a named function, a builtin function, or a function value stored in a variable.
+ */
+public class Call extends NodeBase implements Expr {
+
+    private static final long serialVersionUID = 1L;
+
+    private final String name;
+    private final List<Expr> arguments = new ArrayList<Expr>();
+
+    private Fun function;
+    private int builtin = -1;
+    private int slot = -1;
+    private boolean global;
+
+    public Call(String name) {
+        this.name = name;
+    }
+
+    public boolean addArgument(Expr argument) {
+        arguments.add(argument);
+        return true;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public List<Expr> getArguments() {
+        return arguments;
+    }
+
+    /**
+     * @return the called named function, or null if the call is not to a named function.
+     */
+    public Fun getFunction() {
+        return function;
+    }
+
+    public void setFunction(Fun function) {
+        this.function = function;
+    }
+
+    /**
+     * @return index of the called builtin function, or -1 if the call is not to a builtin function.
+     */
+    public int getBuiltin() {
+        return builtin;
+    }
+
+    public void setBuiltin(int builtin) {
+        this.builtin = builtin;
+    }
+
+    /**
+     * @return index of the variable holding the called function value, or -1 if the call is not to a function value.
+     */
+    public int getSlot() {
+        return slot;
+    }
+
+    /**
+     * @return true if the variable holding the called function value is a global variable.
+     */
+    public boolean isGlobal() {
+        return global;
+    }
+
+    public void setSlot(int slot, boolean global) {
+        this.slot = slot;
+        this.global = global;
+    }
+}
@@ -4,9 +4,16 @@ package org.skycastle.flowgine.buildlang.ast;
  *
  */
 public class ExprStatement extends Statement {
+
+    private static final long serialVersionUID = 1L;
+
     private final Expr expr;
 
     public ExprStatement(Expr expr) {
         this.expr = expr;
     }
+
+    public Expr getExpr() {
+        return expr;
+    }
 }
@@ -4,15 +4,63 @@ package org.skycastle.flowgine.buildlang.ast;
  *
  */
 public class For extends Statement {
+
+    private static final long serialVersionUID = 1L;
+
     private final TypeRef typeRef;
     private final String iteratorName;
     private final Expr range;
     private final Block block;
+    private final boolean parallel;
+
+    private int slot = -1;
 
     public For(TypeRef typeRef, String iteratorName, Expr range, Block block) {
+        this(typeRef, iteratorName, range, block, false);
+    }
+
+    /**
+     * @param parallel true if the iterations are independent of each other, and may be run in parallel.
+     */
+    public For(TypeRef typeRef, String iteratorName, Expr range, Block block, boolean parallel) {
         this.typeRef = typeRef;
         this.iteratorName = iteratorName;
         this.range = range;
         this.block = block;
+        this.parallel = parallel;
+    }
+
+    public TypeRef getTypeRef() {
+        return typeRef;
+    }
+
+    public String getIteratorName() {
+        return iteratorName;
+    }
+
+    public Expr getRange() {
+        return range;
+    }
+
+    public Block getBlock() {
+        return block;
+    }
+
+    /**
+     * @return true if the iterations are independent of each other, and may be run in parallel.
+     */
+    public boolean isParallel() {
+        return parallel;
+    }
+
+    /**
+     * @return index of the iterator variable in the frame of the enclosing function, or -1 if not yet resolved.
+     */
+    public int getSlot() {
+        return slot;
+    }
+
+    public void setSlot(int slot) {
+        this.slot = slot;
     }
 }
@@ -1,23 +1,39 @@
 package org.skycastle.flowgine.buildlang.ast;
 
-import java.util.ArrayList;
 import java.util.List;
 
 /**
- *
+ * Named function definition, a name for a FunExpr.
  */
-// TODO: Should it basically be a name and a FunExpr?  Or even a const assignment of a fun expr to a var?
 public class Fun extends Statement {
 
+    private static final long serialVersionUID = 1L;
+
     private final String name;
-    private final TypeRef typeRef;
-    private final List<Param> parameters = new ArrayList<Param>();
-    private final Block code;
+    private final FunExpr function;
 
     public Fun(String name, TypeRef typeRef, List<Param> parameters, Block code) {
         this.name = name;
-        this.typeRef = typeRef;
-        this.parameters.addAll(parameters);
-        this.code = code;
+        this.function = new FunExpr(typeRef, parameters, code);
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public FunExpr getFunction() {
+        return function;
+    }
+
+    public TypeRef getTypeRef() {
+        return function.getTypeRef();
+    }
+
+    public List<Param> getParameters() {
+        return function.getParameters();
+    }
+
+    public Block getCode() {
+        return function.getCode();
     }
 }
@@ -4,18 +4,46 @@ import java.util.ArrayList;
 import java.util.List;
 
 /**
- *
+ * Anonymous function.  Closures are not supported, so the code can only refer to its own parameters and
+ * variables, global variables and top level functions.
  */
-// TODO: How to model closures?
-public class FunExpr implements Expr{
+public class FunExpr extends NodeBase implements Expr {
+
+    private static final long serialVersionUID = 1L;
+
     private final TypeRef typeRef;
     private final List<Param> parameters = new ArrayList<Param>();
     private final Block code;
 
+    private int frameSize = -1;
+
     public FunExpr(TypeRef typeRef, List<Param> parameters, Block code) {
         this.typeRef = typeRef;
         this.parameters.addAll(parameters);
         this.code = code;
     }
 
+    public TypeRef getTypeRef() {
+        return typeRef;
+    }
+
+    public List<Param> getParameters() {
+        return parameters;
+    }
+
+    public Block getCode() {
+        return code;
+    }
+
+    /**
+     * @return number of variable slots needed by a call to the function, including the parameters,
+     *         or -1 if not yet resolved.
+     */
+    public int getFrameSize() {
+        return frameSize;
+    }
+
+    public void setFrameSize(int frameSize) {
+        this.frameSize = frameSize;
+    }
 }
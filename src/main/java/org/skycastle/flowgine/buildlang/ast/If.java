@@ -1,14 +1,17 @@
 package org.skycastle.flowgine.buildlang.ast;
 
 /**
- *
+ * Conditional.  As an expression, its value is the value of the last expression statement run in the chosen block.
  */
-public class If implements Expr {
-    private final BoolExpr condition;
+public class If extends NodeBase implements Expr {
+
+    private static final long serialVersionUID = 1L;
+
+    private final Expr condition;
     private final Block thenBlock;
     private Block elseBlock = null;
 
-    public If(BoolExpr condition, Block thenBlock) {
+    public If(Expr condition, Block thenBlock) {
         this.condition = condition;
         this.thenBlock = thenBlock;
     }
@@ -17,4 +20,19 @@ public class If implements Expr {
         this.elseBlock = elseBlock;
         return true;
     }
+
+    public Expr getCondition() {
+        return condition;
+    }
+
+    public Block getThenBlock() {
+        return thenBlock;
+    }
+
+    /**
+     * @return the else block, or null if there is none.
+     */
+    public Block getElseBlock() {
+        return elseBlock;
+    }
 }
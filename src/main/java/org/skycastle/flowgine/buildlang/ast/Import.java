@@ -3,10 +3,17 @@ package org.skycastle.flowgine.buildlang.ast;
 /**
  *
  */
-public class Import implements Node {
+public class Import extends NodeBase {
+
+    private static final long serialVersionUID = 1L;
+
     private final String importRef;
 
     public Import(String importRef) {
         this.importRef = importRef;
     }
+
+    public String getImportRef() {
+        return importRef;
+    }
 }
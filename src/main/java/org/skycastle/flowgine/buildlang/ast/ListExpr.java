@@ -6,7 +6,10 @@ import java.util.List;
 /**
  *
  */
-public class ListExpr implements Expr {
+public class ListExpr extends NodeBase implements Expr {
+
+    private static final long serialVersionUID = 1L;
+
     private final List<Expr> elements = new ArrayList<Expr>();
 
     public ListExpr() {
@@ -17,5 +20,7 @@ public class ListExpr implements Expr {
         return true;
     }
 
-
+    public List<Expr> getElements() {
+        return elements;
+    }
 }
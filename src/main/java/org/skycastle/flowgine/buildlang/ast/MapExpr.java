@@ -1,12 +1,16 @@
 package org.skycastle.flowgine.buildlang.ast;
 
+import java.io.Serializable;
 import java.util.ArrayList;
 import java.util.List;
 
 /**
  *
  */
-public class MapExpr implements Expr {
+public class MapExpr extends NodeBase implements Expr {
+
+    private static final long serialVersionUID = 1L;
+
     private final List<MapExprEntry> entries = new ArrayList<MapExprEntry>();
 
     public MapExpr() {
@@ -17,8 +21,15 @@ public class MapExpr implements Expr {
         return true;
     }
 
+    public List<MapExprEntry> getEntries() {
+        return entries;
+    }
+
+
+    public static class MapExprEntry implements Serializable {
+
+        private static final long serialVersionUID = 1L;
 
-    public static class MapExprEntry {
         private final Expr key;
         private final Expr value;
 
@@ -1,7 +1,23 @@
 package org.skycastle.flowgine.buildlang.ast;
 
 /**
- *
+ * Node of the syntax tree of a program.
  */
 public interface Node {
+
+    /**
+     * @return line of the source where the node starts, starting from 1, or 0 if not known.
+     */
+    int getLine();
+
+    /**
+     * @return column of the source where the node starts, starting from 1, or 0 if not known.
+     */
+    int getColumn();
+
+    /**
+     * Sets the location of the node in the source.
+     * @return we need to return something for usage in rules, so return true.
+     */
+    boolean setPosition(int line, int column);
 }
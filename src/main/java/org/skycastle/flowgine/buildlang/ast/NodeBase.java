@@ -0,0 +1,37 @@
+package org.skycastle.flowgine.buildlang.ast;
+
+import java.io.Serializable;
+
+/**
+ * Common functionality of syntax tree nodes.
+ * Nodes are serializable, so that parsed programs can be cached on disk.
+ */
+public abstract class NodeBase implements Node, Serializable {
+
+    private static final long serialVersionUID = 1L;
+
+    private int line;
+    private int column;
+
+    public final int getLine() {
+        return line;
+    }
+
+    public final int getColumn() {
+        return column;
+    }
+
+    public final boolean setPosition(int line, int column) {
+        this.line = line;
+        this.column = column;
+        return true;
+    }
+
+    /**
+     * @return description of the location of the node in the source, for error messages.
+     */
+    public final String getLocation() {
+        if (line <= 0) return "at unknown location";
+        return "at line " + line + ", column " + column;
+    }
+}
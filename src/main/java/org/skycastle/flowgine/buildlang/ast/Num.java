@@ -3,11 +3,17 @@ package org.skycastle.flowgine.buildlang.ast;
 /**
  *
  */
-public class Num implements Expr {
+public class Num extends NodeBase implements Expr {
+
+    private static final long serialVersionUID = 1L;
 
     private final double value;
 
     public Num(double value) {
         this.value = value;
     }
+
+    public double getValue() {
+        return value;
+    }
 }
@@ -3,7 +3,10 @@ package org.skycastle.flowgine.buildlang.ast;
 /**
  *
  */
-public class OperationNode implements Expr {
+public class OperationNode extends NodeBase implements Expr {
+
+    private static final long serialVersionUID = 1L;
+
     private final String operator;
     private final Expr left;
     private final Expr right;
@@ -14,5 +17,15 @@ public class OperationNode implements Expr {
         this.right = right;
     }
 
+    public String getOperator() {
+        return operator;
+    }
+
+    public Expr getLeft() {
+        return left;
+    }
 
+    public Expr getRight() {
+        return right;
+    }
 }
@@ -3,7 +3,10 @@ package org.skycastle.flowgine.buildlang.ast;
 /**
  *
  */
-public class Param implements Node {
+public class Param extends NodeBase {
+
+    private static final long serialVersionUID = 1L;
+
     private final TypeRef typeRef;
     private final String name;
     private Expr defaultValue;
@@ -13,6 +16,14 @@ public class Param implements Node {
         this.name = name;
     }
 
+    public TypeRef getTypeRef() {
+        return typeRef;
+    }
+
+    public String getName() {
+        return name;
+    }
+
     public Expr getDefaultValue() {
         return defaultValue;
     }
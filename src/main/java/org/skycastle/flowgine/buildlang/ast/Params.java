@@ -8,7 +8,10 @@ import java.util.List;
 /**
  *
  */
-public class Params implements Node {
+public class Params extends NodeBase {
+
+    private static final long serialVersionUID = 1L;
+
     private final List<Param> params = new ArrayList<Param>();
 
     public Params() {
@@ -1,18 +1,21 @@
 package org.skycastle.flowgine.buildlang.ast;
 
-import org.parboiled.support.Var;
-
 import java.util.ArrayList;
 import java.util.List;
 
 /**
- *
+ * A program, with global variables and functions.
  */
-public class Prog implements Node{
+public class Prog extends NodeBase {
+
+    private static final long serialVersionUID = 1L;
+
     private final List<Import> imports = new ArrayList<Import>();
-    private final List<Var> variables = new ArrayList<Var>();
+    private final List<VarDef> variables = new ArrayList<VarDef>();
     private final List<Fun> functions = new ArrayList<Fun>();
 
+    private int initializerFrameSize = -1;
+
     public Prog() {
     }
 
@@ -21,7 +24,7 @@ public class Prog implements Node{
         return true;
     }
 
-    public boolean addVar(Var var) {
+    public boolean addVar(VarDef var) {
         variables.add(var);
         return true;
     }
@@ -31,4 +34,40 @@ public class Prog implements Node{
         return true;
     }
 
+    public List<Import> getImports() {
+        return imports;
+    }
+
+    /**
+     * @return the global variables, in the order they are initialized.
+     */
+    public List<VarDef> getVariables() {
+        return variables;
+    }
+
+    public List<Fun> getFunctions() {
+        return functions;
+    }
+
+    /**
+     * @return the top level function with the specified name, or null if there is none.
+     */
+    public Fun getFunction(String name) {
+        for (Fun function : functions) {
+            if (function.getName().equals(name)) return function;
+        }
+        return null;
+    }
+
+    /**
+     * @return number of variable slots needed when running the initializers of the global variables,
+     *         or -1 if not yet resolved.
+     */
+    public int getInitializerFrameSize() {
+        return initializerFrameSize;
+    }
+
+    public void setInitializerFrameSize(int initializerFrameSize) {
+        this.initializerFrameSize = initializerFrameSize;
+    }
 }
@@ -3,7 +3,9 @@ package org.skycastle.flowgine.buildlang.ast;
 /**
  *
  */
-public class RangeExpr implements Expr {
+public class RangeExpr extends NodeBase implements Expr {
+
+    private static final long serialVersionUID = 1L;
 
     private final Expr start;
     private final Expr end;
@@ -21,5 +23,22 @@ public class RangeExpr implements Expr {
         return true;
     }
 
+    public Expr getStart() {
+        return start;
+    }
+
+    public Expr getEnd() {
+        return end;
+    }
 
+    public boolean isInclusive() {
+        return inclusive;
+    }
+
+    /**
+     * @return the step expression, or null if the step is one.
+     */
+    public Expr getStep() {
+        return step;
+    }
 }
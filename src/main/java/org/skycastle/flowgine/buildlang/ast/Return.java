@@ -5,9 +5,15 @@ package org.skycastle.flowgine.buildlang.ast;
  */
 public class Return extends Statement {
 
+    private static final long serialVersionUID = 1L;
+
     private final Expr expr;
 
     public Return(Expr expr) {
         this.expr = expr;
     }
+
+    public Expr getExpr() {
+        return expr;
+    }
 }
@@ -3,5 +3,8 @@ package org.skycastle.flowgine.buildlang.ast;
 /**
  *
  */
-public class Statement implements Node {
+public class Statement extends NodeBase {
+
+    private static final long serialVersionUID = 1L;
+
 }
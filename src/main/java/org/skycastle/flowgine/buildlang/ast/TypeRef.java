@@ -3,10 +3,31 @@ package org.skycastle.flowgine.buildlang.ast;
 /**
  *
  */
-public class TypeRef implements Node {
+public class TypeRef extends NodeBase {
+
+    private static final long serialVersionUID = 1L;
+
     private final String typeName;
 
     public TypeRef(String typeName) {
         this.typeName = typeName;
     }
+
+    public String getTypeName() {
+        return typeName;
+    }
+
+    /**
+     * @return true if this is the number type.
+     */
+    public boolean isNumber() {
+        return typeName.equals("num");
+    }
+
+    /**
+     * @return true if this is the boolean type.
+     */
+    public boolean isBoolean() {
+        return typeName.equals("bool");
+    }
 }
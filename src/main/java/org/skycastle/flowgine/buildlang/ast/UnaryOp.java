@@ -0,0 +1,25 @@
+package org.skycastle.flowgine.buildlang.ast;
+
+/**
+ * Operator with one operand, "-" or "not".
+ */
+public class UnaryOp extends NodeBase implements Expr {
+
+    private static final long serialVersionUID = 1L;
+
+    private final String operator;
+    private final Expr operand;
+
+    public UnaryOp(String operator, Expr operand) {
+        this.operator = operator;
+        this.operand = operand;
+    }
+
+    public String getOperator() {
+        return operator;
+    }
+
+    public Expr getOperand() {
+        return operand;
+    }
+}
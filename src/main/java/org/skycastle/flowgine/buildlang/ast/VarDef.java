@@ -4,11 +4,17 @@ package org.skycastle.flowgine.buildlang.ast;
  *
  */
 public class VarDef extends Statement {
+
+    private static final long serialVersionUID = 1L;
+
     private TypeRef type;
     private boolean constant = false;
     private String name;
     private Expr expr;
 
+    private int slot = -1;
+    private boolean global;
+
     public VarDef() {
     }
 
@@ -54,4 +60,24 @@ public class VarDef extends Statement {
         this.expr = expr;
         return true;
     }
+
+    /**
+     * @return index of the variable in the global variables or the frame of the enclosing function,
+     *         or -1 if not yet resolved.
+     */
+    public int getSlot() {
+        return slot;
+    }
+
+    /**
+     * @return true if this is a global variable of the program.
+     */
+    public boolean isGlobal() {
+        return global;
+    }
+
+    public void setSlot(int slot, boolean global) {
+        this.slot = slot;
+        this.global = global;
+    }
 }
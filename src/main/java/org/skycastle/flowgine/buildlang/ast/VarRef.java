@@ -1,9 +1,66 @@
 package org.skycastle.flowgine.buildlang.ast;
 
 /**
- *
+ * Reads the value of a variable, or a named function as a function value.
  */
-public class VarRef implements Node {
+public class VarRef extends NodeBase implements Expr {
 
+    private static final long serialVersionUID = 1L;
 
+    private final String name;
+
+    private int slot = -1;
+    private boolean global;
+    private boolean number;
+    private Fun function;
+
+    public VarRef(String name) {
+        this.name = name;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * @return index of the variable in the global variables or the frame of the enclosing function,
+     *         or -1 if not yet resolved or if it refers to a top level function.
+     */
+    public int getSlot() {
+        return slot;
+    }
+
+    /**
+     * @return true if the variable is a global variable of the program.
+     */
+    public boolean isGlobal() {
+        return global;
+    }
+
+    public void setSlot(int slot, boolean global) {
+        this.slot = slot;
+        this.global = global;
+    }
+
+    /**
+     * @return true if the variable is declared as a number.
+     */
+    public boolean isNumber() {
+        return number;
+    }
+
+    public void setNumber(boolean number) {
+        this.number = number;
+    }
+
+    /**
+     * @return the top level function referred to, or null if this refers to a variable.
+     */
+    public Fun getFunction() {
+        return function;
+    }
+
+    public void setFunction(Fun function) {
+        this.function = function;
+    }
 }
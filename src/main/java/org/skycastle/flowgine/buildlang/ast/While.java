@@ -4,11 +4,22 @@ package org.skycastle.flowgine.buildlang.ast;
  *
  */
 public class While extends Statement {
-    private final BoolExpr condition;
+
+    private static final long serialVersionUID = 1L;
+
+    private final Expr condition;
     private final Block block;
 
-    public While(BoolExpr condition, Block block) {
+    public While(Expr condition, Block block) {
         this.condition = condition;
         this.block = block;
     }
+
+    public Expr getCondition() {
+        return condition;
+    }
+
+    public Block getBlock() {
+        return block;
+    }
 }
@@ -0,0 +1,209 @@
+package org.skycastle.flowgine.culling;
+
+import org.skycastle.flowgine.geometry.Frustum;
+
+/**
+ * Tests large numbers of spheres or boxes against a frustum, with the bounds given as structure of arrays
+ * (one array per coordinate), and writes the results to a visibility bitset.
+ * <p/>
+ * The objects are processed in blocks, one frustum plane at a time over the whole block, so that the inner loops have no
+ * branches or early exits, and can be compiled to SIMD instructions by the JIT.  Bit i % 64 of long i / 64 in the
+ * bitset is set if object i is at least partially inside the frustum.  Objects exactly touching a plane from the outside
+ * (a distance of negative zero) are counted as outside.
+ * <p/>
+ * Not thread safe, use one instance per thread.
+ */
+public final class BatchCuller {
+
+    private static final int BLOCK_SIZE = 1024;
+
+    // Per object results for the current block, the bits of all plane distances or:ed together,
+    // so that the sign bit is set if the object is outside some plane
+    private final int[] inside = new int[BLOCK_SIZE];
+
+    /**
+     * @return number of longs needed for a bitset with the specified number of objects.
+     */
+    public static int getBitsetLength(int count) {
+        return (count + 63) >>> 6;
+    }
+
+    /**
+     * @return true if the bit of the specified object is set in the bitset.
+     */
+    public static boolean isVisible(long[] visible, int index) {
+        return (visible[index >>> 6] & (1L << index)) != 0;
+    }
+
+    /**
+     * Tests spheres against the frustum.
+     *
+     * @param frustum frustum to test against.
+     * @param centerX x coordinates of the sphere centers.
+     * @param centerY y coordinates of the sphere centers.
+     * @param centerZ z coordinates of the sphere centers.
+     * @param radius radiuses of the spheres.
+     * @param count number of spheres to test, starting from index 0.
+     * @param visible bitset to write the results to, with at least getBitsetLength(count) longs.
+     * @return number of visible spheres.
+     */
+    public int cullSpheres(Frustum frustum,
+                           float[] centerX, float[] centerY, float[] centerZ, float[] radius,
+                           int count,
+                           long[] visible) {
+        checkBitset(visible, count);
+
+        final float[] planes = frustum.getPlanes();
+        final int[] in = inside;
+        int visibleCount = 0;
+
+        for (int blockStart = 0; blockStart < count; blockStart += BLOCK_SIZE) {
+            final int blockSize = Math.min(BLOCK_SIZE, count - blockStart);
+
+            for (int i = 0; i < blockSize; i++) {
+                in[i] = 0;
+            }
+
+            for (int p = 0; p < Frustum.PLANE_COUNT * 4; p += 4) {
+                final float a = planes[p], b = planes[p + 1], c = planes[p + 2], d = planes[p + 3];
+                for (int i = 0; i < blockSize; i++) {
+                    final int o = blockStart + i;
+                    final float distance = a * centerX[o] + b * centerY[o] + c * centerZ[o] + d + radius[o];
+                    in[i] |= Float.floatToRawIntBits(distance);
+                }
+            }
+
+            visibleCount += pack(blockStart, blockSize, visible);
+        }
+
+        return visibleCount;
+    }
+
+    /**
+     * Tests axis aligned boxes against the frustum.
+     *
+     * @param frustum frustum to test against.
+     * @param count number of boxes to test, starting from index 0.
+     * @param visible bitset to write the results to, with at least getBitsetLength(count) longs.
+     * @return number of visible boxes.
+     */
+    public int cullBoxes(Frustum frustum,
+                         float[] minX, float[] minY, float[] minZ,
+                         float[] maxX, float[] maxY, float[] maxZ,
+                         int count,
+                         long[] visible) {
+        checkBitset(visible, count);
+
+        final float[] planes = frustum.getPlanes();
+        final int[] in = inside;
+        int visibleCount = 0;
+
+        for (int blockStart = 0; blockStart < count; blockStart += BLOCK_SIZE) {
+            final int blockSize = Math.min(BLOCK_SIZE, count - blockStart);
+
+            for (int i = 0; i < blockSize; i++) {
+                in[i] = 0;
+            }
+
+            for (int p = 0; p < Frustum.PLANE_COUNT * 4; p += 4) {
+                final float a = planes[p], b = planes[p + 1], c = planes[p + 2], d = planes[p + 3];
+
+                // Test the corner furthest along the plane normal, picked once per plane instead of per box
+                final float[] xs = a >= 0 ? maxX : minX;
+                final float[] ys = b >= 0 ? maxY : minY;
+                final float[] zs = c >= 0 ? maxZ : minZ;
+                for (int i = 0; i < blockSize; i++) {
+                    final int o = blockStart + i;
+                    final float distance = a * xs[o] + b * ys[o] + c * zs[o] + d;
+                    in[i] |= Float.floatToRawIntBits(distance);
+                }
+            }
+
+            visibleCount += pack(blockStart, blockSize, visible);
+        }
+
+        return visibleCount;
+    }
+
+    /**
+     * Tests objects one at a time with the per object frustum methods, stopping at the first plane that rejects
+     * an object.  Gives the same results as cullSpheres, and is mainly useful for comparing performance.
+     */
+    public int cullSpheresPerObject(Frustum frustum,
+                                    float[] centerX, float[] centerY, float[] centerZ, float[] radius,
+                                    int count,
+                                    long[] visible) {
+        checkBitset(visible, count);
+
+        final int bitsetLength = getBitsetLength(count);
+        for (int i = 0; i < bitsetLength; i++) {
+            visible[i] = 0;
+        }
+
+        int visibleCount = 0;
+        for (int i = 0; i < count; i++) {
+            if (frustum.intersectsSphere(centerX[i], centerY[i], centerZ[i], radius[i])) {
+                visible[i >>> 6] |= 1L << i;
+                visibleCount++;
+            }
+        }
+
+        return visibleCount;
+    }
+
+    /**
+     * Tests boxes one at a time with the per object frustum methods, stopping at the first plane that rejects
+     * a box.  Gives the same results as cullBoxes, and is mainly useful for comparing performance.
+     */
+    public int cullBoxesPerObject(Frustum frustum,
+                                  float[] minX, float[] minY, float[] minZ,
+                                  float[] maxX, float[] maxY, float[] maxZ,
+                                  int count,
+                                  long[] visible) {
+        checkBitset(visible, count);
+
+        final int bitsetLength = getBitsetLength(count);
+        for (int i = 0; i < bitsetLength; i++) {
+            visible[i] = 0;
+        }
+
+        int visibleCount = 0;
+        for (int i = 0; i < count; i++) {
+            if (frustum.intersectsBox(minX[i], minY[i], minZ[i], maxX[i], maxY[i], maxZ[i])) {
+                visible[i >>> 6] |= 1L << i;
+                visibleCount++;
+            }
+        }
+
+        return visibleCount;
+    }
+
+    /**
+     * Packs the results of a block into the bitset.
+     * @return number of visible objects in the block.
+     */
+    private int pack(int blockStart, int blockSize, long[] visible) {
+        // Blocks start at multiples of 64, so each word belongs to one block
+        final int[] in = inside;
+        int visibleCount = 0;
+        for (int wordStart = 0; wordStart < blockSize; wordStart += 64) {
+            final int wordEnd = Math.min(wordStart + 64, blockSize);
+            long word = 0;
+            for (int i = wordStart; i < wordEnd; i++) {
+                word |= ((long) (~in[i] >>> 31)) << (i - wordStart);
+            }
+            visible[(blockStart + wordStart) >>> 6] = word;
+            visibleCount += Long.bitCount(word);
+        }
+        return visibleCount;
+    }
+
+    private static void checkBitset(long[] visible, int count) {
+        if (count < 0) throw new IllegalArgumentException("count should not be negative, but was " + count);
+        if (visible.length < getBitsetLength(count)) {
+            throw new IllegalArgumentException("The bitset needs " + getBitsetLength(count) + " longs for " + count +
+                                               " objects, but has only " + visible.length);
+        }
+    }
+
+}
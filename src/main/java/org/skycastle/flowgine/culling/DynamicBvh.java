@@ -0,0 +1,534 @@
+package org.skycastle.flowgine.culling;
+
+import org.skycastle.flowgine.geometry.Bounds;
+import org.skycastle.flowgine.geometry.Frustum;
+
+/**
+ * Dynamic bounding volume hierarchy over objects with axis aligned bounding boxes and bounding spheres.
+ * <p/>
+ * Objects are inserted as leaves with a box that is enlarged by a margin, so that small movements do not change the tree.
+ * When an object moves out of its enlarged box, the leaf box is replaced and the boxes of its ancestors are refit,
+ * stopping at the first ancestor that does not change.  Objects that jump to a box that does not overlap their old one
+ * are removed and inserted again, to keep the tree from degrading.
+ * Inserts pick the sibling with the smallest increase in surface area.  After inserts and removals the ancestors of the
+ * changed node are rebalanced with tree rotations, as in Box2D's dynamic tree, so that the height of the tree stays
+ * logarithmic regardless of the insertion order.
+ * <p/>
+ * Nodes are stored in parallel arrays and referred to with integer ids.  The leaf id of an object is used as its proxy.
+ * Not thread safe.
+ */
+public final class DynamicBvh {
+
+    /**
+     * Id used for missing nodes.
+     */
+    public static final int NONE = -1;
+
+    private static final int DEFAULT_CAPACITY = 256;
+    private static final float DEFAULT_MARGIN = 0.1f;
+
+    // Node boxes, six values per node: minX, minY, minZ, maxX, maxY, maxZ
+    private float[] boxes;
+    // Leaf spheres, four values per node: centerX, centerY, centerZ, radius
+    private float[] spheres;
+    private int[] parents;
+    // Height of the subtree under each node, 0 for leaves
+    private int[] heights;
+    // Child nodes, two values per node next to each other, so that walking the tree reads one cache line per node
+    private int[] children;
+    private Object[] userData;
+
+    private int capacity = 0;
+    private int allocatedCount = 0;
+    private int freeList = NONE;
+    private int root = NONE;
+    private int proxyCount = 0;
+
+    private final float margin;
+
+    private int[] stack = new int[64];
+
+    // Statistics of the latest cull
+    private int nodesVisited = 0;
+
+    public DynamicBvh() {
+        this(DEFAULT_MARGIN, DEFAULT_CAPACITY);
+    }
+
+    /**
+     * @param margin amount to enlarge the boxes of the leaves with in each direction.
+     *               Larger margins mean fewer tree updates for moving objects, but looser culling.
+     * @param initialCapacity number of nodes to reserve space for.  Grows if needed.
+     */
+    public DynamicBvh(float margin, int initialCapacity) {
+        if (margin < 0) throw new IllegalArgumentException("margin should not be negative, but was " + margin);
+
+        this.margin = margin;
+        allocate(Math.max(1, initialCapacity));
+    }
+
+    /**
+     * Adds an object to the hierarchy.
+     *
+     * @param bounds bounds of the object.
+     * @param data object to associate with the proxy, returned by getUserData.
+     * @return proxy id for the object, used to move or remove it.
+     */
+    public int insert(Bounds bounds, Object data) {
+        final int leaf = allocateNode();
+        setLeafBounds(leaf, bounds);
+        userData[leaf] = data;
+        insertLeaf(leaf);
+        proxyCount++;
+        return leaf;
+    }
+
+    /**
+     * Removes an object from the hierarchy.
+     *
+     * @param proxy proxy id returned by insert.
+     */
+    public void remove(int proxy) {
+        checkProxy(proxy);
+
+        removeLeaf(proxy);
+        freeNode(proxy);
+        proxyCount--;
+    }
+
+    /**
+     * Updates the bounds of an object.
+     *
+     * @param proxy proxy id returned by insert.
+     * @param bounds new bounds of the object.
+     * @return true if the tree was changed, false if the object stayed within its enlarged box.
+     */
+    public boolean move(int proxy, Bounds bounds) {
+        checkProxy(proxy);
+
+        // The sphere is only tested for leaves, so it can be updated without touching the tree
+        final int s = proxy * 4;
+        spheres[s] = bounds.centerX;
+        spheres[s + 1] = bounds.centerY;
+        spheres[s + 2] = bounds.centerZ;
+        spheres[s + 3] = bounds.radius;
+
+        final int b = proxy * 6;
+        if (boxes[b] <= bounds.minX && boxes[b + 1] <= bounds.minY && boxes[b + 2] <= bounds.minZ &&
+            boxes[b + 3] >= bounds.maxX && boxes[b + 4] >= bounds.maxY && boxes[b + 5] >= bounds.maxZ) {
+            return false;
+        }
+
+        final boolean overlapsOldBox = boxes[b] <= bounds.maxX && boxes[b + 1] <= bounds.maxY && boxes[b + 2] <= bounds.maxZ &&
+                                       boxes[b + 3] >= bounds.minX && boxes[b + 4] >= bounds.minY && boxes[b + 5] >= bounds.minZ;
+        if (overlapsOldBox) {
+            setLeafBounds(proxy, bounds);
+            refit(parents[proxy]);
+        }
+        else {
+            removeLeaf(proxy);
+            setLeafBounds(proxy, bounds);
+            insertLeaf(proxy);
+        }
+
+        return true;
+    }
+
+    /**
+     * @return the object associated with the proxy when it was inserted.
+     */
+    public Object getUserData(int proxy) {
+        checkProxy(proxy);
+        return userData[proxy];
+    }
+
+    /**
+     * @return number of objects in the hierarchy.
+     */
+    public int getProxyCount() {
+        return proxyCount;
+    }
+
+    /**
+     * @return number of nodes in the longest path from the root to a leaf.
+     */
+    public int getHeight() {
+        if (root == NONE) return 0;
+        else return heights[root] + 1;
+    }
+
+    /**
+     * Finds the objects whose bounds intersect the frustum.
+     * Subtrees that are completely inside the frustum are collected without testing their nodes.
+     *
+     * @param frustum frustum to cull against.
+     * @param out array to store the proxy ids of the visible objects in.  Should have room for getProxyCount ids.
+     * @return number of visible objects stored in out.
+     */
+    public int cull(Frustum frustum, int[] out) {
+        nodesVisited = 0;
+        if (root == NONE) return 0;
+
+        final float[] box = boxes;
+        final float[] sphere = spheres;
+        int count = 0;
+        int stackSize = 0;
+        stack[stackSize++] = root;
+        while (stackSize > 0) {
+            final int entry = stack[--stackSize];
+            nodesVisited++;
+
+            if (entry < 0) {
+                // Node known to be completely inside, collect its leaves
+                final int node = -entry - 1;
+                if (isLeaf(node)) out[count++] = node;
+                else {
+                    ensureStack(stackSize + 2);
+                    stack[stackSize++] = -children[node * 2] - 1;
+                    stack[stackSize++] = -children[node * 2 + 1] - 1;
+                }
+            }
+            else {
+                final int b = entry * 6;
+                final int classification = frustum.classifyBox(box[b], box[b + 1], box[b + 2],
+                                                               box[b + 3], box[b + 4], box[b + 5]);
+                if (classification == Frustum.OUTSIDE) continue;
+
+                if (isLeaf(entry)) {
+                    final int s = entry * 4;
+                    if (classification == Frustum.INSIDE ||
+                        frustum.intersectsSphere(sphere[s], sphere[s + 1], sphere[s + 2], sphere[s + 3])) {
+                        out[count++] = entry;
+                    }
+                }
+                else {
+                    ensureStack(stackSize + 2);
+                    if (classification == Frustum.INSIDE) {
+                        stack[stackSize++] = -children[entry * 2] - 1;
+                        stack[stackSize++] = -children[entry * 2 + 1] - 1;
+                    }
+                    else {
+                        stack[stackSize++] = children[entry * 2];
+                        stack[stackSize++] = children[entry * 2 + 1];
+                    }
+                }
+            }
+        }
+
+        return count;
+    }
+
+    /**
+     * @return number of nodes visited by the latest cull.
+     */
+    public int getNodesVisited() {
+        return nodesVisited;
+    }
+
+    private void insertLeaf(int leaf) {
+        if (root == NONE) {
+            root = leaf;
+            parents[leaf] = NONE;
+            return;
+        }
+
+        final float[] b = boxes;
+        final int l = leaf * 6;
+        final float leafArea = area(b[l], b[l + 1], b[l + 2], b[l + 3], b[l + 4], b[l + 5]);
+
+        // Descend towards the sibling that gives the smallest increase in surface area
+        int index = root;
+        while (!isLeaf(index)) {
+            final int i = index * 6;
+            final float area = area(b[i], b[i + 1], b[i + 2], b[i + 3], b[i + 4], b[i + 5]);
+            final float combinedArea = combinedArea(index, leaf);
+
+            // Cost of making a new parent for this node and the leaf
+            final float cost = 2 * combinedArea;
+
+            // Minimum cost of pushing the leaf further down the tree
+            final float inheritanceCost = 2 * (combinedArea - area);
+
+            final float cost1 = descendCost(children[index * 2], leaf, leafArea) + inheritanceCost;
+            final float cost2 = descendCost(children[index * 2 + 1], leaf, leafArea) + inheritanceCost;
+
+            if (cost < cost1 && cost < cost2) break;
+
+            index = cost1 < cost2 ? children[index * 2] : children[index * 2 + 1];
+        }
+
+        // Create a new parent for the sibling and the leaf
+        final int sibling = index;
+        final int oldParent = parents[sibling];
+        final int newParent = allocateNode();
+        parents[newParent] = oldParent;
+        children[newParent * 2] = sibling;
+        children[newParent * 2 + 1] = leaf;
+        parents[sibling] = newParent;
+        parents[leaf] = newParent;
+        userData[newParent] = null;
+
+        if (oldParent == NONE) {
+            root = newParent;
+        }
+        else if (children[oldParent * 2] == sibling) {
+            children[oldParent * 2] = newParent;
+        }
+        else {
+            children[oldParent * 2 + 1] = newParent;
+        }
+
+        rebalance(newParent);
+    }
+
+    private void removeLeaf(int leaf) {
+        if (leaf == root) {
+            root = NONE;
+            return;
+        }
+
+        final int parent = parents[leaf];
+        final int grandParent = parents[parent];
+        final int sibling = children[parent * 2] == leaf ? children[parent * 2 + 1] : children[parent * 2];
+
+        if (grandParent == NONE) {
+            root = sibling;
+            parents[sibling] = NONE;
+        }
+        else {
+            if (children[grandParent * 2] == parent) children[grandParent * 2] = sibling;
+            else children[grandParent * 2 + 1] = sibling;
+            parents[sibling] = grandParent;
+            rebalance(grandParent);
+        }
+
+        freeNode(parent);
+        parents[leaf] = NONE;
+    }
+
+    /**
+     * Recalculates the boxes and heights of the node and all its ancestors, rotating the ones that are unbalanced.
+     */
+    private void rebalance(int node) {
+        while (node != NONE) {
+            node = balance(node);
+            fitToChildren(node);
+            node = parents[node];
+        }
+    }
+
+    /**
+     * If the heights of the children of the node differ by more than one, rotates the taller child up to the place
+     * of the node.
+     *
+     * @return the node now at the position of the specified node.
+     */
+    private int balance(int node) {
+        if (isLeaf(node) || heights[node] < 2) return node;
+
+        final int child1 = children[node * 2];
+        final int child2 = children[node * 2 + 1];
+        final int balance = heights[child2] - heights[child1];
+        if (balance > 1) return rotateUp(node, child2);
+        else if (balance < -1) return rotateUp(node, child1);
+        else return node;
+    }
+
+    /**
+     * Moves the child up to the place of the node.  The node becomes a child of the child, and takes the shorter
+     * child of the child in the place of the child.
+     *
+     * @return the child.
+     */
+    private int rotateUp(int node, int child) {
+        final int grandChild1 = children[child * 2];
+        final int grandChild2 = children[child * 2 + 1];
+        final int taller = heights[grandChild1] > heights[grandChild2] ? grandChild1 : grandChild2;
+        final int shorter = taller == grandChild1 ? grandChild2 : grandChild1;
+
+        // Put the child in the place of the node
+        final int parent = parents[node];
+        parents[child] = parent;
+        if (parent == NONE) root = child;
+        else if (children[parent * 2] == node) children[parent * 2] = child;
+        else children[parent * 2 + 1] = child;
+
+        // Put the shorter grandchild in the place of the child
+        if (children[node * 2] == child) children[node * 2] = shorter;
+        else children[node * 2 + 1] = shorter;
+        parents[shorter] = node;
+
+        children[child * 2] = node;
+        children[child * 2 + 1] = taller;
+        parents[node] = child;
+
+        fitToChildren(node);
+        fitToChildren(child);
+        return child;
+    }
+
+    /**
+     * Sets the box of the node to enclose the boxes of its children, and its height to one more than theirs.
+     */
+    private void fitToChildren(int node) {
+        final float[] b = boxes;
+        final int n = node * 6;
+        final int c1 = children[node * 2] * 6;
+        final int c2 = children[node * 2 + 1] * 6;
+        b[n] = Math.min(b[c1], b[c2]);
+        b[n + 1] = Math.min(b[c1 + 1], b[c2 + 1]);
+        b[n + 2] = Math.min(b[c1 + 2], b[c2 + 2]);
+        b[n + 3] = Math.max(b[c1 + 3], b[c2 + 3]);
+        b[n + 4] = Math.max(b[c1 + 4], b[c2 + 4]);
+        b[n + 5] = Math.max(b[c1 + 5], b[c2 + 5]);
+
+        heights[node] = 1 + Math.max(heights[children[node * 2]], heights[children[node * 2 + 1]]);
+    }
+
+    /**
+     * Recalculates the boxes of the node and its ancestors, stopping when a box does not change.
+     * Does not change the structure or the heights of the tree.
+     */
+    private void refit(int node) {
+        final float[] b = boxes;
+        while (node != NONE) {
+            final int n = node * 6;
+            final int c1 = children[node * 2] * 6;
+            final int c2 = children[node * 2 + 1] * 6;
+
+            final float minX = Math.min(b[c1], b[c2]);
+            final float minY = Math.min(b[c1 + 1], b[c2 + 1]);
+            final float minZ = Math.min(b[c1 + 2], b[c2 + 2]);
+            final float maxX = Math.max(b[c1 + 3], b[c2 + 3]);
+            final float maxY = Math.max(b[c1 + 4], b[c2 + 4]);
+            final float maxZ = Math.max(b[c1 + 5], b[c2 + 5]);
+
+            if (b[n] == minX && b[n + 1] == minY && b[n + 2] == minZ &&
+                b[n + 3] == maxX && b[n + 4] == maxY && b[n + 5] == maxZ) {
+                return;
+            }
+
+            b[n] = minX;
+            b[n + 1] = minY;
+            b[n + 2] = minZ;
+            b[n + 3] = maxX;
+            b[n + 4] = maxY;
+            b[n + 5] = maxZ;
+
+            node = parents[node];
+        }
+    }
+
+    private float descendCost(int child, int leaf, float leafArea) {
+        final float combined = combinedArea(child, leaf);
+        if (isLeaf(child)) return combined;
+        else {
+            final int c = child * 6;
+            final float[] b = boxes;
+            return combined - area(b[c], b[c + 1], b[c + 2], b[c + 3], b[c + 4], b[c + 5]);
+        }
+    }
+
+    private float combinedArea(int node1, int node2) {
+        final float[] b = boxes;
+        final int a = node1 * 6;
+        final int c = node2 * 6;
+        return area(Math.min(b[a], b[c]), Math.min(b[a + 1], b[c + 1]), Math.min(b[a + 2], b[c + 2]),
+                    Math.max(b[a + 3], b[c + 3]), Math.max(b[a + 4], b[c + 4]), Math.max(b[a + 5], b[c + 5]));
+    }
+
+    private static float area(float minX, float minY, float minZ, float maxX, float maxY, float maxZ) {
+        final float dx = maxX - minX;
+        final float dy = maxY - minY;
+        final float dz = maxZ - minZ;
+        return 2 * (dx * dy + dy * dz + dz * dx);
+    }
+
+    private void setLeafBounds(int leaf, Bounds bounds) {
+        final int b = leaf * 6;
+        boxes[b] = bounds.minX - margin;
+        boxes[b + 1] = bounds.minY - margin;
+        boxes[b + 2] = bounds.minZ - margin;
+        boxes[b + 3] = bounds.maxX + margin;
+        boxes[b + 4] = bounds.maxY + margin;
+        boxes[b + 5] = bounds.maxZ + margin;
+
+        final int s = leaf * 4;
+        spheres[s] = bounds.centerX;
+        spheres[s + 1] = bounds.centerY;
+        spheres[s + 2] = bounds.centerZ;
+        spheres[s + 3] = bounds.radius;
+    }
+
+    private boolean isLeaf(int node) {
+        return children[node * 2] == NONE;
+    }
+
+    private void checkProxy(int proxy) {
+        if (proxy < 0 || proxy >= allocatedCount || !isLeaf(proxy) || (proxy != root && parents[proxy] == NONE)) {
+            throw new IllegalArgumentException("No object with proxy id " + proxy + " in the hierarchy");
+        }
+    }
+
+    private void ensureStack(int size) {
+        if (size > stack.length) {
+            final int[] newStack = new int[Math.max(size, stack.length * 2)];
+            System.arraycopy(stack, 0, newStack, 0, stack.length);
+            stack = newStack;
+        }
+    }
+
+    private int allocateNode() {
+        final int node;
+        if (freeList != NONE) {
+            node = freeList;
+            freeList = parents[node];
+        }
+        else {
+            if (allocatedCount >= capacity) allocate(capacity * 2);
+            node = allocatedCount++;
+        }
+
+        parents[node] = NONE;
+        children[node * 2] = NONE;
+        children[node * 2 + 1] = NONE;
+        heights[node] = 0;
+        return node;
+    }
+
+    private void freeNode(int node) {
+        // Freed nodes are linked through the parent array, and marked so that they are not taken for leaves
+        parents[node] = freeList;
+        children[node * 2] = NONE - 1;
+        children[node * 2 + 1] = NONE - 1;
+        userData[node] = null;
+        freeList = node;
+    }
+
+    private void allocate(int newCapacity) {
+        boxes = copyOf(boxes, newCapacity * 6);
+        spheres = copyOf(spheres, newCapacity * 4);
+        parents = copyOf(parents, newCapacity);
+        heights = copyOf(heights, newCapacity);
+        children = copyOf(children, newCapacity * 2);
+
+        final Object[] newUserData = new Object[newCapacity];
+        if (userData != null) System.arraycopy(userData, 0, newUserData, 0, userData.length);
+        userData = newUserData;
+
+        capacity = newCapacity;
+    }
+
+    private static float[] copyOf(float[] array, int length) {
+        final float[] copy = new float[length];
+        if (array != null) System.arraycopy(array, 0, copy, 0, array.length);
+        return copy;
+    }
+
+    private static int[] copyOf(int[] array, int length) {
+        final int[] copy = new int[length];
+        if (array != null) System.arraycopy(array, 0, copy, 0, array.length);
+        return copy;
+    }
+
+}
@@ -0,0 +1,249 @@
+package org.skycastle.flowgine.culling;
+
+import org.lwjgl.util.vector.Matrix4f;
+import org.skycastle.flowgine.geometry.Bounds;
+import org.skycastle.flowgine.geometry.Vec3;
+import org.skycastle.flowgine.shape.LodGroup;
+import org.skycastle.flowgine.shape.Shape;
+import org.skycastle.flowgine.spatial.SpatialShape;
+
+import java.util.List;
+
+/**
+ * Selects the level of detail of spatial shapes from the projected size of their bounding spheres.
+ * <p/>
+ * Runs as a batched pass over the visible shapes each frame: first the bounding spheres of all shapes are gathered
+ * into arrays, then the screen sizes are calculated in one loop, and finally the levels are selected with the
+ * hysteresis of each LodGroup.  Keeps statistics of the shapes and triangles selected at each level.
+ */
+public final class LodSelector {
+
+    private final Bounds worldBounds = new Bounds();
+
+    private float cameraX = 0;
+    private float cameraY = 0;
+    private float cameraZ = 0;
+    private float projectionScale = 1;
+
+    private float[] centers = new float[64 * 3];
+    private float[] radiuses = new float[64];
+    private float[] screenSizes = new float[64];
+
+    // Statistics for the latest selection
+    private int[] levelShapeCounts = new int[4];
+    private long[] levelTriangleCounts = new long[4];
+    private int selectedCount = 0;
+    private int levelChangeCount = 0;
+    private long selectTimeNanos = 0;
+
+    /**
+     * Sets the camera to calculate the screen sizes for.
+     *
+     * @param position position of the camera.
+     * @param projection perspective projection matrix of the camera.
+     */
+    public void setCamera(Vec3 position, Matrix4f projection) {
+        setCamera(position, projection.m11);
+    }
+
+    /**
+     * Sets the camera to calculate the screen sizes for.
+     *
+     * @param position position of the camera.
+     * @param projectionScale vertical scale of the perspective projection, 1 / tan(verticalFieldOfView / 2).
+     */
+    public void setCamera(Vec3 position, float projectionScale) {
+        if (projectionScale <= 0) throw new IllegalArgumentException("projectionScale should be positive, but was " + projectionScale);
+
+        cameraX = position.x;
+        cameraY = position.y;
+        cameraZ = position.z;
+        this.projectionScale = projectionScale;
+    }
+
+    /**
+     * Selects the levels of detail of the shapes.  Shapes without a LodGroup are counted at level 0 in the statistics.
+     * Must be called from the OpenGL thread, as shapes that are not yet created are created.
+     */
+    public void select(List<SpatialShape> shapes) {
+        final long startTime = System.nanoTime();
+        final int count = shapes.size();
+        reserve(count);
+
+        for (int i = 0; i < count; i++) {
+            gather(i, shapes.get(i));
+        }
+
+        calculateScreenSizes(count);
+
+        for (int i = 0; i < count; i++) {
+            apply(i, shapes.get(i));
+        }
+
+        selectTimeNanos = System.nanoTime() - startTime;
+    }
+
+    /**
+     * Selects the levels of detail of the first count shapes in the array.
+     *
+     * @see #select(List)
+     */
+    public void select(SpatialShape[] shapes, int count) {
+        final long startTime = System.nanoTime();
+        reserve(count);
+
+        for (int i = 0; i < count; i++) {
+            gather(i, shapes[i]);
+        }
+
+        calculateScreenSizes(count);
+
+        for (int i = 0; i < count; i++) {
+            apply(i, shapes[i]);
+        }
+
+        selectTimeNanos = System.nanoTime() - startTime;
+    }
+
+    /**
+     * @return screen size of a shape in the latest selection, as a fraction of the viewport height.
+     */
+    public float getScreenSize(int index) {
+        if (index < 0 || index >= selectedCount) throw new IllegalArgumentException("No shape at index " + index + " in the latest selection");
+        return screenSizes[index];
+    }
+
+    /**
+     * @return number of shapes in the latest selection.
+     */
+    public int getSelectedCount() {
+        return selectedCount;
+    }
+
+    /**
+     * @return number of shapes selected at a level in the latest selection.
+     */
+    public int getShapeCount(int level) {
+        return level < levelShapeCounts.length ? levelShapeCounts[level] : 0;
+    }
+
+    /**
+     * @return number of triangles of the shapes selected at a level in the latest selection.
+     */
+    public long getTriangleCount(int level) {
+        return level < levelTriangleCounts.length ? levelTriangleCounts[level] : 0;
+    }
+
+    /**
+     * @return number of triangles of all selected shapes in the latest selection.
+     */
+    public long getTotalTriangleCount() {
+        long total = 0;
+        for (long triangles : levelTriangleCounts) {
+            total += triangles;
+        }
+        return total;
+    }
+
+    /**
+     * @return number of shapes that changed their level in the latest selection.
+     */
+    public int getLevelChangeCount() {
+        return levelChangeCount;
+    }
+
+    /**
+     * @return time the latest selection took, in nanoseconds.
+     */
+    public long getSelectTimeNanos() {
+        return selectTimeNanos;
+    }
+
+    /**
+     * @return a summary of the shapes and triangles selected at each level in the latest selection.
+     */
+    public String getStatistics() {
+        final StringBuilder sb = new StringBuilder();
+        sb.append(selectedCount).append(" shapes, ").append(levelChangeCount).append(" level changes, ")
+          .append(selectTimeNanos / 1000).append(" us");
+        for (int level = 0; level < levelShapeCounts.length; level++) {
+            if (levelShapeCounts[level] > 0) {
+                sb.append("\n  level ").append(level).append(": ")
+                  .append(levelShapeCounts[level]).append(" shapes, ")
+                  .append(levelTriangleCounts[level]).append(" triangles");
+            }
+        }
+        return sb.toString();
+    }
+
+    private void reserve(int count) {
+        selectedCount = count;
+        levelChangeCount = 0;
+        for (int i = 0; i < levelShapeCounts.length; i++) {
+            levelShapeCounts[i] = 0;
+            levelTriangleCounts[i] = 0;
+        }
+
+        if (radiuses.length < count) {
+            final int capacity = Math.max(count, radiuses.length * 2);
+            centers = new float[capacity * 3];
+            radiuses = new float[capacity];
+            screenSizes = new float[capacity];
+        }
+    }
+
+    private void gather(int index, SpatialShape shape) {
+        shape.create();
+        shape.getWorldBounds(worldBounds);
+
+        centers[index * 3] = worldBounds.centerX;
+        centers[index * 3 + 1] = worldBounds.centerY;
+        centers[index * 3 + 2] = worldBounds.centerZ;
+        radiuses[index] = worldBounds.radius;
+    }
+
+    private void calculateScreenSizes(int count) {
+        final float[] centers = this.centers;
+        final float[] radiuses = this.radiuses;
+        final float[] screenSizes = this.screenSizes;
+        final float scale = projectionScale;
+
+        for (int i = 0; i < count; i++) {
+            final float dx = centers[i * 3] - cameraX;
+            final float dy = centers[i * 3 + 1] - cameraY;
+            final float dz = centers[i * 3 + 2] - cameraZ;
+            final float distance = (float) Math.sqrt(dx * dx + dy * dy + dz * dz);
+            final float radius = radiuses[i];
+
+            // Projected diameter over the viewport height, the camera is inside the sphere if it is closer than the radius
+            screenSizes[i] = distance > radius ? radius * scale / distance : Float.MAX_VALUE;
+        }
+    }
+
+    private void apply(int index, SpatialShape shape) {
+        int level = 0;
+
+        final LodGroup lodGroup = shape.getLodGroup();
+        if (lodGroup != null) {
+            final int currentLevel = shape.getLod();
+            level = lodGroup.selectLevel(screenSizes[index], currentLevel);
+            if (level != currentLevel) {
+                shape.setLod(level);
+                levelChangeCount++;
+            }
+        }
+
+        if (level >= levelShapeCounts.length) {
+            final int[] newShapeCounts = new int[level + 1];
+            final long[] newTriangleCounts = new long[level + 1];
+            System.arraycopy(levelShapeCounts, 0, newShapeCounts, 0, levelShapeCounts.length);
+            System.arraycopy(levelTriangleCounts, 0, newTriangleCounts, 0, levelTriangleCounts.length);
+            levelShapeCounts = newShapeCounts;
+            levelTriangleCounts = newTriangleCounts;
+        }
+
+        final Shape selectedShape = shape.getShape();
+        levelShapeCounts[level]++;
+        levelTriangleCounts[level] += selectedShape == null ? 0 : selectedShape.getTriangleCount();
+    }
+}
@@ -0,0 +1,169 @@
+package org.skycastle.flowgine.culling;
+
+import org.skycastle.flowgine.geometry.Bounds;
+import org.skycastle.flowgine.geometry.Frustum;
+import org.skycastle.flowgine.render.RenderQueue;
+import org.skycastle.flowgine.spatial.SpatialShape;
+
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Keeps spatial shapes in a bounding volume hierarchy, and submits only the ones inside the view frustum to a render queue.
+ * <p/>
+ * Call update after moving shapes (and after updating any transform hierarchy they are placed in),
+ * then submitVisible each frame.
+ */
+public final class SpatialCuller {
+
+    private final DynamicBvh bvh;
+    private final List<SpatialShape> shapes = new ArrayList<SpatialShape>();
+    private final List<Integer> proxies = new ArrayList<Integer>();
+    private final Map<SpatialShape, Integer> shapeIndexes = new IdentityHashMap<SpatialShape, Integer>();
+    private final Bounds worldBounds = new Bounds();
+
+    private LodSelector lodSelector = null;
+    private SpatialShape[] visibleShapes = new SpatialShape[64];
+
+    private int[] visibleProxies = new int[64];
+    private int visibleCount = 0;
+    private long cullTimeNanos = 0;
+
+    public SpatialCuller() {
+        this(new DynamicBvh());
+    }
+
+    /**
+     * @param bvh bounding volume hierarchy to use.  Should be empty.
+     */
+    public SpatialCuller(DynamicBvh bvh) {
+        if (bvh == null) throw new IllegalArgumentException("bvh should not be null");
+        this.bvh = bvh;
+    }
+
+    /**
+     * Adds a shape to be culled.  The shape is created if it was not yet, so that its bounds are known.
+     */
+    public void add(SpatialShape shape) {
+        if (shape == null) throw new IllegalArgumentException("shape should not be null");
+        if (shapeIndexes.containsKey(shape)) throw new IllegalArgumentException("The shape " + shape + " was already added");
+
+        shape.create();
+        shape.getWorldBounds(worldBounds);
+        shapeIndexes.put(shape, shapes.size());
+        shapes.add(shape);
+        proxies.add(bvh.insert(worldBounds, shape));
+    }
+
+    /**
+     * Removes a shape added earlier.
+     */
+    public void remove(SpatialShape shape) {
+        final Integer index = shapeIndexes.remove(shape);
+        if (index == null) throw new IllegalArgumentException("The shape " + shape + " has not been added");
+
+        bvh.remove(proxies.get(index));
+
+        // Move the last shape to the removed position
+        final int last = shapes.size() - 1;
+        if (index != last) {
+            final SpatialShape lastShape = shapes.get(last);
+            shapes.set(index, lastShape);
+            proxies.set(index, proxies.get(last));
+            shapeIndexes.put(lastShape, index);
+        }
+        shapes.remove(last);
+        proxies.remove(last);
+    }
+
+    /**
+     * Updates the bounds of all added shapes in the hierarchy.
+     *
+     * @return number of shapes that moved out of their enlarged boxes, and changed the hierarchy.
+     */
+    public int update() {
+        int changedCount = 0;
+        for (int i = 0; i < shapes.size(); i++) {
+            shapes.get(i).getWorldBounds(worldBounds);
+            if (bvh.move(proxies.get(i), worldBounds)) changedCount++;
+        }
+        return changedCount;
+    }
+
+    /**
+     * Submits the shapes that are at least partially inside the frustum to the render queue.
+     *
+     * @return number of shapes submitted.
+     */
+    public int submitVisible(Frustum frustum, RenderQueue renderQueue) {
+        final long startTime = System.nanoTime();
+
+        if (visibleProxies.length < bvh.getProxyCount()) {
+            visibleProxies = new int[bvh.getProxyCount() * 2];
+        }
+        visibleCount = bvh.cull(frustum, visibleProxies);
+
+        cullTimeNanos = System.nanoTime() - startTime;
+
+        if (visibleShapes.length < visibleCount) {
+            visibleShapes = new SpatialShape[visibleProxies.length];
+        }
+        for (int i = 0; i < visibleCount; i++) {
+            visibleShapes[i] = (SpatialShape) bvh.getUserData(visibleProxies[i]);
+        }
+
+        if (lodSelector != null) lodSelector.select(visibleShapes, visibleCount);
+
+        for (int i = 0; i < visibleCount; i++) {
+            visibleShapes[i].submit(renderQueue);
+            visibleShapes[i] = null;
+        }
+
+        return visibleCount;
+    }
+
+    /**
+     * @return the selector used to select the levels of detail of the visible shapes before submitting them, or null if none.
+     */
+    public LodSelector getLodSelector() {
+        return lodSelector;
+    }
+
+    /**
+     * @param lodSelector selector to select the levels of detail of the visible shapes with before submitting them,
+     *                    or null to submit them at their current levels.  Its camera should be kept up to date.
+     */
+    public void setLodSelector(LodSelector lodSelector) {
+        this.lodSelector = lodSelector;
+    }
+
+    /**
+     * @return number of shapes visible in the latest submitVisible call.
+     */
+    public int getVisibleCount() {
+        return visibleCount;
+    }
+
+    /**
+     * @return number of shapes added.
+     */
+    public int getShapeCount() {
+        return shapes.size();
+    }
+
+    /**
+     * @return time the culling in the latest submitVisible call took, in nanoseconds.
+     */
+    public long getCullTimeNanos() {
+        return cullTimeNanos;
+    }
+
+    /**
+     * @return the bounding volume hierarchy that the shapes are kept in.
+     */
+    public DynamicBvh getBvh() {
+        return bvh;
+    }
+}
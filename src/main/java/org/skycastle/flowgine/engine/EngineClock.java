@@ -0,0 +1,178 @@
+package org.skycastle.flowgine.engine;
+
+/**
+ * Converts elapsed real time to a number of fixed length simulation steps, so that the simulation behaves the same
+ * regardless of the frame rate.
+ * <p/>
+ * Usage each frame:
+ * <pre>
+ * clock.advance();
+ * while (clock.step()) {
+ *     simulate(clock.getStepSeconds(), clock.getGameTimeSeconds());
+ * }
+ * render(clock.getAlpha());
+ * </pre>
+ * If the simulation can not keep up, at most maxStepsPerFrame steps are run per frame and the remaining time is dropped,
+ * so that the game slows down instead of spending ever longer frames catching up (the spiral of death).
+ * Long pauses, e.g. when the window was dragged or a debugger stopped the program, are capped to maxFrameSeconds.
+ */
+public final class EngineClock {
+
+    private static final double NANOS_PER_SECOND = 1000000000.0;
+
+    private final double stepSeconds;
+    private final int maxStepsPerFrame;
+    private final double maxFrameSeconds;
+
+    private long previousNanos = -1;
+    private double accumulatedSeconds = 0;
+    private int stepsThisFrame = 0;
+
+    private long stepCount = 0;
+    private double gameTimeSeconds = 0;
+    private double droppedSeconds = 0;
+
+    /**
+     * @param stepsPerSecond number of simulation steps per second, e.g. 30.
+     */
+    public EngineClock(double stepsPerSecond) {
+        this(stepsPerSecond, 5, 0.25);
+    }
+
+    /**
+     * @param stepsPerSecond number of simulation steps per second, e.g. 30.
+     * @param maxStepsPerFrame maximum number of steps to run in one frame when catching up.
+     * @param maxFrameSeconds maximum real time to account for in one frame, longer frames are counted as this long.
+     */
+    public EngineClock(double stepsPerSecond, int maxStepsPerFrame, double maxFrameSeconds) {
+        if (stepsPerSecond <= 0) throw new IllegalArgumentException("stepsPerSecond should be positive, but was " + stepsPerSecond);
+        if (maxStepsPerFrame < 1) throw new IllegalArgumentException("maxStepsPerFrame should be at least 1, but was " + maxStepsPerFrame);
+        if (maxFrameSeconds <= 0) throw new IllegalArgumentException("maxFrameSeconds should be positive, but was " + maxFrameSeconds);
+
+        this.stepSeconds = 1.0 / stepsPerSecond;
+        this.maxStepsPerFrame = maxStepsPerFrame;
+        this.maxFrameSeconds = maxFrameSeconds;
+    }
+
+    /**
+     * Starts a new frame, adding the real time elapsed since the previous call.
+     * The first call only starts the clock.
+     */
+    public void advance() {
+        final long now = System.nanoTime();
+        final double elapsedSeconds = previousNanos < 0 ? 0 : (now - previousNanos) / NANOS_PER_SECOND;
+        previousNanos = now;
+
+        advance(elapsedSeconds);
+    }
+
+    /**
+     * Starts a new frame, adding the specified elapsed time.  Useful for tests and for replaying recorded frame times.
+     *
+     * @param elapsedSeconds real time elapsed since the previous frame.
+     */
+    public void advance(double elapsedSeconds) {
+        if (elapsedSeconds < 0) throw new IllegalArgumentException("elapsedSeconds should not be negative, but was " + elapsedSeconds);
+
+        if (elapsedSeconds > maxFrameSeconds) {
+            droppedSeconds += elapsedSeconds - maxFrameSeconds;
+            elapsedSeconds = maxFrameSeconds;
+        }
+
+        accumulatedSeconds += elapsedSeconds;
+        stepsThisFrame = 0;
+    }
+
+    /**
+     * Takes one simulation step from the accumulated time, if there is enough time for a step and the
+     * step limit for the frame has not been reached.
+     *
+     * @return true if a step should be simulated, false when the simulation is done for this frame.
+     */
+    public boolean step() {
+        if (accumulatedSeconds < stepSeconds) return false;
+
+        if (stepsThisFrame >= maxStepsPerFrame) {
+            // Can not keep up, drop the time that did not fit in this frame, except for the partial step used for interpolation
+            final double remainder = accumulatedSeconds % stepSeconds;
+            droppedSeconds += accumulatedSeconds - remainder;
+            accumulatedSeconds = remainder;
+            return false;
+        }
+
+        accumulatedSeconds -= stepSeconds;
+        gameTimeSeconds += stepSeconds;
+        stepsThisFrame++;
+        stepCount++;
+        return true;
+    }
+
+    /**
+     * @return how far the real time is between the latest and the next simulation step, 0..1.
+     *         Render with the previous and latest simulation states interpolated by this amount to get smooth
+     *         movement when rendering faster than simulating.
+     */
+    public float getAlpha() {
+        return (float) Math.min(1.0, accumulatedSeconds / stepSeconds);
+    }
+
+    /**
+     * @return length of a simulation step in seconds.
+     */
+    public double getStepSeconds() {
+        return stepSeconds;
+    }
+
+    /**
+     * @return game time after the latest simulation step, in seconds.
+     */
+    public double getGameTimeSeconds() {
+        return gameTimeSeconds;
+    }
+
+    /**
+     * @return number of simulation steps taken so far.
+     */
+    public long getStepCount() {
+        return stepCount;
+    }
+
+    /**
+     * @return number of steps taken in the current frame.
+     */
+    public int getStepsThisFrame() {
+        return stepsThisFrame;
+    }
+
+    /**
+     * @return real time that was skipped because the simulation could not keep up or frames were too long, in seconds.
+     */
+    public double getDroppedSeconds() {
+        return droppedSeconds;
+    }
+
+    /**
+     * @return seconds until the next simulation step is due, counting from the latest advance call.
+     */
+    public double getSecondsToNextStep() {
+        return Math.max(0, stepSeconds - accumulatedSeconds);
+    }
+
+    /**
+     * Linearly interpolates between two values, e.g. a coordinate in the previous and latest simulation state.
+     */
+    public static float interpolate(float previous, float latest, float alpha) {
+        return previous + (latest - previous) * alpha;
+    }
+
+    /**
+     * Linearly interpolates between two arrays of values, e.g. transformation matrices of the previous and latest
+     * simulation states.  Works well for translations, and for rotations that are small between steps.
+     */
+    public static void interpolate(float[] previous, float[] latest, int offset, int length, float alpha, float[] out, int outOffset) {
+        for (int i = 0; i < length; i++) {
+            final float p = previous[offset + i];
+            out[outOffset + i] = p + (latest[offset + i] - p) * alpha;
+        }
+    }
+}
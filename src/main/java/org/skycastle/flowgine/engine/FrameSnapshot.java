@@ -0,0 +1,292 @@
+package org.skycastle.flowgine.engine;
+
+import org.skycastle.flowgine.render.RenderQueue;
+import org.skycastle.flowgine.shader.Shader;
+import org.skycastle.flowgine.shape.Shape;
+import org.skycastle.flowgine.spatial.SpatialShape;
+import org.skycastle.flowgine.texture.Texture;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * The state of the visible shapes at the end of a simulation step, copied so that it can be rendered
+ * while the simulation goes on with the next step.
+ * <p/>
+ * Stores the transformation, layer, translucency, resources and shader parameters of each shape in arrays that are
+ * reused between frames, so that the render thread never reads the spatials, which the simulation keeps modifying.
+ * The spatials must be created on the render thread before they are added, as creating them needs OpenGL.
+ * Shader parameter values are copied by reference, so values should be replaced rather than modified.
+ * <p/>
+ * Snapshots taken after fixed length simulation steps also store the step length and the interpolation alpha of the
+ * clock, so that the render thread can interpolate the transformations from the previous snapshot.
+ */
+public final class FrameSnapshot {
+
+    private static final int DEFAULT_CAPACITY = 256;
+    private static final int MATRIX_SIZE = 16;
+
+    private int count = 0;
+    private SpatialShape[] spatials;
+    private Shader[] shaders;
+    private Shape[] shapes;
+    private Texture[] textures;
+    private Map<String, Object>[] parameters;
+    private int[] layers;
+    private boolean[] translucent;
+    private float[] transforms;
+
+    private final float[] interpolatedTransform = new float[MATRIX_SIZE];
+
+    private long frameNumber = 0;
+    private double gameTimeSeconds = 0;
+    private double stepSeconds = 0;
+    private float alpha = 0;
+    private long timeNanos = 0;
+
+    public FrameSnapshot() {
+        this(DEFAULT_CAPACITY);
+    }
+
+    /**
+     * @param initialCapacity number of shapes to reserve space for.  Grows if needed.
+     */
+    public FrameSnapshot(int initialCapacity) {
+        allocate(Math.max(1, initialCapacity));
+    }
+
+    /**
+     * Removes all shapes, and sets the frame the snapshot is for.
+     *
+     * @param frameNumber number of the simulation step the snapshot is taken after.
+     * @param gameTimeSeconds game time of the simulation step.
+     */
+    public void clear(long frameNumber, double gameTimeSeconds) {
+        clear(frameNumber, gameTimeSeconds, 0, 0, 0);
+    }
+
+    /**
+     * Removes all shapes, and sets the fixed length simulation step the snapshot is for.
+     *
+     * @param frameNumber number of the simulation step the snapshot is taken after.
+     * @param gameTimeSeconds game time of the simulation step.
+     * @param stepSeconds length of the simulation steps, or 0 if they are not of fixed length.
+     * @param alpha how far the clock was between the latest and the next step when the snapshot was taken, 0..1.
+     * @param timeNanos System.nanoTime of the clock when the snapshot was taken.
+     */
+    public void clear(long frameNumber, double gameTimeSeconds, double stepSeconds, float alpha, long timeNanos) {
+        for (int i = 0; i < count; i++) {
+            spatials[i] = null;
+            shaders[i] = null;
+            shapes[i] = null;
+            textures[i] = null;
+            parameters[i].clear();
+        }
+        count = 0;
+
+        this.frameNumber = frameNumber;
+        this.gameTimeSeconds = gameTimeSeconds;
+        this.stepSeconds = stepSeconds;
+        this.alpha = alpha;
+        this.timeNanos = timeNanos;
+    }
+
+    /**
+     * Replaces the contents of this snapshot with a copy of another one, e.g. to keep the previous snapshot after
+     * the triple buffer has handed it back to the simulation.
+     */
+    public void set(FrameSnapshot source) {
+        clear(source.frameNumber, source.gameTimeSeconds, source.stepSeconds, source.alpha, source.timeNanos);
+
+        if (source.count > spatials.length) allocate(source.count);
+        for (int i = 0; i < source.count; i++) {
+            spatials[i] = source.spatials[i];
+            shaders[i] = source.shaders[i];
+            shapes[i] = source.shapes[i];
+            textures[i] = source.textures[i];
+            parameters[i].putAll(source.parameters[i]);
+            layers[i] = source.layers[i];
+            translucent[i] = source.translucent[i];
+        }
+        System.arraycopy(source.transforms, 0, transforms, 0, source.count * MATRIX_SIZE);
+        count = source.count;
+    }
+
+    /**
+     * Copies the current transformation, layer, translucency, resources and shader parameters of a shape to the snapshot.
+     *
+     * @throws IllegalStateException if the shape has not been created.
+     */
+    public void add(SpatialShape shape) {
+        if (!shape.isCreated()) throw new IllegalStateException("The shape should be created on the render thread before it is added to a snapshot");
+
+        if (count >= spatials.length) allocate(spatials.length * 2);
+
+        final int index = count++;
+        spatials[index] = shape;
+        shaders[index] = shape.getShader();
+        shapes[index] = shape.getShape();
+        textures[index] = shape.getTexture();
+        parameters[index].putAll(shape.getShaderParameters());
+        layers[index] = shape.getLayer();
+        translucent[index] = shape.isTranslucent();
+        shape.copyTransform(transforms, index * MATRIX_SIZE);
+    }
+
+    /**
+     * Submits the shapes of the snapshot to a render queue.  Must be called from the OpenGL thread.
+     */
+    public void submit(RenderQueue renderQueue) {
+        for (int i = 0; i < count; i++) {
+            renderQueue.submit(layers[i], translucent[i], shaders[i], shapes[i], textures[i], transforms, i * MATRIX_SIZE, parameters[i]);
+        }
+    }
+
+    /**
+     * Submits the shapes of the snapshot to a render queue, with their transformations interpolated from a previous
+     * snapshot.  Must be called from the OpenGL thread.
+     *
+     * @param previous snapshot taken before this one.
+     * @param alpha how far to interpolate from the previous to this snapshot, 0..1.
+     */
+    public void submit(RenderQueue renderQueue, FrameSnapshot previous, float alpha) {
+        for (int i = 0; i < count; i++) {
+            getInterpolatedTransform(i, previous, alpha, interpolatedTransform, 0);
+            renderQueue.submit(layers[i], translucent[i], shaders[i], shapes[i], textures[i], interpolatedTransform, 0, parameters[i]);
+        }
+    }
+
+    /**
+     * Interpolates the transformation of a shape from a previous snapshot.  Shapes are matched by index, so the
+     * simulation should add them in the same order each step.  Shapes that are not at the same index in the previous
+     * snapshot are not interpolated.
+     *
+     * @param index index of the shape in this snapshot.
+     * @param previous snapshot taken before this one.
+     * @param alpha how far to interpolate from the previous to this snapshot, 0..1.
+     * @param out array to store the 16 values of the interpolated transformation in.
+     * @param outOffset index in the array to store the transformation at.
+     */
+    public void getInterpolatedTransform(int index, FrameSnapshot previous, float alpha, float[] out, int outOffset) {
+        final int offset = index * MATRIX_SIZE;
+        if (index < previous.count && previous.spatials[index] == spatials[index]) {
+            EngineClock.interpolate(previous.transforms, transforms, offset, MATRIX_SIZE, alpha, out, outOffset);
+        }
+        else {
+            System.arraycopy(transforms, offset, out, outOffset, MATRIX_SIZE);
+        }
+    }
+
+    /**
+     * @return the interpolation alpha from the previous to this snapshot, after the specified time has passed.
+     *         1 if the snapshot was not taken after fixed length steps.
+     */
+    public float getAlpha(long nowNanos) {
+        if (stepSeconds <= 0) return 1;
+
+        final double elapsedSteps = (nowNanos - timeNanos) / (stepSeconds * 1000000000.0);
+        return (float) Math.max(0.0, Math.min(1.0, alpha + elapsedSteps));
+    }
+
+    /**
+     * @return number of shapes in the snapshot.
+     */
+    public int size() {
+        return count;
+    }
+
+    /**
+     * @return the spatial that a shape of the snapshot was copied from.  The render thread should only use it to
+     *         identify the shape, as the simulation may be modifying it.
+     */
+    public SpatialShape getSpatial(int index) {
+        return spatials[index];
+    }
+
+    /**
+     * @return the shape resource copied for the shape at the index, e.g. the level of detail that was selected.
+     */
+    public Shape getShape(int index) {
+        return shapes[index];
+    }
+
+    /**
+     * @return the shader parameters copied for the shape at the index.
+     */
+    public Map<String, Object> getShaderParameters(int index) {
+        return parameters[index];
+    }
+
+    /**
+     * @return the copied transformations, 16 values per shape, starting at index * 16.
+     */
+    public float[] getTransforms() {
+        return transforms;
+    }
+
+    /**
+     * @return number of the simulation step the snapshot was taken after.
+     */
+    public long getFrameNumber() {
+        return frameNumber;
+    }
+
+    /**
+     * @return game time of the simulation step the snapshot was taken after.
+     */
+    public double getGameTimeSeconds() {
+        return gameTimeSeconds;
+    }
+
+    /**
+     * @return length of the simulation steps, or 0 if they are not of fixed length.
+     */
+    public double getStepSeconds() {
+        return stepSeconds;
+    }
+
+    /**
+     * @return how far the clock was between the latest and the next step when the snapshot was taken, 0..1.
+     */
+    public float getAlpha() {
+        return alpha;
+    }
+
+    @SuppressWarnings("unchecked")
+    private void allocate(int capacity) {
+        final SpatialShape[] newSpatials = new SpatialShape[capacity];
+        final Shader[] newShaders = new Shader[capacity];
+        final Shape[] newShapes = new Shape[capacity];
+        final Texture[] newTextures = new Texture[capacity];
+        final Map<String, Object>[] newParameters = new Map[capacity];
+        final int[] newLayers = new int[capacity];
+        final boolean[] newTranslucent = new boolean[capacity];
+        final float[] newTransforms = new float[capacity * MATRIX_SIZE];
+
+        int reusedParameters = 0;
+        if (spatials != null) {
+            System.arraycopy(spatials, 0, newSpatials, 0, count);
+            System.arraycopy(shaders, 0, newShaders, 0, count);
+            System.arraycopy(shapes, 0, newShapes, 0, count);
+            System.arraycopy(textures, 0, newTextures, 0, count);
+            System.arraycopy(layers, 0, newLayers, 0, count);
+            System.arraycopy(translucent, 0, newTranslucent, 0, count);
+            System.arraycopy(transforms, 0, newTransforms, 0, count * MATRIX_SIZE);
+
+            reusedParameters = parameters.length;
+            System.arraycopy(parameters, 0, newParameters, 0, reusedParameters);
+        }
+        for (int i = reusedParameters; i < capacity; i++) {
+            newParameters[i] = new HashMap<String, Object>();
+        }
+
+        spatials = newSpatials;
+        shaders = newShaders;
+        shapes = newShapes;
+        textures = newTextures;
+        parameters = newParameters;
+        layers = newLayers;
+        translucent = newTranslucent;
+        transforms = newTransforms;
+    }
+}
@@ -0,0 +1,24 @@
+package org.skycastle.flowgine.engine;
+
+/**
+ * Game logic run on the simulation thread of a ThreadedEngine.
+ * Must not make any OpenGL calls.
+ */
+public interface Simulation {
+
+    /**
+     * Advances the simulation by one step.
+     *
+     * @param deltaSeconds seconds since the previous step.
+     * @param gameTimeSeconds total game time so far in seconds.
+     */
+    void simulate(double deltaSeconds, double gameTimeSeconds);
+
+    /**
+     * Copies the state that should be rendered to the snapshot.
+     * The snapshot has been cleared, and will not be read by the render thread until this returns.
+     * Spatials added to it should have been created on the render thread.
+     */
+    void takeSnapshot(FrameSnapshot snapshot);
+
+}
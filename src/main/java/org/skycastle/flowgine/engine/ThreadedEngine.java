@@ -0,0 +1,238 @@
+package org.skycastle.flowgine.engine;
+
+import org.flowutils.Check;
+import org.skycastle.flowgine.render.RenderQueue;
+
+/**
+ * Runs a simulation on its own thread, and hands snapshots of the simulated state to the render thread
+ * through a triple buffer, so that slow simulation steps do not stall rendering and the other way around.
+ * <p/>
+ * The render thread (the thread owning the OpenGL context) calls submitLatest each frame to submit the most recently
+ * published snapshot to its render queue.  When the simulation runs in fixed length steps, the render thread keeps
+ * a copy of the previously taken snapshot, and submits the transformations interpolated between the two.
+ */
+public final class ThreadedEngine {
+
+    private static final long NANOS_PER_SECOND = 1000000000L;
+
+    private final Simulation simulation;
+    private final TripleBuffer<FrameSnapshot> snapshots;
+    private final long minStepNanos;
+    private final EngineClock clock;
+
+    // Owned by the render thread
+    private final FrameSnapshot previousSnapshot = new FrameSnapshot();
+
+    private volatile boolean running = false;
+    private volatile Throwable simulationError = null;
+    private Thread simulationThread = null;
+
+    /**
+     * @param simulation simulation to run.
+     * @param maxStepsPerSecond maximum number of simulation steps per second, the simulation thread sleeps if it is faster.
+     *                          Zero or less for no limit.
+     */
+    public ThreadedEngine(Simulation simulation, double maxStepsPerSecond) {
+        Check.notNull(simulation, "simulation");
+
+        this.simulation = simulation;
+        minStepNanos = maxStepsPerSecond > 0 ? (long) (NANOS_PER_SECOND / maxStepsPerSecond) : 0;
+        clock = null;
+        snapshots = new TripleBuffer<FrameSnapshot>(new FrameSnapshot(), new FrameSnapshot(), new FrameSnapshot());
+    }
+
+    /**
+     * Creates an engine that runs the simulation in fixed length steps given by a clock.
+     * A snapshot is published after each batch of steps, and the simulation thread sleeps until the next step is due.
+     * Rendered transformations are interpolated between the two latest snapshots.
+     *
+     * @param simulation simulation to run.
+     * @param clock clock to take simulation steps from.  Should only be used by this engine.
+     */
+    public ThreadedEngine(Simulation simulation, EngineClock clock) {
+        Check.notNull(simulation, "simulation");
+        Check.notNull(clock, "clock");
+
+        this.simulation = simulation;
+        this.clock = clock;
+        minStepNanos = 0;
+        snapshots = new TripleBuffer<FrameSnapshot>(new FrameSnapshot(), new FrameSnapshot(), new FrameSnapshot());
+    }
+
+    /**
+     * Starts the simulation thread.
+     */
+    public synchronized void start() {
+        if (running) throw new IllegalStateException("The engine is already running");
+
+        running = true;
+        simulationThread = new Thread(new Runnable() {
+            public void run() {
+                if (clock != null) runFixedStepSimulation();
+                else runSimulation();
+            }
+        }, "Simulation");
+        simulationThread.setDaemon(true);
+        simulationThread.start();
+    }
+
+    /**
+     * Stops the simulation thread, and waits for it to finish its current step.
+     */
+    public synchronized void stop() {
+        if (!running) return;
+
+        running = false;
+        try {
+            simulationThread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        simulationThread = null;
+    }
+
+    /**
+     * @return true if the simulation thread is running.
+     */
+    public boolean isRunning() {
+        return running;
+    }
+
+    /**
+     * Takes the latest published snapshot, if there is a new one, and submits the snapshot to the render queue.
+     * With fixed length steps the transformations are interpolated from the previous snapshot by getRenderAlpha.
+     * Call from the render thread.
+     *
+     * @param renderQueue queue to submit the snapshot to.
+     * @return true if a new snapshot was taken, false if the previous one was submitted again.
+     * @throws IllegalStateException if the simulation thread stopped because of an exception.
+     */
+    public boolean submitLatest(RenderQueue renderQueue) {
+        final boolean newSnapshot = consumeLatest();
+
+        final FrameSnapshot snapshot = snapshots.getReadBuffer();
+        if (clock != null) snapshot.submit(renderQueue, previousSnapshot, snapshot.getAlpha(System.nanoTime()));
+        else snapshot.submit(renderQueue);
+
+        return newSnapshot;
+    }
+
+    /**
+     * @return how far the rendered state currently is from the previous to the latest taken snapshot, 0..1.
+     *         Always 1 if the simulation does not run in fixed length steps.  Only call from the render thread.
+     */
+    public float getRenderAlpha() {
+        return snapshots.getReadBuffer().getAlpha(System.nanoTime());
+    }
+
+    /**
+     * @return copy of the snapshot taken before the current render snapshot, used for interpolation.
+     *         Empty if the simulation does not run in fixed length steps.  Only call from the render thread.
+     */
+    public FrameSnapshot getPreviousRenderSnapshot() {
+        return previousSnapshot;
+    }
+
+    /**
+     * Takes the latest published snapshot if there is a new one.  Call from the render thread.
+     *
+     * @return true if a new snapshot was taken.
+     * @throws IllegalStateException if the simulation thread stopped because of an exception.
+     */
+    public boolean consumeLatest() {
+        final Throwable error = simulationError;
+        if (error != null) throw new IllegalStateException("The simulation failed: " + error.getMessage(), error);
+
+        // The triple buffer hands the current read buffer back to the simulation, so keep a copy for interpolation
+        if (clock != null && snapshots.isFresh()) previousSnapshot.set(snapshots.getReadBuffer());
+
+        return snapshots.consume();
+    }
+
+    /**
+     * @return the snapshot currently used by the render thread.  Only call from the render thread.
+     */
+    public FrameSnapshot getRenderSnapshot() {
+        return snapshots.getReadBuffer();
+    }
+
+    /**
+     * @return number of snapshots published by the simulation thread.
+     */
+    public int getPublishedCount() {
+        return snapshots.getPublishedCount();
+    }
+
+    /**
+     * @return number of snapshots taken by the render thread.
+     */
+    public int getConsumedCount() {
+        return snapshots.getConsumedCount();
+    }
+
+    private void runFixedStepSimulation() {
+        long frameNumber = 0;
+
+        try {
+            while (running) {
+                clock.advance();
+                final long frameNanos = System.nanoTime();
+
+                boolean stepped = false;
+                while (clock.step()) {
+                    simulation.simulate(clock.getStepSeconds(), clock.getGameTimeSeconds());
+                    stepped = true;
+                }
+
+                if (stepped) {
+                    final FrameSnapshot snapshot = snapshots.getWriteBuffer();
+                    snapshot.clear(frameNumber++, clock.getGameTimeSeconds(), clock.getStepSeconds(), clock.getAlpha(), frameNanos);
+                    simulation.takeSnapshot(snapshot);
+                    snapshots.publish();
+                }
+
+                final long sleepNanos = (long) (clock.getSecondsToNextStep() * NANOS_PER_SECOND);
+                if (sleepNanos > 0) {
+                    Thread.sleep(sleepNanos / 1000000L, (int) (sleepNanos % 1000000L));
+                }
+            }
+        } catch (InterruptedException e) {
+            running = false;
+        } catch (Throwable e) {
+            simulationError = e;
+            running = false;
+        }
+    }
+
+    private void runSimulation() {
+        long frameNumber = 0;
+        long previousTime = System.nanoTime();
+        final long startTime = previousTime;
+
+        try {
+            while (running) {
+                final long stepStart = System.nanoTime();
+                final double deltaSeconds = (double) (stepStart - previousTime) / NANOS_PER_SECOND;
+                final double gameTimeSeconds = (double) (stepStart - startTime) / NANOS_PER_SECOND;
+                previousTime = stepStart;
+
+                simulation.simulate(deltaSeconds, gameTimeSeconds);
+
+                final FrameSnapshot snapshot = snapshots.getWriteBuffer();
+                snapshot.clear(frameNumber++, gameTimeSeconds);
+                simulation.takeSnapshot(snapshot);
+                snapshots.publish();
+
+                final long remainingNanos = minStepNanos - (System.nanoTime() - stepStart);
+                if (remainingNanos > 0) {
+                    Thread.sleep(remainingNanos / 1000000L, (int) (remainingNanos % 1000000L));
+                }
+            }
+        } catch (InterruptedException e) {
+            running = false;
+        } catch (Throwable e) {
+            simulationError = e;
+            running = false;
+        }
+    }
+}
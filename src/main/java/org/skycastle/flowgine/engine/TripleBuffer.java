@@ -0,0 +1,102 @@
+package org.skycastle.flowgine.engine;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Hands objects from one producer thread to one consumer thread without locks, using three preallocated buffers.
+ * <p/>
+ * The producer fills the write buffer and publishes it, which swaps it with the middle buffer.
+ * The consumer swaps the middle buffer with its read buffer when a new one has been published, and otherwise keeps
+ * reading the latest one it got.  Neither side ever waits for the other, and the consumer always sees the most
+ * recently published buffer.  Buffers that are published before the consumer gets to them are reused by the producer.
+ */
+public final class TripleBuffer<T> {
+
+    private static final int INDEX_MASK = 3;
+    private static final int FRESH = 4;
+
+    private final T[] buffers;
+
+    // Index of the middle buffer, with the FRESH bit set if it was published after the consumer last took it
+    private final AtomicInteger middle = new AtomicInteger(1);
+
+    // Owned by the producer and consumer threads respectively
+    private int writeIndex = 0;
+    private int readIndex = 2;
+
+    private final AtomicInteger publishedCount = new AtomicInteger();
+    private final AtomicInteger consumedCount = new AtomicInteger();
+
+    /**
+     * @param first first buffer.
+     * @param second second buffer.
+     * @param third third buffer.
+     */
+    @SuppressWarnings("unchecked")
+    public TripleBuffer(T first, T second, T third) {
+        if (first == null || second == null || third == null) throw new IllegalArgumentException("The buffers should not be null");
+        if (first == second || second == third || first == third) throw new IllegalArgumentException("The buffers should be different objects");
+
+        buffers = (T[]) new Object[]{first, second, third};
+    }
+
+    /**
+     * @return the buffer that the producer should fill next.  Only call from the producer thread.
+     */
+    public T getWriteBuffer() {
+        return buffers[writeIndex];
+    }
+
+    /**
+     * Makes the write buffer available to the consumer, and gives the producer a new write buffer.
+     * Only call from the producer thread.
+     */
+    public void publish() {
+        writeIndex = middle.getAndSet(writeIndex | FRESH) & INDEX_MASK;
+        publishedCount.incrementAndGet();
+    }
+
+    /**
+     * Takes the latest published buffer as the read buffer, if one has been published since the previous call.
+     * Only call from the consumer thread.
+     *
+     * @return true if a new buffer was taken, false if the read buffer stayed the same.
+     */
+    public boolean consume() {
+        if (!isFresh()) return false;
+
+        readIndex = middle.getAndSet(readIndex) & INDEX_MASK;
+        consumedCount.incrementAndGet();
+        return true;
+    }
+
+    /**
+     * @return true if a buffer has been published since the consumer last took one, so that the next consume call
+     *         will take it.  Only call from the consumer thread.
+     */
+    public boolean isFresh() {
+        return (middle.get() & FRESH) != 0;
+    }
+
+    /**
+     * @return the buffer that the consumer should read.  Only call from the consumer thread.
+     */
+    public T getReadBuffer() {
+        return buffers[readIndex];
+    }
+
+    /**
+     * @return number of buffers published so far.
+     */
+    public int getPublishedCount() {
+        return publishedCount.get();
+    }
+
+    /**
+     * @return number of published buffers the consumer has taken so far.  The rest were replaced by newer ones
+     *         before the consumer got to them.
+     */
+    public int getConsumedCount() {
+        return consumedCount.get();
+    }
+}
@@ -0,0 +1,331 @@
+package org.skycastle.flowgine.entity;
+
+import org.skycastle.flowgine.FlowGine;
+import org.skycastle.flowgine.render.RenderQueue;
+import org.skycastle.flowgine.shader.Shader;
+import org.skycastle.flowgine.shader.ShaderRef;
+import org.skycastle.flowgine.shape.Shape;
+import org.skycastle.flowgine.shape.ShapeRef;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * The instances of an InstanceStore that share shape, shader, layer and translucency.
+ * <p/>
+ * The components of the instances are stored in tightly packed arrays, so that systems can iterate them linearly:
+ * position (3 values per instance), rotation quaternion x, y, z, w (4 values), scale (3 values),
+ * instance parameters (4 values, passed to the instanceParameters attribute of instanced shaders),
+ * and the world transformation calculated from them (16 values, column major).
+ * Instances occupy indexes 0 until getCount, removing an instance moves the last one to its place.
+ * <p/>
+ * Systems that modify the positions, rotations or scales directly should call markTransformsChanged afterwards.
+ */
+public final class Archetype {
+
+    public static final int POSITION_SIZE = 3;
+    public static final int ROTATION_SIZE = 4;
+    public static final int SCALE_SIZE = 3;
+    public static final int PARAMETERS_SIZE = 4;
+    public static final int TRANSFORM_SIZE = 16;
+
+    private final ShapeRef shapeRef;
+    private final ShaderRef shaderRef;
+    private final int layer;
+    private final boolean translucent;
+    private final Map<String, Object> shaderParameters = new HashMap<String, Object>();
+
+    private Shape shape = null;
+    private Shader shader = null;
+
+    private int count = 0;
+    private int[] entities;
+    private float[] positions;
+    private float[] rotations;
+    private float[] scales;
+    private float[] parameters;
+    private float[] transforms;
+    private boolean transformsChanged = false;
+
+    Archetype(ShapeRef shapeRef, ShaderRef shaderRef, int layer, boolean translucent, int initialCapacity) {
+        this.shapeRef = shapeRef;
+        this.shaderRef = shaderRef;
+        this.layer = layer;
+        this.translucent = translucent;
+
+        allocate(Math.max(1, initialCapacity));
+    }
+
+    public ShapeRef getShapeRef() {
+        return shapeRef;
+    }
+
+    public ShaderRef getShaderRef() {
+        return shaderRef;
+    }
+
+    public int getLayer() {
+        return layer;
+    }
+
+    public boolean isTranslucent() {
+        return translucent;
+    }
+
+    /**
+     * @return parameters applied to the shader for all instances of the archetype.  Modifications to the returned map are applied.
+     */
+    public Map<String, Object> getShaderParameters() {
+        return shaderParameters;
+    }
+
+    /**
+     * @return number of instances in the archetype.
+     */
+    public int getCount() {
+        return count;
+    }
+
+    /**
+     * @return entity handles of the instances, by instance index.  Do not modify.
+     */
+    public int[] getEntities() {
+        return entities;
+    }
+
+    /**
+     * @return positions of the instances, 3 values per instance, starting at index * 3.
+     */
+    public float[] getPositions() {
+        return positions;
+    }
+
+    /**
+     * @return rotations of the instances as unit quaternions x, y, z, w, starting at index * 4.
+     */
+    public float[] getRotations() {
+        return rotations;
+    }
+
+    /**
+     * @return scales of the instances along the x, y and z axis, starting at index * 3.
+     */
+    public float[] getScales() {
+        return scales;
+    }
+
+    /**
+     * @return instance parameters of the instances, 4 values per instance, starting at index * 4.
+     */
+    public float[] getParameters() {
+        return parameters;
+    }
+
+    /**
+     * @return world transformations of the instances, 16 values per instance, starting at index * 16.
+     *         Calculated by updateTransforms.
+     */
+    public float[] getTransforms() {
+        return transforms;
+    }
+
+    /**
+     * Marks the transformations for recalculation, call after modifying positions, rotations or scales directly.
+     */
+    public void markTransformsChanged() {
+        transformsChanged = true;
+    }
+
+    /**
+     * Recalculates the world transformations of the instances from their positions, rotations and scales,
+     * if they have changed since the previous update.
+     *
+     * @return number of transformations recalculated.
+     */
+    public int updateTransforms() {
+        if (!transformsChanged) return 0;
+
+        final float[] positions = this.positions;
+        final float[] rotations = this.rotations;
+        final float[] scales = this.scales;
+        final float[] transforms = this.transforms;
+
+        for (int i = 0; i < count; i++) {
+            final int p = i * POSITION_SIZE;
+            final int r = i * ROTATION_SIZE;
+            final int t = i * TRANSFORM_SIZE;
+
+            final float x = rotations[r];
+            final float y = rotations[r + 1];
+            final float z = rotations[r + 2];
+            final float w = rotations[r + 3];
+            final float sx = scales[p];
+            final float sy = scales[p + 1];
+            final float sz = scales[p + 2];
+
+            // Column major translation * rotation * scale
+            transforms[t]      = (1 - 2 * (y * y + z * z)) * sx;
+            transforms[t + 1]  = 2 * (x * y + z * w) * sx;
+            transforms[t + 2]  = 2 * (x * z - y * w) * sx;
+            transforms[t + 3]  = 0;
+            transforms[t + 4]  = 2 * (x * y - z * w) * sy;
+            transforms[t + 5]  = (1 - 2 * (x * x + z * z)) * sy;
+            transforms[t + 6]  = 2 * (y * z + x * w) * sy;
+            transforms[t + 7]  = 0;
+            transforms[t + 8]  = 2 * (x * z + y * w) * sz;
+            transforms[t + 9]  = 2 * (y * z - x * w) * sz;
+            transforms[t + 10] = (1 - 2 * (x * x + y * y)) * sz;
+            transforms[t + 11] = 0;
+            transforms[t + 12] = positions[p];
+            transforms[t + 13] = positions[p + 1];
+            transforms[t + 14] = positions[p + 2];
+            transforms[t + 15] = 1;
+        }
+
+        transformsChanged = false;
+        return count;
+    }
+
+    /**
+     * @return true if the shape and shader of the archetype have been loaded.
+     */
+    public boolean isCreated() {
+        return shape != null;
+    }
+
+    /**
+     * Loads the shape and shader if they are not loaded yet.  Must be called from the OpenGL thread.
+     */
+    public void create() {
+        if (shape == null) {
+            shader = FlowGine.shaderManager.get(shaderRef);
+            shape = FlowGine.shapeManager.get(shapeRef);
+        }
+    }
+
+    /**
+     * Submits all instances of the archetype to a render queue, creating the archetype first if needed.
+     * The transformations should be up to date.  Must be called from the OpenGL thread.
+     */
+    public void submit(RenderQueue renderQueue) {
+        create();
+
+        final Map<String, Object> parameterMap = shaderParameters.isEmpty() ? null : shaderParameters;
+        for (int i = 0; i < count; i++) {
+            renderQueue.submit(layer, translucent, shader, shape, null,
+                               transforms, i * TRANSFORM_SIZE,
+                               parameterMap,
+                               parameters, i * PARAMETERS_SIZE);
+        }
+    }
+
+    /**
+     * Releases the shape and shader.
+     */
+    void delete() {
+        if (shape != null) {
+            FlowGine.shapeManager.release(shape);
+            FlowGine.shaderManager.release(shader);
+            shape = null;
+            shader = null;
+        }
+    }
+
+    /**
+     * Adds an instance with zero position, no rotation, unit scale and zero parameters.
+     *
+     * @return index of the instance.
+     */
+    int add(int entity) {
+        if (count >= entities.length) allocate(entities.length * 2);
+
+        final int index = count++;
+        entities[index] = entity;
+        setPosition(index, 0, 0, 0);
+        setRotation(index, 0, 0, 0, 1);
+        setScale(index, 1, 1, 1);
+        setParameters(index, 0, 0, 0, 0);
+        return index;
+    }
+
+    /**
+     * Removes an instance by moving the last instance to its place.
+     *
+     * @return entity handle of the instance that was moved to the index, or -1 if the removed instance was the last one.
+     */
+    int remove(int index) {
+        final int last = --count;
+        if (index == last) return -1;
+
+        entities[index] = entities[last];
+        System.arraycopy(positions, last * POSITION_SIZE, positions, index * POSITION_SIZE, POSITION_SIZE);
+        System.arraycopy(rotations, last * ROTATION_SIZE, rotations, index * ROTATION_SIZE, ROTATION_SIZE);
+        System.arraycopy(scales, last * SCALE_SIZE, scales, index * SCALE_SIZE, SCALE_SIZE);
+        System.arraycopy(parameters, last * PARAMETERS_SIZE, parameters, index * PARAMETERS_SIZE, PARAMETERS_SIZE);
+        System.arraycopy(transforms, last * TRANSFORM_SIZE, transforms, index * TRANSFORM_SIZE, TRANSFORM_SIZE);
+        return entities[index];
+    }
+
+    void setPosition(int index, float x, float y, float z) {
+        final int p = index * POSITION_SIZE;
+        positions[p] = x;
+        positions[p + 1] = y;
+        positions[p + 2] = z;
+        transformsChanged = true;
+    }
+
+    void setRotation(int index, float x, float y, float z, float w) {
+        final int r = index * ROTATION_SIZE;
+        rotations[r] = x;
+        rotations[r + 1] = y;
+        rotations[r + 2] = z;
+        rotations[r + 3] = w;
+        transformsChanged = true;
+    }
+
+    void setScale(int index, float x, float y, float z) {
+        final int s = index * SCALE_SIZE;
+        scales[s] = x;
+        scales[s + 1] = y;
+        scales[s + 2] = z;
+        transformsChanged = true;
+    }
+
+    void setParameters(int index, float a, float b, float c, float d) {
+        final int p = index * PARAMETERS_SIZE;
+        parameters[p] = a;
+        parameters[p + 1] = b;
+        parameters[p + 2] = c;
+        parameters[p + 3] = d;
+    }
+
+    private void allocate(int capacity) {
+        final int[] newEntities = new int[capacity];
+        final float[] newPositions = new float[capacity * POSITION_SIZE];
+        final float[] newRotations = new float[capacity * ROTATION_SIZE];
+        final float[] newScales = new float[capacity * SCALE_SIZE];
+        final float[] newParameters = new float[capacity * PARAMETERS_SIZE];
+        final float[] newTransforms = new float[capacity * TRANSFORM_SIZE];
+
+        if (entities != null) {
+            System.arraycopy(entities, 0, newEntities, 0, count);
+            System.arraycopy(positions, 0, newPositions, 0, count * POSITION_SIZE);
+            System.arraycopy(rotations, 0, newRotations, 0, count * ROTATION_SIZE);
+            System.arraycopy(scales, 0, newScales, 0, count * SCALE_SIZE);
+            System.arraycopy(parameters, 0, newParameters, 0, count * PARAMETERS_SIZE);
+            System.arraycopy(transforms, 0, newTransforms, 0, count * TRANSFORM_SIZE);
+        }
+
+        entities = newEntities;
+        positions = newPositions;
+        rotations = newRotations;
+        scales = newScales;
+        parameters = newParameters;
+        transforms = newTransforms;
+    }
+
+    @Override public String toString() {
+        return "Archetype{" + shapeRef + ", " + shaderRef + ", layer " + layer + (translucent ? ", translucent" : "") +
+               ", " + count + " instances}";
+    }
+}
@@ -0,0 +1,295 @@
+package org.skycastle.flowgine.entity;
+
+import org.flowutils.Check;
+import org.skycastle.flowgine.render.RenderQueue;
+import org.skycastle.flowgine.render.SortKey;
+import org.skycastle.flowgine.shader.ShaderRef;
+import org.skycastle.flowgine.shape.ShapeRef;
+import org.skycastle.flowgine.utils.Disposable;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Stores large numbers of rendered instances (e.g. trees, rocks, debris) as tightly packed component arrays,
+ * grouped into archetypes by shape, shader, layer and translucency.
+ * <p/>
+ * A lighter weight alternative to one SpatialShape per instance: instead of an object with its own parameter map and
+ * resource references, an instance is an entity handle and a slot in the arrays of its archetype, so update systems and
+ * render submission iterate memory linearly.
+ * <p/>
+ * Entity handles stay valid until the entity is removed, even though the instances move inside their archetypes.
+ * Handles of removed entities are detected as long as the slot has not been reused 128 times since.
+ */
+public final class InstanceStore implements Disposable {
+
+    private static final int SLOT_BITS = 24;
+    private static final int SLOT_MASK = (1 << SLOT_BITS) - 1;
+    private static final int GENERATION_MASK = 0x7F;
+    private static final int DEFAULT_CAPACITY = 1024;
+
+    private final List<Archetype> archetypes = new ArrayList<Archetype>();
+    private final List<Archetype> readOnlyArchetypes = Collections.unmodifiableList(archetypes);
+    private final Map<ArchetypeKey, Archetype> archetypesByKey = new HashMap<ArchetypeKey, Archetype>();
+    private final int archetypeCapacity;
+
+    // Per entity slot: archetype and index in it, or null if the slot is free
+    private Archetype[] slotArchetypes;
+    private int[] slotIndexes;
+    private int[] slotGenerations;
+    private int slotCount = 0;
+    private int[] freeSlots;
+    private int freeSlotCount = 0;
+    private int entityCount = 0;
+
+    public InstanceStore() {
+        this(DEFAULT_CAPACITY);
+    }
+
+    /**
+     * @param initialCapacity number of entities to reserve space for.  The store grows if more are created.
+     */
+    public InstanceStore(int initialCapacity) {
+        final int capacity = Math.max(1, initialCapacity);
+        archetypeCapacity = Math.min(capacity, DEFAULT_CAPACITY);
+        slotArchetypes = new Archetype[capacity];
+        slotIndexes = new int[capacity];
+        slotGenerations = new int[capacity];
+        freeSlots = new int[capacity];
+    }
+
+    /**
+     * Creates an entity with zero position, no rotation, unit scale and zero instance parameters.
+     *
+     * @param shapeRef shape to render the entity with.
+     * @param shaderRef shader to render the entity with.
+     * @param layer render layer, 0..15.
+     * @param translucent true if the entity is translucent.
+     * @return handle of the new entity.
+     */
+    public int create(ShapeRef shapeRef, ShaderRef shaderRef, int layer, boolean translucent) {
+        Check.notNull(shapeRef, "shapeRef");
+        Check.notNull(shaderRef, "shaderRef");
+        Check.under(layer, "layer", SortKey.MAX_LAYER + 1);
+
+        final Archetype archetype = getOrCreateArchetype(shapeRef, shaderRef, layer, translucent);
+
+        final int slot;
+        if (freeSlotCount > 0) {
+            slot = freeSlots[--freeSlotCount];
+        }
+        else {
+            if (slotCount >= slotArchetypes.length) allocateSlots(slotArchetypes.length * 2);
+            slot = slotCount++;
+        }
+
+        final int entity = (slotGenerations[slot] << SLOT_BITS) | slot;
+        slotArchetypes[slot] = archetype;
+        slotIndexes[slot] = archetype.add(entity);
+        entityCount++;
+
+        return entity;
+    }
+
+    /**
+     * Removes an entity.  Its handle becomes invalid.
+     */
+    public void remove(int entity) {
+        final int slot = checkEntity(entity);
+
+        final Archetype archetype = slotArchetypes[slot];
+        final int index = slotIndexes[slot];
+        final int movedEntity = archetype.remove(index);
+        if (movedEntity >= 0) slotIndexes[movedEntity & SLOT_MASK] = index;
+
+        slotArchetypes[slot] = null;
+        slotGenerations[slot] = (slotGenerations[slot] + 1) & GENERATION_MASK;
+        freeSlots[freeSlotCount++] = slot;
+        entityCount--;
+    }
+
+    /**
+     * @return true if the handle refers to an entity that has not been removed.
+     */
+    public boolean isAlive(int entity) {
+        if (entity < 0) return false;
+        final int slot = entity & SLOT_MASK;
+        return slot < slotCount &&
+               slotArchetypes[slot] != null &&
+               slotGenerations[slot] == entity >>> SLOT_BITS;
+    }
+
+    /**
+     * @return number of entities in the store.
+     */
+    public int size() {
+        return entityCount;
+    }
+
+    /**
+     * @return the archetype that the entity is stored in.
+     */
+    public Archetype getArchetype(int entity) {
+        return slotArchetypes[checkEntity(entity)];
+    }
+
+    /**
+     * @return index of the entity in the component arrays of its archetype.  Changes when other entities are removed.
+     */
+    public int getIndex(int entity) {
+        return slotIndexes[checkEntity(entity)];
+    }
+
+    public void setPosition(int entity, float x, float y, float z) {
+        final int slot = checkEntity(entity);
+        slotArchetypes[slot].setPosition(slotIndexes[slot], x, y, z);
+    }
+
+    /**
+     * Sets the rotation of an entity as a unit quaternion.
+     */
+    public void setRotation(int entity, float x, float y, float z, float w) {
+        final int slot = checkEntity(entity);
+        slotArchetypes[slot].setRotation(slotIndexes[slot], x, y, z, w);
+    }
+
+    public void setScale(int entity, float x, float y, float z) {
+        final int slot = checkEntity(entity);
+        slotArchetypes[slot].setScale(slotIndexes[slot], x, y, z);
+    }
+
+    /**
+     * Sets the four values passed to the instanceParameters attribute of instanced shaders for the entity.
+     */
+    public void setParameters(int entity, float a, float b, float c, float d) {
+        final int slot = checkEntity(entity);
+        slotArchetypes[slot].setParameters(slotIndexes[slot], a, b, c, d);
+    }
+
+    /**
+     * @return the archetypes of the store, including ones that have no entities left.
+     */
+    public List<Archetype> getArchetypes() {
+        return readOnlyArchetypes;
+    }
+
+    /**
+     * Runs a system on each archetype that has entities.
+     */
+    public void update(InstanceSystem system, double deltaSeconds, double gameTimeSeconds) {
+        for (int i = 0; i < archetypes.size(); i++) {
+            final Archetype archetype = archetypes.get(i);
+            if (archetype.getCount() > 0) system.update(archetype, deltaSeconds, gameTimeSeconds);
+        }
+    }
+
+    /**
+     * Recalculates the transformations of the archetypes that have changed.
+     *
+     * @return number of transformations recalculated.
+     */
+    public int updateTransforms() {
+        int updated = 0;
+        for (int i = 0; i < archetypes.size(); i++) {
+            updated += archetypes.get(i).updateTransforms();
+        }
+        return updated;
+    }
+
+    /**
+     * Updates changed transformations and submits all entities to a render queue.  Must be called from the OpenGL thread.
+     */
+    public void submit(RenderQueue renderQueue) {
+        for (int i = 0; i < archetypes.size(); i++) {
+            final Archetype archetype = archetypes.get(i);
+            if (archetype.getCount() > 0) {
+                archetype.updateTransforms();
+                archetype.submit(renderQueue);
+            }
+        }
+    }
+
+    /**
+     * Releases the shapes and shaders of all archetypes.  The entities are kept, and the resources are loaded again
+     * if they are submitted.
+     */
+    public void dispose() {
+        for (Archetype archetype : archetypes) {
+            archetype.delete();
+        }
+    }
+
+    private Archetype getOrCreateArchetype(ShapeRef shapeRef, ShaderRef shaderRef, int layer, boolean translucent) {
+        final ArchetypeKey key = new ArchetypeKey(shapeRef, shaderRef, layer, translucent);
+        Archetype archetype = archetypesByKey.get(key);
+        if (archetype == null) {
+            archetype = new Archetype(shapeRef, shaderRef, layer, translucent, archetypeCapacity);
+            archetypesByKey.put(key, archetype);
+            archetypes.add(archetype);
+        }
+        return archetype;
+    }
+
+    private int checkEntity(int entity) {
+        if (!isAlive(entity)) throw new IllegalArgumentException("No entity with handle " + entity + " in the store");
+        return entity & SLOT_MASK;
+    }
+
+    private void allocateSlots(int capacity) {
+        if (capacity > SLOT_MASK + 1) throw new IllegalStateException("Too many entities, at most " + (SLOT_MASK + 1) + " are supported");
+
+        final Archetype[] newArchetypes = new Archetype[capacity];
+        final int[] newIndexes = new int[capacity];
+        final int[] newGenerations = new int[capacity];
+        final int[] newFreeSlots = new int[capacity];
+
+        System.arraycopy(slotArchetypes, 0, newArchetypes, 0, slotCount);
+        System.arraycopy(slotIndexes, 0, newIndexes, 0, slotCount);
+        System.arraycopy(slotGenerations, 0, newGenerations, 0, slotCount);
+        System.arraycopy(freeSlots, 0, newFreeSlots, 0, freeSlotCount);
+
+        slotArchetypes = newArchetypes;
+        slotIndexes = newIndexes;
+        slotGenerations = newGenerations;
+        freeSlots = newFreeSlots;
+    }
+
+    private static final class ArchetypeKey {
+        private final ShapeRef shapeRef;
+        private final ShaderRef shaderRef;
+        private final int layer;
+        private final boolean translucent;
+
+        private ArchetypeKey(ShapeRef shapeRef, ShaderRef shaderRef, int layer, boolean translucent) {
+            this.shapeRef = shapeRef;
+            this.shaderRef = shaderRef;
+            this.layer = layer;
+            this.translucent = translucent;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) return true;
+            if (o == null || getClass() != o.getClass()) return false;
+
+            final ArchetypeKey that = (ArchetypeKey) o;
+
+            return layer == that.layer &&
+                   translucent == that.translucent &&
+                   shapeRef.equals(that.shapeRef) &&
+                   shaderRef.equals(that.shaderRef);
+        }
+
+        @Override
+        public int hashCode() {
+            int result = shapeRef.hashCode();
+            result = 31 * result + shaderRef.hashCode();
+            result = 31 * result + layer;
+            result = 31 * result + (translucent ? 1 : 0);
+            return result;
+        }
+    }
+}
@@ -0,0 +1,18 @@
+package org.skycastle.flowgine.entity;
+
+/**
+ * Logic that updates the components of the instances in an InstanceStore, one archetype at a time.
+ */
+public interface InstanceSystem {
+
+    /**
+     * Updates the instances of an archetype, by iterating its component arrays from index 0 to archetype.getCount().
+     * Call archetype.markTransformsChanged if positions, rotations or scales were modified.
+     *
+     * @param archetype archetype with at least one instance.
+     * @param deltaSeconds seconds since the previous update.
+     * @param gameTimeSeconds total game time so far in seconds.
+     */
+    void update(Archetype archetype, double deltaSeconds, double gameTimeSeconds);
+
+}
@@ -0,0 +1,234 @@
+package org.skycastle.flowgine.geometry;
+
+/**
+ * Axis aligned bounding box together with a bounding sphere.
+ * An empty bounds has min values above the max values.
+ */
+public final class Bounds {
+
+    public float minX = Float.POSITIVE_INFINITY;
+    public float minY = Float.POSITIVE_INFINITY;
+    public float minZ = Float.POSITIVE_INFINITY;
+    public float maxX = Float.NEGATIVE_INFINITY;
+    public float maxY = Float.NEGATIVE_INFINITY;
+    public float maxZ = Float.NEGATIVE_INFINITY;
+
+    public float centerX = 0;
+    public float centerY = 0;
+    public float centerZ = 0;
+    public float radius = 0;
+
+    /**
+     * Creates empty bounds.
+     */
+    public Bounds() {
+    }
+
+    public Bounds(Bounds bounds) {
+        set(bounds);
+    }
+
+    public Bounds(float minX, float minY, float minZ, float maxX, float maxY, float maxZ) {
+        setBox(minX, minY, minZ, maxX, maxY, maxZ);
+    }
+
+    /**
+     * Empties the bounds.
+     */
+    public Bounds setEmpty() {
+        minX = Float.POSITIVE_INFINITY;
+        minY = Float.POSITIVE_INFINITY;
+        minZ = Float.POSITIVE_INFINITY;
+        maxX = Float.NEGATIVE_INFINITY;
+        maxY = Float.NEGATIVE_INFINITY;
+        maxZ = Float.NEGATIVE_INFINITY;
+        centerX = 0;
+        centerY = 0;
+        centerZ = 0;
+        radius = 0;
+        return this;
+    }
+
+    /**
+     * @return true if the bounds do not contain any points.
+     */
+    public boolean isEmpty() {
+        return minX > maxX || minY > maxY || minZ > maxZ;
+    }
+
+    public Bounds set(Bounds bounds) {
+        minX = bounds.minX;
+        minY = bounds.minY;
+        minZ = bounds.minZ;
+        maxX = bounds.maxX;
+        maxY = bounds.maxY;
+        maxZ = bounds.maxZ;
+        centerX = bounds.centerX;
+        centerY = bounds.centerY;
+        centerZ = bounds.centerZ;
+        radius = bounds.radius;
+        return this;
+    }
+
+    /**
+     * Sets the box, and sets the sphere to enclose the box.
+     */
+    public Bounds setBox(float minX, float minY, float minZ, float maxX, float maxY, float maxZ) {
+        this.minX = minX;
+        this.minY = minY;
+        this.minZ = minZ;
+        this.maxX = maxX;
+        this.maxY = maxY;
+        this.maxZ = maxZ;
+        updateSphereFromBox();
+        return this;
+    }
+
+    /**
+     * Grows the box to include the specified point.  Does not update the sphere, call updateSphereFromBox
+     * or includeInSphere when all points have been added.
+     */
+    public Bounds include(float x, float y, float z) {
+        if (x < minX) minX = x;
+        if (y < minY) minY = y;
+        if (z < minZ) minZ = z;
+        if (x > maxX) maxX = x;
+        if (y > maxY) maxY = y;
+        if (z > maxZ) maxZ = z;
+        return this;
+    }
+
+    /**
+     * Grows the box to include the specified point.  Does not update the sphere.
+     */
+    public Bounds include(Vec3 point) {
+        return include(point.x, point.y, point.z);
+    }
+
+    /**
+     * Centers the sphere on the box, with a radius that encloses the whole box.
+     */
+    public Bounds updateSphereFromBox() {
+        if (isEmpty()) {
+            centerX = 0;
+            centerY = 0;
+            centerZ = 0;
+            radius = 0;
+        }
+        else {
+            centerX = 0.5f * (minX + maxX);
+            centerY = 0.5f * (minY + maxY);
+            centerZ = 0.5f * (minZ + maxZ);
+            final float dx = maxX - centerX;
+            final float dy = maxY - centerY;
+            final float dz = maxZ - centerZ;
+            radius = (float) Math.sqrt(dx * dx + dy * dy + dz * dz);
+        }
+        return this;
+    }
+
+    /**
+     * Centers the sphere on the box with zero radius, after which the radius can be grown to the actual points
+     * with includeInSphere.  The result is usually tighter than the sphere from updateSphereFromBox.
+     */
+    public Bounds startSphere() {
+        updateSphereFromBox();
+        radius = 0;
+        return this;
+    }
+
+    /**
+     * Grows the radius of the sphere to include the specified point, without moving the center of the sphere.
+     */
+    public Bounds includeInSphere(float x, float y, float z) {
+        final float dx = x - centerX;
+        final float dy = y - centerY;
+        final float dz = z - centerZ;
+        final float distanceSquared = dx * dx + dy * dy + dz * dz;
+        if (distanceSquared > radius * radius) radius = (float) Math.sqrt(distanceSquared);
+        return this;
+    }
+
+    /**
+     * Sets these bounds to enclose the specified bounds transformed with a matrix.
+     *
+     * @param bounds bounds to transform.  May be the same object as this.
+     * @param matrix array with a 4x4 affine transformation matrix in column major order.
+     * @param offset index of the first value of the matrix in the array.
+     */
+    public Bounds setTransformed(Bounds bounds, float[] matrix, int offset) {
+        if (bounds.isEmpty()) return setEmpty();
+
+        final float bMinX = bounds.minX, bMinY = bounds.minY, bMinZ = bounds.minZ;
+        final float bMaxX = bounds.maxX, bMaxY = bounds.maxY, bMaxZ = bounds.maxZ;
+        final float bCenterX = bounds.centerX, bCenterY = bounds.centerY, bCenterZ = bounds.centerZ;
+        final float bRadius = bounds.radius;
+
+        // Box, by adding the smaller and larger contribution of each matrix element to the translation
+        float newMinX = matrix[offset + 12], newMaxX = newMinX;
+        float newMinY = matrix[offset + 13], newMaxY = newMinY;
+        float newMinZ = matrix[offset + 14], newMaxZ = newMinZ;
+        for (int column = 0; column < 3; column++) {
+            final float min = column == 0 ? bMinX : column == 1 ? bMinY : bMinZ;
+            final float max = column == 0 ? bMaxX : column == 1 ? bMaxY : bMaxZ;
+            final int c = offset + column * 4;
+
+            float a = matrix[c] * min, b = matrix[c] * max;
+            newMinX += Math.min(a, b);
+            newMaxX += Math.max(a, b);
+            a = matrix[c + 1] * min;
+            b = matrix[c + 1] * max;
+            newMinY += Math.min(a, b);
+            newMaxY += Math.max(a, b);
+            a = matrix[c + 2] * min;
+            b = matrix[c + 2] * max;
+            newMinZ += Math.min(a, b);
+            newMaxZ += Math.max(a, b);
+        }
+        minX = newMinX;
+        minY = newMinY;
+        minZ = newMinZ;
+        maxX = newMaxX;
+        maxY = newMaxY;
+        maxZ = newMaxZ;
+
+        // Sphere, scaled with the largest axis scale of the matrix
+        centerX = matrix[offset] * bCenterX + matrix[offset + 4] * bCenterY + matrix[offset + 8] * bCenterZ + matrix[offset + 12];
+        centerY = matrix[offset + 1] * bCenterX + matrix[offset + 5] * bCenterY + matrix[offset + 9] * bCenterZ + matrix[offset + 13];
+        centerZ = matrix[offset + 2] * bCenterX + matrix[offset + 6] * bCenterY + matrix[offset + 10] * bCenterZ + matrix[offset + 14];
+        float maxScaleSquared = 0;
+        for (int column = 0; column < 3; column++) {
+            final int c = offset + column * 4;
+            final float scaleSquared = matrix[c] * matrix[c] + matrix[c + 1] * matrix[c + 1] + matrix[c + 2] * matrix[c + 2];
+            if (scaleSquared > maxScaleSquared) maxScaleSquared = scaleSquared;
+        }
+        radius = bRadius * (float) Math.sqrt(maxScaleSquared);
+
+        return this;
+    }
+
+    /**
+     * @return true if the box of these bounds contains the box of the other bounds.
+     */
+    public boolean containsBox(Bounds other) {
+        return other.minX >= minX && other.minY >= minY && other.minZ >= minZ &&
+               other.maxX <= maxX && other.maxY <= maxY && other.maxZ <= maxZ;
+    }
+
+    /**
+     * @return true if the box of these bounds overlaps the box of the other bounds.
+     */
+    public boolean overlapsBox(Bounds other) {
+        return other.maxX >= minX && other.maxY >= minY && other.maxZ >= minZ &&
+               other.minX <= maxX && other.minY <= maxY && other.minZ <= maxZ;
+    }
+
+    @Override public String toString() {
+        return "Bounds{" +
+               "min=(" + minX + ", " + minY + ", " + minZ + ")" +
+               ", max=(" + maxX + ", " + maxY + ", " + maxZ + ")" +
+               ", center=(" + centerX + ", " + centerY + ", " + centerZ + ")" +
+               ", radius=" + radius +
+               '}';
+    }
+}
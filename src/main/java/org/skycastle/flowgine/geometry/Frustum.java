@@ -0,0 +1,122 @@
+package org.skycastle.flowgine.geometry;
+
+import org.lwjgl.util.vector.Matrix4f;
+
+/**
+ * View frustum, stored as six planes with normals pointing inwards.
+ * Extracted from a combined projection and view matrix, e.g. the projection created with
+ * GeomUtils.perspectiveProjection multiplied with the camera view matrix.
+ */
+public final class Frustum {
+
+    public static final int OUTSIDE = 0;
+    public static final int INTERSECTING = 1;
+    public static final int INSIDE = 2;
+
+    public static final int PLANE_COUNT = 6;
+
+    // Plane equations a * x + b * y + c * z + d >= 0 for points inside, four values per plane
+    private final float[] planes = new float[PLANE_COUNT * 4];
+
+    /**
+     * Creates a frustum that contains everything.
+     */
+    public Frustum() {
+        for (int i = 0; i < PLANE_COUNT; i++) {
+            planes[i * 4 + 3] = Float.POSITIVE_INFINITY;
+        }
+    }
+
+    /**
+     * @param viewProjection combined projection and view matrix.
+     */
+    public Frustum(Matrix4f viewProjection) {
+        set(viewProjection);
+    }
+
+    /**
+     * Extracts the planes from a combined projection and view matrix.
+     */
+    public Frustum set(Matrix4f viewProjection) {
+        final Matrix4f m = viewProjection;
+
+        // Matrix4f fields are named m[column][row]
+        setPlane(0, m.m03 + m.m00, m.m13 + m.m10, m.m23 + m.m20, m.m33 + m.m30); // Left
+        setPlane(1, m.m03 - m.m00, m.m13 - m.m10, m.m23 - m.m20, m.m33 - m.m30); // Right
+        setPlane(2, m.m03 + m.m01, m.m13 + m.m11, m.m23 + m.m21, m.m33 + m.m31); // Bottom
+        setPlane(3, m.m03 - m.m01, m.m13 - m.m11, m.m23 - m.m21, m.m33 - m.m31); // Top
+        setPlane(4, m.m03 + m.m02, m.m13 + m.m12, m.m23 + m.m22, m.m33 + m.m32); // Near
+        setPlane(5, m.m03 - m.m02, m.m13 - m.m12, m.m23 - m.m22, m.m33 - m.m32); // Far
+
+        return this;
+    }
+
+    /**
+     * @return the plane equations, four values (a, b, c, d) per plane, in the order left, right, bottom, top, near, far.
+     *         Points with a * x + b * y + c * z + d >= 0 for all planes are inside the frustum.
+     */
+    public float[] getPlanes() {
+        return planes;
+    }
+
+    /**
+     * @return true if the sphere is at least partially inside the frustum.
+     */
+    public boolean intersectsSphere(float x, float y, float z, float radius) {
+        final float[] p = planes;
+        for (int i = 0; i < PLANE_COUNT * 4; i += 4) {
+            if (p[i] * x + p[i + 1] * y + p[i + 2] * z + p[i + 3] < -radius) return false;
+        }
+        return true;
+    }
+
+    /**
+     * @return true if the box is at least partially inside the frustum.
+     */
+    public boolean intersectsBox(float minX, float minY, float minZ, float maxX, float maxY, float maxZ) {
+        final float[] p = planes;
+        for (int i = 0; i < PLANE_COUNT * 4; i += 4) {
+            final float a = p[i], b = p[i + 1], c = p[i + 2];
+
+            // Test the corner furthest along the plane normal
+            if (a * (a >= 0 ? maxX : minX) +
+                b * (b >= 0 ? maxY : minY) +
+                c * (c >= 0 ? maxZ : minZ) + p[i + 3] < 0) return false;
+        }
+        return true;
+    }
+
+    /**
+     * @return OUTSIDE, INTERSECTING or INSIDE depending on how the box is placed relative to the frustum.
+     */
+    public int classifyBox(float minX, float minY, float minZ, float maxX, float maxY, float maxZ) {
+        final float[] p = planes;
+        int result = INSIDE;
+        for (int i = 0; i < PLANE_COUNT * 4; i += 4) {
+            final float a = p[i], b = p[i + 1], c = p[i + 2], d = p[i + 3];
+
+            // Corner furthest along the plane normal, and the opposite corner
+            if (a * (a >= 0 ? maxX : minX) + b * (b >= 0 ? maxY : minY) + c * (c >= 0 ? maxZ : minZ) + d < 0) return OUTSIDE;
+            if (a * (a >= 0 ? minX : maxX) + b * (b >= 0 ? minY : maxY) + c * (c >= 0 ? minZ : maxZ) + d < 0) result = INTERSECTING;
+        }
+        return result;
+    }
+
+    /**
+     * @return true if the sphere of the bounds, and the box of the bounds, are at least partially inside the frustum.
+     */
+    public boolean intersects(Bounds bounds) {
+        return intersectsSphere(bounds.centerX, bounds.centerY, bounds.centerZ, bounds.radius) &&
+               intersectsBox(bounds.minX, bounds.minY, bounds.minZ, bounds.maxX, bounds.maxY, bounds.maxZ);
+    }
+
+    private void setPlane(int plane, float a, float b, float c, float d) {
+        // Normalize, so that plane distances can be compared with sphere radiuses
+        final float length = (float) Math.sqrt(a * a + b * b + c * c);
+        final float scale = length > 0 ? 1f / length : 0;
+        planes[plane * 4] = a * scale;
+        planes[plane * 4 + 1] = b * scale;
+        planes[plane * 4 + 2] = c * scale;
+        planes[plane * 4 + 3] = d * scale;
+    }
+}
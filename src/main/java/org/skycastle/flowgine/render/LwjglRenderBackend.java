@@ -0,0 +1,253 @@
+package org.skycastle.flowgine.render;
+
+import org.lwjgl.opengl.GL11;
+import org.lwjgl.opengl.GL13;
+import org.lwjgl.opengl.GL15;
+import org.lwjgl.opengl.GL20;
+import org.lwjgl.opengl.GL30;
+import org.lwjgl.opengl.GL31;
+import org.lwjgl.opengl.GL33;
+
+import java.nio.ByteBuffer;
+import java.nio.FloatBuffer;
+import java.nio.IntBuffer;
+
+/**
+ * Render backend that passes the calls on to OpenGL through LWJGL.
+ * Must be used from the thread that owns the OpenGL context.
+ */
+public final class LwjglRenderBackend implements RenderBackend {
+
+    public int getError() {
+        return GL11.glGetError();
+    }
+
+    public void enable(int capability) {
+        GL11.glEnable(capability);
+    }
+
+    public void disable(int capability) {
+        GL11.glDisable(capability);
+    }
+
+    public void viewport(int x, int y, int width, int height) {
+        GL11.glViewport(x, y, width, height);
+    }
+
+    public void clearColor(float red, float green, float blue, float alpha) {
+        GL11.glClearColor(red, green, blue, alpha);
+    }
+
+    public void clear(int mask) {
+        GL11.glClear(mask);
+    }
+
+    public int genVertexArray() {
+        return GL30.glGenVertexArrays();
+    }
+
+    public void bindVertexArray(int vertexArray) {
+        GL30.glBindVertexArray(vertexArray);
+    }
+
+    public void deleteVertexArray(int vertexArray) {
+        GL30.glDeleteVertexArrays(vertexArray);
+    }
+
+    public int genBuffer() {
+        return GL15.glGenBuffers();
+    }
+
+    public void bindBuffer(int target, int buffer) {
+        GL15.glBindBuffer(target, buffer);
+    }
+
+    public void bufferData(int target, FloatBuffer data, int usage) {
+        GL15.glBufferData(target, data, usage);
+    }
+
+    public void bufferData(int target, IntBuffer data, int usage) {
+        GL15.glBufferData(target, data, usage);
+    }
+
+    public void deleteBuffer(int buffer) {
+        GL15.glDeleteBuffers(buffer);
+    }
+
+    public void vertexAttribPointer(int index, int size, int type, boolean normalized, int stride, long offset) {
+        GL20.glVertexAttribPointer(index, size, type, normalized, stride, offset);
+    }
+
+    public void enableVertexAttribArray(int index) {
+        GL20.glEnableVertexAttribArray(index);
+    }
+
+    public void disableVertexAttribArray(int index) {
+        GL20.glDisableVertexAttribArray(index);
+    }
+
+    public void drawElements(int mode, int indexCount, int indexType, long indexOffset) {
+        GL11.glDrawElements(mode, indexCount, indexType, indexOffset);
+    }
+
+    public void drawElementsInstanced(int mode, int indexCount, int indexType, long indexOffset, int instanceCount) {
+        GL31.glDrawElementsInstanced(mode, indexCount, indexType, indexOffset, instanceCount);
+    }
+
+    public void vertexAttribDivisor(int index, int divisor) {
+        GL33.glVertexAttribDivisor(index, divisor);
+    }
+
+    public void vertexAttrib4f(int index, float x, float y, float z, float w) {
+        GL20.glVertexAttrib4f(index, x, y, z, w);
+    }
+
+    public int createShader(int type) {
+        return GL20.glCreateShader(type);
+    }
+
+    public void shaderSource(int shader, CharSequence source) {
+        GL20.glShaderSource(shader, source);
+    }
+
+    public void compileShader(int shader) {
+        GL20.glCompileShader(shader);
+    }
+
+    public int getShaderi(int shader, int parameterName) {
+        return GL20.glGetShaderi(shader, parameterName);
+    }
+
+    public String getShaderInfoLog(int shader, int maxLength) {
+        return GL20.glGetShaderInfoLog(shader, maxLength);
+    }
+
+    public void deleteShader(int shader) {
+        GL20.glDeleteShader(shader);
+    }
+
+    public int createProgram() {
+        return GL20.glCreateProgram();
+    }
+
+    public void attachShader(int program, int shader) {
+        GL20.glAttachShader(program, shader);
+    }
+
+    public void detachShader(int program, int shader) {
+        GL20.glDetachShader(program, shader);
+    }
+
+    public void bindAttribLocation(int program, int index, CharSequence name) {
+        GL20.glBindAttribLocation(program, index, name);
+    }
+
+    public int getAttribLocation(int program, CharSequence name) {
+        return GL20.glGetAttribLocation(program, name);
+    }
+
+    public void linkProgram(int program) {
+        GL20.glLinkProgram(program);
+    }
+
+    public void validateProgram(int program) {
+        GL20.glValidateProgram(program);
+    }
+
+    public int getProgrami(int program, int parameterName) {
+        return GL20.glGetProgrami(program, parameterName);
+    }
+
+    public String getProgramInfoLog(int program, int maxLength) {
+        return GL20.glGetProgramInfoLog(program, maxLength);
+    }
+
+    public String getActiveUniform(int program, int index, int maxLength) {
+        return GL20.glGetActiveUniform(program, index, maxLength);
+    }
+
+    public int getUniformLocation(int program, CharSequence name) {
+        return GL20.glGetUniformLocation(program, name);
+    }
+
+    public void useProgram(int program) {
+        GL20.glUseProgram(program);
+    }
+
+    public void deleteProgram(int program) {
+        GL20.glDeleteProgram(program);
+    }
+
+    public void uniform1f(int location, float f) {
+        GL20.glUniform1f(location, f);
+    }
+
+    public void uniform2f(int location, float f1, float f2) {
+        GL20.glUniform2f(location, f1, f2);
+    }
+
+    public void uniform3f(int location, float f1, float f2, float f3) {
+        GL20.glUniform3f(location, f1, f2, f3);
+    }
+
+    public void uniform4f(int location, float f1, float f2, float f3, float f4) {
+        GL20.glUniform4f(location, f1, f2, f3, f4);
+    }
+
+    public void uniform1i(int location, int i) {
+        GL20.glUniform1i(location, i);
+    }
+
+    public void uniform2i(int location, int i1, int i2) {
+        GL20.glUniform2i(location, i1, i2);
+    }
+
+    public void uniform3i(int location, int i1, int i2, int i3) {
+        GL20.glUniform3i(location, i1, i2, i3);
+    }
+
+    public void uniform4i(int location, int i1, int i2, int i3, int i4) {
+        GL20.glUniform4i(location, i1, i2, i3, i4);
+    }
+
+    public void uniformMatrix3(int location, boolean transpose, FloatBuffer matrix) {
+        GL20.glUniformMatrix3(location, transpose, matrix);
+    }
+
+    public void uniformMatrix4(int location, boolean transpose, FloatBuffer matrix) {
+        GL20.glUniformMatrix4(location, transpose, matrix);
+    }
+
+    public int genTexture() {
+        return GL11.glGenTextures();
+    }
+
+    public void activeTexture(int textureUnit) {
+        GL13.glActiveTexture(textureUnit);
+    }
+
+    public void bindTexture(int target, int texture) {
+        GL11.glBindTexture(target, texture);
+    }
+
+    public void pixelStorei(int parameterName, int value) {
+        GL11.glPixelStorei(parameterName, value);
+    }
+
+    public void texImage2D(int target, int level, int internalFormat, int width, int height, int border,
+                           int format, int type, ByteBuffer pixels) {
+        GL11.glTexImage2D(target, level, internalFormat, width, height, border, format, type, pixels);
+    }
+
+    public void texParameteri(int target, int parameterName, int value) {
+        GL11.glTexParameteri(target, parameterName, value);
+    }
+
+    public void generateMipmap(int target) {
+        GL30.glGenerateMipmap(target);
+    }
+
+    public void deleteTexture(int texture) {
+        GL11.glDeleteTextures(texture);
+    }
+}
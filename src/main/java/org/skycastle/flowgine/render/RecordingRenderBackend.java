@@ -0,0 +1,380 @@
+package org.skycastle.flowgine.render;
+
+import java.nio.ByteBuffer;
+import java.nio.FloatBuffer;
+import java.nio.IntBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.lwjgl.opengl.GL11.GL_NO_ERROR;
+import static org.lwjgl.opengl.GL11.GL_TRUE;
+import static org.lwjgl.opengl.GL20.GL_COMPILE_STATUS;
+import static org.lwjgl.opengl.GL20.GL_LINK_STATUS;
+import static org.lwjgl.opengl.GL20.GL_VALIDATE_STATUS;
+
+/**
+ * Render backend that does not render anything, but counts the calls made to it,
+ * and optionally keeps a log of them.
+ * <p/>
+ * Can be used to test and benchmark rendering code on machines without a GPU.
+ * Creation calls return new unique handles, shaders always compile and link successfully with all attributes active
+ * unless configured otherwise,
+ * and no errors are reported.
+ */
+public final class RecordingRenderBackend implements RenderBackend {
+
+    private final Map<String, Integer> callCounts = new HashMap<String, Integer>();
+    private final List<String> callLog = new ArrayList<String>();
+    private boolean logging = false;
+    private boolean attributesActive = true;
+    private int totalCallCount = 0;
+    private int nextHandle = 1;
+
+    /**
+     * Creates a backend that counts calls without logging them.
+     */
+    public RecordingRenderBackend() {
+    }
+
+    /**
+     * @param logging if true, a description of each call is stored in the call log.
+     */
+    public RecordingRenderBackend(boolean logging) {
+        this.logging = logging;
+    }
+
+    /**
+     * @return true if a description of each call is stored in the call log.
+     */
+    public boolean isLogging() {
+        return logging;
+    }
+
+    /**
+     * @param logging if true, a description of each call is stored in the call log.
+     */
+    public void setLogging(boolean logging) {
+        this.logging = logging;
+    }
+
+    /**
+     * @return true if linked programs report all their attributes as active.
+     */
+    public boolean isAttributesActive() {
+        return attributesActive;
+    }
+
+    /**
+     * @param attributesActive if false, linked programs report all their attributes as inactive,
+     *                         so that shaders created afterwards are not instanced.
+     */
+    public void setAttributesActive(boolean attributesActive) {
+        this.attributesActive = attributesActive;
+    }
+
+    /**
+     * @return the logged calls, in the order they were made, e.g. "bindVertexArray(3)".
+     */
+    public List<String> getCallLog() {
+        return Collections.unmodifiableList(callLog);
+    }
+
+    /**
+     * @return total number of calls made to this backend since creation or the last reset.
+     */
+    public int getTotalCallCount() {
+        return totalCallCount;
+    }
+
+    /**
+     * @param callName name of the call, e.g. "bindBuffer".
+     * @return number of times the call has been made since creation or the last reset.
+     */
+    public int getCallCount(String callName) {
+        final Integer count = callCounts.get(callName);
+        return count == null ? 0 : count;
+    }
+
+    /**
+     * Clears the call counts and the call log.
+     */
+    public void reset() {
+        callCounts.clear();
+        callLog.clear();
+        totalCallCount = 0;
+    }
+
+    public int getError() {
+        record("getError");
+        return GL_NO_ERROR;
+    }
+
+    public void enable(int capability) {
+        record("enable", capability);
+    }
+
+    public void disable(int capability) {
+        record("disable", capability);
+    }
+
+    public void viewport(int x, int y, int width, int height) {
+        record("viewport");
+    }
+
+    public void clearColor(float red, float green, float blue, float alpha) {
+        record("clearColor");
+    }
+
+    public void clear(int mask) {
+        record("clear", mask);
+    }
+
+    public int genVertexArray() {
+        return recordCreation("genVertexArray");
+    }
+
+    public void bindVertexArray(int vertexArray) {
+        record("bindVertexArray", vertexArray);
+    }
+
+    public void deleteVertexArray(int vertexArray) {
+        record("deleteVertexArray", vertexArray);
+    }
+
+    public int genBuffer() {
+        return recordCreation("genBuffer");
+    }
+
+    public void bindBuffer(int target, int buffer) {
+        record("bindBuffer", target, buffer);
+    }
+
+    public void bufferData(int target, FloatBuffer data, int usage) {
+        record("bufferData", target, data.remaining());
+    }
+
+    public void bufferData(int target, IntBuffer data, int usage) {
+        record("bufferData", target, data.remaining());
+    }
+
+    public void deleteBuffer(int buffer) {
+        record("deleteBuffer", buffer);
+    }
+
+    public void vertexAttribPointer(int index, int size, int type, boolean normalized, int stride, long offset) {
+        record("vertexAttribPointer", index, size);
+    }
+
+    public void enableVertexAttribArray(int index) {
+        record("enableVertexAttribArray", index);
+    }
+
+    public void disableVertexAttribArray(int index) {
+        record("disableVertexAttribArray", index);
+    }
+
+    public void drawElements(int mode, int indexCount, int indexType, long indexOffset) {
+        record("drawElements", mode, indexCount);
+    }
+
+    public void drawElementsInstanced(int mode, int indexCount, int indexType, long indexOffset, int instanceCount) {
+        record("drawElementsInstanced", indexCount, instanceCount);
+    }
+
+    public void vertexAttribDivisor(int index, int divisor) {
+        record("vertexAttribDivisor", index, divisor);
+    }
+
+    public void vertexAttrib4f(int index, float x, float y, float z, float w) {
+        count("vertexAttrib4f");
+        if (logging) callLog.add("vertexAttrib4f(" + index + ", " + x + ", " + y + ", " + z + ", " + w + ")");
+    }
+
+    public int createShader(int type) {
+        return recordCreation("createShader");
+    }
+
+    public void shaderSource(int shader, CharSequence source) {
+        record("shaderSource", shader);
+    }
+
+    public void compileShader(int shader) {
+        record("compileShader", shader);
+    }
+
+    public int getShaderi(int shader, int parameterName) {
+        record("getShaderi", shader, parameterName);
+        return parameterName == GL_COMPILE_STATUS ? GL_TRUE : 0;
+    }
+
+    public String getShaderInfoLog(int shader, int maxLength) {
+        record("getShaderInfoLog", shader);
+        return "";
+    }
+
+    public void deleteShader(int shader) {
+        record("deleteShader", shader);
+    }
+
+    public int createProgram() {
+        return recordCreation("createProgram");
+    }
+
+    public void attachShader(int program, int shader) {
+        record("attachShader", program, shader);
+    }
+
+    public void detachShader(int program, int shader) {
+        record("detachShader", program, shader);
+    }
+
+    public void bindAttribLocation(int program, int index, CharSequence name) {
+        record("bindAttribLocation", program, index);
+    }
+
+    public int getAttribLocation(int program, CharSequence name) {
+        record("getAttribLocation", program);
+        return attributesActive ? 0 : -1;
+    }
+
+    public void linkProgram(int program) {
+        record("linkProgram", program);
+    }
+
+    public void validateProgram(int program) {
+        record("validateProgram", program);
+    }
+
+    public int getProgrami(int program, int parameterName) {
+        record("getProgrami", program, parameterName);
+        return parameterName == GL_LINK_STATUS || parameterName == GL_VALIDATE_STATUS ? GL_TRUE : 0;
+    }
+
+    public String getProgramInfoLog(int program, int maxLength) {
+        record("getProgramInfoLog", program);
+        return "";
+    }
+
+    public String getActiveUniform(int program, int index, int maxLength) {
+        record("getActiveUniform", program, index);
+        return "";
+    }
+
+    public int getUniformLocation(int program, CharSequence name) {
+        record("getUniformLocation", program);
+        return -1;
+    }
+
+    public void useProgram(int program) {
+        record("useProgram", program);
+    }
+
+    public void deleteProgram(int program) {
+        record("deleteProgram", program);
+    }
+
+    public void uniform1f(int location, float f) {
+        record("uniform1f", location);
+    }
+
+    public void uniform2f(int location, float f1, float f2) {
+        record("uniform2f", location);
+    }
+
+    public void uniform3f(int location, float f1, float f2, float f3) {
+        record("uniform3f", location);
+    }
+
+    public void uniform4f(int location, float f1, float f2, float f3, float f4) {
+        record("uniform4f", location);
+    }
+
+    public void uniform1i(int location, int i) {
+        record("uniform1i", location);
+    }
+
+    public void uniform2i(int location, int i1, int i2) {
+        record("uniform2i", location);
+    }
+
+    public void uniform3i(int location, int i1, int i2, int i3) {
+        record("uniform3i", location);
+    }
+
+    public void uniform4i(int location, int i1, int i2, int i3, int i4) {
+        record("uniform4i", location);
+    }
+
+    public void uniformMatrix3(int location, boolean transpose, FloatBuffer matrix) {
+        record("uniformMatrix3", location);
+    }
+
+    public void uniformMatrix4(int location, boolean transpose, FloatBuffer matrix) {
+        record("uniformMatrix4", location);
+    }
+
+    public int genTexture() {
+        return recordCreation("genTexture");
+    }
+
+    public void activeTexture(int textureUnit) {
+        record("activeTexture", textureUnit);
+    }
+
+    public void bindTexture(int target, int texture) {
+        record("bindTexture", target, texture);
+    }
+
+    public void pixelStorei(int parameterName, int value) {
+        record("pixelStorei", parameterName, value);
+    }
+
+    public void texImage2D(int target, int level, int internalFormat, int width, int height, int border,
+                           int format, int type, ByteBuffer pixels) {
+        record("texImage2D", width, height);
+    }
+
+    public void texParameteri(int target, int parameterName, int value) {
+        record("texParameteri", parameterName, value);
+    }
+
+    public void generateMipmap(int target) {
+        record("generateMipmap", target);
+    }
+
+    public void deleteTexture(int texture) {
+        record("deleteTexture", texture);
+    }
+
+    private int recordCreation(String callName) {
+        final int handle = nextHandle++;
+        record(callName);
+        if (logging) callLog.set(callLog.size() - 1, callName + "() = " + handle);
+        return handle;
+    }
+
+    private void record(String callName) {
+        count(callName);
+        if (logging) callLog.add(callName + "()");
+    }
+
+    private void record(String callName, int parameter) {
+        count(callName);
+        if (logging) callLog.add(callName + "(" + parameter + ")");
+    }
+
+    private void record(String callName, int parameter1, int parameter2) {
+        count(callName);
+        if (logging) callLog.add(callName + "(" + parameter1 + ", " + parameter2 + ")");
+    }
+
+    private void count(String callName) {
+        final Integer count = callCounts.get(callName);
+        callCounts.put(callName, count == null ? 1 : count + 1);
+        totalCallCount++;
+    }
+
+}
@@ -0,0 +1,145 @@
+package org.skycastle.flowgine.render;
+
+import java.nio.ByteBuffer;
+import java.nio.FloatBuffer;
+import java.nio.IntBuffer;
+
+/**
+ * The rendering calls used by the engine.
+ * <p/>
+ * Mirrors the corresponding OpenGL calls, and uses the OpenGL constants for targets, types and parameter names,
+ * so that rendering code can be run against a real OpenGL context, or headless for testing and benchmarking.
+ */
+public interface RenderBackend {
+
+    // General
+
+    /**
+     * @return the next error code from the error queue, or GL_NO_ERROR if there are no errors.
+     */
+    int getError();
+
+    void enable(int capability);
+
+    void disable(int capability);
+
+    void viewport(int x, int y, int width, int height);
+
+    void clearColor(float red, float green, float blue, float alpha);
+
+    void clear(int mask);
+
+    // Vertex arrays and buffers
+
+    int genVertexArray();
+
+    void bindVertexArray(int vertexArray);
+
+    void deleteVertexArray(int vertexArray);
+
+    int genBuffer();
+
+    void bindBuffer(int target, int buffer);
+
+    void bufferData(int target, FloatBuffer data, int usage);
+
+    void bufferData(int target, IntBuffer data, int usage);
+
+    void deleteBuffer(int buffer);
+
+    void vertexAttribPointer(int index, int size, int type, boolean normalized, int stride, long offset);
+
+    void enableVertexAttribArray(int index);
+
+    void disableVertexAttribArray(int index);
+
+    void drawElements(int mode, int indexCount, int indexType, long indexOffset);
+
+    void drawElementsInstanced(int mode, int indexCount, int indexType, long indexOffset, int instanceCount);
+
+    void vertexAttribDivisor(int index, int divisor);
+
+    void vertexAttrib4f(int index, float x, float y, float z, float w);
+
+    // Shaders
+
+    int createShader(int type);
+
+    void shaderSource(int shader, CharSequence source);
+
+    void compileShader(int shader);
+
+    int getShaderi(int shader, int parameterName);
+
+    String getShaderInfoLog(int shader, int maxLength);
+
+    void deleteShader(int shader);
+
+    int createProgram();
+
+    void attachShader(int program, int shader);
+
+    void detachShader(int program, int shader);
+
+    void bindAttribLocation(int program, int index, CharSequence name);
+
+    int getAttribLocation(int program, CharSequence name);
+
+    void linkProgram(int program);
+
+    void validateProgram(int program);
+
+    int getProgrami(int program, int parameterName);
+
+    String getProgramInfoLog(int program, int maxLength);
+
+    String getActiveUniform(int program, int index, int maxLength);
+
+    int getUniformLocation(int program, CharSequence name);
+
+    void useProgram(int program);
+
+    void deleteProgram(int program);
+
+    // Uniforms, for the currently used program
+
+    void uniform1f(int location, float f);
+
+    void uniform2f(int location, float f1, float f2);
+
+    void uniform3f(int location, float f1, float f2, float f3);
+
+    void uniform4f(int location, float f1, float f2, float f3, float f4);
+
+    void uniform1i(int location, int i);
+
+    void uniform2i(int location, int i1, int i2);
+
+    void uniform3i(int location, int i1, int i2, int i3);
+
+    void uniform4i(int location, int i1, int i2, int i3, int i4);
+
+    void uniformMatrix3(int location, boolean transpose, FloatBuffer matrix);
+
+    void uniformMatrix4(int location, boolean transpose, FloatBuffer matrix);
+
+    // Textures
+
+    int genTexture();
+
+    void activeTexture(int textureUnit);
+
+    void bindTexture(int target, int texture);
+
+    void pixelStorei(int parameterName, int value);
+
+    void texImage2D(int target, int level, int internalFormat, int width, int height, int border,
+                    int format, int type, ByteBuffer pixels);
+
+    void texParameteri(int target, int parameterName, int value);
+
+    void generateMipmap(int target);
+
+    void deleteTexture(int texture);
+
+}
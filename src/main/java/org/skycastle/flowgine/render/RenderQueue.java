@@ -0,0 +1,636 @@
+package org.skycastle.flowgine.render;
+
+import org.lwjgl.BufferUtils;
+import org.skycastle.flowgine.FlowGine;
+import org.skycastle.flowgine.geometry.Vec3;
+import org.skycastle.flowgine.shader.Shader;
+import org.skycastle.flowgine.shape.Shape;
+import org.skycastle.flowgine.texture.Texture;
+import org.skycastle.flowgine.utils.Disposable;
+
+import java.nio.FloatBuffer;
+import java.util.Map;
+
+import static org.lwjgl.opengl.GL11.GL_FLOAT;
+import static org.lwjgl.opengl.GL15.GL_ARRAY_BUFFER;
+import static org.lwjgl.opengl.GL15.GL_STREAM_DRAW;
+
+/**
+ * Collects the draw items of a frame, sorts them by their sort keys, and renders them with as few state changes as possible.
+ * <p/>
+ * Usage each frame: clear, setCamera, submit the visible items, then render (which sorts the items first if needed).
+ * The items are stored in parallel arrays that are reused between frames, so submitting does not allocate once the
+ * queue has grown to the size of a frame.
+ * <p/>
+ * Consecutive sorted items that share shader, shape, texture and shader parameters are drawn with one instanced
+ * draw call if the shader has the instanceTransform attribute (see Shader.isInstanced).
+ * The transformations and instance parameters of those items are streamed to an instance buffer once per render.
+ * Items drawn on their own with an instanced shader get their transformation and instance parameters as constant
+ * attribute values instead.
+ */
+public final class RenderQueue implements Disposable {
+
+    /**
+     * Name of the shader uniform that the transformation of each draw item is assigned to, if the shader has it.
+     */
+    public static final String MODEL_MATRIX_UNIFORM = "modelMatrix";
+
+    private static final int DEFAULT_CAPACITY = 1024;
+    private static final int MATRIX_SIZE = 16;
+    private static final int INSTANCE_PARAMETERS_SIZE = 4;
+    private static final int INSTANCE_SIZE = MATRIX_SIZE + INSTANCE_PARAMETERS_SIZE;
+    private static final int FLOAT_BYTES = 4;
+    private static final int INSTANCE_STRIDE_BYTES = INSTANCE_SIZE * FLOAT_BYTES;
+    private static final int MIN_INSTANCED_GROUP_SIZE = 2;
+    private static final int RADIX_BITS = 8;
+    private static final int RADIX_SIZE = 1 << RADIX_BITS;
+    private static final int RADIX_MASK = RADIX_SIZE - 1;
+
+    private int itemCount = 0;
+    private boolean sorted = true;
+
+    // Draw items, by submission order
+    private long[] keys;
+    private Shader[] shaders;
+    private Shape[] shapes;
+    private Texture[] textures;
+    private Map<String, Object>[] parameters;
+    private float[] transforms;
+    private float[] instanceParameters;
+
+    // Sorted keys and the corresponding item indexes
+    private long[] sortedKeys;
+    private int[] sortedItems;
+    private long[] tempKeys;
+    private int[] tempItems;
+    private final int[] radixCounts = new int[RADIX_SIZE];
+
+    // End of the instanced group starting at each sorted position, and the index of its first instance in the instance buffer
+    private int[] groupEnds;
+    private int[] groupFirstInstances;
+
+    private final RenderBackend backend;
+    private boolean instancingEnabled = true;
+    private int instanceBufferHandle = 0;
+    private FloatBuffer instanceData = null;
+
+    private final Vec3 cameraPosition = new Vec3();
+    private float near = 0.1f;
+    private float far = 1000f;
+
+    // Statistics for the latest sort and render
+    private long sortTimeNanos = 0;
+    private int shaderBindCount = 0;
+    private int textureBindCount = 0;
+    private int shapeBindCount = 0;
+    private int drawCallCount = 0;
+    private int instancedDrawCallCount = 0;
+    private int instanceCount = 0;
+
+    public RenderQueue() {
+        this(DEFAULT_CAPACITY);
+    }
+
+    /**
+     * @param initialCapacity number of draw items to reserve space for.  The queue grows if more are submitted.
+     */
+    public RenderQueue(int initialCapacity) {
+        backend = FlowGine.renderBackend;
+        allocate(Math.max(1, initialCapacity));
+    }
+
+    /**
+     * @return true if items that can be drawn together are drawn with instanced draw calls.
+     */
+    public boolean isInstancingEnabled() {
+        return instancingEnabled;
+    }
+
+    /**
+     * @param instancingEnabled true to draw items that can be drawn together with instanced draw calls,
+     *                          false to draw each item with its own draw call.
+     */
+    public void setInstancingEnabled(boolean instancingEnabled) {
+        this.instancingEnabled = instancingEnabled;
+    }
+
+    /**
+     * Sets the camera used to calculate the depth of submitted items.
+     *
+     * @param position position of the camera.
+     * @param near distance of the near clip plane.
+     * @param far distance of the far clip plane.
+     */
+    public void setCamera(Vec3 position, float near, float far) {
+        cameraPosition.set(position);
+        this.near = near;
+        this.far = far;
+    }
+
+    /**
+     * Removes all submitted items.
+     */
+    public void clear() {
+        // Release references to the submitted objects
+        for (int i = 0; i < itemCount; i++) {
+            shaders[i] = null;
+            shapes[i] = null;
+            textures[i] = null;
+            parameters[i] = null;
+        }
+
+        itemCount = 0;
+        sorted = true;
+    }
+
+    /**
+     * Adds a draw item to the queue.
+     *
+     * @param layer layer to draw the item in, 0..15.  Lower layers are drawn first.
+     * @param translucent true if the item is translucent, translucent items are drawn back to front after the opaque ones.
+     * @param shader shader to draw the item with.
+     * @param shape shape to draw.
+     * @param texture texture to bind for the item, or null for none.
+     * @param transform array with the transformation matrix of the item, in column major order.
+     * @param transformOffset index of the first value of the transformation matrix in the transform array.
+     * @param shaderParameters shader parameters to apply for the item, or null for none.
+     * @return index of the submitted item.
+     */
+    public int submit(int layer,
+                      boolean translucent,
+                      Shader shader,
+                      Shape shape,
+                      Texture texture,
+                      float[] transform,
+                      int transformOffset,
+                      Map<String, Object> shaderParameters) {
+        return submit(layer, translucent, shader, shape, texture, transform, transformOffset, shaderParameters, null);
+    }
+
+    /**
+     * Adds a draw item with per instance parameters to the queue.
+     *
+     * @param layer layer to draw the item in, 0..15.  Lower layers are drawn first.
+     * @param translucent true if the item is translucent, translucent items are drawn back to front after the opaque ones.
+     * @param shader shader to draw the item with.
+     * @param shape shape to draw.
+     * @param texture texture to bind for the item, or null for none.
+     * @param transform array with the transformation matrix of the item, in column major order.
+     * @param transformOffset index of the first value of the transformation matrix in the transform array.
+     * @param shaderParameters shader parameters to apply for the item, or null for none.
+     *                         Items are only drawn instanced together if they have equal shader parameters.
+     * @param instanceParameters four values passed to the instanceParameters attribute when the item is drawn instanced,
+     *                           or null for zeroes.
+     * @return index of the submitted item.
+     */
+    public int submit(int layer,
+                      boolean translucent,
+                      Shader shader,
+                      Shape shape,
+                      Texture texture,
+                      float[] transform,
+                      int transformOffset,
+                      Map<String, Object> shaderParameters,
+                      float[] instanceParameters) {
+        return submit(layer, translucent, shader, shape, texture, transform, transformOffset, shaderParameters, instanceParameters, 0);
+    }
+
+    /**
+     * Adds a draw item with per instance parameters stored in a larger array to the queue.
+     *
+     * @param instanceParameters array with the four values passed to the instanceParameters attribute when the item
+     *                           is drawn instanced, or null for zeroes.
+     * @param instanceParametersOffset index of the first instance parameter in the instanceParameters array.
+     * @return index of the submitted item.
+     * @see #submit(int, boolean, Shader, Shape, Texture, float[], int, Map, float[])
+     */
+    public int submit(int layer,
+                      boolean translucent,
+                      Shader shader,
+                      Shape shape,
+                      Texture texture,
+                      float[] transform,
+                      int transformOffset,
+                      Map<String, Object> shaderParameters,
+                      float[] instanceParameters,
+                      int instanceParametersOffset) {
+        if (itemCount >= keys.length) allocate(keys.length * 2);
+
+        final int item = itemCount++;
+
+        // Calculate the depth from the translation of the transformation
+        final float dx = transform[transformOffset + 12] - cameraPosition.x;
+        final float dy = transform[transformOffset + 13] - cameraPosition.y;
+        final float dz = transform[transformOffset + 14] - cameraPosition.z;
+        final int depth = SortKey.quantizeDepth((float) Math.sqrt(dx * dx + dy * dy + dz * dz), near, far);
+
+        keys[item] = SortKey.create(layer,
+                                    translucent,
+                                    shader.getProgramHandle(),
+                                    texture == null ? 0 : texture.getTextureHandle(),
+                                    shape.getId(),
+                                    depth);
+        shaders[item] = shader;
+        shapes[item] = shape;
+        textures[item] = texture;
+        parameters[item] = shaderParameters;
+        System.arraycopy(transform, transformOffset, transforms, item * MATRIX_SIZE, MATRIX_SIZE);
+        for (int i = 0; i < INSTANCE_PARAMETERS_SIZE; i++) {
+            this.instanceParameters[item * INSTANCE_PARAMETERS_SIZE + i] = instanceParameters == null ? 0 : instanceParameters[instanceParametersOffset + i];
+        }
+
+        sorted = false;
+
+        return item;
+    }
+
+    /**
+     * @return number of submitted items.
+     */
+    public int size() {
+        return itemCount;
+    }
+
+    /**
+     * Sorts the submitted items by their sort keys, using a radix sort.
+     */
+    public void sort() {
+        final long startTime = System.nanoTime();
+
+        final int count = itemCount;
+        System.arraycopy(keys, 0, sortedKeys, 0, count);
+        for (int i = 0; i < count; i++) {
+            sortedItems[i] = i;
+        }
+
+        // Least significant digit first radix sort, one byte at a time.  Sorts the keys as unsigned numbers.
+        for (int shift = 0; shift < 64 && count > 1; shift += RADIX_BITS) {
+            final int[] counts = radixCounts;
+            for (int i = 0; i < RADIX_SIZE; i++) {
+                counts[i] = 0;
+            }
+
+            for (int i = 0; i < count; i++) {
+                counts[(int) (sortedKeys[i] >>> shift) & RADIX_MASK]++;
+            }
+
+            // Skip the pass if all keys have the same value for this byte
+            if (counts[(int) (sortedKeys[0] >>> shift) & RADIX_MASK] == count) continue;
+
+            // Calculate start positions for each byte value
+            int position = 0;
+            for (int i = 0; i < RADIX_SIZE; i++) {
+                final int digitCount = counts[i];
+                counts[i] = position;
+                position += digitCount;
+            }
+
+            // Move keys to their positions in the temporary arrays
+            for (int i = 0; i < count; i++) {
+                final long key = sortedKeys[i];
+                final int target = counts[(int) (key >>> shift) & RADIX_MASK]++;
+                tempKeys[target] = key;
+                tempItems[target] = sortedItems[i];
+            }
+
+            // Swap the sorted and temporary arrays
+            final long[] swapKeys = sortedKeys;
+            sortedKeys = tempKeys;
+            tempKeys = swapKeys;
+            final int[] swapItems = sortedItems;
+            sortedItems = tempItems;
+            tempItems = swapItems;
+        }
+
+        sorted = true;
+        sortTimeNanos = System.nanoTime() - startTime;
+    }
+
+    /**
+     * @param index position in the sorted order.
+     * @return the sort key of the item at the specified position, sorts the queue first if needed.
+     */
+    public long getSortedKey(int index) {
+        if (!sorted) sort();
+        return sortedKeys[index];
+    }
+
+    /**
+     * @param index position in the sorted order.
+     * @return the submission index of the item at the specified position, sorts the queue first if needed.
+     */
+    public int getSortedItem(int index) {
+        if (!sorted) sort();
+        return sortedItems[index];
+    }
+
+    /**
+     * Renders the submitted items in sorted order, sorting them first if needed.
+     * Shaders, textures and shapes are only bound when they change from the previous item,
+     * and groups of items that can be drawn together are drawn with one instanced draw call.
+     * Must be called from the OpenGL thread.
+     */
+    public void render() {
+        if (!sorted) sort();
+
+        shaderBindCount = 0;
+        textureBindCount = 0;
+        shapeBindCount = 0;
+        drawCallCount = 0;
+        instancedDrawCallCount = 0;
+        instanceCount = 0;
+
+        groupInstances();
+
+        Shader currentShader = null;
+        Texture currentTexture = null;
+        Shape currentShape = null;
+
+        for (int i = 0; i < itemCount; i++) {
+            final int item = sortedItems[i];
+
+            final Shader shader = shaders[item];
+            if (shader != currentShader) {
+                shader.begin();
+                currentShader = shader;
+                shaderBindCount++;
+            }
+
+            final Texture texture = textures[item];
+            if (texture != currentTexture) {
+                if (texture != null) texture.bind(0);
+                currentTexture = texture;
+                textureBindCount++;
+            }
+
+            final Shape shape = shapes[item];
+            if (shape != currentShape) {
+                shape.begin();
+                currentShape = shape;
+                shapeBindCount++;
+            }
+
+            if (parameters[item] != null) shader.setUniforms(parameters[item]);
+
+            final int groupEnd = groupEnds[i];
+            if (groupEnd - i >= MIN_INSTANCED_GROUP_SIZE) {
+                drawInstanced(shape, groupFirstInstances[i], groupEnd - i);
+
+                // Skip the rest of the group
+                i = groupEnd - 1;
+            }
+            else {
+                // Instanced shaders read the transformation from attributes, set their values for the single item
+                if (shader.isInstanced()) setInstanceAttributeValues(item);
+
+                if (shader.hasUniform(MODEL_MATRIX_UNIFORM)) {
+                    shader.setUniformMatrix4(MODEL_MATRIX_UNIFORM, transforms, item * MATRIX_SIZE);
+                }
+
+                shape.draw();
+            }
+            drawCallCount++;
+        }
+
+        if (currentShape != null) currentShape.end();
+        if (currentShader != null) currentShader.end();
+    }
+
+    /**
+     * @return time taken by the latest sort, in nanoseconds.
+     */
+    public long getSortTimeNanos() {
+        return sortTimeNanos;
+    }
+
+    /**
+     * @return number of shader binds in the latest render.
+     */
+    public int getShaderBindCount() {
+        return shaderBindCount;
+    }
+
+    /**
+     * @return number of texture binds in the latest render.
+     */
+    public int getTextureBindCount() {
+        return textureBindCount;
+    }
+
+    /**
+     * @return number of shape binds in the latest render.
+     */
+    public int getShapeBindCount() {
+        return shapeBindCount;
+    }
+
+    /**
+     * @return number of draw calls in the latest render, including instanced draw calls.
+     */
+    public int getDrawCallCount() {
+        return drawCallCount;
+    }
+
+    /**
+     * @return number of instanced draw calls in the latest render.
+     */
+    public int getInstancedDrawCallCount() {
+        return instancedDrawCallCount;
+    }
+
+    /**
+     * @return number of items drawn with instanced draw calls in the latest render.
+     */
+    public int getInstanceCount() {
+        return instanceCount;
+    }
+
+    /**
+     * @return number of draw calls that instancing saved in the latest render,
+     *         compared to drawing each item with its own draw call.
+     */
+    public int getDrawCallsSaved() {
+        return instanceCount - instancedDrawCallCount;
+    }
+
+    /**
+     * Deletes the instance buffer.  Must be called from the OpenGL thread.
+     */
+    public void dispose() {
+        if (instanceBufferHandle != 0) {
+            backend.deleteBuffer(instanceBufferHandle);
+            instanceBufferHandle = 0;
+        }
+    }
+
+    /**
+     * Finds runs of consecutive sorted items that can be drawn with one instanced draw call,
+     * and uploads the per instance data of those items to the instance buffer.
+     */
+    private void groupInstances() {
+        int instanceDataCount = 0;
+        if (instanceData != null) instanceData.clear();
+
+        int i = 0;
+        while (i < itemCount) {
+            final int first = sortedItems[i];
+            final Shader shader = shaders[first];
+
+            // Extend the group while the items share all the state that is set once per draw call
+            int end = i + 1;
+            if (instancingEnabled && shader.isInstanced()) {
+                while (end < itemCount && drawnTogether(first, sortedItems[end])) {
+                    end++;
+                }
+            }
+
+            groupEnds[i] = end;
+            groupFirstInstances[i] = instanceDataCount;
+            if (end - i >= MIN_INSTANCED_GROUP_SIZE) {
+                for (int j = i; j < end; j++) {
+                    writeInstanceData(sortedItems[j], instanceDataCount++);
+                }
+            }
+
+            i = end;
+        }
+
+        if (instanceDataCount > 0) {
+            instanceData.position(0);
+            instanceData.limit(instanceDataCount * INSTANCE_SIZE);
+
+            // Respecify the whole buffer each frame, so that the driver does not need to wait for the previous frame
+            if (instanceBufferHandle == 0) instanceBufferHandle = backend.genBuffer();
+            backend.bindBuffer(GL_ARRAY_BUFFER, instanceBufferHandle);
+            backend.bufferData(GL_ARRAY_BUFFER, instanceData, GL_STREAM_DRAW);
+        }
+    }
+
+    private boolean drawnTogether(int item, int otherItem) {
+        return shaders[item] == shaders[otherItem] &&
+               shapes[item] == shapes[otherItem] &&
+               textures[item] == textures[otherItem] &&
+               sameParameters(parameters[item], parameters[otherItem]);
+    }
+
+    private boolean sameParameters(Map<String, Object> parameters, Map<String, Object> otherParameters) {
+        if (parameters == otherParameters) return true;
+        if (parameters == null) return otherParameters.isEmpty();
+        if (otherParameters == null) return parameters.isEmpty();
+        return parameters.equals(otherParameters);
+    }
+
+    private void writeInstanceData(int item, int instance) {
+        if (instanceData == null || instanceData.capacity() < (instance + 1) * INSTANCE_SIZE) {
+            final FloatBuffer oldData = instanceData;
+            instanceData = BufferUtils.createFloatBuffer(keys.length * INSTANCE_SIZE);
+            if (oldData != null) {
+                oldData.position(0);
+                oldData.limit(instance * INSTANCE_SIZE);
+                instanceData.put(oldData);
+            }
+            instanceData.limit(instanceData.capacity());
+        }
+
+        instanceData.position(instance * INSTANCE_SIZE);
+        instanceData.put(transforms, item * MATRIX_SIZE, MATRIX_SIZE);
+        instanceData.put(instanceParameters, item * INSTANCE_PARAMETERS_SIZE, INSTANCE_PARAMETERS_SIZE);
+    }
+
+    /**
+     * Draws instances of the currently bound shape, using the per instance data starting at firstInstance
+     * in the instance buffer.
+     */
+    private void drawInstanced(Shape shape, int firstInstance, int count) {
+        final long offset = (long) firstInstance * INSTANCE_STRIDE_BYTES;
+
+        // Point the instance attributes of the bound vertex array to the data of the group
+        backend.bindBuffer(GL_ARRAY_BUFFER, instanceBufferHandle);
+        for (int column = 0; column < 4; column++) {
+            setupInstanceAttribute(Shader.INSTANCE_TRANSFORM_LOCATION + column, offset + column * 4 * FLOAT_BYTES);
+        }
+        setupInstanceAttribute(Shader.INSTANCE_PARAMETERS_LOCATION, offset + MATRIX_SIZE * FLOAT_BYTES);
+
+        shape.drawInstanced(count);
+
+        // Leave the vertex array of the shape as it was
+        for (int column = 0; column < 4; column++) {
+            backend.disableVertexAttribArray(Shader.INSTANCE_TRANSFORM_LOCATION + column);
+        }
+        backend.disableVertexAttribArray(Shader.INSTANCE_PARAMETERS_LOCATION);
+
+        instancedDrawCallCount++;
+        instanceCount += count;
+    }
+
+    /**
+     * Sets the values of the per instance attributes for drawing a single item without an instance buffer.
+     * The values are used by the bound vertex array as long as the attribute arrays are disabled.
+     */
+    private void setInstanceAttributeValues(int item) {
+        final int transformStart = item * MATRIX_SIZE;
+        for (int column = 0; column < 4; column++) {
+            final int start = transformStart + column * 4;
+            backend.vertexAttrib4f(Shader.INSTANCE_TRANSFORM_LOCATION + column,
+                                   transforms[start], transforms[start + 1], transforms[start + 2], transforms[start + 3]);
+        }
+
+        final int parametersStart = item * INSTANCE_PARAMETERS_SIZE;
+        backend.vertexAttrib4f(Shader.INSTANCE_PARAMETERS_LOCATION,
+                               instanceParameters[parametersStart], instanceParameters[parametersStart + 1],
+                               instanceParameters[parametersStart + 2], instanceParameters[parametersStart + 3]);
+    }
+
+    private void setupInstanceAttribute(int location, long offset) {
+        backend.enableVertexAttribArray(location);
+        backend.vertexAttribPointer(location, 4, GL_FLOAT, false, INSTANCE_STRIDE_BYTES, offset);
+        backend.vertexAttribDivisor(location, 1);
+    }
+
+    private void allocate(int capacity) {
+        keys = copyOf(keys, capacity);
+        sortedKeys = new long[capacity];
+        tempKeys = new long[capacity];
+        sortedItems = new int[capacity];
+        tempItems = new int[capacity];
+
+        final Shader[] oldShaders = shaders;
+        final Shape[] oldShapes = shapes;
+        final Texture[] oldTextures = textures;
+        final Map<String, Object>[] oldParameters = parameters;
+        final float[] oldTransforms = transforms;
+        final float[] oldInstanceParameters = instanceParameters;
+
+        shaders = new Shader[capacity];
+        shapes = new Shape[capacity];
+        textures = new Texture[capacity];
+        parameters = newParameterArray(capacity);
+        transforms = new float[capacity * MATRIX_SIZE];
+        instanceParameters = new float[capacity * INSTANCE_PARAMETERS_SIZE];
+        groupEnds = new int[capacity];
+        groupFirstInstances = new int[capacity];
+
+        if (oldShaders != null) {
+            System.arraycopy(oldShaders, 0, shaders, 0, itemCount);
+            System.arraycopy(oldShapes, 0, shapes, 0, itemCount);
+            System.arraycopy(oldTextures, 0, textures, 0, itemCount);
+            System.arraycopy(oldParameters, 0, parameters, 0, itemCount);
+            System.arraycopy(oldTransforms, 0, transforms, 0, itemCount * MATRIX_SIZE);
+            System.arraycopy(oldInstanceParameters, 0, instanceParameters, 0, itemCount * INSTANCE_PARAMETERS_SIZE);
+        }
+
+        sorted = false;
+    }
+
+    @SuppressWarnings("unchecked")
+    private static Map<String, Object>[] newParameterArray(int capacity) {
+        return (Map<String, Object>[]) new Map<?, ?>[capacity];
+    }
+
+    private long[] copyOf(long[] array, int capacity) {
+        final long[] copy = new long[capacity];
+        if (array != null) System.arraycopy(array, 0, copy, 0, itemCount);
+        return copy;
+    }
+
+}
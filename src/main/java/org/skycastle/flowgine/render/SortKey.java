@@ -0,0 +1,107 @@
+package org.skycastle.flowgine.render;
+
+/**
+ * Packs the render state of a draw item into a 64 bit key, so that sorting the keys orders the draw items for rendering.
+ * <p/>
+ * Layout, from the most significant bit:
+ * <pre>
+ * opaque:      layer (4) | translucent = 0 (1) | shader (12) | texture (12) | mesh (12) | depth (23)
+ * translucent: layer (4) | translucent = 1 (1) | inverted depth (23) | shader (12) | texture (12) | mesh (12)
+ * </pre>
+ * Opaque items are sorted by state to minimize state changes, and front to back within the same state.
+ * Translucent items are drawn after the opaque ones of the same layer, back to front.
+ * The keys should be compared as unsigned numbers.
+ */
+public final class SortKey {
+
+    public static final int LAYER_BITS = 4;
+    public static final int ID_BITS = 12;
+    public static final int DEPTH_BITS = 23;
+
+    public static final int MAX_LAYER = (1 << LAYER_BITS) - 1;
+    public static final int MAX_ID = (1 << ID_BITS) - 1;
+    public static final int MAX_DEPTH = (1 << DEPTH_BITS) - 1;
+
+    private static final int LAYER_SHIFT = 64 - LAYER_BITS;
+    private static final int TRANSLUCENT_SHIFT = LAYER_SHIFT - 1;
+
+    private static final int OPAQUE_SHADER_SHIFT = TRANSLUCENT_SHIFT - ID_BITS;
+    private static final int OPAQUE_TEXTURE_SHIFT = OPAQUE_SHADER_SHIFT - ID_BITS;
+    private static final int OPAQUE_MESH_SHIFT = OPAQUE_TEXTURE_SHIFT - ID_BITS;
+
+    private static final int TRANSLUCENT_DEPTH_SHIFT = TRANSLUCENT_SHIFT - DEPTH_BITS;
+    private static final int TRANSLUCENT_SHADER_SHIFT = TRANSLUCENT_DEPTH_SHIFT - ID_BITS;
+    private static final int TRANSLUCENT_TEXTURE_SHIFT = TRANSLUCENT_SHADER_SHIFT - ID_BITS;
+
+    private static final long ID_MASK = MAX_ID;
+    private static final long DEPTH_MASK = MAX_DEPTH;
+
+    /**
+     * @param layer layer of the item, 0..15.  Lower layers are drawn first.
+     * @param translucent true if the item is translucent, and should be drawn back to front after the opaque items.
+     * @param shaderId id of the shader, only the lowest 12 bits are used.
+     * @param textureId id of the texture, only the lowest 12 bits are used.
+     * @param meshId id of the mesh, only the lowest 12 bits are used.
+     * @param depth quantized distance from the camera, see quantizeDepth.
+     * @return sort key for the item.
+     */
+    public static long create(int layer, boolean translucent, int shaderId, int textureId, int meshId, int depth) {
+        final long key = ((long) (layer & MAX_LAYER)) << LAYER_SHIFT;
+
+        if (translucent) {
+            return key |
+                   1L << TRANSLUCENT_SHIFT |
+                   (DEPTH_MASK - (depth & DEPTH_MASK)) << TRANSLUCENT_DEPTH_SHIFT |
+                   (shaderId & ID_MASK) << TRANSLUCENT_SHADER_SHIFT |
+                   (textureId & ID_MASK) << TRANSLUCENT_TEXTURE_SHIFT |
+                   (meshId & ID_MASK);
+        }
+        else {
+            return key |
+                   (shaderId & ID_MASK) << OPAQUE_SHADER_SHIFT |
+                   (textureId & ID_MASK) << OPAQUE_TEXTURE_SHIFT |
+                   (meshId & ID_MASK) << OPAQUE_MESH_SHIFT |
+                   (depth & DEPTH_MASK);
+        }
+    }
+
+    /**
+     * @param distance distance from the camera.
+     * @param near distance of the near clip plane.
+     * @param far distance of the far clip plane.
+     * @return the distance quantized to the range 0..MAX_DEPTH, clamped if outside the near and far planes.
+     */
+    public static int quantizeDepth(float distance, float near, float far) {
+        final float relative = (distance - near) / (far - near);
+        if (!(relative > 0)) return 0;
+        else if (relative >= 1) return MAX_DEPTH;
+        else return (int) (relative * MAX_DEPTH);
+    }
+
+    public static int getLayer(long key) {
+        return (int) (key >>> LAYER_SHIFT);
+    }
+
+    public static boolean isTranslucent(long key) {
+        return ((key >>> TRANSLUCENT_SHIFT) & 1) != 0;
+    }
+
+    public static int getShaderId(long key) {
+        return (int) ((key >>> (isTranslucent(key) ? TRANSLUCENT_SHADER_SHIFT : OPAQUE_SHADER_SHIFT)) & ID_MASK);
+    }
+
+    public static int getTextureId(long key) {
+        return (int) ((key >>> (isTranslucent(key) ? TRANSLUCENT_TEXTURE_SHIFT : OPAQUE_TEXTURE_SHIFT)) & ID_MASK);
+    }
+
+    public static int getMeshId(long key) {
+        return (int) ((key >>> (isTranslucent(key) ? 0 : OPAQUE_MESH_SHIFT)) & ID_MASK);
+    }
+
+    public static int getDepth(long key) {
+        if (isTranslucent(key)) return (int) (DEPTH_MASK - ((key >>> TRANSLUCENT_DEPTH_SHIFT) & DEPTH_MASK));
+        else return (int) (key & DEPTH_MASK);
+    }
+
+    private SortKey() {}
+}
@@ -0,0 +1,394 @@
+package org.skycastle.flowgine.render;
+
+import java.nio.ByteBuffer;
+import java.nio.FloatBuffer;
+import java.nio.IntBuffer;
+
+import static org.lwjgl.opengl.GL11.GL_TEXTURE_2D;
+import static org.lwjgl.opengl.GL13.GL_TEXTURE0;
+import static org.lwjgl.opengl.GL15.GL_ARRAY_BUFFER;
+import static org.lwjgl.opengl.GL15.GL_ELEMENT_ARRAY_BUFFER;
+
+/**
+ * Render backend that keeps track of the currently bound vertex array, buffers, textures and shader program,
+ * and drops bind calls that would not change the bound object before passing the rest on to another backend.
+ * <p/>
+ * Assumes that all rendering calls go through it.  If some code changes the bindings directly, call invalidate afterwards.
+ */
+public final class StateCachingRenderBackend implements RenderBackend {
+
+    private static final int UNKNOWN = -1;
+    private static final int MAX_TEXTURE_UNITS = 32;
+
+    private final RenderBackend backend;
+
+    private int currentProgram = UNKNOWN;
+    private int currentVertexArray = UNKNOWN;
+    private int currentArrayBuffer = UNKNOWN;
+    private int currentElementArrayBuffer = UNKNOWN;
+    private int currentTextureUnit = UNKNOWN;
+    private final int[] currentTextures = new int[MAX_TEXTURE_UNITS];
+
+    private long requestedBindCount = 0;
+    private long elidedBindCount = 0;
+
+    /**
+     * @param backend backend to pass calls on to.
+     */
+    public StateCachingRenderBackend(RenderBackend backend) {
+        if (backend == null) throw new IllegalArgumentException("backend should not be null");
+
+        this.backend = backend;
+
+        invalidate();
+    }
+
+    /**
+     * @return the backend that calls are passed on to.
+     */
+    public RenderBackend getBackend() {
+        return backend;
+    }
+
+    /**
+     * Forgets the cached bindings, so that the following bind calls are all passed on.
+     */
+    public void invalidate() {
+        currentProgram = UNKNOWN;
+        currentVertexArray = UNKNOWN;
+        currentArrayBuffer = UNKNOWN;
+        currentElementArrayBuffer = UNKNOWN;
+        currentTextureUnit = UNKNOWN;
+        for (int i = 0; i < MAX_TEXTURE_UNITS; i++) {
+            currentTextures[i] = UNKNOWN;
+        }
+    }
+
+    /**
+     * @return number of bind calls (vertex arrays, buffers, texture units, textures and programs) made since creation
+     *         or the last statistics reset.
+     */
+    public long getRequestedBindCount() {
+        return requestedBindCount;
+    }
+
+    /**
+     * @return number of bind calls that were dropped because they would not have changed anything.
+     */
+    public long getElidedBindCount() {
+        return elidedBindCount;
+    }
+
+    /**
+     * @return number of bind calls that were passed on to the backend.
+     */
+    public long getPassedBindCount() {
+        return requestedBindCount - elidedBindCount;
+    }
+
+    /**
+     * Sets the bind call counts to zero, e.g. at the start of a frame.
+     */
+    public void resetStatistics() {
+        requestedBindCount = 0;
+        elidedBindCount = 0;
+    }
+
+    public void bindVertexArray(int vertexArray) {
+        requestedBindCount++;
+        if (vertexArray == currentVertexArray) {
+            elidedBindCount++;
+        }
+        else {
+            backend.bindVertexArray(vertexArray);
+            currentVertexArray = vertexArray;
+
+            // The element array buffer binding is part of the vertex array state
+            currentElementArrayBuffer = UNKNOWN;
+        }
+    }
+
+    public void deleteVertexArray(int vertexArray) {
+        backend.deleteVertexArray(vertexArray);
+        if (vertexArray == currentVertexArray) {
+            currentVertexArray = 0;
+            currentElementArrayBuffer = UNKNOWN;
+        }
+    }
+
+    public void bindBuffer(int target, int buffer) {
+        requestedBindCount++;
+        if (target == GL_ARRAY_BUFFER) {
+            if (buffer == currentArrayBuffer) elidedBindCount++;
+            else {
+                backend.bindBuffer(target, buffer);
+                currentArrayBuffer = buffer;
+            }
+        }
+        else if (target == GL_ELEMENT_ARRAY_BUFFER) {
+            if (buffer == currentElementArrayBuffer) elidedBindCount++;
+            else {
+                backend.bindBuffer(target, buffer);
+                currentElementArrayBuffer = buffer;
+            }
+        }
+        else {
+            backend.bindBuffer(target, buffer);
+        }
+    }
+
+    public void deleteBuffer(int buffer) {
+        backend.deleteBuffer(buffer);
+        if (buffer == currentArrayBuffer) currentArrayBuffer = 0;
+        if (buffer == currentElementArrayBuffer) currentElementArrayBuffer = 0;
+    }
+
+    public void useProgram(int program) {
+        requestedBindCount++;
+        if (program == currentProgram) {
+            elidedBindCount++;
+        }
+        else {
+            backend.useProgram(program);
+            currentProgram = program;
+        }
+    }
+
+    public void activeTexture(int textureUnit) {
+        requestedBindCount++;
+        if (textureUnit == currentTextureUnit) {
+            elidedBindCount++;
+        }
+        else {
+            backend.activeTexture(textureUnit);
+            currentTextureUnit = textureUnit;
+        }
+    }
+
+    public void bindTexture(int target, int texture) {
+        requestedBindCount++;
+        final int unit = currentTextureUnit - GL_TEXTURE0;
+        if (target == GL_TEXTURE_2D && unit >= 0 && unit < MAX_TEXTURE_UNITS) {
+            if (texture == currentTextures[unit]) elidedBindCount++;
+            else {
+                backend.bindTexture(target, texture);
+                currentTextures[unit] = texture;
+            }
+        }
+        else {
+            backend.bindTexture(target, texture);
+        }
+    }
+
+    public void deleteTexture(int texture) {
+        backend.deleteTexture(texture);
+        for (int i = 0; i < MAX_TEXTURE_UNITS; i++) {
+            if (currentTextures[i] == texture) currentTextures[i] = 0;
+        }
+    }
+
+    // Calls that do not change cached state are passed on directly
+
+    public int getError() {
+        return backend.getError();
+    }
+
+    public void enable(int capability) {
+        backend.enable(capability);
+    }
+
+    public void disable(int capability) {
+        backend.disable(capability);
+    }
+
+    public void viewport(int x, int y, int width, int height) {
+        backend.viewport(x, y, width, height);
+    }
+
+    public void clearColor(float red, float green, float blue, float alpha) {
+        backend.clearColor(red, green, blue, alpha);
+    }
+
+    public void clear(int mask) {
+        backend.clear(mask);
+    }
+
+    public int genVertexArray() {
+        return backend.genVertexArray();
+    }
+
+    public int genBuffer() {
+        return backend.genBuffer();
+    }
+
+    public void bufferData(int target, FloatBuffer data, int usage) {
+        backend.bufferData(target, data, usage);
+    }
+
+    public void bufferData(int target, IntBuffer data, int usage) {
+        backend.bufferData(target, data, usage);
+    }
+
+    public void vertexAttribPointer(int index, int size, int type, boolean normalized, int stride, long offset) {
+        backend.vertexAttribPointer(index, size, type, normalized, stride, offset);
+    }
+
+    public void enableVertexAttribArray(int index) {
+        backend.enableVertexAttribArray(index);
+    }
+
+    public void disableVertexAttribArray(int index) {
+        backend.disableVertexAttribArray(index);
+    }
+
+    public void drawElements(int mode, int indexCount, int indexType, long indexOffset) {
+        backend.drawElements(mode, indexCount, indexType, indexOffset);
+    }
+
+    public void drawElementsInstanced(int mode, int indexCount, int indexType, long indexOffset, int instanceCount) {
+        backend.drawElementsInstanced(mode, indexCount, indexType, indexOffset, instanceCount);
+    }
+
+    public void vertexAttribDivisor(int index, int divisor) {
+        backend.vertexAttribDivisor(index, divisor);
+    }
+
+    public void vertexAttrib4f(int index, float x, float y, float z, float w) {
+        backend.vertexAttrib4f(index, x, y, z, w);
+    }
+
+    public int createShader(int type) {
+        return backend.createShader(type);
+    }
+
+    public void shaderSource(int shader, CharSequence source) {
+        backend.shaderSource(shader, source);
+    }
+
+    public void compileShader(int shader) {
+        backend.compileShader(shader);
+    }
+
+    public int getShaderi(int shader, int parameterName) {
+        return backend.getShaderi(shader, parameterName);
+    }
+
+    public String getShaderInfoLog(int shader, int maxLength) {
+        return backend.getShaderInfoLog(shader, maxLength);
+    }
+
+    public void deleteShader(int shader) {
+        backend.deleteShader(shader);
+    }
+
+    public int createProgram() {
+        return backend.createProgram();
+    }
+
+    public void attachShader(int program, int shader) {
+        backend.attachShader(program, shader);
+    }
+
+    public void detachShader(int program, int shader) {
+        backend.detachShader(program, shader);
+    }
+
+    public void bindAttribLocation(int program, int index, CharSequence name) {
+        backend.bindAttribLocation(program, index, name);
+    }
+
+    public int getAttribLocation(int program, CharSequence name) {
+        return backend.getAttribLocation(program, name);
+    }
+
+    public void linkProgram(int program) {
+        backend.linkProgram(program);
+    }
+
+    public void validateProgram(int program) {
+        backend.validateProgram(program);
+    }
+
+    public int getProgrami(int program, int parameterName) {
+        return backend.getProgrami(program, parameterName);
+    }
+
+    public String getProgramInfoLog(int program, int maxLength) {
+        return backend.getProgramInfoLog(program, maxLength);
+    }
+
+    public String getActiveUniform(int program, int index, int maxLength) {
+        return backend.getActiveUniform(program, index, maxLength);
+    }
+
+    public int getUniformLocation(int program, CharSequence name) {
+        return backend.getUniformLocation(program, name);
+    }
+
+    public void deleteProgram(int program) {
+        // A program that is in use is only deleted when it is no longer used, so the binding stays as it is.
+        backend.deleteProgram(program);
+    }
+
+    public void uniform1f(int location, float f) {
+        backend.uniform1f(location, f);
+    }
+
+    public void uniform2f(int location, float f1, float f2) {
+        backend.uniform2f(location, f1, f2);
+    }
+
+    public void uniform3f(int location, float f1, float f2, float f3) {
+        backend.uniform3f(location, f1, f2, f3);
+    }
+
+    public void uniform4f(int location, float f1, float f2, float f3, float f4) {
+        backend.uniform4f(location, f1, f2, f3, f4);
+    }
+
+    public void uniform1i(int location, int i) {
+        backend.uniform1i(location, i);
+    }
+
+    public void uniform2i(int location, int i1, int i2) {
+        backend.uniform2i(location, i1, i2);
+    }
+
+    public void uniform3i(int location, int i1, int i2, int i3) {
+        backend.uniform3i(location, i1, i2, i3);
+    }
+
+    public void uniform4i(int location, int i1, int i2, int i3, int i4) {
+        backend.uniform4i(location, i1, i2, i3, i4);
+    }
+
+    public void uniformMatrix3(int location, boolean transpose, FloatBuffer matrix) {
+        backend.uniformMatrix3(location, transpose, matrix);
+    }
+
+    public void uniformMatrix4(int location, boolean transpose, FloatBuffer matrix) {
+        backend.uniformMatrix4(location, transpose, matrix);
+    }
+
+    public int genTexture() {
+        return backend.genTexture();
+    }
+
+    public void pixelStorei(int parameterName, int value) {
+        backend.pixelStorei(parameterName, value);
+    }
+
+    public void texImage2D(int target, int level, int internalFormat, int width, int height, int border,
+                           int format, int type, ByteBuffer pixels) {
+        backend.texImage2D(target, level, internalFormat, width, height, border, format, type, pixels);
+    }
+
+    public void texParameteri(int target, int parameterName, int value) {
+        backend.texParameteri(target, parameterName, value);
+    }
+
+    public void generateMipmap(int target) {
+        backend.generateMipmap(target);
+    }
+
+}
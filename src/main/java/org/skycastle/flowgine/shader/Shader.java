@@ -4,9 +4,11 @@ import org.flowutils.Check;
 import org.lwjgl.BufferUtils;
 import org.lwjgl.util.vector.Matrix3f;
 import org.lwjgl.util.vector.Matrix4f;
+import org.skycastle.flowgine.FlowGine;
 import org.skycastle.flowgine.geometry.Col4;
 import org.skycastle.flowgine.geometry.Vec2;
 import org.skycastle.flowgine.geometry.Vec3;
+import org.skycastle.flowgine.render.RenderBackend;
 import org.skycastle.flowgine.utils.Disposable;
 import org.skycastle.flowgine.utils.FileUtils;
 import org.skycastle.flowgine.utils.OpenGLUtils;
@@ -19,7 +21,11 @@ import java.util.List;
 import java.util.Map;
 
 import static org.lwjgl.opengl.GL11.GL_TRUE;
-import static org.lwjgl.opengl.GL20.*;
+import static org.lwjgl.opengl.GL20.GL_ACTIVE_UNIFORMS;
+import static org.lwjgl.opengl.GL20.GL_COMPILE_STATUS;
+import static org.lwjgl.opengl.GL20.GL_FRAGMENT_SHADER;
+import static org.lwjgl.opengl.GL20.GL_LINK_STATUS;
+import static org.lwjgl.opengl.GL20.GL_VERTEX_SHADER;
 
 
 /**
@@ -33,6 +39,20 @@ import static org.lwjgl.opengl.GL20.*;
  */
 public class Shader implements Disposable {
 
+    /**
+     * Name of the mat4 vertex attribute that receives the transformation of each instance when drawing instanced.
+     * Bound to the attribute locations INSTANCE_TRANSFORM_LOCATION .. INSTANCE_TRANSFORM_LOCATION + 3.
+     */
+    public static final String INSTANCE_TRANSFORM_ATTRIBUTE = "instanceTransform";
+
+    /**
+     * Name of the vec4 vertex attribute that receives the parameters of each instance when drawing instanced.
+     */
+    public static final String INSTANCE_PARAMETERS_ATTRIBUTE = "instanceParameters";
+
+    public static final int INSTANCE_TRANSFORM_LOCATION = 4;
+    public static final int INSTANCE_PARAMETERS_LOCATION = 8;
+
     private static final int MAX_LOG_LENGTH = 1024 * 8;
     private static final int NAME_BUFFER_SIZE = 1024;
     private static final int INVALID_HANDLE = 0;
@@ -49,9 +69,12 @@ public class Shader implements Disposable {
     private final String vertexShaderSource;
     private final String fragmentShaderSource;
 
+    private final RenderBackend backend;
+
     private String errorMessage = null;
+    private boolean compileFinished = false;
+    private boolean instanced = false;
 
-    private final IntBuffer intBuffer = BufferUtils.createIntBuffer(1);
     private final FloatBuffer matrixBuffer = BufferUtils.createFloatBuffer(4 * 4);
 
 
@@ -88,6 +111,18 @@ public class Shader implements Disposable {
      */
     public Shader(String vertexShaderName, String vertexShaderSource,
                   String fragmentShaderName, String fragmentShaderSource) {
+        this(vertexShaderName, vertexShaderSource, fragmentShaderName, fragmentShaderSource, true);
+    }
+
+    /**
+     * Creates a shader program and submits the vertex and fragment shaders for compilation.
+     *
+     * @param finishCompile if true, waits for the compilation to finish and checks the results,
+     *                      if false, finishCompile must be called before the shader is used.
+     */
+    Shader(String vertexShaderName, String vertexShaderSource,
+           String fragmentShaderName, String fragmentShaderSource,
+           boolean finishCompile) {
         Check.nonEmptyString(vertexShaderName, "vertexShaderName");
         Check.nonEmptyString(vertexShaderSource, "vertexShaderSource");
         Check.nonEmptyString(fragmentShaderName, "fragmentShaderName");
@@ -98,20 +133,44 @@ public class Shader implements Disposable {
         this.vertexShaderSource = vertexShaderSource;
         this.fragmentShaderSource = fragmentShaderSource;
 
-        // Compile shader
-        errorMessage = compile();
+        backend = FlowGine.renderBackend;
+
+        // Start compiling the shader
+        submitCompile();
+
+        if (finishCompile) finishCompile();
+    }
+
+    /**
+     * Waits for the shader compilation and linking to finish, and checks the results.
+     * Does nothing if the compilation was already finished.
+     */
+    void finishCompile() {
+        if (!compileFinished) {
+            compileFinished = true;
+
+            // Check results of the compilation
+            errorMessage = checkCompileResults();
+
+            // TODO: Log with some framework
+            if (errorMessage != null) {
+                System.err.println(errorMessage);
+            }
 
-        // TODO: Log with some framework
-        if (errorMessage != null) {
-            System.err.println(errorMessage);
+            // Check for other opengl errors
+            OpenGLUtils.checkGLError("creating shader with vertex shader '" +
+                                     vertexShaderName +
+                                     "' and fragment shader '" +
+                                     fragmentShaderName +
+                                     "'");
         }
+    }
 
-        // Check for other opengl errors
-        OpenGLUtils.checkGLError("creating shader with vertex shader '" +
-                                 vertexShaderName +
-                                 "' and fragment shader '" +
-                                 fragmentShaderName +
-                                 "'");
+    /**
+     * @return true if the results of the compilation have been checked, and the shader is ready to use.
+     */
+    public boolean isCompileFinished() {
+        return compileFinished;
     }
 
     /**
@@ -119,14 +178,22 @@ public class Shader implements Disposable {
      * Must be called before attributes or uniforms are set, and before rendering with the shader.
      */
     public void begin() {
-        glUseProgram(shaderProgramHandle);
+        backend.useProgram(shaderProgramHandle);
     }
 
     /**
      * Unbinds shader.
      */
     public void end() {
-        glUseProgram(0);
+        backend.useProgram(0);
+    }
+
+    /**
+     * @return true if the shader has the instanceTransform attribute, and can be used to draw many copies of a shape
+     *         with one draw call.
+     */
+    public boolean isInstanced() {
+        return instanced;
     }
 
     /**
@@ -156,7 +223,7 @@ public class Shader implements Disposable {
      * Should be called while the shader is bound (after begin and before end).
      */
     public void setUniformFloat(String name, float f) {
-        glUniform1f(getUniformLocation(name), f);
+        backend.uniform1f(getUniformLocation(name), f);
     }
 
     /**
@@ -164,7 +231,7 @@ public class Shader implements Disposable {
      * Should be called while the shader is bound (after begin and before end).
      */
     public void setUniformFloat2(String name, float f1, float f2) {
-        glUniform2f(getUniformLocation(name), f1, f2);
+        backend.uniform2f(getUniformLocation(name), f1, f2);
     }
 
     /**
@@ -172,7 +239,7 @@ public class Shader implements Disposable {
      * Should be called while the shader is bound (after begin and before end).
      */
     public void setUniformFloat3(String name, float f1, float f2, float f3) {
-        glUniform3f(getUniformLocation(name), f1, f2, f3);
+        backend.uniform3f(getUniformLocation(name), f1, f2, f3);
     }
 
     /**
@@ -180,7 +247,7 @@ public class Shader implements Disposable {
      * Should be called while the shader is bound (after begin and before end).
      */
     public void setUniformFloat4(String name, float f1, float f2, float f3, float f4) {
-        glUniform4f(getUniformLocation(name), f1, f2, f3, f4);
+        backend.uniform4f(getUniformLocation(name), f1, f2, f3, f4);
     }
 
     /**
@@ -188,7 +255,7 @@ public class Shader implements Disposable {
      * Should be called while the shader is bound (after begin and before end).
      */
     public void setUniformInt(String name, int i) {
-        glUniform1i(getUniformLocation(name), i);
+        backend.uniform1i(getUniformLocation(name), i);
     }
 
     /**
@@ -196,7 +263,7 @@ public class Shader implements Disposable {
      * Should be called while the shader is bound (after begin and before end).
      */
     public void setUniformInt2(String name, int i1, int i2) {
-        glUniform2i(getUniformLocation(name), i1, i2);
+        backend.uniform2i(getUniformLocation(name), i1, i2);
     }
 
     /**
@@ -204,7 +271,7 @@ public class Shader implements Disposable {
      * Should be called while the shader is bound (after begin and before end).
      */
     public void setUniformInt3(String name, int i1, int i2, int i3) {
-        glUniform3i(getUniformLocation(name), i1, i2, i3);
+        backend.uniform3i(getUniformLocation(name), i1, i2, i3);
     }
 
     /**
@@ -212,7 +279,7 @@ public class Shader implements Disposable {
      * Should be called while the shader is bound (after begin and before end).
      */
     public void setUniformInt4(String name, int i1, int i2, int i3, int i4) {
-        glUniform4i(getUniformLocation(name), i1, i2, i3, i4);
+        backend.uniform4i(getUniformLocation(name), i1, i2, i3, i4);
     }
 
     /**
@@ -247,7 +314,7 @@ public class Shader implements Disposable {
         int location = getUniformLocation(name);
         matrixBuffer.clear();
         matrix.store(matrixBuffer);
-        glUniformMatrix3(location, false, matrixBuffer);
+        backend.uniformMatrix3(location, false, matrixBuffer);
     }
 
     /**
@@ -258,7 +325,19 @@ public class Shader implements Disposable {
         int location = getUniformLocation(name);
         matrixBuffer.clear();
         matrix.store(matrixBuffer);
-        glUniformMatrix4(location, false, matrixBuffer);
+        backend.uniformMatrix4(location, false, matrixBuffer);
+    }
+
+    /**
+     * Sets uniform matrix 4 from 16 floats in column major order.
+     * Should be called while the shader is bound (after begin and before end).
+     */
+    public void setUniformMatrix4(String name, float[] matrix, int offset) {
+        int location = getUniformLocation(name);
+        matrixBuffer.clear();
+        matrixBuffer.put(matrix, offset, 16);
+        matrixBuffer.flip();
+        backend.uniformMatrix4(location, false, matrixBuffer);
     }
 
     /**
@@ -311,12 +390,19 @@ public class Shader implements Disposable {
      */
     public void dispose() {
         // Unbind shader
-        glUseProgram(0);
+        backend.useProgram(0);
 
         // Delete
-        glDeleteShader(vertexShaderHandle);
-        glDeleteShader(fragmentShaderHandle);
-        glDeleteProgram(shaderProgramHandle);
+        backend.deleteShader(vertexShaderHandle);
+        backend.deleteShader(fragmentShaderHandle);
+        backend.deleteProgram(shaderProgramHandle);
+    }
+
+    /**
+     * @return handle of the shader program, or 0 if it could not be created.
+     */
+    public int getProgramHandle() {
+        return shaderProgramHandle;
     }
 
     /**
@@ -358,122 +444,145 @@ public class Shader implements Disposable {
     }
 
     /**
-     * Compiles vertex and fragment shaders, links them to shader program.
+     * Issues the compile and link commands for the vertex and fragment shaders, without querying any status.
+     * Querying the status forces the driver to wait for the compilation, so it is left to checkCompileResults,
+     * which allows drivers that compile in parallel to work on several programs at the same time.
+     */
+    private void submitCompile() {
+        // Start compiling the sub-shaders
+        vertexShaderHandle = submitShader(GL_VERTEX_SHADER, vertexShaderSource);
+        fragmentShaderHandle = submitShader(GL_FRAGMENT_SHADER, fragmentShaderSource);
+
+        // Create handle for the program
+        shaderProgramHandle = backend.createProgram();
+
+        // Link sub-shaders together
+        if (vertexShaderHandle != INVALID_HANDLE &&
+            fragmentShaderHandle != INVALID_HANDLE &&
+            shaderProgramHandle != INVALID_HANDLE) {
+            backend.attachShader(shaderProgramHandle, vertexShaderHandle);
+            backend.attachShader(shaderProgramHandle, fragmentShaderHandle);
+
+            // Place the per instance attributes after the vertex attributes of shapes
+            backend.bindAttribLocation(shaderProgramHandle, INSTANCE_TRANSFORM_LOCATION, INSTANCE_TRANSFORM_ATTRIBUTE);
+            backend.bindAttribLocation(shaderProgramHandle, INSTANCE_PARAMETERS_LOCATION, INSTANCE_PARAMETERS_ATTRIBUTE);
+
+            backend.linkProgram(shaderProgramHandle);
+        }
+    }
+
+    /**
+     * @param type   type of shader
+     * @param source source code for the shader
+     * @return handle of the shader that is being compiled, or INVALID_HANDLE if no handle could be created.
+     */
+    private int submitShader(int type, String source) {
+        int shaderHandle = backend.createShader(type);
+        if (shaderHandle != INVALID_HANDLE) {
+            backend.shaderSource(shaderHandle, source);
+            backend.compileShader(shaderHandle);
+        }
+
+        return shaderHandle;
+    }
+
+    /**
+     * Checks that the vertex and fragment shaders compiled, and that the shader program linked.
      *
      * @return null if all ok, otherwise error message.
      */
-    private String compile() {
+    private String checkCompileResults() {
         StringBuilder errorMessages = new StringBuilder();
 
-        // Compile vertex shader
-        vertexShaderHandle = compileShader(vertexShaderName, GL_VERTEX_SHADER, vertexShaderSource, errorMessages);
-        if (vertexShaderHandle == INVALID_HANDLE) {
+        // Check vertex shader
+        if (!checkShader(vertexShaderName, vertexShaderHandle, errorMessages)) {
             return errorMessages.toString();
         }
 
-        // Compile fragment shader
-        fragmentShaderHandle = compileShader(fragmentShaderName, GL_FRAGMENT_SHADER, fragmentShaderSource, errorMessages);
-        if (fragmentShaderHandle == INVALID_HANDLE) {
+        // Check fragment shader
+        if (!checkShader(fragmentShaderName, fragmentShaderHandle, errorMessages)) {
             return errorMessages.toString();
         }
 
-        // Link shaders to final program
-        shaderProgramHandle = compileProgram(errorMessages);
-        if (shaderProgramHandle == INVALID_HANDLE) {
+        // Check the linked program
+        if (!checkProgram(errorMessages)) {
             return errorMessages.toString();
         }
 
         // Create lookup table for shader parameters
         readUniformLocations();
 
+        instanced = backend.getAttribLocation(shaderProgramHandle, INSTANCE_TRANSFORM_ATTRIBUTE) >= 0;
+
         return null;
     }
 
     /**
-     * @param name          name of the shader to load
-     * @param type          type of shader
-     * @param source        source code for the shader
+     * @param name          name of the shader to check
+     * @param shaderHandle  handle of the shader to check
      * @param errorMessages string buffer to save any error messages in.
-     * @return handle of the loaded shader, or INVALID_HANDLE if there was an error.
+     * @return true if the shader compiled successfully, false if there was an error.
      */
-    private int compileShader(String name, int type, String source, StringBuilder errorMessages) {
-
-        // Create handle
-        int shaderHandle = glCreateShader(type);
+    private boolean checkShader(String name, int shaderHandle, StringBuilder errorMessages) {
         if (shaderHandle == INVALID_HANDLE) {
             errorMessages.append("Error when creating a shader handle for " + name + ":\n");
-            errorMessages.append(glGetShaderInfoLog(shaderHandle, MAX_LOG_LENGTH));
-            return INVALID_HANDLE;
+            errorMessages.append(backend.getShaderInfoLog(shaderHandle, MAX_LOG_LENGTH));
+            return false;
         }
 
-        // Compile shader
-        glShaderSource(shaderHandle, source);
-        glCompileShader(shaderHandle);
         boolean compiled = getCompileStatus(shaderHandle);
         if (!compiled) {
             errorMessages.append("Error when compiling " + name + ":\n");
-            errorMessages.append(glGetShaderInfoLog(shaderHandle, MAX_LOG_LENGTH));
-            return INVALID_HANDLE;
+            errorMessages.append(backend.getShaderInfoLog(shaderHandle, MAX_LOG_LENGTH));
+            return false;
         }
 
-        return shaderHandle;
+        return true;
     }
 
     /**
      * @param errorMessages string buffer to save any error messages in.
-     * @return handle for the shader program, or INVALID_HANDLE if there was an error.
+     * @return true if the shader program linked successfully, false if there was an error.
      */
-    private int compileProgram(StringBuilder errorMessages) {
-        // Create handle for the program
-        int programHandle = glCreateProgram();
-        if (programHandle == INVALID_HANDLE) {
+    private boolean checkProgram(StringBuilder errorMessages) {
+        if (shaderProgramHandle == INVALID_HANDLE) {
             errorMessages.append("Could not allocate shader program handle for " +
                                  vertexShaderName +
                                  " and " +
                                  fragmentShaderName +
                                  ":\n");
-            errorMessages.append(glGetProgramInfoLog(programHandle, MAX_LOG_LENGTH));
-            return INVALID_HANDLE;
+            errorMessages.append(backend.getProgramInfoLog(shaderProgramHandle, MAX_LOG_LENGTH));
+            return false;
         }
 
-        // Link sub-shaders together
-        glAttachShader(programHandle, vertexShaderHandle);
-        glAttachShader(programHandle, fragmentShaderHandle);
-        glLinkProgram(programHandle);
-        boolean linked = getLinkStatus(programHandle);
+        boolean linked = getLinkStatus(shaderProgramHandle);
         if (!linked) {
             errorMessages.append("Error when linking " + vertexShaderName + " and " + fragmentShaderName + " :\n");
-            errorMessages.append(glGetProgramInfoLog(programHandle, MAX_LOG_LENGTH));
-            return INVALID_HANDLE;
+            errorMessages.append(backend.getProgramInfoLog(shaderProgramHandle, MAX_LOG_LENGTH));
+            return false;
         }
 
-        return programHandle;
+        return true;
     }
 
     private boolean getCompileStatus(int shaderHandle) {
-        IntBuffer compileStatusBuffer = BufferUtils.createIntBuffer(1);
-        glGetShader(shaderHandle, GL_COMPILE_STATUS, compileStatusBuffer);
-        return compileStatusBuffer.get(0) == GL_TRUE;
+        return backend.getShaderi(shaderHandle, GL_COMPILE_STATUS) == GL_TRUE;
     }
 
     private boolean getLinkStatus(int shaderHandle) {
-        IntBuffer linkStatusBuffer = BufferUtils.createIntBuffer(1);
-        glGetProgram(shaderHandle, GL_LINK_STATUS, linkStatusBuffer);
-        return linkStatusBuffer.get(0) == GL_TRUE;
+        return backend.getProgrami(shaderHandle, GL_LINK_STATUS) == GL_TRUE;
     }
 
     private void readUniformLocations() {
         // Get number of uniforms in the program
-        intBuffer.clear();
-        glGetProgram(shaderProgramHandle, GL_ACTIVE_UNIFORMS, intBuffer);
-        int uniformCount = intBuffer.get(0);
+        int uniformCount = backend.getProgrami(shaderProgramHandle, GL_ACTIVE_UNIFORMS);
 
         // Get names and locations of the uniforms in the program
         uniformNames.clear();
         uniformLocations.clear();
         for (int i = 0; i < uniformCount; i++) {
-            String name = glGetActiveUniform(shaderProgramHandle, i, NAME_BUFFER_SIZE);
-            int location = glGetUniformLocation(shaderProgramHandle, name);
+            String name = backend.getActiveUniform(shaderProgramHandle, i, NAME_BUFFER_SIZE);
+            int location = backend.getUniformLocation(shaderProgramHandle, name);
             uniformNames.add(name);
             uniformLocations.put(name, location);
         }
@@ -5,20 +5,198 @@ import org.skycastle.flowgine.resourceloader.ResourceLoader;
 import org.skycastle.flowgine.utils.ResourceManagerBase;
 
 import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
 
 /**
  * Keeps track of loaded shaders, and ensures there is only one of each loaded at a time.
  * Frees unused shaders from the graphics card.
+ * <p/>
+ * Shaders can be created in two phases to let drivers compile several programs in parallel:
+ * first call preload for the shaders that will be needed, and submitLoadedShaders regularly from the OpenGL thread
+ * to start compiling the ones whose sources have been loaded.  The compile status of a shader is only queried
+ * when it is retrieved with get, which first submits all preloaded shaders.  UpdateScheduler preloads the shaders of
+ * the spatials it creates together this way.
  */
 public class ShaderManager extends ResourceManagerBase<ShaderRef, Shader> {
 
+    private static final int DEFAULT_LOADER_THREAD_COUNT = 2;
+
+    private final ExecutorService sourceLoader;
+
+    private final Map<ShaderRef, Future<ShaderSources>> loadingShaders = new LinkedHashMap<ShaderRef, Future<ShaderSources>>();
+    private final Map<ShaderRef, Shader> submittedShaders = new HashMap<ShaderRef, Shader>();
+
+    /**
+     * Creates a shader manager that loads shader sources in the background with two threads.
+     */
+    public ShaderManager() {
+        this(DEFAULT_LOADER_THREAD_COUNT);
+    }
+
+    /**
+     * @param loaderThreadCount number of background threads to use for loading shader sources.
+     */
+    public ShaderManager(int loaderThreadCount) {
+        sourceLoader = Executors.newFixedThreadPool(loaderThreadCount, new ThreadFactory() {
+            public Thread newThread(Runnable r) {
+                final Thread thread = new Thread(r, "ShaderSourceLoader");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+    }
+
+    /**
+     * Starts loading the sources of the specified shader in a background thread.
+     * Does nothing if the shader is already loaded, loading, or submitted for compilation.
+     * Should be called from the OpenGL thread.
+     *
+     * @param ref shader to preload.
+     */
+    public void preload(final ShaderRef ref) {
+        if (!isLoaded(ref) && !loadingShaders.containsKey(ref) && !submittedShaders.containsKey(ref)) {
+            final ResourceLoader resourceLoader = getResourceLoader();
+            loadingShaders.put(ref, sourceLoader.submit(new Callable<ShaderSources>() {
+                public ShaderSources call() throws Exception {
+                    return new ShaderSources(ref, resourceLoader);
+                }
+            }));
+        }
+    }
+
+    /**
+     * Submits the shaders whose sources have finished loading for compilation.
+     * Does not wait for the compilation to finish, so that drivers can compile several shaders in parallel.
+     * Must be called from the OpenGL thread.
+     *
+     * @return number of shaders submitted for compilation.
+     */
+    public int submitLoadedShaders() {
+        int submittedCount = 0;
+
+        final Iterator<Map.Entry<ShaderRef, Future<ShaderSources>>> iterator = loadingShaders.entrySet().iterator();
+        while (iterator.hasNext()) {
+            final Map.Entry<ShaderRef, Future<ShaderSources>> entry = iterator.next();
+            if (entry.getValue().isDone()) {
+                // Failed loads are left in place, so that the problem is reported when the shader is retrieved.
+                final ShaderSources sources = getSourcesIfLoaded(entry.getValue());
+                if (sources != null) {
+                    iterator.remove();
+                    submittedShaders.put(entry.getKey(), sources.submit());
+                    submittedCount++;
+                }
+            }
+        }
+
+        return submittedCount;
+    }
+
+    /**
+     * @return number of shaders that are loading or compiling, and have not yet been retrieved with get.
+     */
+    public int getPendingCount() {
+        return loadingShaders.size() + submittedShaders.size();
+    }
+
+    /**
+     * Deletes the shaders that were submitted for compilation but never retrieved, and stops loading the sources of
+     * the preloaded shaders.
+     */
+    @Override protected void deleteUnstoredResources() {
+        for (Shader shader : submittedShaders.values()) {
+            shader.dispose();
+        }
+        submittedShaders.clear();
+
+        for (Future<ShaderSources> loading : loadingShaders.values()) {
+            loading.cancel(false);
+        }
+        loadingShaders.clear();
+    }
+
     @Override protected Shader createResource(ShaderRef ref, ResourceLoader resourceLoader) throws Exception {
-        final String vertexSource   = resourceLoader.loadResourceAsString(ref.getVertexShaderPath());
-        final String fragmentSource = resourceLoader.loadResourceAsString(ref.getFragmentShaderPath());
+        // Submit the other preloaded shaders as well before querying the status of this one, so that they compile together
+        if (loadingShaders.containsKey(ref)) submitPreloadedShaders();
+
+        // Use already submitted shader if available
+        Shader shader = submittedShaders.remove(ref);
+
+        if (shader == null) {
+            final Future<ShaderSources> loading = loadingShaders.remove(ref);
+            if (loading != null) {
+                // Loading the sources failed, report the problem
+                shader = waitForSources(loading).submit();
+            }
+            else {
+                // Not preloaded, load synchronously
+                shader = new ShaderSources(ref, resourceLoader).submit();
+            }
+        }
+
+        // Query the results of the compilation
+        shader.finishCompile();
+
+        return shader;
+    }
+
+    /**
+     * Waits for the sources of all preloaded shaders to load, and submits them for compilation.
+     */
+    private void submitPreloadedShaders() {
+        for (Future<ShaderSources> loading : loadingShaders.values()) {
+            getSourcesIfLoaded(loading);
+        }
+        submitLoadedShaders();
+    }
+
+    private ShaderSources getSourcesIfLoaded(Future<ShaderSources> loading) {
+        try {
+            return waitForSources(loading);
+        } catch (Exception e) {
+            return null;
+        }
+    }
+
+    private ShaderSources waitForSources(Future<ShaderSources> loading) throws Exception {
+        try {
+            return loading.get();
+        } catch (ExecutionException e) {
+            final Throwable cause = e.getCause();
+            if (cause instanceof Exception) throw (Exception) cause;
+            else throw e;
+        }
+    }
+
+    /**
+     * Loaded sources for a shader.
+     */
+    private static final class ShaderSources {
+        private final ShaderRef ref;
+        private final String vertexSource;
+        private final String fragmentSource;
+
+        private ShaderSources(ShaderRef ref, ResourceLoader resourceLoader) {
+            this.ref = ref;
+            vertexSource   = resourceLoader.loadResourceAsString(ref.getVertexShaderPath());
+            fragmentSource = resourceLoader.loadResourceAsString(ref.getFragmentShaderPath());
+        }
 
-        return new Shader(ref.getVertexShaderPath(), vertexSource,
-                          ref.getFragmentShaderPath(), fragmentSource);
+        /**
+         * @return a shader created from the sources, that has been submitted for compilation.  Call from the OpenGL thread.
+         */
+        private Shader submit() {
+            return new Shader(ref.getVertexShaderPath(), vertexSource,
+                              ref.getFragmentShaderPath(), fragmentSource,
+                              false);
+        }
     }
 
 }
@@ -0,0 +1,114 @@
+package org.skycastle.flowgine.shape;
+
+import org.flowutils.Check;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Levels of detail of a shape, from the most detailed to the coarsest, each with the smallest screen size it is used at.
+ * <p/>
+ * The screen size is the projected diameter of the bounding sphere of the shape as a fraction of the viewport height,
+ * so 1 fills the screen vertically.  Switching between levels uses hysteresis: an object only switches to a coarser
+ * level when it is hysteresis smaller than the threshold, and back to a finer level when it is hysteresis larger,
+ * so objects moving around a threshold do not pop back and forth every frame.
+ */
+public final class LodGroup {
+
+    /**
+     * Default hysteresis, as a fraction of the thresholds.
+     */
+    public static final float DEFAULT_HYSTERESIS = 0.1f;
+
+    private final List<ShapeRef> shapeRefs = new ArrayList<ShapeRef>();
+    private float[] minScreenSizes = new float[4];
+    private final float hysteresis;
+
+    public LodGroup() {
+        this(DEFAULT_HYSTERESIS);
+    }
+
+    /**
+     * @param hysteresis fraction of the thresholds that the screen size must pass them by before the level changes, 0..1.
+     */
+    public LodGroup(float hysteresis) {
+        if (hysteresis < 0 || hysteresis >= 1) throw new IllegalArgumentException("hysteresis should be in the range 0..1, but was " + hysteresis);
+        this.hysteresis = hysteresis;
+    }
+
+    /**
+     * Adds the next, coarser level of detail.
+     *
+     * @param shapeRef shape to use for the level.
+     * @param minScreenSize smallest screen size the level is used at.  Must be smaller than that of the previous level.
+     *                      Ignored for the last level, which is used for all smaller sizes.
+     * @return this group, for chaining.
+     */
+    public LodGroup addLevel(ShapeRef shapeRef, float minScreenSize) {
+        Check.notNull(shapeRef, "shapeRef");
+        if (minScreenSize < 0) throw new IllegalArgumentException("minScreenSize should not be negative, but was " + minScreenSize);
+        final int level = shapeRefs.size();
+        if (level > 0 && minScreenSize >= minScreenSizes[level - 1]) {
+            throw new IllegalArgumentException("The minScreenSize of a level should be smaller than that of the previous level");
+        }
+
+        if (level >= minScreenSizes.length) {
+            final float[] newMinScreenSizes = new float[minScreenSizes.length * 2];
+            System.arraycopy(minScreenSizes, 0, newMinScreenSizes, 0, level);
+            minScreenSizes = newMinScreenSizes;
+        }
+
+        shapeRefs.add(shapeRef);
+        minScreenSizes[level] = minScreenSize;
+        return this;
+    }
+
+    /**
+     * @return number of levels.
+     */
+    public int getLevelCount() {
+        return shapeRefs.size();
+    }
+
+    /**
+     * @return shape of a level, 0 being the most detailed.
+     */
+    public ShapeRef getShapeRef(int level) {
+        return shapeRefs.get(level);
+    }
+
+    /**
+     * @return the levels of the group, from the most detailed to the coarsest.
+     */
+    public List<ShapeRef> getShapeRefs() {
+        return Collections.unmodifiableList(shapeRefs);
+    }
+
+    /**
+     * @return smallest screen size a level is used at.
+     */
+    public float getMinScreenSize(int level) {
+        if (level < 0 || level >= shapeRefs.size()) throw new IllegalArgumentException("No level " + level + " in the group");
+        return minScreenSizes[level];
+    }
+
+    public float getHysteresis() {
+        return hysteresis;
+    }
+
+    /**
+     * @param screenSize current screen size of the object.
+     * @param currentLevel level the object is using now.
+     * @return level the object should use.
+     */
+    public int selectLevel(float screenSize, int currentLevel) {
+        final int lastLevel = shapeRefs.size() - 1;
+        int level = Math.max(0, Math.min(currentLevel, lastLevel));
+
+        while (level < lastLevel && screenSize < minScreenSizes[level] * (1 - hysteresis)) level++;
+        while (level > 0 && screenSize >= minScreenSizes[level - 1] * (1 + hysteresis)) level--;
+
+        return level;
+    }
+}
@@ -4,11 +4,12 @@ import org.flowutils.Check;
 import org.lwjgl.BufferUtils;
 import org.lwjgl.opengl.GL11;
 import org.lwjgl.opengl.GL15;
-import org.lwjgl.opengl.GL20;
-import org.lwjgl.opengl.GL30;
+import org.skycastle.flowgine.FlowGine;
+import org.skycastle.flowgine.geometry.Bounds;
 import org.skycastle.flowgine.geometry.Col4;
 import org.skycastle.flowgine.geometry.Vec2;
 import org.skycastle.flowgine.geometry.Vec3;
+import org.skycastle.flowgine.render.RenderBackend;
 import org.skycastle.flowgine.utils.Disposable;
 import org.skycastle.flowgine.utils.OpenGLUtils;
 
@@ -18,13 +19,22 @@ import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
- *
+ * Triangle mesh, with position, normal, texture position and color for each vertex.
+ * The mesh is uploaded to the graphics card the first time it is rendered.
  */
-// TODO: Add vertex buffer handles to this class
 public class Shape implements Disposable {
 
+    private static final int VERTEX_ATTRIBUTE_COUNT = 4;
+    private static final int VERTEX_BYTE_SIZE = (3 + 3 + 2 + 4) * 4;
+    private static final int INDEX_BYTE_SIZE = 4;
+
+    private static final AtomicInteger idCounter = new AtomicInteger();
+
+    private final int id = idCounter.incrementAndGet();
+
     private List<Vec3> positions = new ArrayList<Vec3>();
     private List<Vec3> normals = new ArrayList<Vec3>();
     private List<Vec2> texturePositions = new ArrayList<Vec2>();
@@ -38,6 +48,12 @@ public class Shape implements Disposable {
 
     private Map<String, Float> shaderParameters = new HashMap<String, Float>();
 
+    private RenderBackend backend;
+    private int vertexArrayHandle = 0;
+    private int vertexBufferHandle = 0;
+    private int indexBufferHandle = 0;
+    private int indexCount = 0;
+
 
     /**
      * Adds a number of default vertexes.
@@ -155,31 +171,187 @@ public class Shape implements Disposable {
         addTriangle(vertex3, vertex4, vertex1);
     }
 
+    /**
+     * @return the vertex at the specified position in the index list.
+     */
+    public int index(int i) {
+        Check.under(i, "i", indexes.size());
+        return indexes.get(i);
+    }
+
+    /**
+     * @return number of indexes added to the shape, including ones not uploaded yet.
+     */
+    public int getIndexListSize() {
+        return indexes.size();
+    }
+
+    /**
+     * Adds copies of vertexes of a shape, and of indexes that refer to them, to this shape.
+     * The source may be this shape.
+     *
+     * @param source shape to copy from.
+     * @param firstVertex first vertex to copy.
+     * @param vertexCountToCopy number of vertexes to copy.
+     * @param firstIndex first index to copy.  The copied indexes should refer to the copied vertexes.
+     * @param indexCountToCopy number of indexes to copy.
+     * @param offset added to the positions of the copied vertexes.
+     * @return index of the first added vertex.
+     */
+    public int addCopy(Shape source, int firstVertex, int vertexCountToCopy, int firstIndex, int indexCountToCopy, Vec3 offset) {
+        Check.notNull(source, "source");
+        Check.under(firstVertex + vertexCountToCopy, "firstVertex + vertexCountToCopy", source.vertexCount + 1);
+        Check.under(firstIndex + indexCountToCopy, "firstIndex + indexCountToCopy", source.indexes.size() + 1);
+
+        final int first = vertexCount;
+        for (int i = firstVertex; i < firstVertex + vertexCountToCopy; i++) {
+            final Vec3 pos = source.positions.get(i);
+            final Col4 color = source.colors.get(i);
+            addVertex(new Vec3(pos.x + offset.x, pos.y + offset.y, pos.z + offset.z),
+                      new Vec2(source.texturePositions.get(i)),
+                      new Col4(color.r, color.g, color.b, color.a),
+                      new Vec3(source.normals.get(i)));
+        }
+
+        for (int i = firstIndex; i < firstIndex + indexCountToCopy; i++) {
+            indexes.add(source.indexes.get(i) - firstVertex + first);
+        }
+
+        return first;
+    }
+
+    /**
+     * Calculates the axis aligned bounding box and a bounding sphere of the vertex positions.
+     *
+     * @param out bounds to store the result in, or null to create new bounds.
+     * @return the bounds, empty if the shape has no vertexes.
+     */
+    public Bounds calculateBounds(Bounds out) {
+        if (out == null) out = new Bounds();
+
+        out.setEmpty();
+        for (int i = 0; i < vertexCount; i++) {
+            out.include(positions.get(i));
+        }
+
+        // Tighter sphere than the one enclosing the box
+        out.startSphere();
+        for (int i = 0; i < vertexCount; i++) {
+            final Vec3 pos = positions.get(i);
+            out.includeInSphere(pos.x, pos.y, pos.z);
+        }
+
+        return out;
+    }
+
     public void recalculateNormals() {
         // TODO: Loop all triangles, calculate normals
     }
 
+    /**
+     * Binds the vertex array of the shape, creating it on the graphics card first if needed.
+     */
     public void begin() {
         // Bind vertex array and buffer objects
-        // TODO
+        if (!isUploaded()) createVertexBufferObject();
+
+        backend.bindVertexArray(vertexArrayHandle);
     }
 
+    /**
+     * Renders the triangles of the shape with the currently bound shader.
+     */
     public void render() {
         begin();
 
-        // Render triangles
-        // TODO
+        draw();
 
         end();
     }
 
+    /**
+     * Renders the triangles of the shape with the currently bound shader.
+     * The shape must be bound with begin first.
+     */
+    public void draw() {
+        // Render triangles
+        backend.drawElements(GL11.GL_TRIANGLES, indexCount, GL11.GL_UNSIGNED_INT, 0);
+    }
+
+    /**
+     * Renders several instances of the triangles of the shape with one draw call, using the currently bound shader.
+     * The shape must be bound with begin first, and the per instance attributes set up.
+     *
+     * @param instanceCount number of instances to draw.
+     */
+    public void drawInstanced(int instanceCount) {
+        backend.drawElementsInstanced(GL11.GL_TRIANGLES, indexCount, GL11.GL_UNSIGNED_INT, 0, instanceCount);
+    }
+
+    /**
+     * Unbinds the vertex array of the shape.
+     */
     public void end() {
         // Unbind vertex array and buffer objects
-        // TODO
+        backend.bindVertexArray(0);
+    }
+
+    /**
+     * @return true if the vertex data of the shape has been uploaded to the graphics card.
+     */
+    public boolean isUploaded() {
+        return vertexArrayHandle != 0;
+    }
+
+    /**
+     * @return id of the shape, unique among the shapes created in this process and assigned when the shape is created.
+     *         Unlike the vertex array handle it is available before the shape has been uploaded.
+     */
+    public int getId() {
+        return id;
+    }
+
+    /**
+     * @return handle of the vertex array object of the shape, or 0 if it has not been uploaded yet.
+     */
+    public int getVertexArrayHandle() {
+        return vertexArrayHandle;
     }
 
+    /**
+     * @return number of vertexes in the shape.
+     */
+    public int getVertexCount() {
+        return vertexCount;
+    }
+
+    /**
+     * @return approximate number of bytes the vertex and index data of the shape take on the graphics card.
+     */
+    public long getGraphicsMemorySize() {
+        return (long) vertexCount * VERTEX_BYTE_SIZE + (long) indexes.size() * INDEX_BYTE_SIZE;
+    }
+
+    /**
+     * @return number of triangles in the shape.
+     */
+    public int getTriangleCount() {
+        return indexes.size() / 3;
+    }
+
+    /**
+     * @return number of indexes uploaded to the graphics card.
+     */
+    public int getIndexCount() {
+        return indexCount;
+    }
 
+    /**
+     * Uploads the vertex and index data of the shape to the graphics card, replacing any earlier uploaded data.
+     * @return handle of the created vertex array object.
+     */
     public int createVertexBufferObject() {
+        if (isUploaded()) dispose();
 
         int posElements = 3;
         int normalElements = 3;
@@ -215,46 +387,58 @@ public class Shape implements Disposable {
             indicesBuffer.put(index);
         }
         indicesBuffer.flip();
+        indexCount = indexes.size();
 
+        backend = FlowGine.renderBackend;
 
         // Create a new Vertex Array Object in memory and select it (bind)
-        int vaoId = GL30.glGenVertexArrays();
-        GL30.glBindVertexArray(vaoId);
+        vertexArrayHandle = backend.genVertexArray();
+        backend.bindVertexArray(vertexArrayHandle);
 
         // Create a new Vertex Buffer Object in memory and select it (bind)
-        int vboId = GL15.glGenBuffers();
-        GL15.glBindBuffer(GL15.GL_ARRAY_BUFFER, vboId);
-        GL15.glBufferData(GL15.GL_ARRAY_BUFFER, vertexDataBuffer, GL15.GL_STREAM_DRAW);
+        vertexBufferHandle = backend.genBuffer();
+        backend.bindBuffer(GL15.GL_ARRAY_BUFFER, vertexBufferHandle);
+        backend.bufferData(GL15.GL_ARRAY_BUFFER, vertexDataBuffer, GL15.GL_STATIC_DRAW);
 
         // Setup interleaved data buffers
-        GL20.glVertexAttribPointer(0, posElements,    GL11.GL_FLOAT, false, vertexDataByteSize, posByteOffset);
-        GL20.glVertexAttribPointer(1, normalElements, GL11.GL_FLOAT, false, vertexDataByteSize, normalByteOffset);
-        GL20.glVertexAttribPointer(2, texElements,    GL11.GL_FLOAT, false, vertexDataByteSize, texByteOffset);
-        GL20.glVertexAttribPointer(3, colorElements,  GL11.GL_FLOAT, false, vertexDataByteSize, colorByteOffset);
-
-        // Deselect vertex buffer object
-        GL15.glBindBuffer(GL15.GL_ARRAY_BUFFER, 0);
+        backend.vertexAttribPointer(0, posElements,    GL11.GL_FLOAT, false, vertexDataByteSize, posByteOffset);
+        backend.vertexAttribPointer(1, normalElements, GL11.GL_FLOAT, false, vertexDataByteSize, normalByteOffset);
+        backend.vertexAttribPointer(2, texElements,    GL11.GL_FLOAT, false, vertexDataByteSize, texByteOffset);
+        backend.vertexAttribPointer(3, colorElements,  GL11.GL_FLOAT, false, vertexDataByteSize, colorByteOffset);
+        for (int i = 0; i < VERTEX_ATTRIBUTE_COUNT; i++) {
+            backend.enableVertexAttribArray(i);
+        }
 
-        // Deselect the VAO
-        GL30.glBindVertexArray(0);
+        // Create a new VBO for the indices and select it (bind), while the VAO is bound so that it becomes part of it
+        indexBufferHandle = backend.genBuffer();
+        backend.bindBuffer(GL15.GL_ELEMENT_ARRAY_BUFFER, indexBufferHandle);
+        backend.bufferData(GL15.GL_ELEMENT_ARRAY_BUFFER, indicesBuffer, GL15.GL_STATIC_DRAW);
 
-        // Create a new VBO for the indices and select it (bind) - INDICES
-        int vboiId = GL15.glGenBuffers();
-        GL15.glBindBuffer(GL15.GL_ELEMENT_ARRAY_BUFFER, vboiId);
-        GL15.glBufferData(GL15.GL_ELEMENT_ARRAY_BUFFER, indicesBuffer, GL15.GL_STATIC_DRAW);
-        GL15.glBindBuffer(GL15.GL_ELEMENT_ARRAY_BUFFER, 0);
+        // Deselect the VAO, and then the buffers, so that the VAO keeps its index buffer
+        backend.bindVertexArray(0);
+        backend.bindBuffer(GL15.GL_ARRAY_BUFFER, 0);
+        backend.bindBuffer(GL15.GL_ELEMENT_ARRAY_BUFFER, 0);
 
 
         // Check for any errors
         OpenGLUtils.checkGLError("Creating shape");
 
-        return vaoId;
+        return vertexArrayHandle;
     }
 
     /**
      * Free any resources used by the shape.
      */
     public void dispose() {
-        // TODO
+        if (isUploaded()) {
+            backend.deleteVertexArray(vertexArrayHandle);
+            backend.deleteBuffer(vertexBufferHandle);
+            backend.deleteBuffer(indexBufferHandle);
+
+            vertexArrayHandle = 0;
+            vertexBufferHandle = 0;
+            indexBufferHandle = 0;
+            indexCount = 0;
+        }
     }
 }
@@ -1,6 +1,17 @@
 package org.skycastle.flowgine.shape;
 
+import org.flowutils.Check;
 import org.skycastle.flowgine.FlowGine;
+import org.skycastle.flowgine.buildlang.Builtins;
+import org.skycastle.flowgine.buildlang.CompiledProgram;
+import org.skycastle.flowgine.buildlang.ExecutionBudget;
+import org.skycastle.flowgine.buildlang.GenLangCompiler;
+import org.skycastle.flowgine.buildlang.Interpreter;
+import org.skycastle.flowgine.buildlang.MemoCache;
+import org.skycastle.flowgine.buildlang.Optimizer;
+import org.skycastle.flowgine.buildlang.ProgCache;
+import org.skycastle.flowgine.buildlang.Resolver;
+import org.skycastle.flowgine.buildlang.ast.Prog;
 import org.skycastle.flowgine.resourceloader.ResourceLoader;
 import org.skycastle.flowgine.utils.ResourceManagerBase;
 
@@ -9,21 +20,130 @@ import java.util.Map;
 
 /**
  * Manager that keeps track of loaded shapes, and allows reuse.
+ * <p/>
+ * Shapes with the .shape extension are generated by running the generator program in the shape source,
+ * with the parameters of the ShapeRef overriding the global variables with the same names.
+ * Programs are compiled to bytecode, or interpreted if they use features the compiler does not support.
+ * Parsed programs are cached, so a shape that is loaded again only parses the definitions that changed in its source.
+ * Before generation the program is optimized for the parameters of the ShapeRef, see Optimizer.
+ * Calls to pure functions are memoized in a MemoCache shared by all shapes, so that e.g. a window repeated over a
+ * facade, or in another building, is generated once and then copied.
+ * <p/>
+ * Each program runs with an ExecutionBudget, so that a program stuck in a loop fails instead of hanging the loading.
+ * A shape whose program fails is replaced with the placeholder, if one is set.
  */
 public class ShapeManager extends ResourceManagerBase<ShapeRef, Shape> {
 
+    private final Builtins builtins = Builtins.createDefault();
+    private final Map<ShapeRef, ExecutionBudget> budgets = new HashMap<ShapeRef, ExecutionBudget>();
+    private ExecutionBudget defaultBudget = ExecutionBudget.DEFAULT;
+    private final ProgCache progCache = new ProgCache(builtins);
+    private final Optimizer optimizer = new Optimizer();
+    private boolean optimizing = true;
+    private MemoCache memoCache = new MemoCache();
+
+    /**
+     * @return cache of the parsed shape programs.  Set a directory on it to also keep them between runs.
+     */
+    public ProgCache getProgCache() {
+        return progCache;
+    }
+
+    /**
+     * @return true if programs are optimized for their parameters before generation.
+     */
+    public boolean isOptimizing() {
+        return optimizing;
+    }
+
+    /**
+     * @param optimizing true to optimize programs for their parameters before generation, false to run them as written.
+     *                   Defaults to true.
+     */
+    public void setOptimizing(boolean optimizing) {
+        this.optimizing = optimizing;
+    }
+
+    /**
+     * @return cache that calls to pure functions of the shape programs are memoized in, or null if they are not.
+     */
+    public MemoCache getMemoCache() {
+        return memoCache;
+    }
+
+    /**
+     * @param memoCache cache to memoize calls to pure functions of the shape programs in, or null to not memoize them.
+     */
+    public void setMemoCache(MemoCache memoCache) {
+        this.memoCache = memoCache;
+    }
+
+    /**
+     * @return budget of shapes that have no budget of their own.
+     */
+    public ExecutionBudget getDefaultBudget() {
+        return defaultBudget;
+    }
+
+    /**
+     * @param defaultBudget budget of shapes that have no budget of their own.
+     *                      Affects shapes created after the call.
+     */
+    public void setDefaultBudget(ExecutionBudget defaultBudget) {
+        Check.notNull(defaultBudget, "defaultBudget");
+        this.defaultBudget = defaultBudget;
+    }
+
+    /**
+     * @return budget for generating the shape.
+     */
+    public ExecutionBudget getBudget(ShapeRef ref) {
+        final ExecutionBudget budget = budgets.get(ref);
+        return budget != null ? budget : defaultBudget;
+    }
+
+    /**
+     * @param ref shape to set the budget of.
+     * @param budget budget for generating the shape, or null to use the default budget.
+     *               ExecutionBudget.UNLIMITED compiles the program without budget checks, so only use it for trusted shapes.
+     */
+    public void setBudget(ShapeRef ref, ExecutionBudget budget) {
+        Check.notNull(ref, "ref");
+        if (budget != null) budgets.put(ref, budget);
+        else budgets.remove(ref);
+    }
+
     @Override protected Shape createResource(ShapeRef ref, ResourceLoader resourceLoader) throws Exception {
         if (ref.getPath().endsWith(".shape")) {
             final String shapeSource = resourceLoader.loadResourceAsString(ref.getPath());
 
-            // TODO: Parse shape source
+            Prog prog = progCache.get(ref.getPath(), shapeSource);
+            if (optimizing) {
+                prog = optimizer.optimize(prog, ref.getParameters());
+                new Resolver(builtins).resolve(prog);
+            }
 
-            return new Shape();
+            final ExecutionBudget budget = getBudget(ref);
+
+            // Each program gets its own class loader, so the compiled class can be unloaded after generation
+            final CompiledProgram compiledProgram;
+            try {
+                final GenLangCompiler compiler = new GenLangCompiler(builtins);
+                compiler.setBudgetChecks(!budget.isUnlimited());
+                compiledProgram = compiler.compile(prog);
+            } catch (IllegalArgumentException e) {
+                final Interpreter interpreter = new Interpreter(prog, builtins);
+                interpreter.setBudget(budget);
+                interpreter.setMemoCache(memoCache);
+                return interpreter.generate(ref.getParameters(), null);
+            }
+            compiledProgram.setBudget(budget);
+            compiledProgram.setMemoCache(memoCache);
+            return compiledProgram.generate(ref.getParameters(), null);
         }
         else {
             throw new IllegalStateException("Unsupported shape file type " + ref.getPath());
         }
     }
 
-
 }
@@ -72,4 +72,9 @@ public final class ShapeRef {
         result = 31 * result + (parameters != null ? parameters.hashCode() : 0);
         return result;
     }
+
+    @Override public String toString() {
+        if (parameters.isEmpty()) return path;
+        else return path + " " + parameters;
+    }
 }
@@ -1,5 +1,6 @@
 package org.skycastle.flowgine.spatial;
 
+import org.skycastle.flowgine.render.RenderQueue;
 import org.skycastle.flowgine.utils.OpenGLUtils;
 
 /**
@@ -11,17 +12,36 @@ public abstract class AbstractSpatial implements Spatial {
     public final void create() {
         if (!isCreated) {
             doCreate();
-            OpenGLUtils.checkGLError("Creating spatial " + this);
+            if (OpenGLUtils.isErrorContextNeeded()) OpenGLUtils.checkGLError("Creating spatial " + this);
             isCreated = true;
         }
     }
 
+    /**
+     * Starts loading resources of the spatial in the background before it is created, so that the loading of
+     * several spatials that are created together can overlap.  Does nothing if the spatial has been created.
+     * Call from the OpenGL thread.
+     */
+    public final void preload() {
+        if (!isCreated) doPreload();
+    }
+
     public final void update(double deltaSeconds, double gameTimeSeconds) {
         if (!isCreated) create();
 
         doUpdate(deltaSeconds, gameTimeSeconds);
 
-        OpenGLUtils.checkGLError("Updating spatial " + this);
+        if (OpenGLUtils.isErrorContextNeeded()) OpenGLUtils.checkGLError("Updating spatial " + this);
+    }
+
+    /**
+     * Updates a created spatial without checking for OpenGL errors, so that it can be called from threads
+     * that do not own the OpenGL context.
+     */
+    final void updateConcurrently(double deltaSeconds, double gameTimeSeconds) {
+        if (!isCreated) throw new IllegalStateException("The spatial " + this + " must be created before it is updated concurrently");
+
+        doUpdate(deltaSeconds, gameTimeSeconds);
     }
 
     public final void render() {
@@ -29,7 +49,13 @@ public abstract class AbstractSpatial implements Spatial {
 
         doRender();
 
-        OpenGLUtils.checkGLError("Rendering spatial " + this);
+        if (OpenGLUtils.isErrorContextNeeded()) OpenGLUtils.checkGLError("Rendering spatial " + this);
+    }
+
+    public final void submit(RenderQueue renderQueue) {
+        if (!isCreated) create();
+
+        doSubmit(renderQueue);
     }
 
 
@@ -38,7 +64,7 @@ public abstract class AbstractSpatial implements Spatial {
         if (isCreated) {
             doDelete();
 
-            OpenGLUtils.checkGLError("Deleting spatial " + this);
+            if (OpenGLUtils.isErrorContextNeeded()) OpenGLUtils.checkGLError("Deleting spatial " + this);
 
             isCreated = false;
         }
@@ -49,7 +75,15 @@ public abstract class AbstractSpatial implements Spatial {
     }
 
     protected abstract void doCreate();
+
+    /**
+     * Starts loading resources that doCreate will need.  Does nothing by default.
+     */
+    protected void doPreload() {
+    }
+
     protected abstract void doUpdate(double deltaSeconds, double gameTimeSeconds);
     protected abstract void doRender();
+    protected abstract void doSubmit(RenderQueue renderQueue);
     protected abstract void doDelete();
 }
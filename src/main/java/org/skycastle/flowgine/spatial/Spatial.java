@@ -1,5 +1,6 @@
 package org.skycastle.flowgine.spatial;
 
+import org.skycastle.flowgine.render.RenderQueue;
 import org.skycastle.flowgine.utils.Disposable;
 
 /**
@@ -24,8 +25,13 @@ public interface Spatial extends Disposable {
     /**
      * Render the object.
      */
-    // TODO: Possibly pass transformation matrix to allow node hierarchy
     public void render();
 
+    /**
+     * Submit the draw items of the object to a render queue, to be sorted and rendered together with other objects.
+     * @param renderQueue queue to submit to.
+     */
+    public void submit(RenderQueue renderQueue);
+
 
 }
@@ -1,9 +1,16 @@
 package org.skycastle.flowgine.spatial;
 
+import org.flowutils.Check;
 import org.skycastle.flowgine.FlowGine;
+import org.skycastle.flowgine.geometry.Bounds;
+import org.skycastle.flowgine.geometry.Vec3;
+import org.skycastle.flowgine.render.RenderQueue;
+import org.skycastle.flowgine.render.SortKey;
+import org.skycastle.flowgine.shape.LodGroup;
 import org.skycastle.flowgine.shape.Shape;
 import org.skycastle.flowgine.shader.Shader;
 import org.skycastle.flowgine.shader.ShaderRef;
+import org.skycastle.flowgine.shape.ShapeRef;
 import org.skycastle.flowgine.texture.Texture;
 
 import java.util.HashMap;
@@ -11,28 +18,211 @@ import java.util.List;
 import java.util.Map;
 
 /**
- *
+ * A shape rendered with a shader at some position.
  */
 public class SpatialShape extends AbstractSpatial {
 
     //private Map<String, Object> shapeParameters = new HashMap<String, Object>();
     private Map<String, Object> shaderParameters = new HashMap<String, Object>();
 
-    private String shapeRef; // Contains shape params
+    private ShapeRef shapeRef; // Contains shape params
     private ShaderRef shaderRef;
+    private final LodGroup lodGroup;
     private List<String> textureRefs;  // Contains texture params
 
     private Shape shape;
+    private Shape[] lodShapes;
+    private int lod = 0;
     private Shader shader;
     private List<Texture> textures;
 
+    private final Vec3 position = new Vec3();
+    private final float[] transform = new float[16];
+    private final Bounds localBounds = new Bounds();
+    private int layer = 0;
+    private boolean translucent = false;
+
+    private TransformHierarchy transformHierarchy = null;
+    private int transformNode = TransformHierarchy.NO_PARENT;
+
+    /**
+     * @param shapeRef shape to render.
+     * @param shaderRef shader to render the shape with.
+     */
+    public SpatialShape(ShapeRef shapeRef, ShaderRef shaderRef) {
+        Check.notNull(shapeRef, "shapeRef");
+        Check.notNull(shaderRef, "shaderRef");
+
+        this.shapeRef = shapeRef;
+        this.shaderRef = shaderRef;
+        lodGroup = null;
+    }
+
+    /**
+     * @param lodGroup levels of detail to render the shape with.  The most detailed level is used until a level
+     *                 is selected with setLod, e.g. by a LodSelector.
+     * @param shaderRef shader to render the shape with.
+     */
+    public SpatialShape(LodGroup lodGroup, ShaderRef shaderRef) {
+        Check.notNull(lodGroup, "lodGroup");
+        Check.notNull(shaderRef, "shaderRef");
+        if (lodGroup.getLevelCount() <= 0) throw new IllegalArgumentException("The lodGroup should have at least one level");
+
+        this.lodGroup = lodGroup;
+        this.shapeRef = lodGroup.getShapeRef(0);
+        this.shaderRef = shaderRef;
+    }
+
+    /**
+     * @return the levels of detail of the shape, or null if it has a single shape.
+     */
+    public LodGroup getLodGroup() {
+        return lodGroup;
+    }
+
+    /**
+     * @return the level of detail currently rendered, 0 being the most detailed.
+     */
+    public int getLod() {
+        return lod;
+    }
+
+    /**
+     * @param lod level of detail to render, 0 being the most detailed.
+     */
+    public void setLod(int lod) {
+        final int levelCount = lodGroup == null ? 1 : lodGroup.getLevelCount();
+        Check.under(lod, "lod", levelCount);
+
+        this.lod = lod;
+        if (lodShapes != null) shape = lodShapes[lod];
+    }
+
+    /**
+     * @return the shape currently rendered, or null if the spatial has not been created.
+     */
+    public Shape getShape() {
+        return shape;
+    }
+
+    /**
+     * @return the shader the shape is rendered with, or null if the spatial has not been created.
+     */
+    public Shader getShader() {
+        return shader;
+    }
+
+    /**
+     * @return the texture bound when rendering the shape, or null if it has none.
+     */
+    public Texture getTexture() {
+        return textures == null || textures.isEmpty() ? null : textures.get(0);
+    }
+
+    /**
+     * @return position of the shape.  Modifications to the returned vector move the shape.
+     */
+    public Vec3 getPosition() {
+        return position;
+    }
+
+    /**
+     * Places the shape at a node of a transform hierarchy.  The world transformation of the node is used instead of
+     * the position, and should be updated with the hierarchy before the shape is rendered or submitted.
+     *
+     * @param transformHierarchy hierarchy that the node is in, or null to use the position of the shape.
+     * @param transformNode id of the node.
+     */
+    public void setTransformNode(TransformHierarchy transformHierarchy, int transformNode) {
+        if (transformHierarchy != null && !transformHierarchy.isNode(transformNode)) {
+            throw new IllegalArgumentException("No node with id " + transformNode + " in the transform hierarchy");
+        }
+
+        this.transformHierarchy = transformHierarchy;
+        this.transformNode = transformNode;
+    }
+
+    /**
+     * @return the transform hierarchy that the shape is placed in, or null if the position of the shape is used.
+     */
+    public TransformHierarchy getTransformHierarchy() {
+        return transformHierarchy;
+    }
+
+    /**
+     * @return id of the node in the transform hierarchy that the shape is placed at.
+     */
+    public int getTransformNode() {
+        return transformNode;
+    }
+
+    /**
+     * Calculates the bounds of the shape in world space, from the bounds of the shape vertexes and the current
+     * position or transform node.  The shape must be created.
+     *
+     * @param out bounds to store the result in, or null to create new bounds.
+     * @return the world space bounds.
+     */
+    public Bounds getWorldBounds(Bounds out) {
+        if (out == null) out = new Bounds();
+        updateTransform();
+        return out.setTransformed(localBounds, getTransformArray(), getTransformOffset());
+    }
+
+    /**
+     * @return render layer of the shape, 0..15.  Lower layers are rendered first.
+     */
+    public int getLayer() {
+        return layer;
+    }
+
+    public void setLayer(int layer) {
+        Check.under(layer, "layer", SortKey.MAX_LAYER + 1);
+        this.layer = layer;
+    }
+
+    /**
+     * @return true if the shape is translucent, and should be rendered back to front after opaque shapes.
+     */
+    public boolean isTranslucent() {
+        return translucent;
+    }
+
+    public void setTranslucent(boolean translucent) {
+        this.translucent = translucent;
+    }
+
+    /**
+     * @return parameters applied to the shader when rendering the shape.  Modifications to the returned map are applied.
+     */
+    public Map<String, Object> getShaderParameters() {
+        return shaderParameters;
+    }
+
+    @Override protected void doPreload() {
+        FlowGine.shaderManager.preload(shaderRef);
+    }
 
     @Override protected void doCreate() {
 
-        // TODO: Load (and possibly generate) shape - pass parameters to shape manager in shapeRef
-        // Parameters could be in the shapeRef.  Parameters could be applied later as well and the shape re-generated, although it will
+        // Load (and possibly generate) shape - parameters are passed to shape manager in shapeRef
+        // Parameters could be applied later as well and the shape re-generated, although it will
         // affect all users of the same shapeRef.  Maybe have a getUniqueShape method.
         // One use case is many identical trees or similar, can use same vertex object.  On the other hand, many objects are unique.
+        if (lodGroup != null) {
+            lodShapes = new Shape[lodGroup.getLevelCount()];
+            for (int i = 0; i < lodShapes.length; i++) {
+                lodShapes[i] = FlowGine.shapeManager.get(lodGroup.getShapeRef(i));
+            }
+            shape = lodShapes[lod];
+
+            // The most detailed level bounds the coarser ones closely enough for culling and level selection
+            lodShapes[0].calculateBounds(localBounds);
+        }
+        else {
+            shape = FlowGine.shapeManager.get(shapeRef);
+            shape.calculateBounds(localBounds);
+        }
 
         // TODO: Load texture(s).  Possibly generate.  Parameters in textureRef.
         // Same applies as to shape manager above (runtime regenerate and re-uploading of texture possible
@@ -52,29 +242,75 @@ public class SpatialShape extends AbstractSpatial {
 
     @Override protected void doRender() {
 
-        // TODO: Do any projection
-
         // TODO: Do any instance specific scaling, rotation (and possibly mirroring), to make it easy to reuse the same vertex obj instance (e.g. tree, stone)
+        updateTransform();
 
         shader.begin();
         // Apply shader parameters (TODO: Somehow unapply ones that are not specified?)
         shader.setUniforms(shaderParameters);
+        if (shader.hasUniform(RenderQueue.MODEL_MATRIX_UNIFORM)) {
+            shader.setUniformMatrix4(RenderQueue.MODEL_MATRIX_UNIFORM, getTransformArray(), getTransformOffset());
+        }
 
         // TODO: Bind textures
 
-        // TODO: Bind VBO and index buffer
-
-        // TODO: Render triangles
+        // Render triangles
+        shape.render();
 
         shader.end();
     }
 
+    /**
+     * Copies the current world transformation of the shape, e.g. to a frame snapshot.
+     *
+     * @param out array to copy the 16 values of the column major transformation matrix to.
+     * @param offset index in the array to copy to.
+     */
+    public void copyTransform(float[] out, int offset) {
+        updateTransform();
+        System.arraycopy(getTransformArray(), getTransformOffset(), out, offset, 16);
+    }
+
+    @Override protected void doSubmit(RenderQueue renderQueue) {
+        updateTransform();
+
+        renderQueue.submit(layer, translucent, shader, shape, getTexture(), getTransformArray(), getTransformOffset(), shaderParameters);
+    }
+
     @Override protected void doDelete() {
-        // TODO: Release shape
         // TODO: Release textures
 
-        // Release shader using shader pool
+        // Release shape and shader using the managers
+        if (lodShapes != null) {
+            for (Shape lodShape : lodShapes) {
+                FlowGine.shapeManager.release(lodShape);
+            }
+            lodShapes = null;
+        }
+        else {
+            FlowGine.shapeManager.release(shape);
+        }
         FlowGine.shaderManager.release(shader);
 
     }
+
+    private float[] getTransformArray() {
+        return transformHierarchy != null ? transformHierarchy.getWorldTransforms() : transform;
+    }
+
+    private int getTransformOffset() {
+        return transformHierarchy != null ? transformHierarchy.getTransformOffset(transformNode) : 0;
+    }
+
+    private void updateTransform() {
+        if (transformHierarchy != null) return;
+
+        // Column major translation matrix
+        for (int i = 0; i < 16; i++) {
+            transform[i] = i % 5 == 0 ? 1 : 0;
+        }
+        transform[12] = position.x;
+        transform[13] = position.y;
+        transform[14] = position.z;
+    }
 }
@@ -0,0 +1,407 @@
+package org.skycastle.flowgine.spatial;
+
+/**
+ * Hierarchy of transformation nodes, where the world transformation of each node is the world transformation of its
+ * parent multiplied with the local transformation of the node.
+ * <p/>
+ * The local and world transformations of all nodes are stored as 4x4 column major matrices in two contiguous float
+ * arrays, 16 values per node starting at node * 16.  Nodes are referred to with integer ids, and ids of removed nodes
+ * are reused.
+ * <p/>
+ * Changing a local transformation marks the node dirty.  The update call then recomputes the world transformations of
+ * the dirty nodes and their descendants, visiting the nodes in an order where parents come before their children.
+ * Clean subtrees are left as they are, and no objects are allocated once the arrays have grown to fit the nodes.
+ * <p/>
+ * Not thread safe.
+ */
+public final class TransformHierarchy {
+
+    /**
+     * Parent id of root nodes.
+     */
+    public static final int NO_PARENT = -1;
+
+    /**
+     * Number of floats used by the transformation of one node.
+     */
+    public static final int MATRIX_SIZE = 16;
+
+    private static final int DEFAULT_CAPACITY = 256;
+    private static final int NONE = -1;
+
+    // Per node data, indexed by node id
+    private float[] localTransforms;
+    private float[] worldTransforms;
+    private int[] parents;
+    private int[] firstChildren;
+    private int[] nextSiblings;
+    private int[] previousSiblings;
+    private boolean[] used;
+    private boolean[] dirty;
+    private boolean[] changed;
+
+    private int nodeCapacity = 0;
+
+    // Ids below this have been allocated at some point, removed ids are kept in a free list
+    private int allocatedCount = 0;
+    private int[] freeIds;
+    private int freeCount = 0;
+    private int nodeCount = 0;
+
+    // Node ids with parents before children, rebuilt when the structure changes
+    private int[] order;
+    private int[] traversalStack;
+    private boolean orderValid = true;
+    private int orderLength = 0;
+
+    private boolean anyDirty = false;
+    private int lastUpdatedCount = 0;
+
+    public TransformHierarchy() {
+        this(DEFAULT_CAPACITY);
+    }
+
+    /**
+     * @param initialCapacity number of nodes to reserve space for.  Grows if more nodes are created.
+     */
+    public TransformHierarchy(int initialCapacity) {
+        allocate(Math.max(1, initialCapacity));
+    }
+
+    /**
+     * Creates a new node with an identity local transformation.
+     *
+     * @param parent id of the parent node, or NO_PARENT to create a root node.
+     * @return id of the created node.
+     */
+    public int createNode(int parent) {
+        if (parent != NO_PARENT) checkNode(parent);
+
+        final int node;
+        if (freeCount > 0) {
+            node = freeIds[--freeCount];
+        }
+        else {
+            if (allocatedCount >= nodeCapacity) allocate(nodeCapacity * 2);
+            node = allocatedCount++;
+        }
+
+        used[node] = true;
+        parents[node] = NO_PARENT;
+        firstChildren[node] = NONE;
+        nextSiblings[node] = NONE;
+        previousSiblings[node] = NONE;
+        setIdentity(localTransforms, node * MATRIX_SIZE);
+        setIdentity(worldTransforms, node * MATRIX_SIZE);
+        nodeCount++;
+
+        if (parent != NO_PARENT) link(node, parent);
+
+        // Nodes with new ids are created after their parents, so they can simply be added to the end of the order
+        if (orderValid && node == allocatedCount - 1 && orderLength < order.length) {
+            order[orderLength++] = node;
+        }
+        else {
+            orderValid = false;
+        }
+
+        markDirty(node);
+
+        return node;
+    }
+
+    /**
+     * Removes a node and all its descendants.
+     *
+     * @param node id of the node to remove.
+     */
+    public void removeNode(int node) {
+        checkNode(node);
+
+        unlink(node);
+
+        // Free the subtree, depth first without recursion
+        int stackSize = 0;
+        traversalStack[stackSize++] = node;
+        while (stackSize > 0) {
+            final int current = traversalStack[--stackSize];
+            for (int child = firstChildren[current]; child != NONE; child = nextSiblings[child]) {
+                traversalStack[stackSize++] = child;
+            }
+
+            used[current] = false;
+            dirty[current] = false;
+            parents[current] = NO_PARENT;
+            firstChildren[current] = NONE;
+            nextSiblings[current] = NONE;
+            previousSiblings[current] = NONE;
+            freeIds[freeCount++] = current;
+            nodeCount--;
+        }
+
+        orderValid = false;
+    }
+
+    /**
+     * Moves a node, along with its descendants, under another parent.
+     *
+     * @param node id of the node to move.
+     * @param parent id of the new parent, or NO_PARENT to make the node a root node.
+     * @throws IllegalArgumentException if the parent is the node itself or one of its descendants.
+     */
+    public void setParent(int node, int parent) {
+        checkNode(node);
+        if (parent != NO_PARENT) {
+            checkNode(parent);
+            for (int ancestor = parent; ancestor != NO_PARENT; ancestor = parents[ancestor]) {
+                if (ancestor == node) throw new IllegalArgumentException("Can not move node " + node + " under itself or its descendant " + parent);
+            }
+        }
+
+        if (parents[node] != parent) {
+            unlink(node);
+            if (parent != NO_PARENT) link(node, parent);
+            orderValid = false;
+            markDirty(node);
+        }
+    }
+
+    /**
+     * @return id of the parent of the node, or NO_PARENT if it is a root node.
+     */
+    public int getParent(int node) {
+        checkNode(node);
+        return parents[node];
+    }
+
+    /**
+     * @return true if the id refers to a node that has been created and not removed.
+     */
+    public boolean isNode(int node) {
+        return node >= 0 && node < allocatedCount && used[node];
+    }
+
+    /**
+     * @return number of nodes in the hierarchy.
+     */
+    public int getNodeCount() {
+        return nodeCount;
+    }
+
+    /**
+     * Sets the local transformation of a node, and marks it dirty.
+     *
+     * @param node id of the node.
+     * @param matrix array with the transformation matrix, in column major order.
+     * @param offset index of the first value of the matrix in the array.
+     */
+    public void setLocalTransform(int node, float[] matrix, int offset) {
+        checkNode(node);
+        System.arraycopy(matrix, offset, localTransforms, node * MATRIX_SIZE, MATRIX_SIZE);
+        markDirty(node);
+    }
+
+    /**
+     * Sets the local transformation of a node to a translation, and marks it dirty.
+     */
+    public void setLocalTranslation(int node, float x, float y, float z) {
+        checkNode(node);
+        final int offset = node * MATRIX_SIZE;
+        setIdentity(localTransforms, offset);
+        localTransforms[offset + 12] = x;
+        localTransforms[offset + 13] = y;
+        localTransforms[offset + 14] = z;
+        markDirty(node);
+    }
+
+    /**
+     * Marks a node as dirty, so that its world transformation and those of its descendants are recomputed in the next update.
+     * Call after modifying the local transformation array directly.
+     */
+    public void markDirty(int node) {
+        dirty[node] = true;
+        anyDirty = true;
+    }
+
+    /**
+     * @return the local transformations of all nodes, 16 values per node, starting at node * MATRIX_SIZE.
+     *         If values are modified directly, the node should be marked dirty with markDirty.
+     *         The array is replaced when the hierarchy grows, so it should not be held on to over node creation.
+     */
+    public float[] getLocalTransforms() {
+        return localTransforms;
+    }
+
+    /**
+     * @return the world transformations of all nodes, 16 values per node, starting at node * MATRIX_SIZE.
+     *         Up to date after update has been called.  Should not be modified.
+     *         The array is replaced when the hierarchy grows, so it should not be held on to over node creation.
+     */
+    public float[] getWorldTransforms() {
+        return worldTransforms;
+    }
+
+    /**
+     * @return index of the first value of the transformation of the node in the transformation arrays.
+     */
+    public int getTransformOffset(int node) {
+        return node * MATRIX_SIZE;
+    }
+
+    /**
+     * Recomputes the world transformations of dirty nodes and their descendants.
+     *
+     * @return number of world transformations that were recomputed.
+     */
+    public int update() {
+        lastUpdatedCount = 0;
+        if (!anyDirty) return 0;
+
+        if (!orderValid) rebuildOrder();
+
+        final float[] local = localTransforms;
+        final float[] world = worldTransforms;
+        int updatedCount = 0;
+        for (int i = 0; i < orderLength; i++) {
+            final int node = order[i];
+            final int parent = parents[node];
+
+            // Parents come before children in the order, so the changed flag of the parent is already up to date
+            final boolean nodeChanged = dirty[node] || (parent != NO_PARENT && changed[parent]);
+            changed[node] = nodeChanged;
+            if (nodeChanged) {
+                final int offset = node * MATRIX_SIZE;
+                if (parent == NO_PARENT) {
+                    System.arraycopy(local, offset, world, offset, MATRIX_SIZE);
+                }
+                else {
+                    multiply(world, parent * MATRIX_SIZE, local, offset, world, offset);
+                }
+                dirty[node] = false;
+                updatedCount++;
+            }
+        }
+
+        anyDirty = false;
+        lastUpdatedCount = updatedCount;
+        return updatedCount;
+    }
+
+    /**
+     * @return number of world transformations that were recomputed in the latest update.
+     */
+    public int getLastUpdatedCount() {
+        return lastUpdatedCount;
+    }
+
+    /**
+     * Multiplies two column major 4x4 matrices, out = a * b.  The output must not overlap with a,
+     * but may be the same as b.
+     */
+    public static void multiply(float[] a, int aOffset, float[] b, int bOffset, float[] out, int outOffset) {
+        final float a00 = a[aOffset],      a10 = a[aOffset + 1],  a20 = a[aOffset + 2],  a30 = a[aOffset + 3];
+        final float a01 = a[aOffset + 4],  a11 = a[aOffset + 5],  a21 = a[aOffset + 6],  a31 = a[aOffset + 7];
+        final float a02 = a[aOffset + 8],  a12 = a[aOffset + 9],  a22 = a[aOffset + 10], a32 = a[aOffset + 11];
+        final float a03 = a[aOffset + 12], a13 = a[aOffset + 13], a23 = a[aOffset + 14], a33 = a[aOffset + 15];
+
+        for (int column = 0; column < 4; column++) {
+            final int bc = bOffset + column * 4;
+            final float b0 = b[bc], b1 = b[bc + 1], b2 = b[bc + 2], b3 = b[bc + 3];
+
+            final int oc = outOffset + column * 4;
+            out[oc]     = a00 * b0 + a01 * b1 + a02 * b2 + a03 * b3;
+            out[oc + 1] = a10 * b0 + a11 * b1 + a12 * b2 + a13 * b3;
+            out[oc + 2] = a20 * b0 + a21 * b1 + a22 * b2 + a23 * b3;
+            out[oc + 3] = a30 * b0 + a31 * b1 + a32 * b2 + a33 * b3;
+        }
+    }
+
+    private void rebuildOrder() {
+        // Depth first from each root, so that every node comes after its parent
+        orderLength = 0;
+        for (int root = 0; root < allocatedCount; root++) {
+            if (used[root] && parents[root] == NO_PARENT) {
+                int stackSize = 0;
+                traversalStack[stackSize++] = root;
+                while (stackSize > 0) {
+                    final int node = traversalStack[--stackSize];
+                    order[orderLength++] = node;
+                    for (int child = firstChildren[node]; child != NONE; child = nextSiblings[child]) {
+                        traversalStack[stackSize++] = child;
+                    }
+                }
+            }
+        }
+
+        orderValid = true;
+    }
+
+    private void link(int node, int parent) {
+        parents[node] = parent;
+        previousSiblings[node] = NONE;
+        nextSiblings[node] = firstChildren[parent];
+        if (firstChildren[parent] != NONE) previousSiblings[firstChildren[parent]] = node;
+        firstChildren[parent] = node;
+    }
+
+    private void unlink(int node) {
+        final int parent = parents[node];
+        if (parent == NO_PARENT) return;
+
+        final int previous = previousSiblings[node];
+        final int next = nextSiblings[node];
+        if (previous != NONE) nextSiblings[previous] = next;
+        else firstChildren[parent] = next;
+        if (next != NONE) previousSiblings[next] = previous;
+
+        parents[node] = NO_PARENT;
+        nextSiblings[node] = NONE;
+        previousSiblings[node] = NONE;
+    }
+
+    private void checkNode(int node) {
+        if (!isNode(node)) throw new IllegalArgumentException("No node with id " + node + " exists");
+    }
+
+    private static void setIdentity(float[] matrix, int offset) {
+        for (int i = 0; i < MATRIX_SIZE; i++) {
+            matrix[offset + i] = i % 5 == 0 ? 1 : 0;
+        }
+    }
+
+    private void allocate(int capacity) {
+        localTransforms = copyOf(localTransforms, capacity * MATRIX_SIZE);
+        worldTransforms = copyOf(worldTransforms, capacity * MATRIX_SIZE);
+        parents = copyOf(parents, capacity);
+        firstChildren = copyOf(firstChildren, capacity);
+        nextSiblings = copyOf(nextSiblings, capacity);
+        previousSiblings = copyOf(previousSiblings, capacity);
+        freeIds = copyOf(freeIds, capacity);
+        order = copyOf(order, capacity);
+        traversalStack = new int[capacity];
+        used = copyOf(used, capacity);
+        dirty = copyOf(dirty, capacity);
+        changed = new boolean[capacity];
+
+        nodeCapacity = capacity;
+    }
+
+    private static float[] copyOf(float[] array, int capacity) {
+        final float[] copy = new float[capacity];
+        if (array != null) System.arraycopy(array, 0, copy, 0, array.length);
+        return copy;
+    }
+
+    private static int[] copyOf(int[] array, int capacity) {
+        final int[] copy = new int[capacity];
+        if (array != null) System.arraycopy(array, 0, copy, 0, array.length);
+        return copy;
+    }
+
+    private static boolean[] copyOf(boolean[] array, int capacity) {
+        final boolean[] copy = new boolean[capacity];
+        if (array != null) System.arraycopy(array, 0, copy, 0, array.length);
+        return copy;
+    }
+
+}
@@ -0,0 +1,93 @@
+package org.skycastle.flowgine.spatial;
+
+import org.flowutils.Check;
+
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.Set;
+
+/**
+ * A step of the update of spatials, run by the UpdateScheduler.
+ * <p/>
+ * Each phase declares the kinds of state (e.g. "transform", "animation", "ai") that its updates read and write.
+ * During a phase each spatial may only write its own state of the declared kinds, and read state of other spatials
+ * that was written in earlier phases.  A parallel phase updates its spatials at the same time on several threads,
+ * so it may not read any kind of state it writes, as it could be seeing another spatial half way through its update.
+ * Phases are run one after another, and all updates of a phase finish before the next phase starts.
+ */
+public final class UpdatePhase {
+
+    private final String name;
+    private final boolean parallel;
+    private final Set<String> reads;
+    private final Set<String> writes;
+
+    private long lastDurationNanos = 0;
+
+    /**
+     * @param name name of the phase, for debugging and timing reports.
+     * @param parallel true if the spatials of the phase can be updated on several threads at the same time.
+     * @param reads kinds of state that updates in this phase read from other spatials.
+     * @param writes kinds of state that updates in this phase write to their own spatial.
+     * @throws IllegalArgumentException if a parallel phase both reads and writes the same kind of state.
+     */
+    public UpdatePhase(String name, boolean parallel, Set<String> reads, Set<String> writes) {
+        Check.nonEmptyString(name, "name");
+        Check.notNull(reads, "reads");
+        Check.notNull(writes, "writes");
+
+        if (parallel) {
+            for (String kind : writes) {
+                if (reads.contains(kind)) {
+                    throw new IllegalArgumentException("The parallel phase '" + name + "' both reads and writes '" + kind +
+                                                       "', which would race between spatials");
+                }
+            }
+        }
+
+        this.name = name;
+        this.parallel = parallel;
+        this.reads = Collections.unmodifiableSet(new LinkedHashSet<String>(reads));
+        this.writes = Collections.unmodifiableSet(new LinkedHashSet<String>(writes));
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * @return true if the spatials of the phase are updated on several threads at the same time.
+     */
+    public boolean isParallel() {
+        return parallel;
+    }
+
+    /**
+     * @return kinds of state that updates in this phase read from other spatials.
+     */
+    public Set<String> getReads() {
+        return reads;
+    }
+
+    /**
+     * @return kinds of state that updates in this phase write to their own spatial.
+     */
+    public Set<String> getWrites() {
+        return writes;
+    }
+
+    /**
+     * @return time the phase took in the latest update, in nanoseconds.
+     */
+    public long getLastDurationNanos() {
+        return lastDurationNanos;
+    }
+
+    void setLastDurationNanos(long lastDurationNanos) {
+        this.lastDurationNanos = lastDurationNanos;
+    }
+
+    @Override public String toString() {
+        return "UpdatePhase{" + name + (parallel ? ", parallel" : "") + ", reads=" + reads + ", writes=" + writes + '}';
+    }
+}
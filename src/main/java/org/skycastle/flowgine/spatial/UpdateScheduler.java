@@ -0,0 +1,237 @@
+package org.skycastle.flowgine.spatial;
+
+import org.flowutils.Check;
+import org.skycastle.flowgine.utils.Disposable;
+
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Updates spatials in phases, splitting the spatials of parallel phases into batches that are updated on a pool
+ * of worker threads.
+ * <p/>
+ * The worker threads only call doUpdate, and do no OpenGL calls or error checks, so updates in parallel phases
+ * must not use OpenGL.  Spatials that have not been created yet are created on the thread calling update,
+ * which should be the OpenGL thread.  See UpdatePhase for the rules on what updates in a phase may read and write.
+ */
+public final class UpdateScheduler implements Disposable {
+
+    private static final int DEFAULT_BATCH_SIZE = 256;
+
+    private final ExecutorService workers;
+    private final int batchSize;
+
+    private final Map<UpdatePhase, List<AbstractSpatial>> phaseSpatials = new LinkedHashMap<UpdatePhase, List<AbstractSpatial>>();
+    private final Map<AbstractSpatial, UpdatePhase> spatialPhases = new IdentityHashMap<AbstractSpatial, UpdatePhase>();
+    private final List<AbstractSpatial> uncreatedSpatials = new ArrayList<AbstractSpatial>();
+    private final List<UpdateBatch> batches = new ArrayList<UpdateBatch>();
+
+    private long lastUpdateNanos = 0;
+
+    /**
+     * Creates a scheduler with one worker thread per available processor.
+     */
+    public UpdateScheduler() {
+        this(Runtime.getRuntime().availableProcessors(), DEFAULT_BATCH_SIZE);
+    }
+
+    /**
+     * @param threadCount number of worker threads.
+     * @param batchSize number of spatials updated in one batch by a worker.
+     */
+    public UpdateScheduler(int threadCount, int batchSize) {
+        if (threadCount < 1) throw new IllegalArgumentException("threadCount should be at least 1, but was " + threadCount);
+        if (batchSize < 1) throw new IllegalArgumentException("batchSize should be at least 1, but was " + batchSize);
+
+        this.batchSize = batchSize;
+        workers = Executors.newFixedThreadPool(threadCount, new ThreadFactory() {
+            public Thread newThread(Runnable r) {
+                final Thread thread = new Thread(r, "SpatialUpdater");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+    }
+
+    /**
+     * Adds a phase.  Phases are run in the order they were added.
+     */
+    public void addPhase(UpdatePhase phase) {
+        Check.notNull(phase, "phase");
+        if (phaseSpatials.containsKey(phase)) throw new IllegalArgumentException("The phase " + phase + " was already added");
+
+        phaseSpatials.put(phase, new ArrayList<AbstractSpatial>());
+    }
+
+    /**
+     * @return the phases, in the order they are run.
+     */
+    public List<UpdatePhase> getPhases() {
+        return new ArrayList<UpdatePhase>(phaseSpatials.keySet());
+    }
+
+    /**
+     * Adds a spatial to be updated in the specified phase.
+     */
+    public void add(AbstractSpatial spatial, UpdatePhase phase) {
+        Check.notNull(spatial, "spatial");
+        final List<AbstractSpatial> spatials = phaseSpatials.get(phase);
+        if (spatials == null) throw new IllegalArgumentException("The phase " + phase + " has not been added");
+        if (spatialPhases.containsKey(spatial)) throw new IllegalArgumentException("The spatial " + spatial + " was already added");
+
+        spatials.add(spatial);
+        spatialPhases.put(spatial, phase);
+        if (!spatial.isCreated()) uncreatedSpatials.add(spatial);
+    }
+
+    /**
+     * Removes a spatial added earlier.
+     */
+    public void remove(AbstractSpatial spatial) {
+        final UpdatePhase phase = spatialPhases.remove(spatial);
+        if (phase == null) throw new IllegalArgumentException("The spatial " + spatial + " has not been added");
+
+        phaseSpatials.get(phase).remove(spatial);
+        uncreatedSpatials.remove(spatial);
+    }
+
+    /**
+     * Runs all phases.  Must be called from the OpenGL thread if any spatials have not been created yet.
+     *
+     * @param deltaSeconds seconds since last update call.
+     * @param gameTimeSeconds total game time so far in seconds.
+     */
+    public void update(double deltaSeconds, double gameTimeSeconds) {
+        final long startTime = System.nanoTime();
+
+        // Create new spatials here, as creation uploads shapes and compiles shaders.
+        // Preloading them all first lets their shaders load and compile in parallel.
+        for (AbstractSpatial spatial : uncreatedSpatials) {
+            spatial.preload();
+        }
+        for (AbstractSpatial spatial : uncreatedSpatials) {
+            spatial.create();
+        }
+        uncreatedSpatials.clear();
+
+        for (Map.Entry<UpdatePhase, List<AbstractSpatial>> entry : phaseSpatials.entrySet()) {
+            final UpdatePhase phase = entry.getKey();
+            final List<AbstractSpatial> spatials = entry.getValue();
+            final long phaseStartTime = System.nanoTime();
+
+            if (phase.isParallel() && spatials.size() > batchSize) {
+                updateInParallel(spatials, deltaSeconds, gameTimeSeconds);
+            }
+            else {
+                updateRange(spatials, 0, spatials.size(), deltaSeconds, gameTimeSeconds);
+            }
+
+            phase.setLastDurationNanos(System.nanoTime() - phaseStartTime);
+        }
+
+        lastUpdateNanos = System.nanoTime() - startTime;
+    }
+
+    /**
+     * @return time the latest update took, in nanoseconds, including creation of new spatials.
+     */
+    public long getLastUpdateNanos() {
+        return lastUpdateNanos;
+    }
+
+    /**
+     * @return a description of the time taken by each phase in the latest update.
+     */
+    public String getTimingReport() {
+        final StringBuilder report = new StringBuilder();
+        for (Map.Entry<UpdatePhase, List<AbstractSpatial>> entry : phaseSpatials.entrySet()) {
+            final UpdatePhase phase = entry.getKey();
+            report.append(phase.getName())
+                  .append(": ")
+                  .append(phase.getLastDurationNanos() / 1000000.0)
+                  .append(" ms for ")
+                  .append(entry.getValue().size())
+                  .append(" spatials\n");
+        }
+        report.append("total: ").append(lastUpdateNanos / 1000000.0).append(" ms\n");
+        return report.toString();
+    }
+
+    /**
+     * Stops the worker threads.
+     */
+    public void dispose() {
+        workers.shutdown();
+    }
+
+    private void updateInParallel(List<AbstractSpatial> spatials, double deltaSeconds, double gameTimeSeconds) {
+        final int batchCount = (spatials.size() + batchSize - 1) / batchSize;
+
+        // Reuse the batch objects between phases and frames
+        while (batches.size() < batchCount) {
+            batches.add(new UpdateBatch());
+        }
+        final List<UpdateBatch> phaseBatches = batches.subList(0, batchCount);
+        for (int i = 0; i < batchCount; i++) {
+            final int start = i * batchSize;
+            phaseBatches.get(i).set(spatials, start, Math.min(start + batchSize, spatials.size()), deltaSeconds, gameTimeSeconds);
+        }
+
+        try {
+            final List<Future<Object>> results = workers.invokeAll(phaseBatches);
+            for (Future<Object> result : results) {
+                result.get();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while waiting for spatial updates", e);
+        } catch (ExecutionException e) {
+            throw new IllegalStateException("Problem when updating spatials: " + e.getCause().getMessage(), e.getCause());
+        } finally {
+            for (UpdateBatch batch : phaseBatches) {
+                batch.clear();
+            }
+        }
+    }
+
+    private static void updateRange(List<AbstractSpatial> spatials, int start, int end,
+                                    double deltaSeconds, double gameTimeSeconds) {
+        for (int i = start; i < end; i++) {
+            spatials.get(i).updateConcurrently(deltaSeconds, gameTimeSeconds);
+        }
+    }
+
+    private static final class UpdateBatch implements Callable<Object> {
+        private List<AbstractSpatial> spatials;
+        private int start;
+        private int end;
+        private double deltaSeconds;
+        private double gameTimeSeconds;
+
+        void set(List<AbstractSpatial> spatials, int start, int end, double deltaSeconds, double gameTimeSeconds) {
+            this.spatials = spatials;
+            this.start = start;
+            this.end = end;
+            this.deltaSeconds = deltaSeconds;
+            this.gameTimeSeconds = gameTimeSeconds;
+        }
+
+        void clear() {
+            spatials = null;
+        }
+
+        public Object call() throws Exception {
+            updateRange(spatials, start, end, deltaSeconds, gameTimeSeconds);
+            return null;
+        }
+    }
+}
@@ -0,0 +1,17 @@
+package org.skycastle.flowgine.terrain;
+
+/**
+ * Height of the ground at each point of the horizontal plane.
+ * <p/>
+ * May be sampled from several threads at the same time, e.g. when terrain chunks are meshed in the background.
+ */
+public interface Heightfield {
+
+    /**
+     * @param x world x coordinate.
+     * @param z world z coordinate.
+     * @return height (y coordinate) of the ground at the specified point.
+     */
+    float getHeight(float x, float z);
+
+}
@@ -0,0 +1,326 @@
+package org.skycastle.flowgine.terrain;
+
+import org.lwjgl.BufferUtils;
+import org.lwjgl.opengl.GL11;
+import org.lwjgl.opengl.GL15;
+import org.skycastle.flowgine.FlowGine;
+import org.skycastle.flowgine.geometry.Vec3;
+import org.skycastle.flowgine.render.RenderBackend;
+import org.skycastle.flowgine.render.RenderQueue;
+import org.skycastle.flowgine.shader.Shader;
+import org.skycastle.flowgine.utils.Disposable;
+import org.skycastle.flowgine.utils.OpenGLUtils;
+
+import java.nio.FloatBuffer;
+import java.nio.IntBuffer;
+
+/**
+ * A rectangular area of heightfield terrain, divided into chunks that are rendered at different levels of detail
+ * depending on their distance from the camera.
+ * <p/>
+ * The indexes of all levels and stitching variants are uploaded once into one index buffer shared by all chunks,
+ * and each chunk only has its own vertex buffer.  The levels of neighbouring chunks are limited to differ by at most
+ * one, and chunks next to coarser neighbours are drawn with stitched borders so that there are no cracks.
+ * <p/>
+ * Usage: create from the OpenGL thread, then each frame update with the camera position and render.
+ */
+public final class Terrain implements Disposable {
+
+    private static final int FLOAT_BYTES = 4;
+    private static final int INDEX_BYTES = 4;
+
+    private final Heightfield heightfield;
+    private final TerrainMesher mesher;
+    private final int chunksX;
+    private final int chunksZ;
+    private final float originX;
+    private final float originZ;
+    private final float lodDistance;
+
+    // Per chunk, by z * chunksX + x
+    private final int[] levels;
+    private final int[] stitches;
+    private final int[] vertexArrayHandles;
+    private final int[] vertexBufferHandles;
+    private final float[] transforms;
+
+    private RenderBackend backend;
+    private int indexBufferHandle = 0;
+    private boolean created = false;
+
+    // Statistics
+    private long meshTimeNanos = 0;
+    private final int[] levelChunkCounts;
+    private final long[] levelTriangleCounts;
+
+    /**
+     * @param heightfield heightfield to mesh.
+     * @param mesher mesher that determines the resolution and size of the chunks.
+     * @param chunksX number of chunks along the x axis.
+     * @param chunksZ number of chunks along the z axis.
+     * @param originX world x coordinate of the low x edge of the terrain.
+     * @param originZ world z coordinate of the low z edge of the terrain.
+     * @param lodDistance distance from the camera at which chunks switch to level 1.  Each following level starts at
+     *                    double the distance of the previous one.
+     */
+    public Terrain(Heightfield heightfield, TerrainMesher mesher, int chunksX, int chunksZ, float originX, float originZ, float lodDistance) {
+        if (heightfield == null) throw new IllegalArgumentException("heightfield should not be null");
+        if (mesher == null) throw new IllegalArgumentException("mesher should not be null");
+        if (chunksX < 1 || chunksZ < 1) throw new IllegalArgumentException("There should be at least one chunk along each axis");
+        if (lodDistance <= 0) throw new IllegalArgumentException("lodDistance should be positive, but was " + lodDistance);
+
+        this.heightfield = heightfield;
+        this.mesher = mesher;
+        this.chunksX = chunksX;
+        this.chunksZ = chunksZ;
+        this.originX = originX;
+        this.originZ = originZ;
+        this.lodDistance = lodDistance;
+
+        final int chunkCount = chunksX * chunksZ;
+        levels = new int[chunkCount];
+        stitches = new int[chunkCount];
+        vertexArrayHandles = new int[chunkCount];
+        vertexBufferHandles = new int[chunkCount];
+        transforms = new float[chunkCount * 16];
+        levelChunkCounts = new int[mesher.getLevelCount()];
+        levelTriangleCounts = new long[mesher.getLevelCount()];
+
+        for (int z = 0; z < chunksZ; z++) {
+            for (int x = 0; x < chunksX; x++) {
+                final int t = (z * chunksX + x) * 16;
+                transforms[t] = 1;
+                transforms[t + 5] = 1;
+                transforms[t + 10] = 1;
+                transforms[t + 15] = 1;
+                transforms[t + 12] = chunkOriginX(x);
+                transforms[t + 14] = chunkOriginZ(z);
+            }
+        }
+    }
+
+    /**
+     * Meshes all chunks and uploads them and the shared indexes to the graphics card.  Must be called from the OpenGL thread.
+     */
+    public void create() {
+        if (created) return;
+
+        backend = FlowGine.renderBackend;
+
+        // Shared indexes
+        final int[] indexes = mesher.getIndexes();
+        final IntBuffer indexData = BufferUtils.createIntBuffer(indexes.length);
+        indexData.put(indexes).flip();
+        indexBufferHandle = backend.genBuffer();
+        backend.bindBuffer(GL15.GL_ELEMENT_ARRAY_BUFFER, indexBufferHandle);
+        backend.bufferData(GL15.GL_ELEMENT_ARRAY_BUFFER, indexData, GL15.GL_STATIC_DRAW);
+
+        // Chunk vertexes
+        final long startTime = System.nanoTime();
+        final float[] vertexes = new float[mesher.getVertexDataSize()];
+        final FloatBuffer vertexData = BufferUtils.createFloatBuffer(vertexes.length);
+        for (int z = 0; z < chunksZ; z++) {
+            for (int x = 0; x < chunksX; x++) {
+                mesher.meshVertices(heightfield, chunkOriginX(x), chunkOriginZ(z), vertexes);
+                vertexData.clear();
+                vertexData.put(vertexes).flip();
+                upload(z * chunksX + x, vertexData);
+            }
+        }
+        meshTimeNanos = System.nanoTime() - startTime;
+
+        backend.bindVertexArray(0);
+        backend.bindBuffer(GL15.GL_ARRAY_BUFFER, 0);
+        backend.bindBuffer(GL15.GL_ELEMENT_ARRAY_BUFFER, 0);
+
+        if (OpenGLUtils.isErrorContextNeeded()) OpenGLUtils.checkGLError("Creating terrain");
+
+        created = true;
+    }
+
+    /**
+     * Selects the levels of detail of the chunks from their distance to the camera, and the stitching of their borders.
+     */
+    public void update(Vec3 cameraPosition) {
+        final int lastLevel = mesher.getLevelCount() - 1;
+        final float halfChunk = 0.5f * mesher.getChunkSize();
+
+        // Level by distance to the chunk center, ignoring height
+        for (int z = 0; z < chunksZ; z++) {
+            for (int x = 0; x < chunksX; x++) {
+                final float dx = chunkOriginX(x) + halfChunk - cameraPosition.x;
+                final float dz = chunkOriginZ(z) + halfChunk - cameraPosition.z;
+                final float distance = (float) Math.sqrt(dx * dx + dz * dz) - halfChunk;
+
+                int level = 0;
+                float levelDistance = lodDistance;
+                while (level < lastLevel && distance >= levelDistance) {
+                    level++;
+                    levelDistance *= 2;
+                }
+                levels[z * chunksX + x] = level;
+            }
+        }
+
+        // Make neighbouring levels differ by at most one, by refining chunks next to much finer ones
+        boolean changed = true;
+        while (changed) {
+            changed = false;
+            for (int z = 0; z < chunksZ; z++) {
+                for (int x = 0; x < chunksX; x++) {
+                    final int chunk = z * chunksX + x;
+                    int maxLevel = levels[chunk];
+                    if (x > 0) maxLevel = Math.min(maxLevel, levels[chunk - 1] + 1);
+                    if (x < chunksX - 1) maxLevel = Math.min(maxLevel, levels[chunk + 1] + 1);
+                    if (z > 0) maxLevel = Math.min(maxLevel, levels[chunk - chunksX] + 1);
+                    if (z < chunksZ - 1) maxLevel = Math.min(maxLevel, levels[chunk + chunksX] + 1);
+                    if (maxLevel < levels[chunk]) {
+                        levels[chunk] = maxLevel;
+                        changed = true;
+                    }
+                }
+            }
+        }
+
+        // Stitch borders towards coarser neighbours
+        for (int z = 0; z < chunksZ; z++) {
+            for (int x = 0; x < chunksX; x++) {
+                final int chunk = z * chunksX + x;
+                final int level = levels[chunk];
+                int stitch = 0;
+                if (z > 0 && levels[chunk - chunksX] > level) stitch |= TerrainMesher.STITCH_NORTH;
+                if (x < chunksX - 1 && levels[chunk + 1] > level) stitch |= TerrainMesher.STITCH_EAST;
+                if (z < chunksZ - 1 && levels[chunk + chunksX] > level) stitch |= TerrainMesher.STITCH_SOUTH;
+                if (x > 0 && levels[chunk - 1] > level) stitch |= TerrainMesher.STITCH_WEST;
+                stitches[chunk] = stitch;
+            }
+        }
+    }
+
+    /**
+     * Renders the chunks with the specified shader at their selected levels of detail.  Creates the terrain first if needed.
+     * Must be called from the OpenGL thread.
+     */
+    public void render(Shader shader) {
+        if (!created) create();
+
+        for (int i = 0; i < levelChunkCounts.length; i++) {
+            levelChunkCounts[i] = 0;
+            levelTriangleCounts[i] = 0;
+        }
+
+        shader.begin();
+        final boolean hasModelMatrix = shader.hasUniform(RenderQueue.MODEL_MATRIX_UNIFORM);
+
+        for (int chunk = 0; chunk < levels.length; chunk++) {
+            final int level = levels[chunk];
+            final int stitch = stitches[chunk];
+            final int indexCount = mesher.getIndexCount(level, stitch);
+
+            if (hasModelMatrix) shader.setUniformMatrix4(RenderQueue.MODEL_MATRIX_UNIFORM, transforms, chunk * 16);
+            backend.bindVertexArray(vertexArrayHandles[chunk]);
+            backend.drawElements(GL11.GL_TRIANGLES, indexCount, GL11.GL_UNSIGNED_INT,
+                                 (long) mesher.getIndexOffset(level, stitch) * INDEX_BYTES);
+
+            levelChunkCounts[level]++;
+            levelTriangleCounts[level] += indexCount / 3;
+        }
+
+        backend.bindVertexArray(0);
+        shader.end();
+
+        if (OpenGLUtils.isErrorContextNeeded()) OpenGLUtils.checkGLError("Rendering terrain");
+    }
+
+    /**
+     * @return selected level of detail of a chunk.
+     */
+    public int getLevel(int chunkX, int chunkZ) {
+        return levels[chunkIndex(chunkX, chunkZ)];
+    }
+
+    /**
+     * @return stitching mask of a chunk, a combination of the TerrainMesher.STITCH_ flags.
+     */
+    public int getStitch(int chunkX, int chunkZ) {
+        return stitches[chunkIndex(chunkX, chunkZ)];
+    }
+
+    /**
+     * @return number of chunks rendered at a level in the latest render.
+     */
+    public int getChunkCount(int level) {
+        return levelChunkCounts[level];
+    }
+
+    /**
+     * @return number of triangles rendered at a level in the latest render.
+     */
+    public long getTriangleCount(int level) {
+        return levelTriangleCounts[level];
+    }
+
+    /**
+     * @return time it took to mesh the chunks when the terrain was created, in nanoseconds, excluding the uploads.
+     */
+    public long getMeshTimeNanos() {
+        return meshTimeNanos;
+    }
+
+    public TerrainMesher getMesher() {
+        return mesher;
+    }
+
+    public void dispose() {
+        if (created) {
+            for (int chunk = 0; chunk < levels.length; chunk++) {
+                backend.deleteVertexArray(vertexArrayHandles[chunk]);
+                backend.deleteBuffer(vertexBufferHandles[chunk]);
+                vertexArrayHandles[chunk] = 0;
+                vertexBufferHandles[chunk] = 0;
+            }
+            backend.deleteBuffer(indexBufferHandle);
+            indexBufferHandle = 0;
+
+            created = false;
+        }
+    }
+
+    private void upload(int chunk, FloatBuffer vertexData) {
+        final int stride = TerrainMesher.VERTEX_SIZE * FLOAT_BYTES;
+
+        vertexArrayHandles[chunk] = backend.genVertexArray();
+        backend.bindVertexArray(vertexArrayHandles[chunk]);
+
+        vertexBufferHandles[chunk] = backend.genBuffer();
+        backend.bindBuffer(GL15.GL_ARRAY_BUFFER, vertexBufferHandles[chunk]);
+        backend.bufferData(GL15.GL_ARRAY_BUFFER, vertexData, GL15.GL_STATIC_DRAW);
+
+        // Same attribute layout as Shape
+        backend.vertexAttribPointer(0, 3, GL11.GL_FLOAT, false, stride, 0);
+        backend.vertexAttribPointer(1, 3, GL11.GL_FLOAT, false, stride, 3 * FLOAT_BYTES);
+        backend.vertexAttribPointer(2, 2, GL11.GL_FLOAT, false, stride, 6 * FLOAT_BYTES);
+        backend.vertexAttribPointer(3, 4, GL11.GL_FLOAT, false, stride, 8 * FLOAT_BYTES);
+        for (int i = 0; i < 4; i++) {
+            backend.enableVertexAttribArray(i);
+        }
+
+        // The shared index buffer becomes part of the vertex array of every chunk
+        backend.bindBuffer(GL15.GL_ELEMENT_ARRAY_BUFFER, indexBufferHandle);
+    }
+
+    private int chunkIndex(int chunkX, int chunkZ) {
+        if (chunkX < 0 || chunkX >= chunksX || chunkZ < 0 || chunkZ >= chunksZ) {
+            throw new IllegalArgumentException("No chunk at " + chunkX + ", " + chunkZ);
+        }
+        return chunkZ * chunksX + chunkX;
+    }
+
+    private float chunkOriginX(int chunkX) {
+        return originX + chunkX * mesher.getChunkSize();
+    }
+
+    private float chunkOriginZ(int chunkZ) {
+        return originZ + chunkZ * mesher.getChunkSize();
+    }
+}
@@ -0,0 +1,289 @@
+package org.skycastle.flowgine.terrain;
+
+import org.skycastle.flowgine.geometry.Col4;
+import org.skycastle.flowgine.geometry.Vec2;
+import org.skycastle.flowgine.geometry.Vec3;
+import org.skycastle.flowgine.shape.Shape;
+
+/**
+ * Turns square chunks of a heightfield into meshes with geomipmapped levels of detail.
+ * <p/>
+ * A chunk is a grid of quadsPerSide x quadsPerSide quads.  Its vertexes are always sampled at full resolution, and the
+ * levels of detail only differ in their indexes: level l uses every 2^l:th vertex.  Because of this the indexes of a
+ * level are the same for every chunk, and are generated once for all chunks into one shared index array.
+ * <p/>
+ * Neighbouring chunks may differ by at most one level.  To avoid cracks where a chunk borders a coarser neighbour,
+ * the border is stitched: the vertexes of the border that the coarser neighbour skips are snapped to the previous
+ * vertex it uses, and the resulting degenerate triangles are left out.  There are 16 stitching variants of each level,
+ * one for each combination of coarser neighbours, selected with a mask of the STITCH_ flags.
+ * <p/>
+ * The vertex data uses the same interleaved layout as Shape: position, normal, texture position and color,
+ * so the same shaders can be used.  Meshing only uses primitive arrays, and may be done on any thread.
+ */
+public final class TerrainMesher {
+
+    /**
+     * Stitch flag for a coarser neighbour at the low z side of the chunk.
+     */
+    public static final int STITCH_NORTH = 1;
+
+    /**
+     * Stitch flag for a coarser neighbour at the high x side of the chunk.
+     */
+    public static final int STITCH_EAST = 2;
+
+    /**
+     * Stitch flag for a coarser neighbour at the high z side of the chunk.
+     */
+    public static final int STITCH_SOUTH = 4;
+
+    /**
+     * Stitch flag for a coarser neighbour at the low x side of the chunk.
+     */
+    public static final int STITCH_WEST = 8;
+
+    /**
+     * Number of stitching variants of each level.
+     */
+    public static final int STITCH_VARIANTS = 16;
+
+    /**
+     * Number of floats per vertex: position (3), normal (3), texture position (2) and color (4).
+     */
+    public static final int VERTEX_SIZE = 12;
+
+    private final int quadsPerSide;
+    private final int verticesPerSide;
+    private final int levelCount;
+    private final float chunkSize;
+    private final float quadSize;
+
+    private final int[] indexes;
+    private final int[] variantOffsets;
+    private final int[] variantCounts;
+
+    /**
+     * @param quadsPerSide number of quads along each side of a chunk at the most detailed level.  Must be a power of two.
+     * @param chunkSize size of a chunk along the x and z axis in world units.
+     */
+    public TerrainMesher(int quadsPerSide, float chunkSize) {
+        if (quadsPerSide < 1 || Integer.bitCount(quadsPerSide) != 1) {
+            throw new IllegalArgumentException("quadsPerSide should be a positive power of two, but was " + quadsPerSide);
+        }
+        if (chunkSize <= 0) throw new IllegalArgumentException("chunkSize should be positive, but was " + chunkSize);
+
+        this.quadsPerSide = quadsPerSide;
+        this.chunkSize = chunkSize;
+        verticesPerSide = quadsPerSide + 1;
+        quadSize = chunkSize / quadsPerSide;
+        levelCount = Integer.numberOfTrailingZeros(quadsPerSide) + 1;
+
+        // Generate the indexes of all levels and stitching variants
+        variantOffsets = new int[levelCount * STITCH_VARIANTS];
+        variantCounts = new int[levelCount * STITCH_VARIANTS];
+        int total = 0;
+        for (int level = 0; level < levelCount; level++) {
+            final int quads = quadsPerSide >> level;
+            total += STITCH_VARIANTS * quads * quads * 6;
+        }
+        final int[] allIndexes = new int[total];
+        int count = 0;
+        for (int level = 0; level < levelCount; level++) {
+            for (int stitch = 0; stitch < STITCH_VARIANTS; stitch++) {
+                final int variant = level * STITCH_VARIANTS + stitch;
+                variantOffsets[variant] = count;
+                count = generateIndexes(level, stitch, allIndexes, count);
+                variantCounts[variant] = count - variantOffsets[variant];
+            }
+        }
+
+        // Leave out the room reserved for the degenerate triangles
+        indexes = new int[count];
+        System.arraycopy(allIndexes, 0, indexes, 0, count);
+    }
+
+    public int getQuadsPerSide() {
+        return quadsPerSide;
+    }
+
+    /**
+     * @return number of vertexes along each side of a chunk.
+     */
+    public int getVerticesPerSide() {
+        return verticesPerSide;
+    }
+
+    /**
+     * @return number of levels of detail.  The coarsest level has two triangles per chunk.
+     */
+    public int getLevelCount() {
+        return levelCount;
+    }
+
+    public float getChunkSize() {
+        return chunkSize;
+    }
+
+    /**
+     * @return number of floats in the vertex data of a chunk.
+     */
+    public int getVertexDataSize() {
+        return verticesPerSide * verticesPerSide * VERTEX_SIZE;
+    }
+
+    /**
+     * @return the shared indexes of all levels and stitching variants.  Do not modify.
+     */
+    public int[] getIndexes() {
+        return indexes;
+    }
+
+    /**
+     * @return index of the first index of a level and stitching variant in the shared indexes.
+     */
+    public int getIndexOffset(int level, int stitch) {
+        return variantOffsets[variant(level, stitch)];
+    }
+
+    /**
+     * @return number of indexes of a level and stitching variant.
+     */
+    public int getIndexCount(int level, int stitch) {
+        return variantCounts[variant(level, stitch)];
+    }
+
+    /**
+     * Samples the vertexes of a chunk from a heightfield.
+     * Normals are calculated from heights sampled around each vertex, also outside the chunk, so that they match
+     * between neighbouring chunks.
+     *
+     * @param heightfield heightfield to sample.
+     * @param originX world x coordinate of the low x corner of the chunk.
+     * @param originZ world z coordinate of the low z corner of the chunk.
+     * @param out array to write the vertex data to, or null to allocate a new one of getVertexDataSize floats.
+     * @return the vertex data, with positions relative to the chunk origin.
+     */
+    public float[] meshVertices(Heightfield heightfield, float originX, float originZ, float[] out) {
+        if (out == null) out = new float[getVertexDataSize()];
+        if (out.length < getVertexDataSize()) throw new IllegalArgumentException("The out array should have room for " + getVertexDataSize() + " floats");
+
+        // Sample heights with a border of one vertex for the normals
+        final int sampleSide = verticesPerSide + 2;
+        final float[] heights = new float[sampleSide * sampleSide];
+        for (int z = 0; z < sampleSide; z++) {
+            final float worldZ = originZ + (z - 1) * quadSize;
+            for (int x = 0; x < sampleSide; x++) {
+                heights[z * sampleSide + x] = heightfield.getHeight(originX + (x - 1) * quadSize, worldZ);
+            }
+        }
+
+        final float uvScale = 1f / quadsPerSide;
+        final float normalY = 2 * quadSize;
+        int i = 0;
+        for (int z = 0; z < verticesPerSide; z++) {
+            for (int x = 0; x < verticesPerSide; x++) {
+                final int sample = (z + 1) * sampleSide + x + 1;
+
+                // Normal from central differences
+                final float nx = heights[sample - 1] - heights[sample + 1];
+                final float nz = heights[sample - sampleSide] - heights[sample + sampleSide];
+                final float inverseLength = 1f / (float) Math.sqrt(nx * nx + normalY * normalY + nz * nz);
+
+                out[i++] = x * quadSize;
+                out[i++] = heights[sample];
+                out[i++] = z * quadSize;
+                out[i++] = nx * inverseLength;
+                out[i++] = normalY * inverseLength;
+                out[i++] = nz * inverseLength;
+                out[i++] = x * uvScale;
+                out[i++] = z * uvScale;
+                out[i++] = 1;
+                out[i++] = 1;
+                out[i++] = 1;
+                out[i++] = 1;
+            }
+        }
+
+        return out;
+    }
+
+    /**
+     * Creates a standalone shape of a chunk at one level and stitching variant, e.g. for a ChunkGenerator.
+     * Unlike chunks rendered by a Terrain, the shape has its own copy of the indexes.
+     *
+     * @param vertexData vertex data from meshVertices.
+     */
+    public Shape createShape(float[] vertexData, int level, int stitch) {
+        final Shape shape = new Shape();
+
+        final int vertexCount = verticesPerSide * verticesPerSide;
+        for (int v = 0; v < vertexCount; v++) {
+            final int i = v * VERTEX_SIZE;
+            shape.addVertex(new Vec3(vertexData[i], vertexData[i + 1], vertexData[i + 2]),
+                            new Vec2(vertexData[i + 6], vertexData[i + 7]),
+                            new Col4(vertexData[i + 8], vertexData[i + 9], vertexData[i + 10], vertexData[i + 11]),
+                            new Vec3(vertexData[i + 3], vertexData[i + 4], vertexData[i + 5]));
+        }
+
+        final int offset = getIndexOffset(level, stitch);
+        final int count = getIndexCount(level, stitch);
+        for (int i = offset; i < offset + count; i++) {
+            shape.addIndex(indexes[i]);
+        }
+
+        return shape;
+    }
+
+    private int variant(int level, int stitch) {
+        if (level < 0 || level >= levelCount) throw new IllegalArgumentException("No level " + level + ", there are " + levelCount + " levels");
+        if (stitch < 0 || stitch >= STITCH_VARIANTS) throw new IllegalArgumentException("Invalid stitch mask " + stitch);
+        return level * STITCH_VARIANTS + stitch;
+    }
+
+    private int generateIndexes(int level, int stitch, int[] out, int count) {
+        // The coarsest level has no coarser neighbours to stitch to
+        if (level == levelCount - 1) stitch = 0;
+
+        final int step = 1 << level;
+        for (int z = 0; z < quadsPerSide; z += step) {
+            for (int x = 0; x < quadsPerSide; x += step) {
+                final int a = vertex(x, z, step, stitch);
+                final int b = vertex(x + step, z, step, stitch);
+                final int c = vertex(x, z + step, step, stitch);
+                final int d = vertex(x + step, z + step, step, stitch);
+
+                // Counterclockwise seen from above
+                count = addTriangle(a, c, b, out, count);
+                count = addTriangle(b, c, d, out, count);
+            }
+        }
+        return count;
+    }
+
+    /**
+     * @return index of the vertex at the grid position, snapped to the previous vertex used by a coarser neighbour
+     *         if the position is on a stitched border.
+     */
+    private int vertex(int x, int z, int step, int stitch) {
+        final int coarseStep = step * 2;
+        if (z == 0 && (stitch & STITCH_NORTH) != 0 && x % coarseStep != 0) x -= step;
+        else if (z == quadsPerSide && (stitch & STITCH_SOUTH) != 0 && x % coarseStep != 0) x -= step;
+        else if (x == 0 && (stitch & STITCH_WEST) != 0 && z % coarseStep != 0) z -= step;
+        else if (x == quadsPerSide && (stitch & STITCH_EAST) != 0 && z % coarseStep != 0) z -= step;
+
+        return z * verticesPerSide + x;
+    }
+
+    private int addTriangle(int a, int b, int c, int[] out, int count) {
+        // Leave out triangles that snapping made degenerate, including ones with three vertexes along a border
+        final int ax = a % verticesPerSide, az = a / verticesPerSide;
+        final int bx = b % verticesPerSide, bz = b / verticesPerSide;
+        final int cx = c % verticesPerSide, cz = c / verticesPerSide;
+        if ((bx - ax) * (cz - az) - (bz - az) * (cx - ax) != 0) {
+            out[count++] = a;
+            out[count++] = b;
+            out[count++] = c;
+        }
+        return count;
+    }
+}
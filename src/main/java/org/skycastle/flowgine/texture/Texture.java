@@ -1,18 +1,50 @@
 package org.skycastle.flowgine.texture;
 
+import org.lwjgl.opengl.GL11;
+import org.lwjgl.opengl.GL13;
+import org.skycastle.flowgine.FlowGine;
 import org.skycastle.flowgine.utils.Disposable;
 
 /**
  *
  */
-// TODO: Hold reference to texture on video card.
+// TODO: Create the texture on the video card.
 public class Texture implements Disposable {
 
+    private int textureHandle = 0;
+
+    public Texture() {
+    }
+
+    /**
+     * @param textureHandle handle of an already created texture on the video card.
+     */
+    public Texture(int textureHandle) {
+        this.textureHandle = textureHandle;
+    }
+
+    /**
+     * @return handle of the texture on the video card, or 0 if it has not been created.
+     */
+    public int getTextureHandle() {
+        return textureHandle;
+    }
+
+    /**
+     * Binds the texture to the specified texture unit.
+     * @param textureUnit texture unit to bind to, 0 for the first unit.
+     */
+    public void bind(int textureUnit) {
+        FlowGine.renderBackend.activeTexture(GL13.GL_TEXTURE0 + textureUnit);
+        FlowGine.renderBackend.bindTexture(GL11.GL_TEXTURE_2D, textureHandle);
+    }
 
     public void dispose() {
-        // TODO: Free resources
+        if (textureHandle != 0) {
+            FlowGine.renderBackend.deleteTexture(textureHandle);
+            textureHandle = 0;
+        }
     }
 
-    // TODO: Bind & unbind methods?  (begin & end)
-    // Do we specify texture unit here, or when loading?
+    // TODO: Do we specify texture unit here, or when loading?
 }
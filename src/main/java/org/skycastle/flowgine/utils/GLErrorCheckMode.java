@@ -0,0 +1,31 @@
+package org.skycastle.flowgine.utils;
+
+/**
+ * Specifies how and when OpenGL errors are checked for.
+ */
+public enum GLErrorCheckMode {
+
+    /**
+     * Errors are not checked for.  Use in production, as each check costs a driver round trip.
+     */
+    OFF,
+
+    /**
+     * Errors are checked for once per frame.
+     * Cheap, but the context of an error is only known to be somewhere in the frame.
+     */
+    PER_FRAME,
+
+    /**
+     * Errors are checked for after each operation that may cause them, and reported with the context of the operation.
+     * Slow, use for debugging.
+     */
+    PER_CALL,
+
+    /**
+     * Errors are reported by the driver through the KHR_debug callback, together with the context of the
+     * latest operation checked.  Falls back to PER_CALL if the extension is not available.
+     */
+    DEBUG_CALLBACK
+
+}
@@ -2,27 +2,138 @@ package org.skycastle.flowgine.utils;
 
 import org.lwjgl.opengl.Display;
 import org.lwjgl.opengl.GL11;
+import org.lwjgl.opengl.GLContext;
+import org.lwjgl.opengl.KHRDebug;
+import org.lwjgl.opengl.KHRDebugCallback;
 import org.lwjgl.util.glu.GLU;
+import org.skycastle.flowgine.FlowGine;
 
 /**
  * OpenGL related utilities.
  */
 public final class OpenGLUtils {
 
+    /**
+     * System property that can be used to specify the initial error check mode, e.g. -Dflowgine.glErrorCheck=OFF
+     */
+    public static final String ERROR_CHECK_MODE_PROPERTY = "flowgine.glErrorCheck";
+
+    private static GLErrorCheckMode errorCheckMode = readErrorCheckModeProperty();
+    private static boolean debugCallbackInstalled = false;
+    private static volatile String latestErrorContext = null;
+
     /**
      * Checks for opengl errors, if found, prints error message and exits.
+     * Only does a check if the error check mode is PER_CALL, in DEBUG_CALLBACK mode it remembers the context,
+     * so that errors reported by the driver can be attributed to it.
+     *
+     * Hot paths should avoid building the context string unless isErrorContextNeeded returns true.
+     *
      * @param errorContext context that the error occurred in, typically method or subsystem name, or description of tested activity.
      */
     public static void checkGLError(String errorContext) {
-        int errorValue = GL11.glGetError();
+        if (errorCheckMode == GLErrorCheckMode.PER_CALL) {
+            checkGLErrorNow(errorContext);
+        }
+        else if (errorCheckMode == GLErrorCheckMode.DEBUG_CALLBACK) {
+            latestErrorContext = errorContext;
+
+            // The mode may have been configured before the OpenGL context was created
+            if (!debugCallbackInstalled) {
+                setErrorCheckMode(GLErrorCheckMode.DEBUG_CALLBACK);
+                if (!debugCallbackInstalled) checkGLErrorNow(errorContext);
+            }
+        }
+    }
+
+    /**
+     * Should be called once per rendered frame.
+     * Checks for opengl errors if the error check mode is PER_FRAME, if found, prints error message and exits.
+     */
+    public static void checkFrameGLErrors() {
+        if (errorCheckMode == GLErrorCheckMode.PER_FRAME) {
+            checkGLErrorNow("rendering frame");
+        }
+    }
+
+    /**
+     * @return true if checkGLError uses the error context passed to it.
+     *         When false, callers can skip building the context string and the call to checkGLError.
+     */
+    public static boolean isErrorContextNeeded() {
+        return errorCheckMode == GLErrorCheckMode.PER_CALL ||
+               errorCheckMode == GLErrorCheckMode.DEBUG_CALLBACK;
+    }
+
+    /**
+     * @return the current error check mode.
+     */
+    public static GLErrorCheckMode getErrorCheckMode() {
+        return errorCheckMode;
+    }
+
+    /**
+     * @param errorCheckMode the error check mode to use.
+     *                       DEBUG_CALLBACK requires that the OpenGL context has been created,
+     *                       if it has not or the KHR_debug extension is not available PER_CALL is used instead.
+     */
+    public static void setErrorCheckMode(GLErrorCheckMode errorCheckMode) {
+        if (errorCheckMode == null) throw new IllegalArgumentException("errorCheckMode should not be null");
+
+        if (errorCheckMode == GLErrorCheckMode.DEBUG_CALLBACK && !installDebugCallback()) {
+            errorCheckMode = GLErrorCheckMode.PER_CALL;
+        }
+
+        OpenGLUtils.errorCheckMode = errorCheckMode;
+    }
+
+    private static void checkGLErrorNow(String errorContext) {
+        int errorValue = FlowGine.renderBackend.getError();
         if (errorValue != GL11.GL_NO_ERROR) {
-            System.err.println("OPENGL ERROR: When " + errorContext + ": " + GLU.gluErrorString(errorValue));
+            exitWithError("When " + errorContext + ": " + GLU.gluErrorString(errorValue));
+        }
+    }
+
+    private static boolean installDebugCallback() {
+        if (!debugCallbackInstalled) {
+            if (!Display.isCreated() || !GLContext.getCapabilities().GL_KHR_debug) return false;
+
+            // Synchronous output makes the callback run before the failing call returns,
+            // so the latest error context is the one that caused the error.
+            FlowGine.renderBackend.enable(KHRDebug.GL_DEBUG_OUTPUT);
+            FlowGine.renderBackend.enable(KHRDebug.GL_DEBUG_OUTPUT_SYNCHRONOUS);
+            KHRDebug.glDebugMessageCallback(new KHRDebugCallback(new KHRDebugCallback.Handler() {
+                public void handleMessage(int source, int type, int id, int severity, String message) {
+                    if (errorCheckMode == GLErrorCheckMode.DEBUG_CALLBACK && type == KHRDebug.GL_DEBUG_TYPE_ERROR) {
+                        exitWithError("After " + latestErrorContext + ": " + message);
+                    }
+                }
+            }));
 
-            if (Display.isCreated()) Display.destroy();
-            System.exit(-1);
+            debugCallbackInstalled = true;
         }
+
+        return true;
+    }
+
+    private static void exitWithError(String message) {
+        System.err.println("OPENGL ERROR: " + message);
+
+        if (Display.isCreated()) Display.destroy();
+        System.exit(-1);
     }
 
+    private static GLErrorCheckMode readErrorCheckModeProperty() {
+        final String mode = System.getProperty(ERROR_CHECK_MODE_PROPERTY);
+        if (mode == null) return GLErrorCheckMode.PER_CALL;
+
+        try {
+            return GLErrorCheckMode.valueOf(mode.trim().toUpperCase());
+        } catch (IllegalArgumentException e) {
+            System.err.println("Unknown OpenGL error check mode '" + mode + "', using " + GLErrorCheckMode.PER_CALL);
+            return GLErrorCheckMode.PER_CALL;
+        }
+    }
 
     private OpenGLUtils() {}
 }
@@ -35,7 +35,7 @@ public abstract class ResourceManagerBase<R, T extends Disposable> {
                 resource = createResource(ref, getResourceLoader());
 
                 // Check for openGL errors
-                OpenGLUtils.checkGLError("creating resource '"+ref+"'");
+                if (OpenGLUtils.isErrorContextNeeded()) OpenGLUtils.checkGLError("creating resource '"+ref+"'");
 
                 // Remember reference for this resource (if it was not the placeholder)
                 resourcesRefs.put(resource, ref);
@@ -64,6 +64,24 @@ public abstract class ResourceManagerBase<R, T extends Disposable> {
         return resource;
     }
 
+    /**
+     * Stores a resource that was created elsewhere, e.g. generated in a background thread, so that it can be
+     * retrieved with get and is deleted when its last user releases it.  The caller counts as its first user.
+     *
+     * @param ref reference to store the resource with.
+     * @param resource the resource.
+     * @throws IllegalArgumentException if there already is a resource with the same reference.
+     */
+    public final void add(R ref, T resource) {
+        if (ref == null) throw new IllegalArgumentException("ref should not be null");
+        if (resource == null) throw new IllegalArgumentException("resource should not be null");
+        if (resources.containsKey(ref)) throw new IllegalArgumentException("There already is a resource with the reference '" + ref + "'");
+
+        resources.put(ref, resource);
+        resourcesRefs.put(resource, ref);
+        increaseUsages(ref);
+    }
+
     /**
      * Should be called when a resource is no longer needed.
      * If no-one is using the resource it will be deleted.
@@ -111,10 +129,19 @@ public abstract class ResourceManagerBase<R, T extends Disposable> {
         }
     }
 
+    /**
+     * @return true if the resource with the specified reference has been created, and not deleted since.
+     */
+    public final boolean isLoaded(R ref) {
+        return resources.containsKey(ref);
+    }
+
     /**
      * Deletes all stored resources
      */
     public final void deleteAll() {
+        deleteUnstoredResources();
+
         boolean placeholderDeleted = false;
         for (T resource : resources.values()) {
             // Only delete the placeholder once.
@@ -135,7 +162,7 @@ public abstract class ResourceManagerBase<R, T extends Disposable> {
         placeholder = null;
 
         // Check for openGL errors
-        OpenGLUtils.checkGLError("deleting all resources in " + getClass().getName());
+        if (OpenGLUtils.isErrorContextNeeded()) OpenGLUtils.checkGLError("deleting all resources in " + getClass().getName());
     }
 
     /**
@@ -148,6 +175,13 @@ public abstract class ResourceManagerBase<R, T extends Disposable> {
      */
     protected abstract T createResource(R ref, ResourceLoader resourceLoader) throws Exception;
 
+    /**
+     * Called by deleteAll, so that resources a subclass has created but not yet stored, e.g. resources created
+     * ahead of time, are also deleted.  Does nothing by default.
+     */
+    protected void deleteUnstoredResources() {
+    }
+
     /**
      * @return resource loader to use when loading resources.  Defaults to FlowGine.resourceLoader.
      */
@@ -201,7 +235,7 @@ public abstract class ResourceManagerBase<R, T extends Disposable> {
                     deleteResource(resource);
 
                     // Check for openGL errors
-                    OpenGLUtils.checkGLError("deleting resource '"+ref+"'");
+                    if (OpenGLUtils.isErrorContextNeeded()) OpenGLUtils.checkGLError("deleting resource '"+ref+"'");
                 }
             }
         }
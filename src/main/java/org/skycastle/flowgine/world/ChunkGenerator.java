@@ -0,0 +1,24 @@
+package org.skycastle.flowgine.world;
+
+import org.skycastle.flowgine.shape.Shape;
+
+/**
+ * Generates the content of the chunks of a ChunkGrid.
+ * <p/>
+ * Called on background threads, so it must not make any OpenGL calls, and must be safe to call from several threads
+ * at the same time.  Long running generators may check Thread.currentThread().isInterrupted() and give up early,
+ * the generation of chunks that fall out of range is cancelled by interrupting it.
+ */
+public interface ChunkGenerator {
+
+    /**
+     * @param x chunk x coordinate.
+     * @param y chunk y coordinate.
+     * @param z chunk z coordinate.
+     * @param chunkSize size of the chunk along each axis in world units.
+     * @return the shape of the chunk, with vertex positions relative to the chunk corner at (x, y, z) * chunkSize,
+     *         or null if the chunk is empty.
+     */
+    Shape generate(int x, int y, int z, float chunkSize);
+
+}
@@ -0,0 +1,512 @@
+package org.skycastle.flowgine.world;
+
+import org.flowutils.Check;
+import org.skycastle.flowgine.FlowGine;
+import org.skycastle.flowgine.geometry.Bounds;
+import org.skycastle.flowgine.geometry.Frustum;
+import org.skycastle.flowgine.geometry.Vec3;
+import org.skycastle.flowgine.render.RenderQueue;
+import org.skycastle.flowgine.shader.Shader;
+import org.skycastle.flowgine.shader.ShaderRef;
+import org.skycastle.flowgine.shape.Shape;
+import org.skycastle.flowgine.shape.ShapeRef;
+import org.skycastle.flowgine.utils.Disposable;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Streams a large generated world divided into a grid of cubic chunks, keeping the chunks near the camera loaded.
+ * <p/>
+ * Call update with the camera position each frame from the OpenGL thread.  Chunks within the load radius of the
+ * camera are generated on background threads, nearest first, with only a few generations queued at a time so that
+ * the order follows the camera.  Generation of chunks that fall out of range before they are done is cancelled.
+ * Generated shapes are added to the FlowGine.shapeManager and uploaded a few per frame.
+ * <p/>
+ * Loaded chunks that fall out of range are kept as a cache in case the camera comes back, until the graphics memory
+ * used by the chunks exceeds the memory budget, at which point the chunks that left the range longest ago are released
+ * through the shape manager.  Chunks in range are never released, so the budget should fit the load radius.
+ */
+public final class ChunkGrid implements Disposable {
+
+    private static final int DEFAULT_MAX_UPLOADS_PER_FRAME = 4;
+    private static final int QUEUED_GENERATIONS_PER_THREAD = 2;
+    private static final int COORDINATE_BITS = 21;
+    private static final long COORDINATE_MASK = (1L << COORDINATE_BITS) - 1;
+
+    private enum ChunkState { QUEUED, GENERATING, LOADED, EMPTY, FAILED }
+
+    private final String name;
+    private final ChunkGenerator generator;
+    private final ShaderRef shaderRef;
+    private final float chunkSize;
+    private final long memoryBudgetBytes;
+    private final int maxGenerating;
+    private final ExecutorService generatorThreads;
+
+    // Offsets of the chunks in range relative to the camera chunk, nearest first, 3 values per chunk
+    private final int[] rangeOffsets;
+
+    private final Map<Long, Chunk> chunks = new HashMap<Long, Chunk>();
+    private final List<Chunk> chunksInRange = new ArrayList<Chunk>();
+    private final List<Chunk> generatingChunks = new ArrayList<Chunk>();
+    private final List<Chunk> evictionCandidates = new ArrayList<Chunk>();
+    private final Map<String, Object> shaderParameters = new HashMap<String, Object>();
+    private final Bounds worldBounds = new Bounds();
+
+    private Shader shader = null;
+    private int maxUploadsPerFrame = DEFAULT_MAX_UPLOADS_PER_FRAME;
+
+    private long frame = 0;
+    private boolean hasCameraChunk = false;
+    private int cameraChunkX;
+    private int cameraChunkY;
+    private int cameraChunkZ;
+    private int scheduleCursor = 0;
+
+    // Statistics
+    private long memoryUsage = 0;
+    private int loadedCount = 0;
+    private long generatedCount = 0;
+    private long cancelledCount = 0;
+    private long evictedCount = 0;
+    private long failedCount = 0;
+
+    /**
+     * Creates a chunk grid that generates chunks with one background thread less than there are processors.
+     *
+     * @param name unique name of the grid, used in the shape references of the generated chunks.
+     * @param generator generator for the chunk shapes.
+     * @param shaderRef shader to render the chunks with.
+     * @param chunkSize size of a chunk along each axis in world units.
+     * @param loadRadius number of chunks to keep loaded around the camera horizontally (along the x and z axis).
+     * @param verticalLoadRadius number of chunks to keep loaded around the camera vertically, 0 for a single layer of chunks.
+     * @param memoryBudgetBytes graphics memory that the chunks may use before chunks out of range are released.
+     */
+    public ChunkGrid(String name,
+                     ChunkGenerator generator,
+                     ShaderRef shaderRef,
+                     float chunkSize,
+                     int loadRadius,
+                     int verticalLoadRadius,
+                     long memoryBudgetBytes) {
+        this(name, generator, shaderRef, chunkSize, loadRadius, verticalLoadRadius, memoryBudgetBytes,
+             Math.max(1, Runtime.getRuntime().availableProcessors() - 1));
+    }
+
+    /**
+     * @param name unique name of the grid, used in the shape references of the generated chunks.
+     * @param generator generator for the chunk shapes.
+     * @param shaderRef shader to render the chunks with.
+     * @param chunkSize size of a chunk along each axis in world units.
+     * @param loadRadius number of chunks to keep loaded around the camera horizontally (along the x and z axis).
+     * @param verticalLoadRadius number of chunks to keep loaded around the camera vertically, 0 for a single layer of chunks.
+     * @param memoryBudgetBytes graphics memory that the chunks may use before chunks out of range are released.
+     * @param generatorThreadCount number of background threads to generate chunks with.
+     */
+    public ChunkGrid(String name,
+                     ChunkGenerator generator,
+                     ShaderRef shaderRef,
+                     float chunkSize,
+                     int loadRadius,
+                     int verticalLoadRadius,
+                     long memoryBudgetBytes,
+                     int generatorThreadCount) {
+        Check.nonEmptyString(name, "name");
+        Check.notNull(generator, "generator");
+        Check.notNull(shaderRef, "shaderRef");
+        if (chunkSize <= 0) throw new IllegalArgumentException("chunkSize should be positive, but was " + chunkSize);
+        if (loadRadius < 0) throw new IllegalArgumentException("loadRadius should not be negative, but was " + loadRadius);
+        if (verticalLoadRadius < 0) throw new IllegalArgumentException("verticalLoadRadius should not be negative, but was " + verticalLoadRadius);
+        if (memoryBudgetBytes < 0) throw new IllegalArgumentException("memoryBudgetBytes should not be negative, but was " + memoryBudgetBytes);
+        if (generatorThreadCount < 1) throw new IllegalArgumentException("generatorThreadCount should be at least 1, but was " + generatorThreadCount);
+
+        this.name = name;
+        this.generator = generator;
+        this.shaderRef = shaderRef;
+        this.chunkSize = chunkSize;
+        this.memoryBudgetBytes = memoryBudgetBytes;
+
+        rangeOffsets = calculateRangeOffsets(loadRadius, verticalLoadRadius);
+        maxGenerating = generatorThreadCount * QUEUED_GENERATIONS_PER_THREAD;
+        generatorThreads = Executors.newFixedThreadPool(generatorThreadCount, new ThreadFactory() {
+            public Thread newThread(Runnable r) {
+                final Thread thread = new Thread(r, "ChunkGenerator");
+                thread.setDaemon(true);
+                thread.setPriority(Thread.NORM_PRIORITY - 1);
+                return thread;
+            }
+        });
+    }
+
+    /**
+     * @return parameters applied to the shader when rendering the chunks.  Modifications to the returned map are applied.
+     */
+    public Map<String, Object> getShaderParameters() {
+        return shaderParameters;
+    }
+
+    /**
+     * @return size of a chunk along each axis in world units.
+     */
+    public float getChunkSize() {
+        return chunkSize;
+    }
+
+    public int getMaxUploadsPerFrame() {
+        return maxUploadsPerFrame;
+    }
+
+    /**
+     * @param maxUploadsPerFrame maximum number of generated chunks to upload to the graphics card per update,
+     *                           to spread the upload work over several frames.
+     */
+    public void setMaxUploadsPerFrame(int maxUploadsPerFrame) {
+        if (maxUploadsPerFrame < 1) throw new IllegalArgumentException("maxUploadsPerFrame should be at least 1, but was " + maxUploadsPerFrame);
+        this.maxUploadsPerFrame = maxUploadsPerFrame;
+    }
+
+    /**
+     * Updates the chunks in range of the camera, takes generated chunks into use, schedules the generation of the
+     * nearest missing chunks, and releases cached chunks if the memory budget is exceeded.
+     * Must be called from the OpenGL thread.
+     *
+     * @param cameraPosition current position of the camera.
+     */
+    public void update(Vec3 cameraPosition) {
+        frame++;
+
+        final int chunkX = toChunkCoordinate(cameraPosition.x);
+        final int chunkY = toChunkCoordinate(cameraPosition.y);
+        final int chunkZ = toChunkCoordinate(cameraPosition.z);
+        if (!hasCameraChunk || chunkX != cameraChunkX || chunkY != cameraChunkY || chunkZ != cameraChunkZ) {
+            hasCameraChunk = true;
+            cameraChunkX = chunkX;
+            cameraChunkY = chunkY;
+            cameraChunkZ = chunkZ;
+            updateRange();
+        }
+
+        collectGenerated();
+        scheduleGeneration();
+        if (memoryUsage > memoryBudgetBytes) evictCachedChunks();
+    }
+
+    /**
+     * Submits the loaded chunks in range to a render queue.  Must be called from the OpenGL thread.
+     *
+     * @param renderQueue queue to submit to.
+     * @param frustum view frustum to skip chunks outside of, or null to submit all loaded chunks in range.
+     * @return number of chunks submitted.
+     */
+    public int submit(RenderQueue renderQueue, Frustum frustum) {
+        if (shader == null) shader = FlowGine.shaderManager.get(shaderRef);
+
+        final Map<String, Object> parameters = shaderParameters.isEmpty() ? null : shaderParameters;
+
+        int submittedCount = 0;
+        for (int i = 0; i < chunksInRange.size(); i++) {
+            final Chunk chunk = chunksInRange.get(i);
+            if (chunk.state == ChunkState.LOADED) {
+                if (frustum == null || frustum.intersects(worldBounds.setTransformed(chunk.localBounds, chunk.transform, 0))) {
+                    renderQueue.submit(0, false, shader, chunk.shape, null, chunk.transform, 0, parameters);
+                    submittedCount++;
+                }
+            }
+        }
+
+        return submittedCount;
+    }
+
+    /**
+     * @return true if the chunk at the specified chunk coordinates is loaded, or generated and found to be empty.
+     */
+    public boolean isReady(int x, int y, int z) {
+        final Chunk chunk = chunks.get(key(x, y, z));
+        return chunk != null && (chunk.state == ChunkState.LOADED || chunk.state == ChunkState.EMPTY);
+    }
+
+    /**
+     * @return number of chunks within range of the camera.
+     */
+    public int getChunksInRangeCount() {
+        return chunksInRange.size();
+    }
+
+    /**
+     * @return number of chunks with shapes, both in range and cached.
+     */
+    public int getLoadedCount() {
+        return loadedCount;
+    }
+
+    /**
+     * @return number of chunks being generated, or waiting for their turn on a generator thread.
+     */
+    public int getGeneratingCount() {
+        return generatingChunks.size();
+    }
+
+    /**
+     * @return approximate graphics memory used by the loaded chunks, in bytes.
+     */
+    public long getMemoryUsage() {
+        return memoryUsage;
+    }
+
+    /**
+     * @return number of chunks generated so far, including empty ones.
+     */
+    public long getGeneratedCount() {
+        return generatedCount;
+    }
+
+    /**
+     * @return number of chunk generations cancelled so far because the chunks fell out of range.
+     */
+    public long getCancelledCount() {
+        return cancelledCount;
+    }
+
+    /**
+     * @return number of cached chunks released so far to stay within the memory budget.
+     */
+    public long getEvictedCount() {
+        return evictedCount;
+    }
+
+    /**
+     * @return number of chunk generations that failed with an exception.
+     */
+    public long getFailedCount() {
+        return failedCount;
+    }
+
+    /**
+     * Stops the generator threads and releases all chunk shapes and the shader.  Must be called from the OpenGL thread.
+     */
+    public void dispose() {
+        generatorThreads.shutdownNow();
+
+        for (Chunk chunk : chunks.values()) {
+            if (chunk.future != null) chunk.future.cancel(true);
+            if (chunk.state == ChunkState.LOADED) FlowGine.shapeManager.release(chunk.shape);
+        }
+        chunks.clear();
+        chunksInRange.clear();
+        generatingChunks.clear();
+        memoryUsage = 0;
+        loadedCount = 0;
+
+        if (shader != null) {
+            FlowGine.shaderManager.release(shader);
+            shader = null;
+        }
+    }
+
+    private void updateRange() {
+        // Mark the chunks in the new range, creating missing ones, in order of distance
+        final List<Chunk> previousChunksInRange = new ArrayList<Chunk>(chunksInRange);
+        chunksInRange.clear();
+        for (int i = 0; i < rangeOffsets.length; i += 3) {
+            final int x = cameraChunkX + rangeOffsets[i];
+            final int y = cameraChunkY + rangeOffsets[i + 1];
+            final int z = cameraChunkZ + rangeOffsets[i + 2];
+            final Long key = key(x, y, z);
+
+            Chunk chunk = chunks.get(key);
+            if (chunk == null) {
+                chunk = new Chunk(x, y, z);
+                chunks.put(key, chunk);
+            }
+            chunk.rangeFrame = frame;
+            chunksInRange.add(chunk);
+        }
+
+        // Handle the chunks that fell out of range
+        for (Chunk chunk : previousChunksInRange) {
+            if (chunk.rangeFrame != frame) {
+                chunk.leftRangeFrame = frame;
+                if (chunk.state != ChunkState.LOADED) {
+                    // Only loaded chunks are worth caching
+                    if (chunk.state == ChunkState.GENERATING) {
+                        chunk.future.cancel(true);
+                        generatingChunks.remove(chunk);
+                        cancelledCount++;
+                    }
+                    chunks.remove(key(chunk.x, chunk.y, chunk.z));
+                }
+            }
+        }
+
+        scheduleCursor = 0;
+    }
+
+    private void collectGenerated() {
+        int uploadCount = 0;
+        for (int i = 0; i < generatingChunks.size() && uploadCount < maxUploadsPerFrame; i++) {
+            final Chunk chunk = generatingChunks.get(i);
+            if (chunk.future.isDone()) {
+                generatingChunks.remove(i--);
+                generatedCount++;
+
+                final Shape shape = getGeneratedShape(chunk);
+                chunk.future = null;
+                if (shape == null) {
+                    if (chunk.state != ChunkState.FAILED) chunk.state = ChunkState.EMPTY;
+                }
+                else {
+                    shape.createVertexBufferObject();
+                    FlowGine.shapeManager.add(chunk.shapeRef, shape);
+                    chunk.shape = shape;
+                    chunk.memorySize = shape.getGraphicsMemorySize();
+                    chunk.state = ChunkState.LOADED;
+                    memoryUsage += chunk.memorySize;
+                    loadedCount++;
+                    uploadCount++;
+                }
+            }
+        }
+    }
+
+    private Shape getGeneratedShape(Chunk chunk) {
+        try {
+            return chunk.future.get();
+        } catch (ExecutionException e) {
+            chunk.state = ChunkState.FAILED;
+            failedCount++;
+            System.err.println("Could not generate chunk " + chunk.shapeRef + ": " + e.getCause());
+            return null;
+        } catch (InterruptedException e) {
+            // Not reached, the future is done
+            Thread.currentThread().interrupt();
+            return null;
+        }
+    }
+
+    private void scheduleGeneration() {
+        while (generatingChunks.size() < maxGenerating && scheduleCursor < chunksInRange.size()) {
+            final Chunk chunk = chunksInRange.get(scheduleCursor++);
+            if (chunk.state == ChunkState.QUEUED) {
+                chunk.state = ChunkState.GENERATING;
+                chunk.future = generatorThreads.submit(createGenerationTask(chunk));
+                generatingChunks.add(chunk);
+            }
+        }
+    }
+
+    private Callable<Shape> createGenerationTask(final Chunk chunk) {
+        return new Callable<Shape>() {
+            public Shape call() throws Exception {
+                final Shape shape = generator.generate(chunk.x, chunk.y, chunk.z, chunkSize);
+                if (shape != null) shape.calculateBounds(chunk.localBounds);
+                return shape;
+            }
+        };
+    }
+
+    private void evictCachedChunks() {
+        evictionCandidates.clear();
+        for (Chunk chunk : chunks.values()) {
+            if (chunk.state == ChunkState.LOADED && chunk.rangeFrame < chunk.leftRangeFrame) {
+                evictionCandidates.add(chunk);
+            }
+        }
+
+        // Release the chunks that left the range longest ago first
+        Collections.sort(evictionCandidates, LEFT_RANGE_ORDER);
+        for (int i = 0; i < evictionCandidates.size() && memoryUsage > memoryBudgetBytes; i++) {
+            final Chunk chunk = evictionCandidates.get(i);
+            FlowGine.shapeManager.release(chunk.shape);
+            chunks.remove(key(chunk.x, chunk.y, chunk.z));
+            chunk.shape = null;
+            memoryUsage -= chunk.memorySize;
+            loadedCount--;
+            evictedCount++;
+        }
+        evictionCandidates.clear();
+    }
+
+    private int toChunkCoordinate(float worldCoordinate) {
+        return (int) Math.floor(worldCoordinate / chunkSize);
+    }
+
+    private static Long key(int x, int y, int z) {
+        return ((x & COORDINATE_MASK) << (2 * COORDINATE_BITS)) |
+               ((y & COORDINATE_MASK) << COORDINATE_BITS) |
+               (z & COORDINATE_MASK);
+    }
+
+    private static int[] calculateRangeOffsets(int radius, int verticalRadius) {
+        final List<int[]> offsets = new ArrayList<int[]>();
+        for (int y = -verticalRadius; y <= verticalRadius; y++) {
+            for (int z = -radius; z <= radius; z++) {
+                for (int x = -radius; x <= radius; x++) {
+                    if (x * x + z * z <= radius * radius) offsets.add(new int[]{x, y, z});
+                }
+            }
+        }
+
+        Collections.sort(offsets, new Comparator<int[]>() {
+            public int compare(int[] a, int[] b) {
+                final int distanceA = a[0] * a[0] + a[1] * a[1] + a[2] * a[2];
+                final int distanceB = b[0] * b[0] + b[1] * b[1] + b[2] * b[2];
+                return distanceA < distanceB ? -1 : distanceA == distanceB ? 0 : 1;
+            }
+        });
+
+        final int[] result = new int[offsets.size() * 3];
+        for (int i = 0; i < offsets.size(); i++) {
+            System.arraycopy(offsets.get(i), 0, result, i * 3, 3);
+        }
+        return result;
+    }
+
+    private static final Comparator<Chunk> LEFT_RANGE_ORDER = new Comparator<Chunk>() {
+        public int compare(Chunk a, Chunk b) {
+            return a.leftRangeFrame < b.leftRangeFrame ? -1 : a.leftRangeFrame == b.leftRangeFrame ? 0 : 1;
+        }
+    };
+
+    private final class Chunk {
+        private final int x;
+        private final int y;
+        private final int z;
+        private final ShapeRef shapeRef;
+        private final float[] transform = new float[16];
+        private final Bounds localBounds = new Bounds();
+
+        private ChunkState state = ChunkState.QUEUED;
+        private Future<Shape> future = null;
+        private Shape shape = null;
+        private long memorySize = 0;
+        private long rangeFrame = 0;
+        private long leftRangeFrame = 0;
+
+        private Chunk(int x, int y, int z) {
+            this.x = x;
+            this.y = y;
+            this.z = z;
+            shapeRef = new ShapeRef(name + "/chunk_" + x + "_" + y + "_" + z);
+
+            // Column major translation to the chunk corner
+            transform[0] = 1;
+            transform[5] = 1;
+            transform[10] = 1;
+            transform[15] = 1;
+            transform[12] = x * chunkSize;
+            transform[13] = y * chunkSize;
+            transform[14] = z * chunkSize;
+        }
+    }
+}
@@ -0,0 +1,118 @@
+package org.skycastle.flowgine.buildlang;
+
+import org.junit.Test;
+import org.skycastle.flowgine.buildlang.ast.Prog;
+import org.skycastle.flowgine.resourceloader.ClasspathResourceLoader;
+import org.skycastle.flowgine.shape.Shape;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.junit.Assert.*;
+
+/**
+ * Runs the sample programs in the shapes test resources with both the Interpreter and the GenLangCompiler,
+ * as they are and optimized with and without generation parameters, and checks that they all generate the same
+ * geometry.
+ */
+public class BackendEquivalenceTest {
+
+    private final ClasspathResourceLoader resourceLoader = new ClasspathResourceLoader("shapes/");
+    private final Builtins builtins = Builtins.createDefault();
+    private final Optimizer optimizer = new Optimizer();
+
+    @Test
+    public void testBuilding() throws Exception {
+        assertSameGeometry("building.shape", parameters("floors", 2, "columns", 5));
+    }
+
+    @Test
+    public void testControlFlow() throws Exception {
+        assertSameGeometry("control.shape", parameters("boxSize", 3));
+    }
+
+    @Test
+    public void testFunctionsWithoutReturn() throws Exception {
+        assertSameGeometry("noreturn.shape", parameters());
+    }
+
+    @Test
+    public void testParallelLoops() throws Exception {
+        assertSameGeometry("parallel.shape", parameters("floors", 3, "columns", 2));
+    }
+
+    @Test
+    public void testTerrain() throws Exception {
+        assertSameGeometry("terrain.shape", parameters("n", 5));
+    }
+
+    @Test
+    public void testOptimizerReportsNodeCounts() throws Exception {
+        final Prog prog = load("building.shape");
+        final Prog optimized = optimizer.optimize(prog, parameters("floors", 2, "columns", 5));
+
+        assertEquals(Nodes.count(prog), optimizer.getInputNodes());
+        assertEquals(Nodes.count(optimized), optimizer.getOutputNodes());
+        assertEquals(optimizer.getInputNodes() - optimizer.getOutputNodes(), optimizer.getEliminatedNodes());
+        assertTrue("Parameters should be inlined", optimizer.getInlinedVariables() > 0);
+        assertTrue("Operations on the parameters should be folded", optimizer.getFoldedOperations() > 0);
+
+        // The original program is not changed
+        assertEquals(optimizer.getInputNodes(), Nodes.count(prog));
+    }
+
+    private void assertSameGeometry(String name, Map<String, Object> parameters) {
+        final Prog prog = load(name);
+
+        assertSameGeometry(name, prog, new HashMap<String, Object>(), optimizer.optimize(prog, null));
+        assertSameGeometry(name + " with parameters", prog, parameters, optimizer.optimize(prog, parameters));
+    }
+
+    private void assertSameGeometry(String name, Prog prog, Map<String, Object> parameters, Prog optimized) {
+        new Resolver(builtins).resolve(optimized);
+        assertEquals(name + " optimized node count", Nodes.count(optimized), optimizer.getOutputNodes());
+
+        final Shape interpreted = new Interpreter(prog, builtins).generate(new HashMap<String, Object>(parameters), null);
+        assertTrue(name + " should generate some geometry", interpreted.getVertexCount() > 0);
+
+        assertSameGeometry(name + " compiled", interpreted,
+                           new GenLangCompiler(builtins).compile(prog).generate(new HashMap<String, Object>(parameters), null));
+        assertSameGeometry(name + " optimized", interpreted,
+                           new Interpreter(optimized, builtins).generate(new HashMap<String, Object>(parameters), null));
+        assertSameGeometry(name + " optimized and compiled", interpreted,
+                           new GenLangCompiler(builtins).compile(optimized).generate(new HashMap<String, Object>(parameters), null));
+    }
+
+    private void assertSameGeometry(String name, Shape expected, Shape actual) {
+        assertEquals(name + " vertex count", expected.getVertexCount(), actual.getVertexCount());
+        for (int i = 0; i < expected.getVertexCount(); i++) {
+            assertEquals(name + " position of vertex " + i, expected.pos(i), actual.pos(i));
+            assertEquals(name + " normal of vertex " + i, expected.normal(i), actual.normal(i));
+            assertEquals(name + " texture u of vertex " + i, expected.texturePos(i).x, actual.texturePos(i).x, 0);
+            assertEquals(name + " texture v of vertex " + i, expected.texturePos(i).y, actual.texturePos(i).y, 0);
+            assertEquals(name + " color of vertex " + i, expected.color(i), actual.color(i));
+        }
+
+        assertEquals(name + " index count", expected.getIndexListSize(), actual.getIndexListSize());
+        for (int i = 0; i < expected.getIndexListSize(); i++) {
+            assertEquals(name + " index " + i, expected.index(i), actual.index(i));
+        }
+    }
+
+    private Prog load(String name) {
+        final Prog prog = new GenLangDescentParser().parse(resourceLoader.loadResourceAsString(name));
+        new Resolver(builtins).resolve(prog);
+        return prog;
+    }
+
+    /**
+     * @return generation parameters from alternating names and numbers.
+     */
+    private static Map<String, Object> parameters(Object... namesAndValues) {
+        final Map<String, Object> parameters = new HashMap<String, Object>();
+        for (int i = 0; i < namesAndValues.length; i += 2) {
+            parameters.put((String) namesAndValues[i], ((Number) namesAndValues[i + 1]).doubleValue());
+        }
+        return parameters;
+    }
+}
@@ -0,0 +1,81 @@
+package org.skycastle.flowgine.buildlang;
+
+import org.skycastle.flowgine.buildlang.ast.Prog;
+import org.skycastle.flowgine.resourceloader.ClasspathResourceLoader;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Measures the overhead of counting steps against an ExecutionBudget, by running a loop compiled with and without
+ * budget checks.  The interpreter always counts steps, its time is shown for comparison.
+ * <p/>
+ * Arguments: number of loop iterations (default 2000000), number of measured rounds (default 10).
+ */
+public final class BudgetBenchmark {
+
+    private static final int WARMUP_ROUNDS = 5;
+
+    // Each iteration of the benchmark loop counts one step for the iteration and one for the function call
+    private static final int STEPS_PER_ITERATION = 2;
+
+    public static void main(String[] args) {
+        final int iterations = args.length > 0 ? Integer.parseInt(args[0]) : 2000000;
+        final int roundCount = args.length > 1 ? Integer.parseInt(args[1]) : 10;
+
+        final Builtins builtins = Builtins.createDefault();
+        final String source = new ClasspathResourceLoader("benchmark/").loadResourceAsString("budget.shape");
+        final Prog prog = new GenLangDescentParser().parse(source);
+        new Resolver(builtins).resolve(prog);
+
+        final Map<String, Object> parameters = new HashMap<String, Object>();
+        parameters.put("iterations", (double) iterations);
+
+        final ExecutionBudget budget = new ExecutionBudget(Long.MAX_VALUE / 2, 60000);
+
+        final CompiledProgram checked = new GenLangCompiler(builtins).compile(prog);
+        checked.setBudget(budget);
+
+        final GenLangCompiler uncheckedCompiler = new GenLangCompiler(builtins);
+        uncheckedCompiler.setBudgetChecks(false);
+        final CompiledProgram unchecked = uncheckedCompiler.compile(prog);
+
+        final Interpreter interpreter = new Interpreter(prog, builtins);
+        interpreter.setBudget(budget);
+
+        long checkedNanos = Long.MAX_VALUE;
+        long uncheckedNanos = Long.MAX_VALUE;
+        long interpretedNanos = Long.MAX_VALUE;
+        for (int round = -WARMUP_ROUNDS; round < roundCount; round++) {
+            long startTime = System.nanoTime();
+            checked.generate(parameters, null);
+            final long checkedTime = System.nanoTime() - startTime;
+
+            startTime = System.nanoTime();
+            unchecked.generate(parameters, null);
+            final long uncheckedTime = System.nanoTime() - startTime;
+
+            startTime = System.nanoTime();
+            interpreter.generate(parameters, null);
+            final long interpretedTime = System.nanoTime() - startTime;
+
+            if (round >= 0) {
+                checkedNanos = Math.min(checkedNanos, checkedTime);
+                uncheckedNanos = Math.min(uncheckedNanos, uncheckedTime);
+                interpretedNanos = Math.min(interpretedNanos, interpretedTime);
+            }
+        }
+
+        final long steps = (long) iterations * STEPS_PER_ITERATION;
+        System.out.println("Steps:                   " + steps);
+        System.out.println("Compiled with checks:    " + formatMillis(checkedNanos));
+        System.out.println("Compiled without checks: " + formatMillis(uncheckedNanos));
+        System.out.println("Overhead per check:      " + String.format("%.2f ns", (checkedNanos - uncheckedNanos) / (double) steps));
+        System.out.println("Interpreted:             " + formatMillis(interpretedNanos) +
+                           String.format(" (%.2f ns per step)", interpretedNanos / (double) steps));
+    }
+
+    private static String formatMillis(long nanos) {
+        return String.format("%.3f ms", nanos / 1000000.0);
+    }
+}
@@ -0,0 +1,113 @@
+package org.skycastle.flowgine.buildlang;
+
+import org.junit.Test;
+import org.skycastle.flowgine.buildlang.ast.Prog;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.junit.Assert.*;
+
+public class ExecutionBudgetTest {
+
+    private static final String RECURSION =
+            "num depth = 10\n" +
+            "fun num nest(num x) = if x > 0 then nest(x - 1) + 1 else vertex(0, 0, 0)\n" +
+            "fun num forever(num x) = forever(x + 1)\n" +
+            "fun num generate() = if depth < 0 then forever(0) else nest(depth)\n";
+
+    private final Builtins builtins = Builtins.createDefault();
+    private final Prog prog = parse(RECURSION);
+
+    @Test
+    public void testUnboundedRecursionIsStoppedByTheInterpreter() throws Exception {
+        final Interpreter interpreter = new Interpreter(prog, builtins);
+        assertCallDepthExceeded(interpreter, null);
+
+        // The call depth starts from zero again in the next run
+        interpreter.generate(depth(ExecutionBudget.DEFAULT_MAX_CALL_DEPTH - 1), null);
+    }
+
+    @Test
+    public void testUnboundedRecursionIsStoppedByCompiledPrograms() throws Exception {
+        final CompiledProgram program = new GenLangCompiler(builtins).compile(prog);
+        assertCallDepthExceeded(null, program);
+
+        program.generate(depth(ExecutionBudget.DEFAULT_MAX_CALL_DEPTH - 1), null);
+    }
+
+    @Test
+    public void testMaxCallDepthIsExact() throws Exception {
+        // generate is called from the outside, so the calls of nest are nested one deeper than its parameter
+        final ExecutionBudget budget = new ExecutionBudget(1000000, 10000, 50);
+        final Interpreter interpreter = new Interpreter(prog, builtins);
+        interpreter.setBudget(budget);
+        final CompiledProgram program = new GenLangCompiler(builtins).compile(prog);
+        program.setBudget(budget);
+
+        assertEquals(1, interpreter.generate(depth(49), null).getVertexCount());
+        assertEquals(1, program.generate(depth(49), null).getVertexCount());
+
+        try {
+            interpreter.generate(depth(50), null);
+            fail("The interpreter should stop at depth 51");
+        } catch (BudgetExceededException e) {
+            assertTrue(e.getMessage(), e.getMessage().contains("call depth of 50"));
+        }
+        try {
+            program.generate(depth(50), null);
+            fail("The compiled program should stop at depth 51");
+        } catch (BudgetExceededException e) {
+            assertTrue(e.getMessage(), e.getMessage().contains("call depth of 50"));
+        }
+    }
+
+    @Test
+    public void testStepBudgetStopsLoops() throws Exception {
+        final Prog loop = parse("fun num generate() { num x = 0  while true do x = x + 1 }\n");
+        final ExecutionBudget budget = new ExecutionBudget(100000, 10000);
+
+        final Interpreter interpreter = new Interpreter(loop, builtins);
+        interpreter.setBudget(budget);
+        try {
+            interpreter.generate(new HashMap<String, Object>(), null);
+            fail("The interpreter should run out of steps");
+        } catch (BudgetExceededException e) {
+            assertEquals(1, e.getLine());
+        }
+
+        final CompiledProgram program = new GenLangCompiler(builtins).compile(loop);
+        program.setBudget(budget);
+        try {
+            program.generate(new HashMap<String, Object>(), null);
+            fail("The compiled program should run out of steps");
+        } catch (BudgetExceededException e) {
+            assertEquals(1, e.getLine());
+        }
+    }
+
+    private void assertCallDepthExceeded(Interpreter interpreter, CompiledProgram program) {
+        try {
+            if (interpreter != null) interpreter.generate(depth(-1), null);
+            else program.generate(depth(-1), null);
+            fail("Unbounded recursion should exceed the call depth");
+        } catch (BudgetExceededException e) {
+            assertTrue(e.getMessage(), e.getMessage().contains("maximum call depth of " + ExecutionBudget.DEFAULT_MAX_CALL_DEPTH));
+            // The recursive call in forever
+            assertEquals(3, e.getLine());
+            assertEquals(26, e.getColumn());
+        }
+    }
+
+    private Prog parse(String source) {
+        final Prog parsed = new GenLangDescentParser().parse(source);
+        new Resolver(builtins).resolve(parsed);
+        return parsed;
+    }
+
+    private static Map<String, Object> depth(int depth) {
+        final Map<String, Object> parameters = new HashMap<String, Object>();
+        parameters.put("depth", (double) depth);
+        return parameters;
+    }
+}
@@ -0,0 +1,84 @@
+package org.skycastle.flowgine.buildlang;
+
+import org.skycastle.flowgine.buildlang.ast.Prog;
+import org.skycastle.flowgine.resourceloader.ClasspathResourceLoader;
+import org.skycastle.flowgine.shape.Shape;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Measures the peak heap used while a compiled program generates a large grid mesh into a Shape, a BufferGenerator,
+ * or a StreamGenerator writing to a temporary file.  Run each generator in its own JVM, as the peak is measured for
+ * the whole heap.  The Shape needs a heap of a couple of gigabytes for the default size, the others run with -Xmx64m.
+ * The buffer generator keeps the mesh in direct memory, so it also needs -XX:MaxDirectMemorySize=1g.
+ * <p/>
+ * Arguments: generator (shape, buffer or file, default buffer), grid side (default 2237, which gives 10M triangles).
+ */
+public final class GeneratorMemoryBenchmark {
+
+    public static void main(String[] args) throws IOException {
+        final String generatorType = args.length > 0 ? args[0] : "buffer";
+        final int side = args.length > 1 ? Integer.parseInt(args[1]) : 2237;
+
+        final Builtins builtins = Builtins.createDefault();
+        final String source = new ClasspathResourceLoader("benchmark/").loadResourceAsString("grid.shape");
+        final Prog prog = new GenLangDescentParser().parse(source);
+        new Resolver(builtins).resolve(prog);
+        final CompiledProgram program = new GenLangCompiler(builtins).compile(prog);
+        program.setBudget(ExecutionBudget.UNLIMITED);
+
+        final Map<String, Object> parameters = new HashMap<String, Object>();
+        parameters.put("n", (double) side);
+
+        System.gc();
+        final long baseline = ManagementFactory.getMemoryMXBean().getHeapMemoryUsage().getUsed();
+        for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+            pool.resetPeakUsage();
+        }
+
+        final long startTime = System.nanoTime();
+        final String result;
+        if (generatorType.equals("shape")) {
+            final Shape shape = program.generate(parameters, null);
+            result = shape.getVertexCount() + " vertexes, " + shape.getTriangleCount() + " triangles";
+        }
+        else if (generatorType.equals("buffer")) {
+            final BufferGenerator generator = new BufferGenerator();
+            program.generateTo(parameters, generator);
+            result = generator.getVertexCount() + " vertexes, " + generator.getTriangleCount() + " triangles";
+        }
+        else if (generatorType.equals("file")) {
+            final File file = File.createTempFile("generated", ".mesh");
+            file.deleteOnExit();
+            final OutputStream out = new BufferedOutputStream(new FileOutputStream(file));
+            try {
+                program.generateTo(parameters, new StreamGenerator(out));
+            } finally {
+                out.close();
+            }
+            result = file.length() / 1000000 + " MB file";
+            file.delete();
+        }
+        else {
+            throw new IllegalArgumentException("Unknown generator '" + generatorType + "', expected shape, buffer or file");
+        }
+        final long generateNanos = System.nanoTime() - startTime;
+
+        long peak = 0;
+        for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+            if (pool.getType() == MemoryType.HEAP) peak += pool.getPeakUsage().getUsed();
+        }
+
+        System.out.println(generatorType + ": " + result + " in " + String.format("%.0f ms", generateNanos / 1000000.0) +
+                           ", peak heap " + (peak - baseline) / 1000000 + " MB above baseline");
+    }
+}
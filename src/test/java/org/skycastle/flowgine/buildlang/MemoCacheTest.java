@@ -0,0 +1,192 @@
+package org.skycastle.flowgine.buildlang;
+
+import org.junit.Test;
+import org.skycastle.flowgine.buildlang.ast.Prog;
+import org.skycastle.flowgine.shape.Shape;
+
+import java.util.HashMap;
+
+import static org.junit.Assert.*;
+
+/**
+ * Checks that programs generate the same geometry with and without a MemoCache, with both the Interpreter and
+ * compiled programs, and that the cache stays within its bounds.
+ */
+public class MemoCacheTest {
+
+    private static final String STAMPED =
+            "// Emits geometry relative to the origin, and moves the origin\n" +
+            "fun num window(num w, num h) {\n" +
+            "    color(0.3, 0.3, 0.35)\n" +
+            "    box(0, 0, 0, w, h, 0.1)\n" +
+            "    translate(w + 0.5, 0, 0)\n" +
+            "    return -w * h\n" +
+            "}\n" +
+            "// Uses the current color and normal, so calls are keyed on them\n" +
+            "fun num tile(num s) {\n" +
+            "    quad(vertex(0, 0, 0), vertex(s, 0, 0), vertex(s, s, 0), vertex(0, s, 0))\n" +
+            "    return -s\n" +
+            "}\n" +
+            "// Leaves a changed color and normal behind, which a replayed call should restore\n" +
+            "fun num paint(num r) {\n" +
+            "    color(r, 0, 0)\n" +
+            "    normal(0, r, 1)\n" +
+            "    vertex(r, r, 0)\n" +
+            "    return -r\n" +
+            "}\n" +
+            "fun num generate() {\n" +
+            "    for num i in [0 .. 3] do {\n" +
+            "        window(1, 2)\n" +
+            "        window(2, 1)\n" +
+            "    }\n" +
+            "    translate(0, 5, 0)\n" +
+            "    for num c in [0 .. 3] do {\n" +
+            "        color(c / 3, 0.5, 0.5)\n" +
+            "        tile(1)\n" +
+            "        translate(0, 0, 1)\n" +
+            "        normal(0, 0, c)\n" +
+            "        tile(1)\n" +
+            "        paint(0.5)\n" +
+            "        vertex(0, 0, 3)\n" +
+            "        translate(2, 0, 0)\n" +
+            "    }\n" +
+            "}\n";
+
+    private static final String EARLIER_VERTEXES =
+            "num rows = 4\n" +
+            "// Refers to vertexes created before the call\n" +
+            "fun num connect(num a, num b, num c) {\n" +
+            "    triangle(a, b, vertex(c, c, 1))\n" +
+            "    return c\n" +
+            "}\n" +
+            "// Returns one of its own vertexes, which would have another index in a copy\n" +
+            "fun num corner(num x) = vertex(x, 0, 0)\n" +
+            "fun num generate() {\n" +
+            "    for num i in [0 .. rows] do {\n" +
+            "        num a = corner(1)\n" +
+            "        num b = corner(2)\n" +
+            "        translate(0, 1, 0)\n" +
+            "        connect(a, b, 1)\n" +
+            "    }\n" +
+            "}\n";
+
+    // Reading a global keeps generate itself from being memoized
+    private static final String CUBES =
+            "num first = 1\n" +
+            "fun num cube(num s) {\n" +
+            "    box(0, 0, 0, s, s, s)\n" +
+            "    return -s\n" +
+            "}\n" +
+            "fun num generate() {\n" +
+            "    cube(first)\n" +
+            "    cube(2)\n" +
+            "    cube(1)\n" +
+            "    cube(3)\n" +
+            "    cube(1)\n" +
+            "    cube(2)\n" +
+            "}\n";
+
+    private final Builtins builtins = Builtins.createDefault();
+
+    @Test
+    public void testStampedGeometryMatchesDirectGeneration() throws Exception {
+        final MemoCache cache = assertSameWithCache(STAMPED);
+        assertTrue("Repeated calls should be replayed: " + cache, cache.getHits() > 0);
+
+        // Calls with another color or normal are stored separately
+        assertTrue(cache.size() > 4);
+    }
+
+    @Test
+    public void testCallsReferringToEarlierVertexesAreNotStamped() throws Exception {
+        final MemoCache cache = assertSameWithCache(EARLIER_VERTEXES);
+        assertEquals("Nothing should be stored: " + cache, 0, cache.size());
+        assertEquals(0, cache.getHits());
+    }
+
+    @Test
+    public void testLeastRecentlyUsedCallsAreDropped() throws Exception {
+        final MemoCache cache = new MemoCache(2, MemoCache.DEFAULT_MAX_VERTEXES);
+        final Interpreter interpreter = new Interpreter(parse(CUBES), builtins);
+        interpreter.setMemoCache(cache);
+        interpreter.generate(new HashMap<String, Object>(), null);
+
+        // cube(2) is dropped by cube(3), and cube(3) by the last cube(2)
+        assertEquals(2, cache.size());
+        assertEquals(2, cache.getHits());
+        assertEquals(4, cache.getMisses());
+    }
+
+    @Test
+    public void testStoredVertexesAreBounded() throws Exception {
+        final Prog prog = parse(CUBES);
+        final int cubeVertexes = new Interpreter(parse("fun num generate() = box(0, 0, 0, 1, 1, 1)\n"), builtins)
+                .generate(new HashMap<String, Object>(), null).getVertexCount();
+
+        // Room for one cube at a time
+        final MemoCache oneCube = new MemoCache(100, cubeVertexes);
+        final CompiledProgram program = new GenLangCompiler(builtins).compile(prog);
+        program.setMemoCache(oneCube);
+        final Shape shape = program.generate(new HashMap<String, Object>(), null);
+        assertEquals(6 * cubeVertexes, shape.getVertexCount());
+        assertEquals(1, oneCube.size());
+        assertEquals(cubeVertexes, oneCube.getVertexCount());
+        assertEquals(0, oneCube.getHits());
+        assertEquals(6, oneCube.getMisses());
+
+        // Cubes do not fit at all
+        final MemoCache tooSmall = new MemoCache(100, cubeVertexes - 1);
+        program.setMemoCache(tooSmall);
+        program.generate(new HashMap<String, Object>(), null);
+        assertEquals(0, tooSmall.size());
+        assertEquals(0, tooSmall.getVertexCount());
+        assertEquals(0, tooSmall.getHits());
+    }
+
+    /**
+     * Generates the program without a cache, and twice with a cache shared by the interpreter and the compiled
+     * program, so that the second builds replay calls stored by the first.
+     *
+     * @return the cache.
+     */
+    private MemoCache assertSameWithCache(String source) {
+        final Prog prog = parse(source);
+        final Shape expected = new Interpreter(prog, builtins).generate(new HashMap<String, Object>(), null);
+        assertTrue(expected.getVertexCount() > 0);
+
+        final MemoCache cache = new MemoCache();
+        final Interpreter interpreter = new Interpreter(prog, builtins);
+        interpreter.setMemoCache(cache);
+        final CompiledProgram program = new GenLangCompiler(builtins).compile(prog);
+        program.setMemoCache(cache);
+
+        for (int build = 0; build < 2; build++) {
+            assertSameGeometry("Interpreted build " + build, expected, interpreter.generate(new HashMap<String, Object>(), null));
+            assertSameGeometry("Compiled build " + build, expected, program.generate(new HashMap<String, Object>(), null));
+        }
+        return cache;
+    }
+
+    private static void assertSameGeometry(String name, Shape expected, Shape actual) {
+        assertEquals(name + " vertex count", expected.getVertexCount(), actual.getVertexCount());
+        for (int i = 0; i < expected.getVertexCount(); i++) {
+            // Stamped copies are moved to the origin, which may round differently
+            assertEquals(name + " x of vertex " + i, expected.pos(i).x, actual.pos(i).x, 0.0001f);
+            assertEquals(name + " y of vertex " + i, expected.pos(i).y, actual.pos(i).y, 0.0001f);
+            assertEquals(name + " z of vertex " + i, expected.pos(i).z, actual.pos(i).z, 0.0001f);
+            assertEquals(name + " normal of vertex " + i, expected.normal(i), actual.normal(i));
+            assertEquals(name + " color of vertex " + i, expected.color(i), actual.color(i));
+        }
+
+        assertEquals(name + " index count", expected.getIndexListSize(), actual.getIndexListSize());
+        for (int i = 0; i < expected.getIndexListSize(); i++) {
+            assertEquals(name + " index " + i, expected.index(i), actual.index(i));
+        }
+    }
+
+    private Prog parse(String source) {
+        final Prog parsed = new GenLangDescentParser().parse(source);
+        new Resolver(builtins).resolve(parsed);
+        return parsed;
+    }
+}
@@ -0,0 +1,84 @@
+package org.skycastle.flowgine.buildlang;
+
+import org.parboiled.Parboiled;
+import org.parboiled.parserunners.ReportingParseRunner;
+import org.parboiled.support.ParsingResult;
+import org.skycastle.flowgine.buildlang.ast.Node;
+import org.skycastle.flowgine.resourceloader.ClasspathResourceLoader;
+
+/**
+ * Measures the parsing throughput of GenLangDescentParser and the parboiled based GenLangParser, in megabytes of
+ * source per second, on a source made by repeating the programs in the parser and shapes test resources.
+ * The time to create the parboiled parser is shown separately, as it is only paid on first use.
+ * <p/>
+ * Arguments: source size in kilobytes (default 500), number of measured rounds (default 10).
+ */
+public final class ParserBenchmark {
+
+    private static final int WARMUP_ROUNDS = 5;
+
+    private static final String[] SOURCES = {
+            "parser/expressions.shape",
+            "parser/statements.shape",
+            "parser/functions.shape",
+            "parser/collections.shape",
+            "parser/comments.shape",
+            "shapes/building.shape",
+            "shapes/control.shape",
+            "shapes/noreturn.shape",
+            "shapes/parallel.shape",
+            "shapes/terrain.shape",
+    };
+
+    public static void main(String[] args) {
+        final int kilobytes = args.length > 0 ? Integer.parseInt(args[0]) : 500;
+        final int roundCount = args.length > 1 ? Integer.parseInt(args[1]) : 10;
+
+        final ClasspathResourceLoader resourceLoader = new ClasspathResourceLoader("");
+        final StringBuilder builder = new StringBuilder();
+        while (builder.length() < kilobytes * 1024) {
+            for (String name : SOURCES) {
+                builder.append(resourceLoader.loadResourceAsString(name)).append('\n');
+            }
+        }
+        final String source = builder.toString();
+
+        long startTime = System.nanoTime();
+        final GenLangParser parboiledParser = Parboiled.createParser(GenLangParser.class);
+        final long createNanos = System.nanoTime() - startTime;
+
+        final GenLangDescentParser descentParser = new GenLangDescentParser();
+
+        long descentNanos = Long.MAX_VALUE;
+        long parboiledNanos = Long.MAX_VALUE;
+        for (int round = -WARMUP_ROUNDS; round < roundCount; round++) {
+            startTime = System.nanoTime();
+            descentParser.parse(source);
+            final long descentTime = System.nanoTime() - startTime;
+
+            startTime = System.nanoTime();
+            final ParsingResult<Node> result = new ReportingParseRunner<Node>(parboiledParser.program()).run(source);
+            final long parboiledTime = System.nanoTime() - startTime;
+            if (result.hasErrors()) throw new IllegalStateException("GenLangParser could not parse the benchmark source");
+
+            if (round >= 0) {
+                descentNanos = Math.min(descentNanos, descentTime);
+                parboiledNanos = Math.min(parboiledNanos, parboiledTime);
+            }
+        }
+
+        final double megabytes = source.length() / (1024.0 * 1024.0);
+        System.out.println("Source:                 " + String.format("%.2f MB", megabytes));
+        System.out.println("GenLangDescentParser:   " + formatMillis(descentNanos) + formatThroughput(megabytes, descentNanos));
+        System.out.println("GenLangParser:          " + formatMillis(parboiledNanos) + formatThroughput(megabytes, parboiledNanos));
+        System.out.println("Creating GenLangParser: " + formatMillis(createNanos));
+    }
+
+    private static String formatThroughput(double megabytes, long nanos) {
+        return String.format(" (%.1f MB/s)", megabytes / (nanos / 1000000000.0));
+    }
+
+    private static String formatMillis(long nanos) {
+        return String.format("%.3f ms", nanos / 1000000.0);
+    }
+}
@@ -0,0 +1,118 @@
+package org.skycastle.flowgine.buildlang;
+
+import org.junit.Test;
+import org.parboiled.Parboiled;
+import org.parboiled.parserunners.ReportingParseRunner;
+import org.parboiled.support.ParsingResult;
+import org.skycastle.flowgine.buildlang.ast.*;
+import org.skycastle.flowgine.resourceloader.ClasspathResourceLoader;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * Checks that GenLangDescentParser produces the same syntax trees, with the same source positions, as the parboiled
+ * based GenLangParser for the programs in the parser and shapes test resources, and that both reject the same
+ * invalid programs.
+ */
+public class ParserConformanceTest {
+
+    private static final String[] CORPUS = {
+            "parser/expressions.shape",
+            "parser/statements.shape",
+            "parser/functions.shape",
+            "parser/collections.shape",
+            "parser/comments.shape",
+            "shapes/building.shape",
+            "shapes/control.shape",
+            "shapes/noreturn.shape",
+            "shapes/parallel.shape",
+            "shapes/terrain.shape",
+    };
+
+    private static final String[] INVALID = {
+            "fun num generate() {\n  num a = 1 +\n}",
+            "num = 3",
+            "num x = [1, 2",
+            "fun num f(num a,) = a",
+            "fun num f() { for num i in [0 .. 3] vertex(i, 0, 0) }",
+            "num x = 1 2",
+            "num if = 3",
+            "num x = 1 /* unterminated comment",
+    };
+
+    private final ClasspathResourceLoader resourceLoader = new ClasspathResourceLoader("");
+    private final GenLangParser parboiledParser = Parboiled.createParser(GenLangParser.class);
+
+    @Test
+    public void testCorpusGivesSameTrees() throws Exception {
+        for (String name : CORPUS) {
+            final String source = resourceLoader.loadResourceAsString(name);
+
+            final ParsingResult<Node> expected = new ReportingParseRunner<Node>(parboiledParser.program()).run(source);
+            assertFalse(name + " should be valid", expected.hasErrors());
+
+            assertEquals(name, dump(expected.resultValue), dump(new GenLangDescentParser().parse(source)));
+        }
+    }
+
+    @Test
+    public void testInvalidProgramsAreRejected() throws Exception {
+        for (String source : INVALID) {
+            final ParsingResult<Node> expected = new ReportingParseRunner<Node>(parboiledParser.program()).run(source);
+            assertTrue("GenLangParser should reject: " + source, expected.hasErrors());
+
+            try {
+                new GenLangDescentParser().parse(source);
+                fail("GenLangDescentParser should reject: " + source);
+            } catch (IllegalStateException e) {
+                // Expected
+            }
+        }
+    }
+
+    /**
+     * @return the tree as text, one node per line, indented by depth.
+     */
+    private static String dump(Node root) {
+        final StringBuilder out = new StringBuilder();
+        dump(root, 0, out);
+        return out.toString();
+    }
+
+    private static void dump(Node node, int depth, StringBuilder out) {
+        for (int i = 0; i < depth; i++) {
+            out.append("  ");
+        }
+        out.append(node.getClass().getSimpleName()).append(describe(node));
+        out.append(" @").append(node.getLine()).append(':').append(node.getColumn()).append('\n');
+
+        final List<Node> children = new ArrayList<Node>();
+        Nodes.addChildren(node, children);
+        for (Node child : children) {
+            dump(child, depth + 1, out);
+        }
+    }
+
+    /**
+     * @return the values of the node that are not child nodes.
+     */
+    private static String describe(Node node) {
+        if (node instanceof VarDef) return (((VarDef) node).isConstant() ? " const " : " ") + ((VarDef) node).getName();
+        else if (node instanceof Fun) return " " + ((Fun) node).getName();
+        else if (node instanceof Param) return " " + ((Param) node).getName();
+        else if (node instanceof TypeRef) return " " + ((TypeRef) node).getTypeName();
+        else if (node instanceof Assign) return " " + ((Assign) node).getVariableName();
+        else if (node instanceof For) return (((For) node).isParallel() ? " parallel " : " ") + ((For) node).getIteratorName();
+        else if (node instanceof OperationNode) return " " + ((OperationNode) node).getOperator();
+        else if (node instanceof UnaryOp) return " " + ((UnaryOp) node).getOperator();
+        else if (node instanceof Call) return " " + ((Call) node).getName();
+        else if (node instanceof VarRef) return " " + ((VarRef) node).getName();
+        else if (node instanceof Num) return " " + ((Num) node).getValue();
+        else if (node instanceof BoolExpr) return " " + ((BoolExpr) node).getValue();
+        else if (node instanceof RangeExpr) return ((RangeExpr) node).isInclusive() ? " ..." : " ..";
+        else return "";
+    }
+}
@@ -0,0 +1,92 @@
+package org.skycastle.flowgine.buildlang;
+
+import org.skycastle.flowgine.resourceloader.ClasspathResourceLoader;
+
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * Measures how long a ProgCache takes to return a program when it has to parse the whole source (cold), when the
+ * program is already in memory (warm), when it is read from the cache directory, and when only one definition of
+ * a previously loaded source changed.  All times include resolving the program.
+ * <p/>
+ * Arguments: program in the shapes test resources (default building.shape), number of measured rounds (default 200).
+ */
+public final class ProgCacheBenchmark {
+
+    private static final int WARMUP_ROUNDS = 200;
+
+    public static void main(String[] args) throws IOException {
+        final String name = args.length > 0 ? args[0] : "building.shape";
+        final int roundCount = args.length > 1 ? Integer.parseInt(args[1]) : 200;
+
+        final Builtins builtins = Builtins.createDefault();
+        final String source = new ClasspathResourceLoader("shapes/").loadResourceAsString(name);
+
+        final File directory = File.createTempFile("progcache", "");
+        if (!directory.delete() || !directory.mkdir()) throw new IOException("Could not create " + directory);
+        final ProgCache stored = new ProgCache(builtins);
+        stored.setDirectory(directory);
+        stored.get(name, source);
+
+        final ProgCache warm = new ProgCache(builtins);
+        warm.get(name, source);
+
+        final ProgCache edited = new ProgCache(builtins);
+        edited.get(name, source);
+
+        long coldNanos = Long.MAX_VALUE;
+        long warmNanos = Long.MAX_VALUE;
+        long storedNanos = Long.MAX_VALUE;
+        long editedNanos = Long.MAX_VALUE;
+        try {
+            for (int round = -WARMUP_ROUNDS; round < roundCount; round++) {
+                long startTime = System.nanoTime();
+                new ProgCache(builtins).get(name, source);
+                final long coldTime = System.nanoTime() - startTime;
+
+                startTime = System.nanoTime();
+                warm.get(name, source);
+                final long warmTime = System.nanoTime() - startTime;
+
+                final ProgCache restarted = new ProgCache(builtins);
+                restarted.setDirectory(directory);
+                startTime = System.nanoTime();
+                restarted.get(name, source);
+                final long storedTime = System.nanoTime() - startTime;
+
+                // Each round adds a different definition at the end, so only that one needs to be parsed
+                final String editedSource = source + "\nnum benchmarkEdit = " + (round + WARMUP_ROUNDS) + "\n";
+                startTime = System.nanoTime();
+                edited.get(name, editedSource);
+                final long editedTime = System.nanoTime() - startTime;
+
+                if (round >= 0) {
+                    coldNanos = Math.min(coldNanos, coldTime);
+                    warmNanos = Math.min(warmNanos, warmTime);
+                    storedNanos = Math.min(storedNanos, storedTime);
+                    editedNanos = Math.min(editedNanos, editedTime);
+                }
+            }
+        }
+        finally {
+            final File[] files = directory.listFiles();
+            if (files != null) {
+                for (File file : files) {
+                    file.delete();
+                }
+            }
+            directory.delete();
+        }
+
+        System.out.println("Source:                 " + name + " (" + source.length() + " characters)");
+        System.out.println("Cold parse:             " + formatMillis(coldNanos));
+        System.out.println("Warm, in memory:        " + formatMillis(warmNanos));
+        System.out.println("From directory:         " + formatMillis(storedNanos));
+        System.out.println("One definition changed: " + formatMillis(editedNanos));
+    }
+
+    private static String formatMillis(long nanos) {
+        return String.format("%.3f ms", nanos / 1000000.0);
+    }
+}
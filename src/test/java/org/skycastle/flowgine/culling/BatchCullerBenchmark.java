@@ -0,0 +1,131 @@
+package org.skycastle.flowgine.culling;
+
+import org.skycastle.flowgine.geometry.Frustum;
+import org.skycastle.flowgine.utils.GeomUtils;
+
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * Compares the block-wise BatchCuller kernels to testing one object at a time with the Frustum methods, for spheres
+ * and boxes spread randomly in a cube shaped world with the camera at its center.
+ * <p/>
+ * The narrow view has a 60 degree vertical field of view and sees under a tenth of the objects, where the per object
+ * tests can reject most objects at the first plane.  The wide view has a 170 degree field of view and sees almost
+ * half of the objects.
+ * <p/>
+ * Arguments: object counts to measure, default 10000 100000 1000000.
+ */
+public final class BatchCullerBenchmark {
+
+    private static final int WARMUP_ROUNDS = 10;
+    private static final int REPEATS = 30;
+    private static final float SPACING = 10;
+    private static final float OBJECT_SIZE = 2;
+    private static final float ASPECT = 1.5f;
+    private static final float NEAR = 0.1f;
+
+    public static void main(String[] args) {
+        final int[] counts = args.length > 0 ? new int[args.length] : new int[]{10000, 100000, 1000000};
+        for (int i = 0; i < args.length; i++) {
+            counts[i] = Integer.parseInt(args[i]);
+        }
+
+        for (int count : counts) {
+            benchmark(count);
+        }
+    }
+
+    private static void benchmark(int count) {
+        final Random random = new Random(4);
+        final float worldSize = (float) Math.cbrt(count) * SPACING;
+
+        final float[] x = new float[count];
+        final float[] y = new float[count];
+        final float[] z = new float[count];
+        final float[] radius = new float[count];
+        final float[] minX = new float[count];
+        final float[] minY = new float[count];
+        final float[] minZ = new float[count];
+        final float[] maxX = new float[count];
+        final float[] maxY = new float[count];
+        final float[] maxZ = new float[count];
+        for (int i = 0; i < count; i++) {
+            x[i] = (random.nextFloat() - 0.5f) * worldSize;
+            y[i] = (random.nextFloat() - 0.5f) * worldSize;
+            z[i] = (random.nextFloat() - 0.5f) * worldSize;
+            radius[i] = OBJECT_SIZE / 2;
+            minX[i] = x[i] - radius[i];
+            minY[i] = y[i] - radius[i];
+            minZ[i] = z[i] - radius[i];
+            maxX[i] = x[i] + radius[i];
+            maxY[i] = y[i] + radius[i];
+            maxZ[i] = z[i] + radius[i];
+        }
+
+        final BatchCuller culler = new BatchCuller();
+        final long[] batched = new long[BatchCuller.getBitsetLength(count)];
+        final long[] perObject = new long[batched.length];
+
+        System.out.println(count + " objects:");
+        final String[] viewNames = {"narrow", "wide  "};
+        final Frustum[] views = {createView(60, worldSize / 2), createView(170, worldSize / 2)};
+        for (int view = 0; view < views.length; view++) {
+            final Frustum frustum = views[view];
+
+            long batchedSpheres = Long.MAX_VALUE;
+            long perObjectSpheres = Long.MAX_VALUE;
+            long batchedBoxes = Long.MAX_VALUE;
+            long perObjectBoxes = Long.MAX_VALUE;
+            int sphereCount = 0;
+            int boxCount = 0;
+            for (int round = -WARMUP_ROUNDS; round < REPEATS; round++) {
+                long startTime = System.nanoTime();
+                sphereCount = culler.cullSpheres(frustum, x, y, z, radius, count, batched);
+                final long batchedSpheresTime = System.nanoTime() - startTime;
+
+                startTime = System.nanoTime();
+                culler.cullSpheresPerObject(frustum, x, y, z, radius, count, perObject);
+                final long perObjectSpheresTime = System.nanoTime() - startTime;
+                checkSame(batched, perObject, "spheres");
+
+                startTime = System.nanoTime();
+                boxCount = culler.cullBoxes(frustum, minX, minY, minZ, maxX, maxY, maxZ, count, batched);
+                final long batchedBoxesTime = System.nanoTime() - startTime;
+
+                startTime = System.nanoTime();
+                culler.cullBoxesPerObject(frustum, minX, minY, minZ, maxX, maxY, maxZ, count, perObject);
+                final long perObjectBoxesTime = System.nanoTime() - startTime;
+                checkSame(batched, perObject, "boxes");
+
+                if (round >= 0) {
+                    batchedSpheres = Math.min(batchedSpheres, batchedSpheresTime);
+                    perObjectSpheres = Math.min(perObjectSpheres, perObjectSpheresTime);
+                    batchedBoxes = Math.min(batchedBoxes, batchedBoxesTime);
+                    perObjectBoxes = Math.min(perObjectBoxes, perObjectBoxesTime);
+                }
+            }
+
+            System.out.println("  " + viewNames[view] + " view: spheres batched " + formatMillis(batchedSpheres) +
+                               ", per object " + formatMillis(perObjectSpheres) + " (" + sphereCount + " visible)" +
+                               "; boxes batched " + formatMillis(batchedBoxes) +
+                               ", per object " + formatMillis(perObjectBoxes) + " (" + boxCount + " visible)");
+        }
+    }
+
+    private static void checkSame(long[] batched, long[] perObject, String objects) {
+        if (!Arrays.equals(batched, perObject)) {
+            throw new IllegalStateException("The batched and per object tests found different visible " + objects);
+        }
+    }
+
+    private static Frustum createView(float fieldOfViewDegrees, float far) {
+        final float top = NEAR * (float) Math.tan(Math.toRadians(fieldOfViewDegrees / 2));
+        final float right = top * ASPECT;
+        return new Frustum(GeomUtils.perspectiveProjection(-right, right, -top, top, NEAR, far, null));
+    }
+
+    private static String formatMillis(long nanos) {
+        return String.format("%.3f ms", nanos / 1000000.0);
+    }
+}
@@ -0,0 +1,105 @@
+package org.skycastle.flowgine.culling;
+
+import org.junit.Test;
+import org.skycastle.flowgine.geometry.Frustum;
+import org.skycastle.flowgine.utils.GeomUtils;
+
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class BatchCullerTest {
+
+    // Not a multiple of the block size or of 64, so that partial blocks and words are tested
+    private static final int COUNT = 5000;
+    private static final float WORLD_SIZE = 200;
+
+    private final Frustum frustum = new Frustum(GeomUtils.perspectiveProjection(-0.1f, 0.1f, -0.08f, 0.08f, 0.1f, 100, null));
+
+    @Test
+    public void testSpheresMatchPerObjectTests() throws Exception {
+        final Random random = new Random(3);
+        final float[] x = randomArray(random, WORLD_SIZE);
+        final float[] y = randomArray(random, WORLD_SIZE);
+        final float[] z = randomArray(random, WORLD_SIZE);
+        final float[] radius = randomArray(random, 5);
+        for (int i = 0; i < COUNT; i++) {
+            radius[i] = Math.abs(radius[i]);
+        }
+
+        final BatchCuller culler = new BatchCuller();
+        final long[] visible = new long[BatchCuller.getBitsetLength(COUNT)];
+        final int visibleCount = culler.cullSpheres(frustum, x, y, z, radius, COUNT, visible);
+
+        int expectedCount = 0;
+        for (int i = 0; i < COUNT; i++) {
+            final boolean expected = frustum.intersectsSphere(x[i], y[i], z[i], radius[i]);
+            assertEquals("Sphere " + i, expected, BatchCuller.isVisible(visible, i));
+            if (expected) expectedCount++;
+        }
+        assertEquals(expectedCount, visibleCount);
+        assertTrue("Some spheres should be visible and some not", visibleCount > 0 && visibleCount < COUNT);
+
+        final long[] perObject = new long[visible.length];
+        assertEquals(visibleCount, culler.cullSpheresPerObject(frustum, x, y, z, radius, COUNT, perObject));
+        assertArrayEquals(perObject, visible);
+    }
+
+    @Test
+    public void testBoxesMatchPerObjectTests() throws Exception {
+        final Random random = new Random(5);
+        final float[] minX = randomArray(random, WORLD_SIZE);
+        final float[] minY = randomArray(random, WORLD_SIZE);
+        final float[] minZ = randomArray(random, WORLD_SIZE);
+        final float[] maxX = new float[COUNT];
+        final float[] maxY = new float[COUNT];
+        final float[] maxZ = new float[COUNT];
+        for (int i = 0; i < COUNT; i++) {
+            maxX[i] = minX[i] + random.nextFloat() * 10;
+            maxY[i] = minY[i] + random.nextFloat() * 10;
+            maxZ[i] = minZ[i] + random.nextFloat() * 10;
+        }
+
+        final BatchCuller culler = new BatchCuller();
+        final long[] visible = new long[BatchCuller.getBitsetLength(COUNT)];
+        final int visibleCount = culler.cullBoxes(frustum, minX, minY, minZ, maxX, maxY, maxZ, COUNT, visible);
+
+        int expectedCount = 0;
+        for (int i = 0; i < COUNT; i++) {
+            final boolean expected = frustum.intersectsBox(minX[i], minY[i], minZ[i], maxX[i], maxY[i], maxZ[i]);
+            assertEquals("Box " + i, expected, BatchCuller.isVisible(visible, i));
+            if (expected) expectedCount++;
+        }
+        assertEquals(expectedCount, visibleCount);
+        assertTrue("Some boxes should be visible and some not", visibleCount > 0 && visibleCount < COUNT);
+
+        final long[] perObject = new long[visible.length];
+        assertEquals(visibleCount, culler.cullBoxesPerObject(frustum, minX, minY, minZ, maxX, maxY, maxZ, COUNT, perObject));
+        assertArrayEquals(perObject, visible);
+    }
+
+    @Test
+    public void testStaleBitsAreCleared() throws Exception {
+        // Behind the camera
+        final float[] zero = new float[6];
+        final float[] behind = {1000, 1000, 1000, 1000, 1000, 1000};
+        final float[] radius = {1, 1, 1, 1, 1, 1};
+        final long[] visible = {-1L};
+        assertEquals(0, new BatchCuller().cullSpheres(frustum, zero, zero, behind, radius, 6, visible));
+        assertEquals(0, visible[0]);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testTooShortBitsetIsRejected() throws Exception {
+        final float[] values = new float[65];
+        new BatchCuller().cullSpheres(frustum, values, values, values, values, 65, new long[1]);
+    }
+
+    private static float[] randomArray(Random random, float size) {
+        final float[] values = new float[COUNT];
+        for (int i = 0; i < COUNT; i++) {
+            values[i] = (random.nextFloat() - 0.5f) * size;
+        }
+        return values;
+    }
+}
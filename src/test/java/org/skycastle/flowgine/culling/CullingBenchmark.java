@@ -0,0 +1,121 @@
+package org.skycastle.flowgine.culling;
+
+import org.skycastle.flowgine.geometry.Bounds;
+import org.skycastle.flowgine.geometry.Frustum;
+import org.skycastle.flowgine.utils.GeomUtils;
+
+import java.util.Random;
+
+/**
+ * Compares frustum culling with the DynamicBvh to testing the bounds of every object, for boxes spread randomly
+ * in a cube shaped world with the camera at its center.
+ * <p/>
+ * The views have a 60 degree vertical field of view.  The far view reaches to the edge of the world and sees a few
+ * percent of the objects, the near view reaches a quarter of the way and sees well under one percent of them.
+ * The wide view has a 170 degree field of view and sees almost half of the objects, which is the worst case for the bvh.
+ * <p/>
+ * Arguments: object counts to measure, default 10000 100000 1000000.
+ */
+public final class CullingBenchmark {
+
+    private static final int REPEATS = 20;
+    private static final float SPACING = 10;
+    private static final float OBJECT_SIZE = 2;
+    private static final float ASPECT = 1.5f;
+    private static final float NEAR = 0.1f;
+
+    public static void main(String[] args) {
+        final int[] counts = args.length > 0 ? new int[args.length] : new int[]{10000, 100000, 1000000};
+        for (int i = 0; i < args.length; i++) {
+            counts[i] = Integer.parseInt(args[i]);
+        }
+
+        for (int count : counts) {
+            benchmark(count);
+        }
+    }
+
+    private static void benchmark(int count) {
+        final Random random = new Random(4);
+        final float worldSize = (float) Math.cbrt(count) * SPACING;
+
+        final Bounds[] bounds = new Bounds[count];
+        for (int i = 0; i < count; i++) {
+            final float x = (random.nextFloat() - 0.5f) * worldSize;
+            final float y = (random.nextFloat() - 0.5f) * worldSize;
+            final float z = (random.nextFloat() - 0.5f) * worldSize;
+            final float r = OBJECT_SIZE / 2;
+            bounds[i] = new Bounds(x - r, y - r, z - r, x + r, y + r, z + r);
+        }
+
+        final DynamicBvh bvh = new DynamicBvh(0.5f, count * 2);
+        final int[] proxies = new int[count];
+        final long buildStart = System.nanoTime();
+        for (int i = 0; i < count; i++) {
+            proxies[i] = bvh.insert(bounds[i], bounds[i]);
+        }
+        final long buildNanos = System.nanoTime() - buildStart;
+
+        // Move a tenth of the objects by up to one object size
+        final long moveStart = System.nanoTime();
+        int changed = 0;
+        for (int i = 0; i < count / 10; i++) {
+            final int index = random.nextInt(count);
+            final Bounds b = bounds[index];
+            final float dx = random.nextFloat() * OBJECT_SIZE;
+            b.setBox(b.minX + dx, b.minY, b.minZ, b.maxX + dx, b.maxY, b.maxZ);
+            if (bvh.move(proxies[index], b)) changed++;
+        }
+        final long moveNanos = System.nanoTime() - moveStart;
+
+        System.out.println(count + " objects: build " + formatMillis(buildNanos) +
+                           ", height " + bvh.getHeight() +
+                           ", moving " + count / 10 + " took " + formatMillis(moveNanos) + " (" + changed + " changed the tree)");
+
+        final int[] visible = new int[count];
+        final String[] viewNames = {"near", "far ", "wide"};
+        final Frustum[] views = {createView(60, worldSize / 8),
+                                 createView(60, worldSize / 2),
+                                 createView(170, worldSize / 2)};
+        for (int view = 0; view < views.length; view++) {
+            final String name = viewNames[view];
+            final Frustum frustum = views[view];
+
+            long bvhNanos = Long.MAX_VALUE;
+            long bruteNanos = Long.MAX_VALUE;
+            int bvhVisible = 0;
+            int bruteVisible = 0;
+            for (int repeat = 0; repeat < REPEATS; repeat++) {
+                final long bvhStart = System.nanoTime();
+                bvhVisible = bvh.cull(frustum, visible);
+                bvhNanos = Math.min(bvhNanos, System.nanoTime() - bvhStart);
+
+                final long bruteStart = System.nanoTime();
+                bruteVisible = 0;
+                for (int i = 0; i < count; i++) {
+                    if (frustum.intersects(bounds[i])) bruteVisible++;
+                }
+                bruteNanos = Math.min(bruteNanos, System.nanoTime() - bruteStart);
+            }
+
+            // The bvh uses enlarged boxes, so it may return a few more objects than are visible
+            if (bvhVisible < bruteVisible) {
+                throw new IllegalStateException("The bvh found " + bvhVisible + " objects, but " + bruteVisible + " are visible");
+            }
+
+            System.out.println("  " + name + " view: bvh " + formatMillis(bvhNanos) + " (" + bvhVisible + " visible, " +
+                               bvh.getNodesVisited() + " nodes visited), every object " + formatMillis(bruteNanos) +
+                               " (" + bruteVisible + " visible)");
+        }
+    }
+
+    private static Frustum createView(float fieldOfViewDegrees, float far) {
+        final float top = NEAR * (float) Math.tan(Math.toRadians(fieldOfViewDegrees / 2));
+        final float right = top * ASPECT;
+        return new Frustum(GeomUtils.perspectiveProjection(-right, right, -top, top, NEAR, far, null));
+    }
+
+    private static String formatMillis(long nanos) {
+        return String.format("%.3f ms", nanos / 1000000.0);
+    }
+}
@@ -0,0 +1,80 @@
+package org.skycastle.flowgine.culling;
+
+import org.junit.Test;
+import org.skycastle.flowgine.geometry.Bounds;
+import org.skycastle.flowgine.geometry.Frustum;
+import org.skycastle.flowgine.utils.GeomUtils;
+
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class DynamicBvhTest {
+
+    private static final int COUNT = 10000;
+
+    @Test
+    public void testSortedInsertsStayBalanced() throws Exception {
+        final DynamicBvh bvh = new DynamicBvh();
+        for (int i = 0; i < COUNT; i++) {
+            bvh.insert(new Bounds(i, 0, 0, i + 1, 1, 1), null);
+        }
+
+        assertEquals(COUNT, bvh.getProxyCount());
+        assertTrue("Height " + bvh.getHeight() + " is not logarithmic", bvh.getHeight() <= 2 * log2(COUNT) + 1);
+    }
+
+    @Test
+    public void testCullMatchesBruteForceAfterChanges() throws Exception {
+        final Random random = new Random(1);
+        final DynamicBvh bvh = new DynamicBvh(0, 16);
+        final Bounds[] bounds = new Bounds[COUNT];
+        final int[] proxies = new int[COUNT];
+        for (int i = 0; i < COUNT; i++) {
+            bounds[i] = randomBounds(random);
+            proxies[i] = bvh.insert(bounds[i], i);
+        }
+
+        // Remove every other object and move the rest
+        for (int i = 0; i < COUNT; i += 2) {
+            bvh.remove(proxies[i]);
+            bounds[i] = null;
+        }
+        for (int i = 1; i < COUNT; i += 2) {
+            bounds[i] = randomBounds(random);
+            bvh.move(proxies[i], bounds[i]);
+        }
+
+        assertEquals(COUNT / 2, bvh.getProxyCount());
+        assertTrue("Height " + bvh.getHeight() + " is not logarithmic", bvh.getHeight() <= 2 * log2(COUNT) + 1);
+
+        final Frustum frustum = new Frustum(GeomUtils.perspectiveProjection(-0.1f, 0.1f, -0.1f, 0.1f, 0.1f, 50f, null));
+        final int[] visible = new int[COUNT];
+        final int visibleCount = bvh.cull(frustum, visible);
+
+        final boolean[] found = new boolean[COUNT];
+        for (int i = 0; i < visibleCount; i++) {
+            found[(Integer) bvh.getUserData(visible[i])] = true;
+        }
+
+        int expectedCount = 0;
+        for (int i = 0; i < COUNT; i++) {
+            final boolean expected = bounds[i] != null && frustum.intersects(bounds[i]);
+            if (expected) expectedCount++;
+            assertEquals("Visibility of object " + i, expected, found[i]);
+        }
+        assertEquals(expectedCount, visibleCount);
+        assertTrue(visibleCount > 0);
+    }
+
+    private Bounds randomBounds(Random random) {
+        final float x = (random.nextFloat() - 0.5f) * 100;
+        final float y = (random.nextFloat() - 0.5f) * 100;
+        final float z = (random.nextFloat() - 0.5f) * 100;
+        return new Bounds(x, y, z, x + 1, y + 1, z + 1);
+    }
+
+    private int log2(int value) {
+        return 32 - Integer.numberOfLeadingZeros(value - 1);
+    }
+}
@@ -0,0 +1,273 @@
+package org.skycastle.flowgine.engine;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.skycastle.flowgine.FlowGine;
+import org.skycastle.flowgine.geometry.Col4;
+import org.skycastle.flowgine.geometry.Vec3;
+import org.skycastle.flowgine.render.RecordingRenderBackend;
+import org.skycastle.flowgine.render.RenderBackend;
+import org.skycastle.flowgine.render.RenderQueue;
+import org.skycastle.flowgine.shader.Shader;
+import org.skycastle.flowgine.shader.ShaderManager;
+import org.skycastle.flowgine.shader.ShaderRef;
+import org.skycastle.flowgine.shape.ShapeManager;
+import org.skycastle.flowgine.shape.ShapeRef;
+import org.skycastle.flowgine.spatial.SpatialShape;
+import org.skycastle.flowgine.utils.GLErrorCheckMode;
+import org.skycastle.flowgine.utils.GeomUtils;
+import org.skycastle.flowgine.utils.OpenGLUtils;
+
+import static org.junit.Assert.*;
+
+public class ThreadedEngineTest {
+
+    private static final long TIMEOUT_MILLIS = 10000;
+
+    private final ShapeRef shapeRef = new ShapeRef("cube");
+    private final ShaderRef shaderRef = new ShaderRef("plain.vert", "plain.frag");
+
+    private RenderBackend originalBackend;
+    private ShapeManager originalShapeManager;
+    private ShaderManager originalShaderManager;
+
+    @Before
+    public void setUp() throws Exception {
+        originalBackend = FlowGine.renderBackend;
+        originalShapeManager = FlowGine.shapeManager;
+        originalShaderManager = FlowGine.shaderManager;
+        FlowGine.renderBackend = new RecordingRenderBackend(false);
+        FlowGine.shapeManager = new ShapeManager();
+        FlowGine.shaderManager = new ShaderManager();
+        OpenGLUtils.setErrorCheckMode(GLErrorCheckMode.OFF);
+
+        FlowGine.shapeManager.add(shapeRef, GeomUtils.makeCube(new Vec3(), new Vec3(1, 1, 1), new Col4(), null));
+        FlowGine.shaderManager.add(shaderRef, new Shader("plain.vert", "void main() {}", "plain.frag", "void main() {}"));
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        FlowGine.renderBackend = originalBackend;
+        FlowGine.shapeManager = originalShapeManager;
+        FlowGine.shaderManager = originalShaderManager;
+    }
+
+    @Test
+    public void testTripleBufferConsumerGetsLatest() throws Exception {
+        final TripleBuffer<int[]> buffer = new TripleBuffer<int[]>(new int[1], new int[1], new int[1]);
+        assertFalse(buffer.consume());
+
+        for (int i = 1; i <= 3; i++) {
+            buffer.getWriteBuffer()[0] = i;
+            buffer.publish();
+        }
+        assertTrue(buffer.consume());
+        assertEquals(3, buffer.getReadBuffer()[0]);
+        assertFalse("Nothing new was published", buffer.consume());
+        assertEquals(3, buffer.getReadBuffer()[0]);
+
+        buffer.getWriteBuffer()[0] = 4;
+        buffer.publish();
+        assertTrue(buffer.consume());
+        assertEquals(4, buffer.getReadBuffer()[0]);
+
+        assertEquals(4, buffer.getPublishedCount());
+        assertEquals(2, buffer.getConsumedCount());
+    }
+
+    @Test
+    public void testSnapshotIsNotAffectedByLaterChanges() throws Exception {
+        final SpatialShape spatial = new SpatialShape(shapeRef, shaderRef);
+        spatial.create();
+        spatial.getPosition().set(1, 2, 3);
+        spatial.getShaderParameters().put("color", 1f);
+        spatial.setLayer(2);
+
+        final FrameSnapshot snapshot = new FrameSnapshot(1);
+        snapshot.clear(7, 1.5);
+        snapshot.add(spatial);
+
+        spatial.getPosition().set(10, 20, 30);
+        spatial.getShaderParameters().put("color", 2f);
+        spatial.setLayer(3);
+
+        assertEquals(1, snapshot.size());
+        assertSame(spatial, snapshot.getSpatial(0));
+        assertSame(spatial.getShape(), snapshot.getShape(0));
+        assertEquals(1f, snapshot.getTransforms()[12], 0);
+        assertEquals(3f, snapshot.getTransforms()[14], 0);
+        assertEquals(1f, snapshot.getShaderParameters(0).get("color"));
+
+        final RenderQueue renderQueue = new RenderQueue();
+        snapshot.submit(renderQueue);
+        assertEquals(1, renderQueue.size());
+
+        spatial.dispose();
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void testShapesMustBeCreatedBeforeTheyAreAdded() throws Exception {
+        new FrameSnapshot().add(new SpatialShape(shapeRef, shaderRef));
+    }
+
+    @Test
+    public void testSnapshotsAreHandedToTheRenderThread() throws Exception {
+        final SpatialShape spatial = new SpatialShape(shapeRef, shaderRef);
+        spatial.create();
+
+        final CountingSimulation simulation = new CountingSimulation(spatial);
+        final ThreadedEngine engine = new ThreadedEngine(simulation, 1000);
+        final RenderQueue renderQueue = new RenderQueue();
+
+        engine.start();
+        long previousStep = -1;
+        final long deadline = System.currentTimeMillis() + TIMEOUT_MILLIS;
+        while (engine.getConsumedCount() < 20 && System.currentTimeMillis() < deadline) {
+            renderQueue.clear();
+            if (engine.submitLatest(renderQueue)) {
+                // Each new snapshot is later than the previous one, and has the position of its own step
+                final FrameSnapshot snapshot = engine.getRenderSnapshot();
+                final long step = snapshot.getFrameNumber();
+                assertTrue(step > previousStep);
+                assertEquals(step, (long) snapshot.getTransforms()[12]);
+                previousStep = step;
+            }
+            assertEquals(previousStep < 0 ? 0 : 1, renderQueue.size());
+            Thread.sleep(2);
+        }
+        engine.stop();
+
+        assertFalse(engine.isRunning());
+        assertEquals(20, engine.getConsumedCount());
+        assertTrue(engine.getPublishedCount() >= engine.getConsumedCount());
+        assertEquals(simulation.steps, engine.getPublishedCount());
+
+        // Nothing is published after stopping
+        final int publishedCount = engine.getPublishedCount();
+        Thread.sleep(20);
+        assertEquals(publishedCount, engine.getPublishedCount());
+
+        spatial.dispose();
+    }
+
+    @Test
+    public void testTransformsAreInterpolatedFromThePreviousSnapshot() throws Exception {
+        final SpatialShape spatial = new SpatialShape(shapeRef, shaderRef);
+        final SpatialShape other = new SpatialShape(shapeRef, shaderRef);
+        spatial.create();
+        other.create();
+
+        final FrameSnapshot previous = new FrameSnapshot();
+        previous.clear(0, 0.1, 0.1, 0, 0);
+        previous.add(spatial);
+        previous.add(other);
+
+        spatial.getPosition().x = 10;
+        final FrameSnapshot latest = new FrameSnapshot();
+        latest.clear(1, 0.2, 0.1, 0.25f, 1000000000L);
+        latest.add(spatial);
+        latest.add(spatial);
+
+        final float[] transform = new float[16];
+        latest.getInterpolatedTransform(0, previous, 0.25f, transform, 0);
+        assertEquals(2.5f, transform[12], 0.0001f);
+        assertEquals(1f, transform[15], 0);
+
+        // Shapes that are not at the same index in the previous snapshot jump to their latest position
+        latest.getInterpolatedTransform(1, previous, 0.25f, transform, 0);
+        assertEquals(10f, transform[12], 0);
+
+        // Half a step after the snapshot was taken
+        assertEquals(0.75f, latest.getAlpha(1050000000L), 0.0001f);
+        assertEquals(1f, latest.getAlpha(2000000000L), 0);
+
+        final FrameSnapshot copy = new FrameSnapshot(1);
+        copy.set(latest);
+        assertEquals(2, copy.size());
+        assertEquals(1, copy.getFrameNumber());
+        assertEquals(0.25f, copy.getAlpha(), 0);
+        assertEquals(10f, copy.getTransforms()[16 + 12], 0);
+
+        spatial.dispose();
+        other.dispose();
+    }
+
+    @Test
+    public void testFixedStepEngineKeepsThePreviousSnapshot() throws Exception {
+        final SpatialShape spatial = new SpatialShape(shapeRef, shaderRef);
+        spatial.create();
+
+        final CountingSimulation simulation = new CountingSimulation(spatial);
+        final ThreadedEngine engine = new ThreadedEngine(simulation, new EngineClock(200));
+        final RenderQueue renderQueue = new RenderQueue();
+
+        engine.start();
+        final long deadline = System.currentTimeMillis() + TIMEOUT_MILLIS;
+        while (engine.getConsumedCount() < 10 && System.currentTimeMillis() < deadline) {
+            renderQueue.clear();
+            if (engine.submitLatest(renderQueue) && engine.getConsumedCount() > 1) {
+                final FrameSnapshot latest = engine.getRenderSnapshot();
+                final FrameSnapshot previous = engine.getPreviousRenderSnapshot();
+                assertTrue(previous.getFrameNumber() < latest.getFrameNumber());
+                assertTrue(previous.getTransforms()[12] < latest.getTransforms()[12]);
+                assertEquals(0.005, latest.getStepSeconds(), 0.000001);
+                assertEquals(1, renderQueue.size());
+            }
+
+            final float alpha = engine.getRenderAlpha();
+            assertTrue(alpha >= 0 && alpha <= 1);
+            Thread.sleep(3);
+        }
+        engine.stop();
+
+        assertEquals(10, engine.getConsumedCount());
+
+        spatial.dispose();
+    }
+
+    @Test
+    public void testSimulationErrorsReachTheRenderThread() throws Exception {
+        final ThreadedEngine engine = new ThreadedEngine(new Simulation() {
+            public void simulate(double deltaSeconds, double gameTimeSeconds) {
+                throw new IllegalArgumentException("Broken simulation");
+            }
+
+            public void takeSnapshot(FrameSnapshot snapshot) {
+            }
+        }, 0);
+
+        engine.start();
+        final long deadline = System.currentTimeMillis() + TIMEOUT_MILLIS;
+        while (engine.isRunning() && System.currentTimeMillis() < deadline) {
+            Thread.sleep(1);
+        }
+
+        try {
+            engine.consumeLatest();
+            fail("The simulation error should be rethrown");
+        } catch (IllegalStateException e) {
+            assertTrue(e.getCause() instanceof IllegalArgumentException);
+        }
+    }
+
+    /**
+     * Moves a shape one unit along the x axis each step, so that the snapshots show which step they were taken after.
+     */
+    private static final class CountingSimulation implements Simulation {
+        private final SpatialShape spatial;
+        private volatile int steps = 0;
+
+        private CountingSimulation(SpatialShape spatial) {
+            this.spatial = spatial;
+        }
+
+        public void simulate(double deltaSeconds, double gameTimeSeconds) {
+            spatial.getPosition().x = steps++;
+        }
+
+        public void takeSnapshot(FrameSnapshot snapshot) {
+            snapshot.add(spatial);
+        }
+    }
+}
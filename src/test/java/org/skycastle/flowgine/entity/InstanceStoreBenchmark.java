@@ -0,0 +1,138 @@
+package org.skycastle.flowgine.entity;
+
+import org.skycastle.flowgine.FlowGine;
+import org.skycastle.flowgine.render.RecordingRenderBackend;
+import org.skycastle.flowgine.render.RenderQueue;
+import org.skycastle.flowgine.render.StateCachingRenderBackend;
+import org.skycastle.flowgine.resourceloader.ClasspathResourceLoader;
+import org.skycastle.flowgine.shader.ShaderRef;
+import org.skycastle.flowgine.shape.ShapeRef;
+import org.skycastle.flowgine.spatial.SpatialShape;
+import org.skycastle.flowgine.utils.GLErrorCheckMode;
+import org.skycastle.flowgine.utils.OpenGLUtils;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+/**
+ * Compares updating and submitting instances stored as SpatialShape objects to the same instances in an InstanceStore.
+ * Each frame moves every instance, calculates its transformation, and submits it to a render queue.
+ * The update alone, without the render queue, is also measured.
+ * Runs headless on a RecordingRenderBackend.
+ * <p/>
+ * Arguments: number of instances (default 50000), number of measured frames (default 30).
+ */
+public final class InstanceStoreBenchmark {
+
+    private static final int VARIANT_COUNT = 4;
+    private static final int WARMUP_FRAMES = 10;
+    private static final float DELTA_SECONDS = 0.01f;
+
+    public static void main(String[] args) {
+        final int count = args.length > 0 ? Integer.parseInt(args[0]) : 50000;
+        final int frameCount = args.length > 1 ? Integer.parseInt(args[1]) : 30;
+
+        FlowGine.renderBackend = new StateCachingRenderBackend(new RecordingRenderBackend());
+        FlowGine.resourceLoader = new ClasspathResourceLoader("benchmark/");
+        OpenGLUtils.setErrorCheckMode(GLErrorCheckMode.OFF);
+
+        final ShaderRef shaderRef = new ShaderRef("instance.vert", "instance.frag");
+        final ShapeRef[] shapeRefs = new ShapeRef[VARIANT_COUNT];
+        for (int i = 0; i < VARIANT_COUNT; i++) {
+            final Map<String, Object> parameters = new HashMap<String, Object>();
+            parameters.put("size", 1.0 + i);
+            shapeRefs[i] = new ShapeRef("rock.shape", parameters);
+        }
+
+        final Random random = new Random(1);
+        final List<SpatialShape> objects = new ArrayList<SpatialShape>();
+        final InstanceStore store = new InstanceStore(count);
+        for (int i = 0; i < count; i++) {
+            final float x = random.nextFloat() * 1000;
+            final float z = random.nextFloat() * 1000;
+
+            final SpatialShape object = new SpatialShape(shapeRefs[i % VARIANT_COUNT], shaderRef);
+            object.getPosition().set(x, 0, z);
+            object.getShaderParameters().put("tint", 0.5f);
+            object.create();
+            objects.add(object);
+
+            final int entity = store.create(shapeRefs[i % VARIANT_COUNT], shaderRef, 0, false);
+            store.setPosition(entity, x, 0, z);
+            store.setParameters(entity, 0.5f, 0, 0, 0);
+        }
+
+        final InstanceSystem rise = new InstanceSystem() {
+            public void update(Archetype archetype, double deltaSeconds, double gameTimeSeconds) {
+                final float[] positions = archetype.getPositions();
+                final int end = archetype.getCount() * 3;
+                final float dy = (float) deltaSeconds;
+                for (int i = 1; i < end; i += 3) {
+                    positions[i] += dy;
+                }
+                archetype.markTransformsChanged();
+            }
+        };
+
+        final float[] transform = new float[16];
+        long objectUpdateNanos = Long.MAX_VALUE;
+        long storeUpdateNanos = Long.MAX_VALUE;
+        for (int frame = -WARMUP_FRAMES; frame < frameCount; frame++) {
+            final long objectStart = System.nanoTime();
+            for (int i = 0; i < count; i++) {
+                final SpatialShape object = objects.get(i);
+                object.getPosition().y += DELTA_SECONDS;
+                object.copyTransform(transform, 0);
+            }
+            final long objectTime = System.nanoTime() - objectStart;
+
+            final long storeStart = System.nanoTime();
+            store.update(rise, DELTA_SECONDS, 0);
+            store.updateTransforms();
+            final long storeTime = System.nanoTime() - storeStart;
+
+            if (frame >= 0) {
+                objectUpdateNanos = Math.min(objectUpdateNanos, objectTime);
+                storeUpdateNanos = Math.min(storeUpdateNanos, storeTime);
+            }
+        }
+
+        final RenderQueue queue = new RenderQueue(count);
+        long objectNanos = Long.MAX_VALUE;
+        long storeNanos = Long.MAX_VALUE;
+        for (int frame = -WARMUP_FRAMES; frame < frameCount; frame++) {
+            final long objectStart = System.nanoTime();
+            queue.clear();
+            for (int i = 0; i < count; i++) {
+                final SpatialShape object = objects.get(i);
+                object.getPosition().y += DELTA_SECONDS;
+                object.submit(queue);
+            }
+            final long objectTime = System.nanoTime() - objectStart;
+
+            final long storeStart = System.nanoTime();
+            queue.clear();
+            store.update(rise, DELTA_SECONDS, 0);
+            store.submit(queue);
+            final long storeTime = System.nanoTime() - storeStart;
+
+            if (frame >= 0) {
+                objectNanos = Math.min(objectNanos, objectTime);
+                storeNanos = Math.min(storeNanos, storeTime);
+            }
+        }
+
+        System.out.println("Instances:                     " + count + " in " + store.getArchetypes().size() + " archetypes");
+        System.out.println("SpatialShape update:           " + formatMillis(objectUpdateNanos));
+        System.out.println("InstanceStore update:          " + formatMillis(storeUpdateNanos));
+        System.out.println("SpatialShape update + submit:  " + formatMillis(objectNanos));
+        System.out.println("InstanceStore update + submit: " + formatMillis(storeNanos));
+    }
+
+    private static String formatMillis(long nanos) {
+        return String.format("%.3f ms", nanos / 1000000.0);
+    }
+}
@@ -0,0 +1,101 @@
+package org.skycastle.flowgine.render;
+
+import org.skycastle.flowgine.FlowGine;
+import org.skycastle.flowgine.geometry.Col4;
+import org.skycastle.flowgine.geometry.Vec3;
+import org.skycastle.flowgine.shader.Shader;
+import org.skycastle.flowgine.shape.Shape;
+import org.skycastle.flowgine.utils.GLErrorCheckMode;
+import org.skycastle.flowgine.utils.GeomUtils;
+import org.skycastle.flowgine.utils.OpenGLUtils;
+
+import java.util.Random;
+
+/**
+ * Measures how long it takes to submit and sort a frame of draw items in the RenderQueue, and how many state changes
+ * rendering the sorted frame needs.  Runs headless on a RecordingRenderBackend.
+ * <p/>
+ * Arguments: number of items per frame (default 100000), number of measured frames (default 50).
+ */
+public final class RenderQueueBenchmark {
+
+    private static final int SHADER_COUNT = 8;
+    private static final int SHAPE_COUNT = 50;
+    private static final int WARMUP_FRAMES = 20;
+
+    public static void main(String[] args) {
+        final int itemCount = args.length > 0 ? Integer.parseInt(args[0]) : 100000;
+        final int frameCount = args.length > 1 ? Integer.parseInt(args[1]) : 50;
+
+        final RecordingRenderBackend recorder = new RecordingRenderBackend();
+        FlowGine.renderBackend = new StateCachingRenderBackend(recorder);
+        OpenGLUtils.setErrorCheckMode(GLErrorCheckMode.OFF);
+
+        final Shader[] shaders = new Shader[SHADER_COUNT];
+        for (int i = 0; i < SHADER_COUNT; i++) {
+            shaders[i] = new Shader("benchmark" + i + ".vert", "void main() {}", "benchmark" + i + ".frag", "void main() {}");
+        }
+
+        // Shapes are not uploaded, their sort keys use the id assigned at creation
+        final Shape[] shapes = new Shape[SHAPE_COUNT];
+        for (int i = 0; i < SHAPE_COUNT; i++) {
+            shapes[i] = GeomUtils.makeCube(new Vec3(), new Vec3(1, 1, 1), new Col4(), null);
+        }
+
+        final RenderQueue queue = new RenderQueue(itemCount);
+        queue.setCamera(new Vec3(), 0.1f, 1000f);
+        final Random random = new Random(42);
+        final float[] transform = new float[16];
+
+        long submitNanos = 0;
+        long sortNanos = 0;
+        for (int frame = -WARMUP_FRAMES; frame < frameCount; frame++) {
+            final long startTime = System.nanoTime();
+            queue.clear();
+            for (int i = 0; i < itemCount; i++) {
+                transform[12] = random.nextFloat() * 1000;
+                transform[13] = random.nextFloat() * 1000;
+                queue.submit(random.nextInt(3),
+                             random.nextInt(10) == 0,
+                             shaders[random.nextInt(SHADER_COUNT)],
+                             shapes[random.nextInt(SHAPE_COUNT)],
+                             null,
+                             transform,
+                             0,
+                             null);
+            }
+            final long submitTime = System.nanoTime() - startTime;
+            queue.sort();
+
+            if (frame >= 0) {
+                submitNanos += submitTime;
+                sortNanos += queue.getSortTimeNanos();
+            }
+        }
+
+        for (int i = 1; i < queue.size(); i++) {
+            if (compareUnsigned(queue.getSortedKey(i - 1), queue.getSortedKey(i)) > 0) {
+                throw new IllegalStateException("Items not sorted at position " + i);
+            }
+        }
+
+        queue.setInstancingEnabled(false);
+        queue.render();
+
+        System.out.println("Items per frame:     " + itemCount);
+        System.out.println("Submit per frame:    " + formatMillis(submitNanos / frameCount));
+        System.out.println("Sort per frame:      " + formatMillis(sortNanos / frameCount));
+        System.out.println("Shader binds:        " + queue.getShaderBindCount());
+        System.out.println("Shape binds:         " + queue.getShapeBindCount());
+        System.out.println("Draw calls:          " + queue.getDrawCallCount());
+        System.out.println("Backend calls:       " + recorder.getTotalCallCount());
+    }
+
+    private static int compareUnsigned(long a, long b) {
+        return a + Long.MIN_VALUE < b + Long.MIN_VALUE ? -1 : (a == b ? 0 : 1);
+    }
+
+    private static String formatMillis(long nanos) {
+        return String.format("%.3f ms", nanos / 1000000.0);
+    }
+}
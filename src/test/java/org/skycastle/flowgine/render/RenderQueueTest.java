@@ -0,0 +1,148 @@
+package org.skycastle.flowgine.render;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.skycastle.flowgine.FlowGine;
+import org.skycastle.flowgine.geometry.Col4;
+import org.skycastle.flowgine.geometry.Vec3;
+import org.skycastle.flowgine.shader.Shader;
+import org.skycastle.flowgine.shape.Shape;
+import org.skycastle.flowgine.utils.GLErrorCheckMode;
+import org.skycastle.flowgine.utils.GeomUtils;
+import org.skycastle.flowgine.utils.OpenGLUtils;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class RenderQueueTest {
+
+    private RenderBackend originalBackend;
+    private RecordingRenderBackend recorder;
+    private Shader instancedShader;
+    private Shader plainShader;
+    private Shape cube;
+    private Shape otherCube;
+
+    @Before
+    public void setUp() throws Exception {
+        originalBackend = FlowGine.renderBackend;
+        recorder = new RecordingRenderBackend(true);
+        FlowGine.renderBackend = recorder;
+        OpenGLUtils.setErrorCheckMode(GLErrorCheckMode.OFF);
+
+        instancedShader = new Shader("instanced.vert", "void main() {}", "instanced.frag", "void main() {}");
+        recorder.setAttributesActive(false);
+        plainShader = new Shader("plain.vert", "void main() {}", "plain.frag", "void main() {}");
+
+        cube = GeomUtils.makeCube(new Vec3(), new Vec3(1, 1, 1), new Col4(), null);
+        otherCube = GeomUtils.makeCube(new Vec3(), new Vec3(2, 2, 2), new Col4(), null);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        FlowGine.renderBackend = originalBackend;
+    }
+
+    @Test
+    public void testShadersAreInstancedOnlyWithInstanceAttributes() throws Exception {
+        assertTrue(instancedShader.isInstanced());
+        assertFalse(plainShader.isInstanced());
+    }
+
+    @Test
+    public void testMixedGroups() throws Exception {
+        final RenderQueue queue = new RenderQueue();
+        submit(queue, instancedShader, cube, 1);
+        submit(queue, instancedShader, cube, 2);
+        submit(queue, instancedShader, cube, 3);
+        submit(queue, instancedShader, otherCube, 4);
+        submit(queue, plainShader, cube, 5);
+        submit(queue, plainShader, cube, 6);
+
+        recorder.reset();
+        queue.render();
+
+        // One instanced draw for the group of three, and one draw for each of the other items
+        assertEquals(4, queue.getDrawCallCount());
+        assertEquals(1, queue.getInstancedDrawCallCount());
+        assertEquals(3, queue.getInstanceCount());
+        assertEquals(1, recorder.getCallCount("drawElementsInstanced"));
+        assertEquals(3, recorder.getCallCount("drawElements"));
+
+        // The instanced shader item drawn alone gets its transformation as attribute values, the plain shader items not
+        assertEquals(5, recorder.getCallCount("vertexAttrib4f"));
+        assertEquals(asList(4f), drawnTranslations());
+    }
+
+    @Test
+    public void testInstancingDisabled() throws Exception {
+        final RenderQueue queue = new RenderQueue();
+        queue.setInstancingEnabled(false);
+        submit(queue, instancedShader, cube, 1);
+        submit(queue, instancedShader, cube, 2);
+        submit(queue, instancedShader, cube, 3);
+        submit(queue, plainShader, cube, 4);
+
+        recorder.reset();
+        queue.render();
+
+        assertEquals(4, queue.getDrawCallCount());
+        assertEquals(0, queue.getInstancedDrawCallCount());
+        assertEquals(0, recorder.getCallCount("drawElementsInstanced"));
+        assertEquals(4, recorder.getCallCount("drawElements"));
+
+        // Each instanced shader item is drawn with its own transformation
+        final List<Float> translations = drawnTranslations();
+        assertEquals(3, translations.size());
+        assertTrue(translations.containsAll(asList(1f, 2f, 3f)));
+    }
+
+    @Test
+    public void testSortKeysDoNotDependOnUpload() throws Exception {
+        assertFalse(cube.isUploaded());
+        assertFalse(otherCube.isUploaded());
+        assertTrue(cube.getId() != otherCube.getId());
+
+        final RenderQueue queue = new RenderQueue();
+        final int first = submit(queue, instancedShader, cube, 1);
+        final int second = submit(queue, instancedShader, otherCube, 1);
+
+        assertEquals(cube.getId() & SortKey.MAX_ID, SortKey.getMeshId(queue.getSortedKey(queue.getSortedItem(0) == first ? 0 : 1)));
+        assertEquals(otherCube.getId() & SortKey.MAX_ID, SortKey.getMeshId(queue.getSortedKey(queue.getSortedItem(0) == second ? 0 : 1)));
+    }
+
+    private int submit(RenderQueue queue, Shader shader, Shape shape, float x) {
+        final float[] transform = new float[16];
+        transform[0] = 1;
+        transform[5] = 1;
+        transform[10] = 1;
+        transform[12] = x;
+        transform[15] = 1;
+        return queue.submit(0, false, shader, shape, null, transform, 0, null);
+    }
+
+    /**
+     * @return x translations set as constant values of the last column of the instanceTransform attribute.
+     */
+    private List<Float> drawnTranslations() {
+        final String prefix = "vertexAttrib4f(" + (Shader.INSTANCE_TRANSFORM_LOCATION + 3) + ", ";
+        final List<Float> translations = new ArrayList<Float>();
+        for (String call : recorder.getCallLog()) {
+            if (call.startsWith(prefix)) {
+                translations.add(Float.parseFloat(call.substring(prefix.length(), call.indexOf(',', prefix.length()))));
+            }
+        }
+        return translations;
+    }
+
+    private List<Float> asList(Float... values) {
+        final List<Float> list = new ArrayList<Float>();
+        for (Float value : values) {
+            list.add(value);
+        }
+        return list;
+    }
+}
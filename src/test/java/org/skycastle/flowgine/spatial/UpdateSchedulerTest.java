@@ -0,0 +1,105 @@
+package org.skycastle.flowgine.spatial;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.skycastle.flowgine.FlowGine;
+import org.skycastle.flowgine.geometry.Col4;
+import org.skycastle.flowgine.geometry.Vec3;
+import org.skycastle.flowgine.render.RecordingRenderBackend;
+import org.skycastle.flowgine.render.RenderBackend;
+import org.skycastle.flowgine.resourceloader.ClasspathResourceLoader;
+import org.skycastle.flowgine.resourceloader.ResourceLoader;
+import org.skycastle.flowgine.shader.ShaderManager;
+import org.skycastle.flowgine.shader.ShaderRef;
+import org.skycastle.flowgine.shape.ShapeManager;
+import org.skycastle.flowgine.shape.ShapeRef;
+import org.skycastle.flowgine.utils.GLErrorCheckMode;
+import org.skycastle.flowgine.utils.GeomUtils;
+import org.skycastle.flowgine.utils.OpenGLUtils;
+
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class UpdateSchedulerTest {
+
+    private final ShapeRef shapeRef = new ShapeRef("cube");
+    private final ShaderRef instanceShader = new ShaderRef("benchmark/instance.vert", "benchmark/instance.frag");
+    private final ShaderRef plainShader = new ShaderRef("shaders/plain.vert", "shaders/plain.frag");
+
+    private RenderBackend originalBackend;
+    private ResourceLoader originalResourceLoader;
+    private ShapeManager originalShapeManager;
+    private ShaderManager originalShaderManager;
+    private RecordingRenderBackend recorder;
+    private UpdateScheduler scheduler;
+    private UpdatePhase phase;
+
+    @Before
+    public void setUp() throws Exception {
+        originalBackend = FlowGine.renderBackend;
+        originalResourceLoader = FlowGine.resourceLoader;
+        originalShapeManager = FlowGine.shapeManager;
+        originalShaderManager = FlowGine.shaderManager;
+        recorder = new RecordingRenderBackend(true);
+        FlowGine.renderBackend = recorder;
+        FlowGine.resourceLoader = new ClasspathResourceLoader("");
+        FlowGine.shapeManager = new ShapeManager();
+        FlowGine.shaderManager = new ShaderManager();
+        OpenGLUtils.setErrorCheckMode(GLErrorCheckMode.OFF);
+
+        FlowGine.shapeManager.add(shapeRef, GeomUtils.makeCube(new Vec3(), new Vec3(1, 1, 1), new Col4(), null));
+
+        scheduler = new UpdateScheduler(1, 16);
+        phase = new UpdatePhase("animation", false, Collections.<String>emptySet(), Collections.<String>emptySet());
+        scheduler.addPhase(phase);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        scheduler.dispose();
+        FlowGine.renderBackend = originalBackend;
+        FlowGine.resourceLoader = originalResourceLoader;
+        FlowGine.shapeManager = originalShapeManager;
+        FlowGine.shaderManager = originalShaderManager;
+    }
+
+    @Test
+    public void testShadersOfNewSpatialsAreCompiledTogether() throws Exception {
+        final SpatialShape first = new SpatialShape(shapeRef, instanceShader);
+        final SpatialShape second = new SpatialShape(shapeRef, plainShader);
+        final SpatialShape third = new SpatialShape(shapeRef, instanceShader);
+        scheduler.add(first, phase);
+        scheduler.add(second, phase);
+        scheduler.add(third, phase);
+
+        scheduler.update(0.1, 0.1);
+
+        assertTrue(first.isCreated() && second.isCreated() && third.isCreated());
+        assertSame(first.getShader(), third.getShader());
+        assertNotSame(first.getShader(), second.getShader());
+        assertEquals(0, FlowGine.shaderManager.getPendingCount());
+
+        // Both programs are linked before the status of either is queried
+        final List<String> calls = recorder.getCallLog();
+        int linksBeforeQuery = 0;
+        for (String call : calls) {
+            if (call.startsWith("getShaderi") || call.startsWith("getProgrami")) break;
+            if (call.startsWith("linkProgram")) linksBeforeQuery++;
+        }
+        assertEquals(2, linksBeforeQuery);
+        assertEquals(2, recorder.getCallCount("linkProgram"));
+    }
+
+    @Test
+    public void testShadersThatWereNotPreloadedAreStillCreated() throws Exception {
+        final SpatialShape spatial = new SpatialShape(shapeRef, plainShader);
+        spatial.create();
+
+        assertTrue(spatial.isCreated());
+        assertEquals(1, recorder.getCallCount("linkProgram"));
+        assertEquals(0, FlowGine.shaderManager.getPendingCount());
+    }
+}
@@ -0,0 +1,85 @@
+package org.skycastle.flowgine.terrain;
+
+import org.skycastle.flowgine.FlowGine;
+import org.skycastle.flowgine.geometry.Vec3;
+import org.skycastle.flowgine.render.RecordingRenderBackend;
+import org.skycastle.flowgine.shader.Shader;
+import org.skycastle.flowgine.utils.GLErrorCheckMode;
+import org.skycastle.flowgine.utils.OpenGLUtils;
+
+/**
+ * Measures how many terrain chunks per second the TerrainMesher meshes, for a few chunk resolutions,
+ * and how long creating, updating and rendering a whole Terrain takes.  Runs headless on a RecordingRenderBackend.
+ * <p/>
+ * Arguments: number of chunks to mesh per measurement (default 1000).
+ */
+public final class TerrainBenchmark {
+
+    private static final float CHUNK_SIZE = 64;
+    private static final int REPEATS = 10;
+    private static final int TERRAIN_CHUNKS = 16;
+
+    private static final Heightfield HILLS = new Heightfield() {
+        public float getHeight(float x, float z) {
+            return (float) (Math.sin(x * 0.05) * Math.cos(z * 0.07) * 10 + Math.sin(x * 0.011 + z * 0.013) * 40);
+        }
+    };
+
+    public static void main(String[] args) {
+        final int chunkCount = args.length > 0 ? Integer.parseInt(args[0]) : 1000;
+
+        FlowGine.renderBackend = new RecordingRenderBackend();
+        OpenGLUtils.setErrorCheckMode(GLErrorCheckMode.OFF);
+
+        for (int quadsPerSide = 16; quadsPerSide <= 64; quadsPerSide *= 2) {
+            final TerrainMesher mesher = new TerrainMesher(quadsPerSide, CHUNK_SIZE);
+            final float[] vertexData = new float[mesher.getVertexDataSize()];
+
+            long bestNanos = Long.MAX_VALUE;
+            for (int repeat = 0; repeat < REPEATS; repeat++) {
+                final long startTime = System.nanoTime();
+                for (int i = 0; i < chunkCount; i++) {
+                    mesher.meshVertices(HILLS, (i % 32) * CHUNK_SIZE, (i / 32) * CHUNK_SIZE, vertexData);
+                }
+                bestNanos = Math.min(bestNanos, System.nanoTime() - startTime);
+            }
+
+            final int vertices = mesher.getVerticesPerSide() * mesher.getVerticesPerSide();
+            System.out.println(quadsPerSide + "x" + quadsPerSide + " quad chunks: " +
+                               Math.round(chunkCount / (bestNanos / 1E9)) + " chunks/s, " +
+                               Math.round(chunkCount * (double) vertices / (bestNanos / 1E3)) + " million vertices/s, " +
+                               mesher.getIndexes().length + " shared indexes for " + mesher.getLevelCount() + " levels");
+        }
+
+        final TerrainMesher mesher = new TerrainMesher(32, CHUNK_SIZE);
+        final float origin = -TERRAIN_CHUNKS * CHUNK_SIZE / 2;
+        final Terrain terrain = new Terrain(HILLS, mesher, TERRAIN_CHUNKS, TERRAIN_CHUNKS, origin, origin, 100);
+        final long createStart = System.nanoTime();
+        terrain.create();
+        final long createNanos = System.nanoTime() - createStart;
+
+        final long updateStart = System.nanoTime();
+        terrain.update(new Vec3(0, 0, 0));
+        final long updateNanos = System.nanoTime() - updateStart;
+
+        final Shader shader = new Shader("terrain.vert", "void main() {}", "terrain.frag", "void main() {}");
+        final long renderStart = System.nanoTime();
+        terrain.render(shader);
+        final long renderNanos = System.nanoTime() - renderStart;
+
+        long triangles = 0;
+        for (int level = 0; level < mesher.getLevelCount(); level++) {
+            triangles += terrain.getTriangleCount(level);
+        }
+
+        System.out.println(TERRAIN_CHUNKS + "x" + TERRAIN_CHUNKS + " chunk terrain: create " + formatMillis(createNanos) +
+                           " (meshing " + formatMillis(terrain.getMeshTimeNanos()) + "), update " + formatMillis(updateNanos) +
+                           ", render " + formatMillis(renderNanos) + " with " + triangles + " triangles after level of detail selection");
+        terrain.dispose();
+        shader.dispose();
+    }
+
+    private static String formatMillis(long nanos) {
+        return String.format("%.3f ms", nanos / 1000000.0);
+    }
+}
@@ -0,0 +1,155 @@
+package org.skycastle.flowgine.terrain;
+
+import org.junit.Test;
+
+import java.util.Set;
+import java.util.TreeSet;
+
+import static org.junit.Assert.*;
+import static org.skycastle.flowgine.terrain.TerrainMesher.*;
+
+public class TerrainMesherTest {
+
+    private static final int QUADS = 16;
+
+    // Offsets of the sample points in each quad, chosen so that they do not fall on any triangle edge
+    private static final double[][] SAMPLE_OFFSETS = {{0.3137, 0.5719}, {0.7283, 0.1931}, {0.0577, 0.9413}};
+
+    private static final int NORTH = 0;
+    private static final int EAST = 1;
+    private static final int SOUTH = 2;
+    private static final int WEST = 3;
+
+    private final TerrainMesher mesher = new TerrainMesher(QUADS, 32);
+
+    @Test
+    public void testLevels() throws Exception {
+        assertEquals(5, mesher.getLevelCount());
+        assertEquals(QUADS + 1, mesher.getVerticesPerSide());
+
+        for (int level = 0; level < mesher.getLevelCount(); level++) {
+            final int quads = QUADS >> level;
+            assertEquals("Unstitched triangles of level " + level, quads * quads * 6, mesher.getIndexCount(level, 0));
+        }
+    }
+
+    @Test
+    public void testEveryVariantCoversTheChunkOnce() throws Exception {
+        for (int level = 0; level < mesher.getLevelCount(); level++) {
+            for (int stitch = 0; stitch < STITCH_VARIANTS; stitch++) {
+                final String variant = "Level " + level + " stitch " + stitch;
+                final int[] triangles = triangles(level, stitch);
+
+                for (int t = 0; t < triangles.length; t += 3) {
+                    assertTrue(variant + " triangle " + t / 3 + " should be counterclockwise seen from above",
+                               signedArea(triangles, t) < 0);
+                }
+
+                for (int z = 0; z < QUADS; z++) {
+                    for (int x = 0; x < QUADS; x++) {
+                        for (double[] offset : SAMPLE_OFFSETS) {
+                            final double px = x + offset[0];
+                            final double pz = z + offset[1];
+                            assertEquals(variant + " triangles covering " + px + ", " + pz, 1, countCovering(triangles, px, pz));
+                        }
+                    }
+                }
+            }
+        }
+    }
+
+    @Test
+    public void testStitchedBordersMatchTheCoarserLevel() throws Exception {
+        final int[] flags = {STITCH_NORTH, STITCH_EAST, STITCH_SOUTH, STITCH_WEST};
+        final int[] opposite = {SOUTH, WEST, NORTH, EAST};
+
+        for (int level = 0; level < mesher.getLevelCount() - 1; level++) {
+            for (int stitch = 0; stitch < STITCH_VARIANTS; stitch++) {
+                for (int side = NORTH; side <= WEST; side++) {
+                    final String variant = "Level " + level + " stitch " + stitch + " side " + side;
+                    final Set<String> edges = borderEdges(level, stitch, side);
+
+                    // The neighbour is at the same level, or one level coarser if the side is stitched
+                    final int neighbourLevel = (stitch & flags[side]) != 0 ? level + 1 : level;
+                    assertEquals(variant, borderEdges(neighbourLevel, 0, opposite[side]), edges);
+                }
+            }
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testQuadsPerSideMustBePowerOfTwo() throws Exception {
+        new TerrainMesher(12, 32);
+    }
+
+    private int[] triangles(int level, int stitch) {
+        final int[] triangles = new int[mesher.getIndexCount(level, stitch)];
+        System.arraycopy(mesher.getIndexes(), mesher.getIndexOffset(level, stitch), triangles, 0, triangles.length);
+        return triangles;
+    }
+
+    /**
+     * @return twice the area of a triangle on the x z plane, positive if it is clockwise seen from above.
+     */
+    private double signedArea(int[] triangles, int first) {
+        final int a = triangles[first];
+        final int b = triangles[first + 1];
+        final int c = triangles[first + 2];
+        return (double) (x(b) - x(a)) * (z(c) - z(a)) - (double) (z(b) - z(a)) * (x(c) - x(a));
+    }
+
+    private int countCovering(int[] triangles, double px, double pz) {
+        int covering = 0;
+        for (int t = 0; t < triangles.length; t += 3) {
+            final int a = triangles[t];
+            final int b = triangles[t + 1];
+            final int c = triangles[t + 2];
+            final double ab = cross(x(a), z(a), x(b), z(b), px, pz);
+            final double bc = cross(x(b), z(b), x(c), z(c), px, pz);
+            final double ca = cross(x(c), z(c), x(a), z(a), px, pz);
+            if ((ab < 0 && bc < 0 && ca < 0) || (ab > 0 && bc > 0 && ca > 0)) covering++;
+        }
+        return covering;
+    }
+
+    private static double cross(int x1, int z1, int x2, int z2, double px, double pz) {
+        return (x2 - x1) * (pz - z1) - (z2 - z1) * (px - x1);
+    }
+
+    /**
+     * @return the triangle edges along one side of the chunk, as the positions of their ends along the side.
+     */
+    private Set<String> borderEdges(int level, int stitch, int side) {
+        final int[] triangles = triangles(level, stitch);
+        final Set<String> edges = new TreeSet<String>();
+        for (int t = 0; t < triangles.length; t += 3) {
+            for (int i = 0; i < 3; i++) {
+                final int a = triangles[t + i];
+                final int b = triangles[t + (i + 1) % 3];
+                if (isOnSide(a, side) && isOnSide(b, side)) {
+                    final int positionA = side == NORTH || side == SOUTH ? x(a) : z(a);
+                    final int positionB = side == NORTH || side == SOUTH ? x(b) : z(b);
+                    edges.add(Math.min(positionA, positionB) + "-" + Math.max(positionA, positionB));
+                }
+            }
+        }
+        return edges;
+    }
+
+    private boolean isOnSide(int vertex, int side) {
+        switch (side) {
+            case NORTH: return z(vertex) == 0;
+            case EAST:  return x(vertex) == QUADS;
+            case SOUTH: return z(vertex) == QUADS;
+            default:    return x(vertex) == 0;
+        }
+    }
+
+    private int x(int vertex) {
+        return vertex % mesher.getVerticesPerSide();
+    }
+
+    private int z(int vertex) {
+        return vertex / mesher.getVerticesPerSide();
+    }
+}
@@ -0,0 +1,8 @@
+#version 330
+
+layout(location = 0) in vec3 position;
+in mat4 instanceTransform;
+
+void main() {
+    gl_Position = instanceTransform * vec4(position, 1.0);
+}
@@ -0,0 +1,8 @@
+#version 330
+
+layout(location = 0) in vec3 position;
+uniform mat4 modelMatrix;
+
+void main() {
+    gl_Position = modelMatrix * vec4(position, 1.0);
+}